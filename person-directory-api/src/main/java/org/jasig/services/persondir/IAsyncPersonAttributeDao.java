@@ -0,0 +1,57 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.services.persondir;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous companion to {@link IPersonAttributeDao}. Each method starts the lookup and returns a {@link Future}
+ * for its results without waiting for them, the results follow the same rules as the matching blocking method on
+ * {@link IPersonAttributeDao}. Problems running the lookup are reported through the {@link Future} as an
+ * {@link java.util.concurrent.ExecutionException}, invalid arguments are still thrown from the method itself.
+ * <br>
+ * Implementations should return an already completed {@link Future} when the results are available without doing
+ * any I/O, such as a cache hit or a query the implementation does not run, so callers don't pay for a thread hand-off.
+ * 
+ * @version $Revision$
+ */
+public interface IAsyncPersonAttributeDao {
+    /**
+     * Starts a search for a single {@link IPersonAttributes} using the specified uid (userName).
+     * 
+     * @param uid The userName of the person to find.
+     * @return A {@link Future} for the results of {@link IPersonAttributeDao#getPerson(String)}
+     * @throws IllegalArgumentException If <code>uid</code> is <code>null.</code>
+     */
+    public Future<IPersonAttributes> getPersonAsync(String uid);
+    
+    /**
+     * Starts a search for {@link IPersonAttributes}s that match the set of attributes provided in the query {@link Map}.
+     * 
+     * @param query A {@link Map} of name/value pair attributes to use in searching for {@link IPersonAttributes}s
+     * @return A {@link Future} for the results of {@link IPersonAttributeDao#getPeopleWithMultivaluedAttributes(Map)}
+     * @throws IllegalArgumentException If <code>query</code> is <code>null.</code>
+     */
+    public Future<Set<IPersonAttributes>> getPeopleWithMultivaluedAttributesAsync(Map<String, List<Object>> query);
+}
@@ -19,6 +19,7 @@
 
 package org.jasig.services.persondir;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -53,6 +54,21 @@ public interface IPersonAttributeDao {
      */
     public IPersonAttributes getPerson(String uid);
     
+    /**
+     * Searches for the {@link IPersonAttributes} of each of the specified uids (userNames). The results for each uid
+     * follow the rules of {@link #getPerson(String)}, implementations may find all of the people with fewer queries
+     * than calling {@link #getPerson(String)} for each uid.
+     * <br>
+     * This method was added in 1.5.2. Implementations that extend
+     * <code>org.jasig.services.persondir.support.BasePersonAttributeDao</code> inherit a version that calls
+     * {@link #getPerson(String)} for each uid.
+     * 
+     * @param uids The userNames of the people to find.
+     * @return A {@link Map} of uid to the {@link IPersonAttributes} found for it, uids for which no person could be found are not included.
+     * @throws IllegalArgumentException If <code>uids</code> is <code>null</code> or contains <code>null</code>.
+     */
+    public Map<String, IPersonAttributes> getPeopleForUids(Collection<String> uids);
+    
     /**
      * Searches for {@link IPersonAttributes}s that match the set of attributes provided in the query {@link Map}. Each
      * implementation is free to define what qualifies as a 'match' is on its own. The provided query Map contains
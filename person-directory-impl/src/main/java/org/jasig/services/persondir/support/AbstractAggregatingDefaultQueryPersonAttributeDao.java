@@ -19,17 +19,40 @@
 
 package org.jasig.services.persondir.support;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.Validate;
+import org.jasig.services.persondir.IAsyncPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.support.merger.IAttributeMerger;
+import org.jasig.services.persondir.support.merger.MergeAccumulator;
 import org.jasig.services.persondir.support.merger.MultivaluedAttributeMerger;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Required;
 
 
@@ -85,103 +108,1166 @@ import org.springframework.beans.factory.annotation.Required;
  *         <td valign="top">No</td>
  *         <td valign="top">false</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">queryExecutor</td>
+ *         <td>
+ *             If set and the implementation queries its children independently of each other (see
+ *             {@link #isParallelQuerySupported()}) the queries to all child DAOs are started at once on this
+ *             {@link ExecutorService}. Results are still merged in the order of the <b>personAttributeDaos</b>
+ *             {@link List} and <b>recoverExceptions</b> and <b>stopOnSuccess</b> behave as they do for sequential
+ *             queries. If the executor rejects a query it is run in the calling thread.
+ *             <br/>
+ *             When a timeout is configured sequential child queries are also run on this executor so the
+ *             calling thread can stop waiting for them, it is required if <b>childQueryTimeout</b>,
+ *             <b>childQueryTimeouts</b> or <b>queryTimeout</b> is set. Child queries run on the executor's threads
+ *             so ThreadLocal state of the calling thread, such as a transaction, is not available to them.
+ *         </td>
+ *         <td valign="top">If a timeout is set</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">childQueryTimeout</td>
+ *         <td>
+ *             Milliseconds to wait for each child DAO to return. A child that does not return in time is
+ *             treated as if it threw an exception, it is logged and skipped if <b>recoverExceptions</b> is true.
+ *             0 or less means no timeout.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">childQueryTimeouts</td>
+ *         <td>
+ *             {@link Map} of child DAO to the milliseconds to wait for it, overrides <b>childQueryTimeout</b>
+ *             for the DAOs in the Map.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">empty</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">queryTimeout</td>
+ *         <td>
+ *             Milliseconds the whole query may take. Children still running at the deadline are treated as
+ *             timed out. The deadline is passed to nested aggregating DAOs, which use the earlier of their own
+ *             deadline and the one passed to them. 0 or less means no deadline.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">circuitBreakerFailureThreshold</td>
+ *         <td>
+ *             Number of failed or timed out queries to a child DAO within <b>circuitBreakerWindow</b> that open
+ *             a {@link CircuitBreaker} for the child. While the breaker is open the child is skipped as if it had
+ *             thrown an exception, after <b>circuitBreakerOpenTime</b> one probe query is let through and if it
+ *             succeeds the breaker closes. 0 or less disables the circuit breakers.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">circuitBreakerWindow</td>
+ *         <td>
+ *             Milliseconds failures are counted for by the circuit breakers.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">60000</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">circuitBreakerOpenTime</td>
+ *         <td>
+ *             Milliseconds an open circuit breaker skips its child before allowing a probe query.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">30000</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">circuitBreakerSlowCallTime</td>
+ *         <td>
+ *             Child queries that return but take at least this many milliseconds are counted as failures by
+ *             the circuit breakers. 0 or less means slow queries are not counted.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">routeQueries</td>
+ *         <td>
+ *             If true a child DAO is not queried when none of the attributes it would be queried with are in its
+ *             {@link IPersonAttributeDao#getAvailableQueryAttributes()}, the query could not return results. Children
+ *             that report no query attributes and nested aggregating DAOs are always queried. The number of skipped
+ *             child queries is available from {@link #getSkippedChildQueries()}.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">routingTableRefreshInterval</td>
+ *         <td>
+ *             Milliseconds the table of child query attributes used by <b>routeQueries</b> is kept before it is
+ *             rebuilt on the next query, so changes to the query attributes of children are picked up.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">60000</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">asyncExecutor</td>
+ *         <td>
+ *             The {@link ExecutorService} the {@link IAsyncPersonAttributeDao} methods run the blocking aggregated
+ *             query on. The asynchronous methods of the children are not used, one thread of this executor is held
+ *             until every child query is done and the child queries are still started on the
+ *             <b>queryExecutor</b>. This must not be the <b>queryExecutor</b>, an aggregated query waiting on its
+ *             children could otherwise hold every thread the children need. If not set asynchronous queries
+ *             block the calling thread and a warning is logged for each of them.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
  * </table>
+ * A child query with a timeout or deadline is run on the <b>queryExecutor</b> so the calling thread can stop waiting
+ * for a child that hangs, a query that times out is interrupted but keeps its thread until the child returns. A
+ * nested aggregating DAO without a <b>queryExecutor</b> can only check the deadline it inherits before each child is
+ * queried.
  * 
  * @author Eric Dalquist
  * @version $Revision$
  */
-public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao {
+public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao implements InitializingBean, IAsyncPersonAttributeDao {
     /**
      * A List of child IPersonAttributeDao instances which we will poll in order.
      */
     protected List<IPersonAttributeDao> personAttributeDaos;
     
     /**
-     * Strategy for merging together the results from successive PersonAttributeDaos.
+     * Strategy for merging together the results from successive PersonAttributeDaos.
+     */
+    protected IAttributeMerger attrMerger = new MultivaluedAttributeMerger();
+    
+    /**
+     * True if we should catch, logger, and ignore Throwables propogated by
+     * individual DAOs.
+     */
+    protected boolean recoverExceptions = true;
+    
+    protected boolean stopOnSuccess = false;
+    
+    /**
+     * Executor to query the child DAOs on in parallel, null to query them sequentially.
+     */
+    protected ExecutorService queryExecutor = null;
+    
+    /*
+     * Executor aggregated queries from the async API are run on
+     */
+    private ExecutorService asyncExecutor = null;
+    
+    /*
+     * Timeouts for the child queries, in milliseconds
+     */
+    private long childQueryTimeout = 0;
+    private Map<IPersonAttributeDao, Long> childQueryTimeouts = Collections.emptyMap();
+    private long queryTimeout = 0;
+    
+    /*
+     * Circuit breaker configuration and the breakers, created the first time each child is queried
+     */
+    private int circuitBreakerFailureThreshold = 0;
+    private long circuitBreakerWindow = 60000;
+    private long circuitBreakerOpenTime = 30000;
+    private long circuitBreakerSlowCallTime = 0;
+    private final ConcurrentMap<IPersonAttributeDao, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<IPersonAttributeDao, CircuitBreaker>();
+    
+    /*
+     * Query routing configuration, the current routing table and the number of child queries skipped
+     */
+    private boolean routeQueries = false;
+    private long routingTableRefreshInterval = 60000;
+    private volatile QueryRoutingTable routingTable = null;
+    private final AtomicLong skippedChildQueries = new AtomicLong();
+    
+    /**
+     * Deadline of the aggregated query the current thread is working for, used to pass deadlines to nested
+     * aggregating DAOs.
+     */
+    private static final ThreadLocal<Long> QUERY_DEADLINE = new ThreadLocal<Long>();
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+    
+
+    /**
+     * Checks that a queryExecutor is set if a timeout is configured, without one a child that hangs would block the
+     * calling thread past the timeout.
+     * 
+     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+     */
+    public void afterPropertiesSet() throws Exception {
+        boolean timeoutConfigured = this.childQueryTimeout > 0 || this.queryTimeout > 0;
+        for (final Long childTimeout : this.childQueryTimeouts.values()) {
+            timeoutConfigured |= childTimeout > 0;
+        }
+        
+        if (timeoutConfigured && this.queryExecutor == null) {
+            throw new IllegalStateException("A 'queryExecutor' must be specified when 'childQueryTimeout', 'childQueryTimeouts' or 'queryTimeout' is set.");
+        }
+    }
+
+    /**
+     * Iterates through the configured {@link java.util.List} of {@link IPersonAttributeDao}
+     * instances. The results from each DAO are merged into the result {@link Map}
+     * by the configured {@link IAttributeMerger}. 
+     * 
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
+     */
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+        Validate.notNull(query, "query may not be null.");
+        
+        if (this.personAttributeDaos == null) {
+            throw new IllegalStateException("personAttributeDaos must be set");
+        }
+        
+        final Map<IPersonAttributeDao, Set<IPersonAttributeDao>> childDependencies = this.getChildDependencies(query);
+        
+        final Set<IPersonAttributes> resultPeople;
+        if (childDependencies != null) {
+            resultPeople = this.getPeopleFromDaosByDependency(query, childDependencies);
+        }
+        else if (this.queryExecutor != null && this.isParallelQuerySupported()) {
+            resultPeople = this.getPeopleFromDaosInParallel(query);
+        }
+        else {
+            resultPeople = this.getPeopleFromDaos(query);
+        }
+        
+        if (resultPeople == null) {
+            return null;
+        }
+        
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Aggregated search results '" + resultPeople + "' for query='" + query + "'");
+        }
+        
+        return Collections.unmodifiableSet(resultPeople);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPersonAsync(java.lang.String)
+     */
+    public Future<IPersonAttributes> getPersonAsync(String uid) {
+        Validate.notNull(uid, "uid may not be null.");
+        
+        final Map<String, List<Object>> seed = this.toSeedMap(uid);
+        final Future<Set<IPersonAttributes>> peopleFuture = this.getPeopleWithMultivaluedAttributesAsync(seed);
+        return this.toPersonFuture(uid, peopleFuture);
+    }
+    
+    /**
+     * Runs the blocking {@link #getPeopleWithMultivaluedAttributes(Map)} on the asyncExecutor, the calling thread
+     * only submits the query. The children are queried through their blocking methods, an asyncExecutor thread is
+     * held for the whole aggregated query.
+     * 
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPeopleWithMultivaluedAttributesAsync(java.util.Map)
+     */
+    public Future<Set<IPersonAttributes>> getPeopleWithMultivaluedAttributesAsync(final Map<String, List<Object>> query) {
+        Validate.notNull(query, "query may not be null.");
+        
+        if (this.personAttributeDaos == null) {
+            throw new IllegalStateException("personAttributeDaos must be set");
+        }
+        
+        return AsyncPersonAttributeDaoAdapter.submit(this.asyncExecutor, new Callable<Set<IPersonAttributes>>() {
+            public Set<IPersonAttributes> call() throws Exception {
+                return getPeopleWithMultivaluedAttributes(query);
+            }
+        }, this.logger);
+    }
+    
+    /**
+     * If the children are queried independently of each other (see {@link #isParallelQuerySupported()}) each child
+     * is asked for all of the uids at once and the results are merged per uid. Children that extend
+     * {@link AbstractDefaultAttributePersonAttributeDao} with the same username attribute as this DAO are queried
+     * with {@link IPersonAttributeDao#getPeopleForUids(Collection)}, other children are queried once per uid.
+     * Otherwise each uid is looked up with {@link #getPerson(String)}.
+     * <br/>
+     * Each child is queried for all of the uids as one query, which is waited on no longer than the child's timeout
+     * or the query deadline.
+     * 
+     * @see org.jasig.services.persondir.support.BasePersonAttributeDao#getPeopleForUids(java.util.Collection)
+     */
+    @Override
+    public Map<String, IPersonAttributes> getPeopleForUids(Collection<String> uids) {
+        Validate.notNull(uids, "uids may not be null.");
+        Validate.noNullElements(uids, "uids may not contain null.");
+        
+        if (this.personAttributeDaos == null) {
+            throw new IllegalStateException("personAttributeDaos must be set");
+        }
+        
+        final Set<String> distinctUids = new LinkedHashSet<String>(uids);
+        if (!this.isParallelQuerySupported() || distinctUids.size() <= 1) {
+            return super.getPeopleForUids(distinctUids);
+        }
+        
+        final long deadline = this.getQueryDeadline();
+        
+        final Map<String, Map<String, List<Object>>> seeds = new LinkedHashMap<String, Map<String, List<Object>>>();
+        for (final String uid : distinctUids) {
+            seeds.put(uid, this.toSeedMap(uid));
+        }
+        
+        //All of the seeds have the same attribute so they are routed the same way
+        final QueryRoutingTable routingTable = this.getRoutingTable();
+        final Set<String> queryAttributeNames = this.getChildQueryAttributeNames(seeds.values().iterator().next(), true, null);
+        
+        final Map<String, MergeAccumulator> resultPeople = new LinkedHashMap<String, MergeAccumulator>();
+        for (final IPersonAttributeDao currentlyConsidering : this.personAttributeDaos) {
+            if (!this.isChildQueryRouted(routingTable, currentlyConsidering, queryAttributeNames)) {
+                continue;
+            }
+            
+            boolean handledException = false;
+            Map<String, Set<IPersonAttributes>> currentPeople = null;
+            try {
+                currentPeople = this.queryChildDaoForUids(seeds, currentlyConsidering, deadline);
+                
+                if (this.logger.isDebugEnabled()) {
+                    this.logger.debug("Retrieved attributes='" + currentPeople + "' for uids='" + distinctUids + "', currentlyConsidering='" + currentlyConsidering + "'");
+                }
+            }
+            catch (final RuntimeException rte) {
+                handledException = this.handleChildException(currentlyConsidering, rte);
+            }
+            
+            if (currentPeople != null) {
+                for (final Map.Entry<String, Set<IPersonAttributes>> currentPeopleEntry : currentPeople.entrySet()) {
+                    final String uid = currentPeopleEntry.getKey();
+                    MergeAccumulator uidPeople = resultPeople.get(uid);
+                    if (uidPeople == null) {
+                        uidPeople = new MergeAccumulator(this.attrMerger);
+                        resultPeople.put(uid, uidPeople);
+                    }
+                    uidPeople.merge(currentPeopleEntry.getValue());
+                }
+            }
+            
+            if (this.stopOnSuccess && !handledException) {
+                if (this.logger.isDebugEnabled()) {
+                    this.logger.debug("Successfully retrieved attributes from a child DAO and stopOnSuccess is true, stopping iteration of child DAOs");
+                }
+
+                break;
+            }
+        }
+        
+        final Map<String, IPersonAttributes> people = new LinkedHashMap<String, IPersonAttributes>();
+        for (final Map.Entry<String, MergeAccumulator> resultPeopleEntry : resultPeople.entrySet()) {
+            final String uid = resultPeopleEntry.getKey();
+            final IPersonAttributes person = toPerson(uid, resultPeopleEntry.getValue().toPeople());
+            if (person != null) {
+                people.put(uid, person);
+            }
+        }
+        
+        return people;
+    }
+    
+    /**
+     * Queries a single child DAO for all of the seeds, keyed by uid, waiting no longer than its timeout or the query
+     * deadline.
+     */
+    private Map<String, Set<IPersonAttributes>> queryChildDaoForUids(final Map<String, Map<String, List<Object>>> seeds, final IPersonAttributeDao childDao, final long deadline) {
+        final long childDeadline = this.getChildDeadline(childDao, System.currentTimeMillis(), deadline);
+        if (childDeadline != NO_DEADLINE && System.currentTimeMillis() >= childDeadline) {
+            throw new IllegalStateException("Query deadline passed before '" + childDao + "' was queried");
+        }
+        
+        final CircuitBreaker circuitBreaker = this.getCircuitBreaker(childDao);
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            throw new OpenCircuitException(childDao);
+        }
+        
+        //The outcome is recorded once, by the query or by the wait for it timing out
+        final AtomicBoolean outcomeRecorded = new AtomicBoolean(false);
+        final FutureTask<Map<String, Set<IPersonAttributes>>> batchQuery = new FutureTask<Map<String, Set<IPersonAttributes>>>(new Callable<Map<String, Set<IPersonAttributes>>>() {
+            public Map<String, Set<IPersonAttributes>> call() throws Exception {
+                final Long previousDeadline = QUERY_DEADLINE.get();
+                setQueryDeadline(deadline);
+                
+                final long start = System.currentTimeMillis();
+                boolean succeeded = false;
+                try {
+                    final Map<String, Set<IPersonAttributes>> childPeople = queryChildDaoForUids(seeds, childDao);
+                    succeeded = true;
+                    return childPeople;
+                }
+                finally {
+                    setQueryDeadline(previousDeadline);
+                    
+                    //Judge the call by the time taken per uid so a large batch isn't counted as a slow call
+                    if (circuitBreaker != null && outcomeRecorded.compareAndSet(false, true)) {
+                        if (succeeded) {
+                            circuitBreaker.recordSuccess((System.currentTimeMillis() - start) / seeds.size());
+                        }
+                        else {
+                            circuitBreaker.recordFailure();
+                        }
+                    }
+                }
+            }
+        });
+        
+        //Without a timeout or an executor to enforce it the query is run in this thread
+        if (childDeadline == NO_DEADLINE || this.queryExecutor == null) {
+            batchQuery.run();
+        }
+        else {
+            this.startQuery(batchQuery, childDao);
+        }
+        
+        try {
+            return this.getQueryResults(batchQuery, childDao, childDeadline);
+        }
+        catch (final RuntimeException rte) {
+            //Only a query still running when the wait ended has no outcome yet
+            if (circuitBreaker != null && outcomeRecorded.compareAndSet(false, true)) {
+                circuitBreaker.recordFailure();
+            }
+            throw rte;
+        }
+    }
+    
+    /**
+     * Queries a single child DAO for all of the seeds in the calling thread.
+     */
+    private Map<String, Set<IPersonAttributes>> queryChildDaoForUids(Map<String, Map<String, List<Object>>> seeds, IPersonAttributeDao childDao) {
+        //The child builds the same seeds if it uses the same username attribute
+        final boolean sameSeeds = childDao instanceof AbstractDefaultAttributePersonAttributeDao &&
+            this.getUsernameAttributeProvider().getUsernameAttribute().equals(((AbstractDefaultAttributePersonAttributeDao)childDao).getUsernameAttributeProvider().getUsernameAttribute());
+        
+        final Map<String, Set<IPersonAttributes>> childPeople = new LinkedHashMap<String, Set<IPersonAttributes>>();
+        if (sameSeeds) {
+            final Map<String, IPersonAttributes> people = childDao.getPeopleForUids(seeds.keySet());
+            for (final Map.Entry<String, IPersonAttributes> personEntry : people.entrySet()) {
+                childPeople.put(personEntry.getKey(), Collections.singleton(personEntry.getValue()));
+            }
+        }
+        else {
+            for (final Map.Entry<String, Map<String, List<Object>>> seedEntry : seeds.entrySet()) {
+                final Set<IPersonAttributes> people = childDao.getPeopleWithMultivaluedAttributes(seedEntry.getValue());
+                if (people != null) {
+                    childPeople.put(seedEntry.getKey(), people);
+                }
+            }
+        }
+        
+        return childPeople;
+    }
+    
+    /**
+     * Queries the child DAOs one after another, passing the results so far to each.
+     */
+    private Set<IPersonAttributes> getPeopleFromDaos(Map<String, List<Object>> query) {
+        final long deadline = this.getQueryDeadline();
+        
+        //If none of the sub-DAOs find any people the accumulator returns null
+        final MergeAccumulator resultPeople = new MergeAccumulator(this.attrMerger);
+        
+        //Children queried independently of each other are never passed the results so far, they aren't built for them
+        final boolean independentChildren = this.isParallelQuerySupported();
+        
+        //Denotes that this is the first time we are running a query and the original seed should be used
+        boolean isFirstQuery = true;
+        
+        final QueryRoutingTable routingTable = this.getRoutingTable();
+        
+        //Iterate through the configured IPersonAttributeDaos, querying each.
+        for (final IPersonAttributeDao currentlyConsidering : this.personAttributeDaos) {
+            final Set<IPersonAttributes> previousPeople = independentChildren ? null : resultPeople.toPeople();
+            if (!this.isChildQueryRouted(routingTable, currentlyConsidering, this.getChildQueryAttributeNames(query, isFirstQuery, previousPeople))) {
+                continue;
+            }
+            
+            boolean handledException = false;
+            Set<IPersonAttributes> currentPeople = null;
+            try {
+                currentPeople = this.queryChildDao(query, isFirstQuery, currentlyConsidering, previousPeople, deadline);
+                isFirstQuery = false;
+
+                if (this.logger.isDebugEnabled()) {
+                    this.logger.debug("Retrieved attributes='" + currentPeople + "' for query='" + query + "', isFirstQuery=" + isFirstQuery + ", currentlyConsidering='" + currentlyConsidering + "', resultAttributes='" + previousPeople + "'");
+                }
+            }
+            catch (final RuntimeException rte) {
+                handledException = this.handleChildException(currentlyConsidering, rte);
+            }
+
+            resultPeople.merge(currentPeople);
+            
+            if (this.stopOnSuccess && !handledException) {
+                if (this.logger.isDebugEnabled()) {
+                    this.logger.debug("Successfully retrieved attributes from a child DAO and stopOnSuccess is true, stopping iteration of child DAOs");
+                }
+
+                break;
+            }
+        }
+        
+        return resultPeople.toPeople();
+    }
+    
+    /**
+     * Starts the queries for all child DAOs on the queryExecutor and then merges their results in the configured
+     * order. Each child is queried with the original seed and no previous results.
+     */
+    private Set<IPersonAttributes> getPeopleFromDaosInParallel(final Map<String, List<Object>> query) {
+        final long deadline = this.getQueryDeadline();
+        final long start = System.currentTimeMillis();
+        
+        final QueryRoutingTable routingTable = this.getRoutingTable();
+        final Set<String> queryAttributeNames = this.getChildQueryAttributeNames(query, true, null);
+        
+        //Children that are skipped have a null entry, those skipped by routing are also marked as not routed
+        final List<ChildQuery> childQueries = new ArrayList<ChildQuery>(this.personAttributeDaos.size());
+        final boolean[] notRouted = new boolean[this.personAttributeDaos.size()];
+        for (final IPersonAttributeDao childDao : this.personAttributeDaos) {
+            if (!this.isChildQueryRouted(routingTable, childDao, queryAttributeNames)) {
+                notRouted[childQueries.size()] = true;
+                childQueries.add(null);
+                continue;
+            }
+            
+            final CircuitBreaker circuitBreaker = this.getCircuitBreaker(childDao);
+            if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+                childQueries.add(null);
+                continue;
+            }
+            
+            final ChildQuery childQuery = new ChildQuery(query, true, childDao, null, deadline, circuitBreaker, null);
+            childQueries.add(childQuery);
+            this.startChildQuery(childQuery);
+        }
+        
+        final MergeAccumulator resultPeople = new MergeAccumulator(this.attrMerger);
+        try {
+            for (int index = 0; index < childQueries.size(); index++) {
+                final IPersonAttributeDao currentlyConsidering = this.personAttributeDaos.get(index);
+                if (notRouted[index]) {
+                    continue;
+                }
+                
+                final ChildQuery childQuery = childQueries.get(index);
+                
+                boolean handledException = false;
+                Set<IPersonAttributes> currentPeople = null;
+                try {
+                    if (childQuery == null) {
+                        throw new OpenCircuitException(currentlyConsidering);
+                    }
+                    
+                    //All children started together so their timeouts are measured from the start
+                    final long childDeadline = this.getChildDeadline(currentlyConsidering, start, deadline);
+                    currentPeople = this.getChildQueryResults(childQuery, childDeadline);
+                    
+                    if (this.logger.isDebugEnabled()) {
+                        this.logger.debug("Retrieved attributes='" + currentPeople + "' for query='" + query + "', currentlyConsidering='" + currentlyConsidering + "'");
+                    }
+                }
+                catch (final RuntimeException rte) {
+                    handledException = this.handleChildException(currentlyConsidering, rte);
+                }
+                
+                resultPeople.merge(currentPeople);
+                
+                if (this.stopOnSuccess && !handledException) {
+                    if (this.logger.isDebugEnabled()) {
+                        this.logger.debug("Successfully retrieved attributes from a child DAO and stopOnSuccess is true, ignoring results of remaining child DAOs");
+                    }
+                    
+                    break;
+                }
+            }
+        }
+        finally {
+            //Queries that have not started yet are not needed anymore, running queries are left to complete
+            for (final ChildQuery childQuery : childQueries) {
+                if (childQuery != null) {
+                    childQuery.future.cancel(false);
+                }
+            }
+        }
+        
+        return resultPeople.toPeople();
+    }
+    
+    /**
+     * Starts each child DAO as soon as the children it depends on have completed, passing it the merged results of
+     * those children. Without a queryExecutor the children are run one at a time in dependency order.
+     * <br/>
+     * With stopOnSuccess the results are those of the first child in the configured order that succeeds, as for
+     * sequential queries. A child that succeeds is only accepted once every child before it has failed, results of
+     * later children that completed first are ignored.
+     */
+    private Set<IPersonAttributes> getPeopleFromDaosByDependency(Map<String, List<Object>> query, Map<IPersonAttributeDao, Set<IPersonAttributeDao>> childDependencies) {
+        final long deadline = this.getQueryDeadline();
+        final int childCount = this.personAttributeDaos.size();
+        final boolean[][] dependsOn = this.resolveDependencies(childDependencies);
+        
+        final boolean[] started = new boolean[childCount];
+        final boolean[] completed = new boolean[childCount];
+        final boolean[] succeeded = new boolean[childCount];
+        final long[] childDeadlines = new long[childCount];
+        final List<Set<IPersonAttributes>> childResults = new ArrayList<Set<IPersonAttributes>>(Collections.<Set<IPersonAttributes>>nCopies(childCount, null));
+        
+        //Queries report themselves on the completion queue when done
+        final BlockingQueue<ChildQuery> completionQueue = new LinkedBlockingQueue<ChildQuery>();
+        final Map<ChildQuery, Integer> runningQueries = new LinkedHashMap<ChildQuery, Integer>();
+        final QueryRoutingTable routingTable = this.getRoutingTable();
+        int completedCount = 0;
+        int lastMergedChild = childCount - 1;
+        
+        try {
+            while (completedCount < childCount) {
+                if (this.stopOnSuccess) {
+                    final int firstSucceeded = this.getFirstSucceededChild(completed, succeeded);
+                    if (firstSucceeded >= 0) {
+                        if (this.logger.isDebugEnabled()) {
+                            this.logger.debug("Successfully retrieved attributes from '" + this.personAttributeDaos.get(firstSucceeded) + "' and stopOnSuccess is true, ignoring results of remaining child DAOs");
+                        }
+                        
+                        lastMergedChild = firstSucceeded;
+                        break;
+                    }
+                }
+                
+                final int nextChild = this.getNextChild(started, completed, dependsOn, runningQueries.isEmpty());
+                if (nextChild >= 0) {
+                    final IPersonAttributeDao childDao = this.personAttributeDaos.get(nextChild);
+                    started[nextChild] = true;
+                    
+                    //Merge the results of the children this one depends on, in the configured order
+                    final MergeAccumulator dependencyAccumulator = new MergeAccumulator(this.attrMerger);
+                    for (int dependency = 0; dependency < childCount; dependency++) {
+                        if (dependsOn[nextChild][dependency]) {
+                            dependencyAccumulator.merge(childResults.get(dependency));
+                        }
+                    }
+                    final Set<IPersonAttributes> dependencyPeople = dependencyAccumulator.toPeople();
+                    
+                    final Set<String> queryAttributeNames = this.getChildQueryAttributeNames(query, dependencyPeople == null, dependencyPeople);
+                    if (!this.isChildQueryRouted(routingTable, childDao, queryAttributeNames)) {
+                        completed[nextChild] = true;
+                        completedCount++;
+                        continue;
+                    }
+                    
+                    try {
+                        childDeadlines[nextChild] = this.getChildDeadline(childDao, System.currentTimeMillis(), deadline);
+                        final ChildQuery childQuery = this.startDependentChildQuery(query, childDao, dependencyPeople, deadline, childDeadlines[nextChild], completionQueue);
+                        runningQueries.put(childQuery, nextChild);
+                    }
+                    catch (final RuntimeException rte) {
+                        completed[nextChild] = true;
+                        completedCount++;
+                        this.handleChildException(childDao, rte);
+                    }
+                    
+                    //With an executor start every child that is ready before waiting
+                    if (this.queryExecutor != null) {
+                        continue;
+                    }
+                }
+                
+                if (runningQueries.isEmpty()) {
+                    continue;
+                }
+                
+                final ChildQuery completedQuery = this.pollCompletedQuery(completionQueue, runningQueries, childDeadlines);
+                if (completedQuery == null) {
+                    //Children past their deadline are cancelled and handled as failed
+                    final long now = System.currentTimeMillis();
+                    for (final Iterator<Map.Entry<ChildQuery, Integer>> runningItr = runningQueries.entrySet().iterator(); runningItr.hasNext(); ) {
+                        final Map.Entry<ChildQuery, Integer> runningEntry = runningItr.next();
+                        final int index = runningEntry.getValue();
+                        if (now >= childDeadlines[index]) {
+                            runningItr.remove();
+                            completed[index] = true;
+                            completedCount++;
+                            
+                            final ChildQuery timedOutQuery = runningEntry.getKey();
+                            timedOutQuery.timedOut();
+                            this.handleChildException(timedOutQuery.childDao, new IllegalStateException("Timed out waiting for results from '" + timedOutQuery.childDao + "'"));
+                        }
+                    }
+                    
+                    continue;
+                }
+                
+                //A query cancelled after timing out reports itself again, it was already handled
+                final Integer index = runningQueries.remove(completedQuery);
+                if (index == null) {
+                    continue;
+                }
+                
+                completed[index] = true;
+                completedCount++;
+                
+                boolean handledException = false;
+                try {
+                    final Set<IPersonAttributes> currentPeople = this.getChildQueryResults(completedQuery, NO_DEADLINE);
+                    childResults.set(index, currentPeople);
+                    
+                    if (this.logger.isDebugEnabled()) {
+                        this.logger.debug("Retrieved attributes='" + currentPeople + "' for query='" + query + "', currentlyConsidering='" + completedQuery.childDao + "'");
+                    }
+                }
+                catch (final RuntimeException rte) {
+                    handledException = this.handleChildException(completedQuery.childDao, rte);
+                }
+                
+                succeeded[index] = !handledException;
+            }
+            
+            //The last child to complete may be the first to succeed
+            if (this.stopOnSuccess && completedCount == childCount) {
+                final int firstSucceeded = this.getFirstSucceededChild(completed, succeeded);
+                if (firstSucceeded >= 0) {
+                    lastMergedChild = firstSucceeded;
+                }
+            }
+        }
+        finally {
+            //Running queries are left to complete, their results are not needed anymore
+            for (final ChildQuery childQuery : runningQueries.keySet()) {
+                childQuery.future.cancel(false);
+            }
+        }
+        
+        //Merge the results of the children in the configured order
+        final MergeAccumulator resultPeople = new MergeAccumulator(this.attrMerger);
+        for (int index = 0; index <= lastMergedChild; index++) {
+            resultPeople.merge(childResults.get(index));
+        }
+        
+        return resultPeople.toPeople();
+    }
+    
+    /**
+     * @return The first child in the configured order that succeeded if every child before it has completed, -1 if
+     * there is none or an earlier child may still succeed.
+     */
+    private int getFirstSucceededChild(boolean[] completed, boolean[] succeeded) {
+        for (int index = 0; index < completed.length; index++) {
+            if (!completed[index]) {
+                return -1;
+            }
+            if (succeeded[index]) {
+                return index;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * @return Matrix where [child][dependency] is true if the child depends on the dependency, directly or through other children.
+     */
+    private boolean[][] resolveDependencies(Map<IPersonAttributeDao, Set<IPersonAttributeDao>> childDependencies) {
+        final int childCount = this.personAttributeDaos.size();
+        
+        //Child DAOs are matched by instance
+        final Map<IPersonAttributeDao, Integer> childIndexes = new IdentityHashMap<IPersonAttributeDao, Integer>();
+        for (int index = 0; index < childCount; index++) {
+            childIndexes.put(this.personAttributeDaos.get(index), index);
+        }
+        
+        final boolean[][] dependsOn = new boolean[childCount][childCount];
+        for (int index = 0; index < childCount; index++) {
+            final Set<IPersonAttributeDao> dependencies = childDependencies.get(this.personAttributeDaos.get(index));
+            if (dependencies != null) {
+                for (final IPersonAttributeDao dependency : dependencies) {
+                    final Integer dependencyIndex = childIndexes.get(dependency);
+                    if (dependencyIndex != null && dependencyIndex != index) {
+                        dependsOn[index][dependencyIndex] = true;
+                    }
+                }
+            }
+        }
+        
+        //Add indirect dependencies
+        for (int via = 0; via < childCount; via++) {
+            for (int index = 0; index < childCount; index++) {
+                if (dependsOn[index][via]) {
+                    for (int dependency = 0; dependency < childCount; dependency++) {
+                        if (dependsOn[via][dependency] && dependency != index) {
+                            dependsOn[index][dependency] = true;
+                        }
+                    }
+                }
+            }
+        }
+        
+        return dependsOn;
+    }
+    
+    /**
+     * @return The first child that has not been started and whose dependencies have all completed. If there is none
+     * and nothing is running the remaining children depend on each other and the first of them is returned. -1 if no
+     * child should be started now.
+     */
+    private int getNextChild(boolean[] started, boolean[] completed, boolean[][] dependsOn, boolean stalled) {
+        int firstWaiting = -1;
+        
+        for (int index = 0; index < started.length; index++) {
+            if (started[index]) {
+                continue;
+            }
+            
+            if (firstWaiting < 0) {
+                firstWaiting = index;
+            }
+            
+            boolean ready = true;
+            for (int dependency = 0; dependency < started.length && ready; dependency++) {
+                ready = !dependsOn[index][dependency] || completed[dependency];
+            }
+            
+            if (ready) {
+                return index;
+            }
+        }
+        
+        if (stalled && firstWaiting >= 0) {
+            this.logger.warn("Child DAOs have circular dependencies, querying '" + this.personAttributeDaos.get(firstWaiting) + "' with the results available so far");
+        }
+        
+        return stalled ? firstWaiting : -1;
+    }
+    
+    /**
+     * Starts the query of a child DAO whose dependencies have completed, the query reports itself on the completion
+     * queue when done.
+     */
+    private ChildQuery startDependentChildQuery(Map<String, List<Object>> seed, IPersonAttributeDao childDao, Set<IPersonAttributes> dependencyPeople, long deadline, long childDeadline, BlockingQueue<ChildQuery> completionQueue) {
+        if (childDeadline != NO_DEADLINE && System.currentTimeMillis() >= childDeadline) {
+            throw new IllegalStateException("Query deadline passed before '" + childDao + "' was queried");
+        }
+        
+        final CircuitBreaker circuitBreaker = this.getCircuitBreaker(childDao);
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            throw new OpenCircuitException(childDao);
+        }
+        
+        final ChildQuery childQuery = new ChildQuery(seed, dependencyPeople == null, childDao, dependencyPeople, deadline, circuitBreaker, completionQueue);
+        if (this.queryExecutor == null) {
+            childQuery.future.run();
+        }
+        else {
+            this.startChildQuery(childQuery);
+        }
+        
+        return childQuery;
+    }
+    
+    /**
+     * Waits for a running query to complete, no longer than the earliest deadline of the running queries.
+     * 
+     * @return The completed query, null if a deadline passed.
+     */
+    private ChildQuery pollCompletedQuery(BlockingQueue<ChildQuery> completionQueue, Map<ChildQuery, Integer> runningQueries, long[] childDeadlines) {
+        long earliestDeadline = NO_DEADLINE;
+        for (final Integer index : runningQueries.values()) {
+            earliestDeadline = Math.min(earliestDeadline, childDeadlines[index]);
+        }
+        
+        try {
+            if (earliestDeadline == NO_DEADLINE) {
+                return completionQueue.take();
+            }
+            
+            return completionQueue.poll(Math.max(0, earliestDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+        catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for results from child DAOs", ie);
+        }
+    }
+    
+    /**
+     * Queries a single child DAO, waiting no longer than its timeout or the query deadline.
+     */
+    private Set<IPersonAttributes> queryChildDao(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople, long deadline) {
+        final long childDeadline = this.getChildDeadline(currentlyConsidering, System.currentTimeMillis(), deadline);
+        if (childDeadline != NO_DEADLINE && System.currentTimeMillis() >= childDeadline) {
+            throw new IllegalStateException("Query deadline passed before '" + currentlyConsidering + "' was queried");
+        }
+        
+        final CircuitBreaker circuitBreaker = this.getCircuitBreaker(currentlyConsidering);
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            throw new OpenCircuitException(currentlyConsidering);
+        }
+        
+        final ChildQuery childQuery = new ChildQuery(seed, isFirstQuery, currentlyConsidering, resultPeople, deadline, circuitBreaker, null);
+        
+        //Without a timeout or an executor to enforce it the query is run in this thread
+        if (childDeadline == NO_DEADLINE || this.queryExecutor == null) {
+            childQuery.future.run();
+            return this.getChildQueryResults(childQuery, NO_DEADLINE);
+        }
+        
+        this.startChildQuery(childQuery);
+        return this.getChildQueryResults(childQuery, childDeadline);
+    }
+    
+    /**
+     * Runs the child query on the queryExecutor, or in the calling thread if the executor rejects it.
+     */
+    private void startChildQuery(ChildQuery childQuery) {
+        this.startQuery(childQuery.future, childQuery.childDao);
+    }
+    
+    /**
+     * Runs the query on the queryExecutor, or in the calling thread if the executor rejects it.
+     */
+    private void startQuery(FutureTask<?> query, IPersonAttributeDao childDao) {
+        try {
+            this.queryExecutor.execute(query);
+        }
+        catch (RejectedExecutionException ree) {
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Executor rejected query for '" + childDao + "', running it in the calling thread", ree);
+            }
+            
+            query.run();
+        }
+    }
+    
+    /**
+     * Waits until the deadline for the child query to complete. Exceptions thrown by the child are re-thrown, a child
+     * that misses the deadline is cancelled and an {@link IllegalStateException} is thrown.
+     */
+    private Set<IPersonAttributes> getChildQueryResults(ChildQuery childQuery, long deadline) {
+        try {
+            return this.getQueryResults(childQuery.future, childQuery.childDao, deadline);
+        }
+        catch (final RuntimeException rte) {
+            //Records the failure if the query was still running when the wait ended
+            childQuery.timedOut();
+            throw rte;
+        }
+    }
+    
+    /**
+     * Waits until the deadline for the query to complete. Exceptions thrown by the query are re-thrown, a query that
+     * misses the deadline is cancelled and an {@link IllegalStateException} is thrown.
+     */
+    private <T> T getQueryResults(FutureTask<T> query, IPersonAttributeDao childDao, long deadline) {
+        try {
+            if (deadline == NO_DEADLINE) {
+                return query.get();
+            }
+            
+            return query.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+        catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for results from '" + childDao + "'", ie);
+        }
+        catch (final TimeoutException te) {
+            query.cancel(true);
+            throw new IllegalStateException("Timed out waiting for results from '" + childDao + "'", te);
+        }
+        catch (final ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            
+            throw new IllegalStateException("Query failed for '" + childDao + "'", cause);
+        }
+    }
+    
+    /**
+     * Logs the exception thrown by a child DAO and either recovers from it or re-throws it. An interrupt of the
+     * calling thread is never recovered.
+     * 
+     * @return true if the exception was recovered from
      */
-    protected IAttributeMerger attrMerger = new MultivaluedAttributeMerger();
+    private boolean handleChildException(IPersonAttributeDao childDao, RuntimeException rte) {
+        if (this.recoverExceptions && !Thread.currentThread().isInterrupted()) {
+            //Skipping a child with an open circuit breaker is expected, the breaker logged when it opened
+            if (rte instanceof OpenCircuitException) {
+                if (this.logger.isDebugEnabled()) {
+                    this.logger.debug(rte.getMessage());
+                }
+            }
+            else {
+                this.logger.warn("Recovering From Exception thrown by '" + childDao + "'", rte);
+            }
+            return true;
+        }
+        
+        this.logger.error("Failing From Exception thrown by '" + childDao + "'", rte);
+        throw rte;
+    }
     
     /**
-     * True if we should catch, logger, and ignore Throwables propogated by
-     * individual DAOs.
+     * @return The deadline for a query starting now, the earlier of the queryTimeout and the deadline passed from an enclosing aggregating DAO.
      */
-    protected boolean recoverExceptions = true;
-    
-    protected boolean stopOnSuccess = false;
+    private long getQueryDeadline() {
+        long deadline = NO_DEADLINE;
+        if (this.queryTimeout > 0) {
+            deadline = System.currentTimeMillis() + this.queryTimeout;
+        }
+        
+        final Long inheritedDeadline = QUERY_DEADLINE.get();
+        if (inheritedDeadline != null) {
+            deadline = Math.min(deadline, inheritedDeadline);
+        }
+        
+        return deadline;
+    }
     
-
     /**
-     * Iterates through the configured {@link java.util.List} of {@link IPersonAttributeDao}
-     * instances. The results from each DAO are merged into the result {@link Map}
-     * by the configured {@link IAttributeMerger}. 
-     * 
-     * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
+     * @return The deadline for a child query started at the specified time.
      */
-    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
-        Validate.notNull(query, "query may not be null.");
-        
-        //Initialize null, so that if none of the sub-DAOs find any people null is returned appropriately
-        Set<IPersonAttributes> resultPeople = null;
+    private long getChildDeadline(IPersonAttributeDao childDao, long start, long queryDeadline) {
+        Long childTimeout = this.childQueryTimeouts.get(childDao);
+        if (childTimeout == null) {
+            childTimeout = this.childQueryTimeout;
+        }
         
-        //Denotes that this is the first time we are running a query and the original seed should be used
-        boolean isFirstQuery = true;
+        if (childTimeout <= 0) {
+            return queryDeadline;
+        }
         
-        if (this.personAttributeDaos == null) {
-            throw new IllegalStateException("personAttributeDaos must be set");
+        return Math.min(queryDeadline, start + childTimeout);
+    }
+    
+    /**
+     * @return The circuit breaker for the child DAO, created if needed, or null if circuit breakers are disabled.
+     */
+    private CircuitBreaker getCircuitBreaker(IPersonAttributeDao childDao) {
+        if (this.circuitBreakerFailureThreshold <= 0) {
+            return null;
         }
         
-        //Iterate through the configured IPersonAttributeDaos, querying each.
-        for (final IPersonAttributeDao currentlyConsidering : this.personAttributeDaos) {
-            boolean handledException = false;
-            Set<IPersonAttributes> currentPeople = null;
-            try {
-                currentPeople = this.getAttributesFromDao(query, isFirstQuery, currentlyConsidering, resultPeople);
-                isFirstQuery = false;
-
-                if (this.logger.isDebugEnabled()) {
-                    this.logger.debug("Retrieved attributes='" + currentPeople + "' for query='" + query + "', isFirstQuery=" + isFirstQuery + ", currentlyConsidering='" + currentlyConsidering + "', resultAttributes='" + resultPeople + "'");
-                }
-            }
-            catch (final RuntimeException rte) {
-                if (this.recoverExceptions) {
-                    handledException = true;
-                    this.logger.warn("Recovering From Exception thrown by '" + currentlyConsidering + "'", rte);
-                }
-                else {
-                    this.logger.error("Failing From Exception thrown by '" + currentlyConsidering + "'", rte);
-                    throw rte;
-                }
-            }
-
-            if (currentPeople != null) {
-                if (resultPeople == null) {
-                    //If this is the first valid result set just use it.
-                    resultPeople = new LinkedHashSet<IPersonAttributes>(currentPeople);
-                }
-                else {
-                    //Merge the Sets of IPersons
-                    resultPeople = this.attrMerger.mergeResults(resultPeople, currentPeople);
+        CircuitBreaker circuitBreaker = this.circuitBreakers.get(childDao);
+        if (circuitBreaker == null) {
+            circuitBreaker = new CircuitBreaker(String.valueOf(childDao), this.circuitBreakerFailureThreshold, this.circuitBreakerWindow, this.circuitBreakerOpenTime, this.circuitBreakerSlowCallTime) {
+                @Override
+                protected long currentTimeMillis() {
+                    return AbstractAggregatingDefaultQueryPersonAttributeDao.this.currentTimeMillis();
                 }
-            }
+            };
             
-            if (this.stopOnSuccess && !handledException) {
-                if (this.logger.isDebugEnabled()) {
-                    this.logger.debug("Successfully retrieved attributes from a child DAO and stopOnSuccess is true, stopping iteration of child DAOs");
-                }
-
-                break;
+            final CircuitBreaker existingBreaker = this.circuitBreakers.putIfAbsent(childDao, circuitBreaker);
+            if (existingBreaker != null) {
+                circuitBreaker = existingBreaker;
             }
         }
         
-        if (resultPeople == null) {
+        return circuitBreaker;
+    }
+    
+    /**
+     * @return The current time in milliseconds used by the child circuit breakers. Protected to allow for testing.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+    
+    /**
+     * @return The deadline of the aggregated query the current thread is working for, null if there is none.
+     */
+    static Long getActiveQueryDeadline() {
+        return QUERY_DEADLINE.get();
+    }
+    
+    private static void setQueryDeadline(Long deadline) {
+        if (deadline == null || deadline == NO_DEADLINE) {
+            QUERY_DEADLINE.remove();
+        }
+        else {
+            QUERY_DEADLINE.set(deadline);
+        }
+    }
+    
+    /**
+     * @return The routing table if routeQueries is enabled, rebuilt if it is older than routingTableRefreshInterval, null if routeQueries is disabled.
+     */
+    private QueryRoutingTable getRoutingTable() {
+        if (!this.routeQueries) {
             return null;
         }
         
+        QueryRoutingTable routingTable = this.routingTable;
+        if (routingTable == null || routingTable.personAttributeDaos != this.personAttributeDaos || System.currentTimeMillis() - routingTable.buildTime >= this.routingTableRefreshInterval) {
+            routingTable = new QueryRoutingTable(this.personAttributeDaos);
+            this.routingTable = routingTable;
+        }
+        
+        return routingTable;
+    }
+    
+    /**
+     * Checks if the child DAO should be queried, counting and logging it if it is skipped.
+     * 
+     * @param routingTable The routing table, null if queries are not routed.
+     * @param queryAttributeNames The names of the attributes the child would be queried with, null if not known.
+     * @return true if the child should be queried.
+     */
+    private boolean isChildQueryRouted(QueryRoutingTable routingTable, IPersonAttributeDao childDao, Set<String> queryAttributeNames) {
+        if (routingTable == null || queryAttributeNames == null || routingTable.isRouted(childDao, queryAttributeNames)) {
+            return true;
+        }
+        
+        this.skippedChildQueries.incrementAndGet();
         if (this.logger.isDebugEnabled()) {
-            this.logger.debug("Aggregated search results '" + resultPeople + "' for query='" + query + "'");
+            this.logger.debug("Skipping '" + childDao + "', none of the query attributes " + queryAttributeNames + " are available query attributes of the DAO");
         }
         
-        return Collections.unmodifiableSet(resultPeople);
+        return false;
+    }
+    
+    /**
+     * The names of the attributes a child DAO will be queried with by {@link #getAttributesFromDao(Map, boolean, IPersonAttributeDao, Set)},
+     * used by routeQueries to skip children that can't use any of them.
+     * 
+     * @return The seed attribute names for the first query, null for later queries. Subclasses that build the child
+     * query from the previous results should override this.
+     */
+    protected Set<String> getChildQueryAttributeNames(Map<String, List<Object>> seed, boolean isFirstQuery, Set<IPersonAttributes> resultPeople) {
+        if (isFirstQuery) {
+            return seed.keySet();
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Allows a subclass to have each child DAO queried as soon as the children it depends on have completed instead
+     * of sequentially or all at once. A child with dependencies is passed the merged results of the children it
+     * depends on, directly or indirectly, as resultPeople. Children with no dependencies are passed the seed with
+     * isFirstQuery true. If a queryExecutor is set independent children run at the same time.
+     * 
+     * @param query The query being run.
+     * @return null, subclasses that order their children by dependency should return a Map of child DAO to the child DAOs it depends on.
+     */
+    protected Map<IPersonAttributeDao, Set<IPersonAttributeDao>> getChildDependencies(Map<String, List<Object>> query) {
+        return null;
+    }
+    
+    /**
+     * If {@link #getAttributesFromDao(Map, boolean, IPersonAttributeDao, Set)} only depends on the seed and not on
+     * the results of previous child DAOs, allowing all children to be queried at the same time when a queryExecutor
+     * is set. When true getAttributesFromDao is always called with isFirstQuery true and null resultPeople in
+     * parallel mode.
+     * 
+     * @return false, subclasses whose child queries are independent should override this.
+     */
+    protected boolean isParallelQuerySupported() {
+        return false;
     }
     
     
@@ -380,6 +1466,189 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
         this.recoverExceptions = recover;
     }
 
+    /**
+     * @return The executor child DAOs are queried on in parallel, null if they are queried sequentially.
+     */
+    public ExecutorService getQueryExecutor() {
+        return this.queryExecutor;
+    }
+    /**
+     * The executor to query the child DAOs on in parallel. Only used if {@link #isParallelQuerySupported()} returns
+     * true. The executor should have at least as many threads as there are child DAOs, queries it rejects are run in
+     * the calling thread.
+     * 
+     * @param queryExecutor The executor to use, null to query the child DAOs sequentially
+     */
+    public void setQueryExecutor(ExecutorService queryExecutor) {
+        this.queryExecutor = queryExecutor;
+    }
+
+    /**
+     * @return The executor asynchronous queries are run on, null if they block the calling thread.
+     */
+    public ExecutorService getAsyncExecutor() {
+        return this.asyncExecutor;
+    }
+    /**
+     * The executor to run the blocking aggregated queries from {@link #getPeopleWithMultivaluedAttributesAsync(Map)}
+     * on, each query holds one of its threads until it completes. Must not be the queryExecutor.
+     * 
+     * @param asyncExecutor The executor to use, null to run asynchronous queries on the calling thread with a warning
+     */
+    public void setAsyncExecutor(ExecutorService asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /**
+     * @return Milliseconds to wait for each child DAO, 0 or less for no timeout.
+     */
+    public long getChildQueryTimeout() {
+        return this.childQueryTimeout;
+    }
+    /**
+     * Milliseconds to wait for each child DAO to return before treating it as failed, requires a queryExecutor.
+     * Defaults to 0, no timeout.
+     */
+    public void setChildQueryTimeout(long childQueryTimeout) {
+        this.childQueryTimeout = childQueryTimeout;
+    }
+    
+    /**
+     * @return The per child DAO timeouts in milliseconds.
+     */
+    public Map<IPersonAttributeDao, Long> getChildQueryTimeouts() {
+        return this.childQueryTimeouts;
+    }
+    /**
+     * Milliseconds to wait for specific child DAOs, overriding childQueryTimeout.
+     * 
+     * @param childQueryTimeouts Map of child DAO to timeout, may not be null.
+     */
+    public void setChildQueryTimeouts(Map<IPersonAttributeDao, Long> childQueryTimeouts) {
+        Validate.notNull(childQueryTimeouts, "childQueryTimeouts may not be null");
+        Validate.noNullElements(childQueryTimeouts.values(), "childQueryTimeouts may not contain null timeouts");
+        
+        //Child DAOs are matched by instance
+        this.childQueryTimeouts = Collections.unmodifiableMap(new IdentityHashMap<IPersonAttributeDao, Long>(childQueryTimeouts));
+    }
+    
+    /**
+     * @return Milliseconds the whole query may take, 0 or less for no deadline.
+     */
+    public long getQueryTimeout() {
+        return this.queryTimeout;
+    }
+    /**
+     * Milliseconds the whole query may take, requires a queryExecutor. Children that have not returned by then are
+     * treated as failed. Defaults to 0, no deadline.
+     */
+    public void setQueryTimeout(long queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    /**
+     * @return Failures within the window that open a child's circuit breaker, 0 or less if circuit breakers are disabled.
+     */
+    public int getCircuitBreakerFailureThreshold() {
+        return this.circuitBreakerFailureThreshold;
+    }
+    /**
+     * Failures within circuitBreakerWindow that open a child's circuit breaker. Defaults to 0, circuit breakers disabled.
+     */
+    public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+        this.circuitBreakers.clear();
+    }
+    
+    /**
+     * @return Milliseconds failures are counted for by the circuit breakers.
+     */
+    public long getCircuitBreakerWindow() {
+        return this.circuitBreakerWindow;
+    }
+    /**
+     * Milliseconds failures are counted for by the circuit breakers. Defaults to 60000.
+     */
+    public void setCircuitBreakerWindow(long circuitBreakerWindow) {
+        Validate.isTrue(circuitBreakerWindow > 0, "circuitBreakerWindow must be greater than 0");
+        this.circuitBreakerWindow = circuitBreakerWindow;
+        this.circuitBreakers.clear();
+    }
+    
+    /**
+     * @return Milliseconds an open circuit breaker skips its child before allowing a probe query.
+     */
+    public long getCircuitBreakerOpenTime() {
+        return this.circuitBreakerOpenTime;
+    }
+    /**
+     * Milliseconds an open circuit breaker skips its child before allowing a probe query. Defaults to 30000.
+     */
+    public void setCircuitBreakerOpenTime(long circuitBreakerOpenTime) {
+        Validate.isTrue(circuitBreakerOpenTime > 0, "circuitBreakerOpenTime must be greater than 0");
+        this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+        this.circuitBreakers.clear();
+    }
+    
+    /**
+     * @return Milliseconds after which a returning child query counts as a failure, 0 or less if disabled.
+     */
+    public long getCircuitBreakerSlowCallTime() {
+        return this.circuitBreakerSlowCallTime;
+    }
+    /**
+     * Milliseconds after which a returning child query counts as a failure. Defaults to 0, slow queries are not counted.
+     */
+    public void setCircuitBreakerSlowCallTime(long circuitBreakerSlowCallTime) {
+        this.circuitBreakerSlowCallTime = circuitBreakerSlowCallTime;
+        this.circuitBreakers.clear();
+    }
+    
+    /**
+     * The circuit breakers of the child DAOs that have been queried, for monitoring their state and statistics.
+     * 
+     * @return Unmodifiable Map of child DAO to its circuit breaker, empty if circuit breakers are disabled.
+     */
+    public Map<IPersonAttributeDao, CircuitBreaker> getCircuitBreakers() {
+        return Collections.unmodifiableMap(this.circuitBreakers);
+    }
+
+    /**
+     * @return If child DAOs are skipped when none of the query attributes are available query attributes of the child.
+     */
+    public boolean isRouteQueries() {
+        return this.routeQueries;
+    }
+    /**
+     * If child DAOs are skipped when none of the attributes they would be queried with are in their available query
+     * attributes. Defaults to false.
+     */
+    public void setRouteQueries(boolean routeQueries) {
+        this.routeQueries = routeQueries;
+        this.routingTable = null;
+    }
+    
+    /**
+     * @return Milliseconds the routing table is kept before being rebuilt.
+     */
+    public long getRoutingTableRefreshInterval() {
+        return this.routingTableRefreshInterval;
+    }
+    /**
+     * Milliseconds the routing table is kept before being rebuilt. Defaults to 60000.
+     */
+    public void setRoutingTableRefreshInterval(long routingTableRefreshInterval) {
+        this.routingTableRefreshInterval = routingTableRefreshInterval;
+        this.routingTable = null;
+    }
+    
+    /**
+     * @return The number of child DAO queries skipped because of routeQueries.
+     */
+    public long getSkippedChildQueries() {
+        return this.skippedChildQueries.get();
+    }
+
     public boolean isStopOnSuccess() {
         return stopOnSuccess;
     }
@@ -393,4 +1662,154 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
     public void setStopOnSuccess(boolean stopOnSuccess) {
         this.stopOnSuccess = stopOnSuccess;
     }
+    
+    /**
+     * Query of a single child DAO. Passes the query deadline on to nested aggregating DAOs and records the outcome
+     * with the child's circuit breaker, a query that times out is recorded as a failure when the wait ends.
+     */
+    private final class ChildQuery implements Callable<Set<IPersonAttributes>> {
+        private final Map<String, List<Object>> seed;
+        private final boolean isFirstQuery;
+        private final IPersonAttributeDao childDao;
+        private final Set<IPersonAttributes> resultPeople;
+        private final long deadline;
+        private final CircuitBreaker circuitBreaker;
+        private final BlockingQueue<ChildQuery> completionQueue;
+        private final AtomicBoolean outcomeRecorded = new AtomicBoolean(false);
+        private final FutureTask<Set<IPersonAttributes>> future = new FutureTask<Set<IPersonAttributes>>(this) {
+            @Override
+            protected void done() {
+                if (completionQueue != null) {
+                    completionQueue.offer(ChildQuery.this);
+                }
+            }
+        };
+        
+        /**
+         * @param completionQueue Queue the query is added to when it completes or is cancelled, may be null.
+         */
+        public ChildQuery(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao childDao, Set<IPersonAttributes> resultPeople, long deadline, CircuitBreaker circuitBreaker, BlockingQueue<ChildQuery> completionQueue) {
+            this.seed = seed;
+            this.isFirstQuery = isFirstQuery;
+            this.childDao = childDao;
+            this.resultPeople = resultPeople;
+            this.deadline = deadline;
+            this.circuitBreaker = circuitBreaker;
+            this.completionQueue = completionQueue;
+        }
+        
+        /* (non-Javadoc)
+         * @see java.util.concurrent.Callable#call()
+         */
+        public Set<IPersonAttributes> call() throws Exception {
+            final Long previousDeadline = QUERY_DEADLINE.get();
+            setQueryDeadline(this.deadline);
+            
+            final long start = System.currentTimeMillis();
+            boolean succeeded = false;
+            try {
+                final Set<IPersonAttributes> people = getAttributesFromDao(this.seed, this.isFirstQuery, this.childDao, this.resultPeople);
+                succeeded = true;
+                return people;
+            }
+            finally {
+                setQueryDeadline(previousDeadline);
+                
+                if (this.circuitBreaker != null && this.outcomeRecorded.compareAndSet(false, true)) {
+                    if (succeeded) {
+                        this.circuitBreaker.recordSuccess(System.currentTimeMillis() - start);
+                    }
+                    else {
+                        this.circuitBreaker.recordFailure();
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Called when the wait for the query ended without results, cancels the query and records the failure if the
+         * query has not recorded its own outcome.
+         */
+        public void timedOut() {
+            this.future.cancel(true);
+            
+            if (this.circuitBreaker != null && this.outcomeRecorded.compareAndSet(false, true)) {
+                this.circuitBreaker.recordFailure();
+            }
+        }
+    }
+    
+    /**
+     * Table of query attribute names to the child DAOs that use them.
+     */
+    private static final class QueryRoutingTable {
+        private final List<IPersonAttributeDao> personAttributeDaos;
+        private final long buildTime = System.currentTimeMillis();
+        private final Map<String, Set<IPersonAttributeDao>> childrenByAttribute = new HashMap<String, Set<IPersonAttributeDao>>();
+        private final Set<IPersonAttributeDao> unroutedChildren = Collections.newSetFromMap(new IdentityHashMap<IPersonAttributeDao, Boolean>());
+        
+        public QueryRoutingTable(List<IPersonAttributeDao> personAttributeDaos) {
+            this.personAttributeDaos = personAttributeDaos;
+            
+            for (final IPersonAttributeDao childDao : personAttributeDaos) {
+                //A nested aggregating DAO may have children that accept any attribute
+                if (childDao instanceof AbstractAggregatingDefaultQueryPersonAttributeDao) {
+                    this.unroutedChildren.add(childDao);
+                    continue;
+                }
+                
+                Set<String> queryAttributes = null;
+                try {
+                    queryAttributes = childDao.getAvailableQueryAttributes();
+                }
+                catch (final RuntimeException rte) {
+                    //Without its query attributes the child is always queried
+                }
+                
+                if (queryAttributes == null || queryAttributes.isEmpty()) {
+                    this.unroutedChildren.add(childDao);
+                    continue;
+                }
+                
+                for (final String queryAttribute : queryAttributes) {
+                    Set<IPersonAttributeDao> children = this.childrenByAttribute.get(queryAttribute);
+                    if (children == null) {
+                        children = Collections.newSetFromMap(new IdentityHashMap<IPersonAttributeDao, Boolean>());
+                        this.childrenByAttribute.put(queryAttribute, children);
+                    }
+                    
+                    children.add(childDao);
+                }
+            }
+        }
+        
+        /**
+         * @return true if the child uses any of the query attributes or doesn't report the attributes it uses.
+         */
+        public boolean isRouted(IPersonAttributeDao childDao, Set<String> queryAttributeNames) {
+            if (this.unroutedChildren.contains(childDao)) {
+                return true;
+            }
+            
+            for (final String queryAttributeName : queryAttributeNames) {
+                final Set<IPersonAttributeDao> children = this.childrenByAttribute.get(queryAttributeName);
+                if (children != null && children.contains(childDao)) {
+                    return true;
+                }
+            }
+            
+            return false;
+        }
+    }
+    
+    /**
+     * Thrown in place of querying a child DAO whose circuit breaker is open.
+     */
+    private static final class OpenCircuitException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        public OpenCircuitException(IPersonAttributeDao childDao) {
+            super("Circuit breaker for '" + childDao + "' is open, skipping it");
+        }
+    }
 }
@@ -23,6 +23,10 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.lang.Validate;
 import org.jasig.services.persondir.IPersonAttributes;
@@ -76,6 +80,46 @@ public abstract class AbstractDefaultAttributePersonAttributeDao extends Abstrac
         //Run the query using the seed
         final Set<IPersonAttributes> people = this.getPeopleWithMultivaluedAttributes(seed);
         
+        return toPerson(uid, people);
+    }
+    
+    /**
+     * Wraps a {@link Future} for the results of a query built by {@link #toSeedMap(String)} in a {@link Future}
+     * for the single {@link IPersonAttributes} {@link #getPerson(String)} would return. Used by implementations of
+     * {@link org.jasig.services.persondir.IAsyncPersonAttributeDao#getPersonAsync(String)}.
+     * 
+     * @param uid The uid the query was built from
+     * @param peopleFuture The pending query results
+     */
+    protected Future<IPersonAttributes> toPersonFuture(String uid, Future<Set<IPersonAttributes>> peopleFuture) {
+        if (peopleFuture instanceof CompletedFuture<?>) {
+            try {
+                return new CompletedFuture<IPersonAttributes>(toPerson(uid, peopleFuture.get()));
+            }
+            catch (ExecutionException ee) {
+                return new CompletedFuture<IPersonAttributes>(ee.getCause());
+            }
+            catch (RuntimeException re) {
+                return new CompletedFuture<IPersonAttributes>(re);
+            }
+            catch (InterruptedException ie) {
+                //Can't happen, a CompletedFuture never waits
+                throw new IllegalStateException(ie);
+            }
+        }
+        
+        return new PersonFuture(uid, peopleFuture);
+    }
+    
+    /**
+     * Ensures a single result is returned and that it has a name, as {@link #getPerson(String)} does.
+     * 
+     * @param uid The uid the people were found for
+     * @param people The people found, may be null
+     * @return The single person, named with the uid if it has no name. null if people is null or empty.
+     * @throws org.springframework.dao.IncorrectResultSizeDataAccessException if people contains more than one person.
+     */
+    protected static IPersonAttributes toPerson(String uid, Set<IPersonAttributes> people) {
         //Ensure a single result is returned
         IPersonAttributes person = (IPersonAttributes)DataAccessUtils.singleResult(people);
         if (person == null) {
@@ -120,4 +164,46 @@ public abstract class AbstractDefaultAttributePersonAttributeDao extends Abstrac
         Validate.notNull(usernameAttributeProvider);
         this.usernameAttributeProvider = usernameAttributeProvider;
     }
+    
+    /**
+     * Converts the results of a pending query to a single person when they are retrieved.
+     */
+    private static final class PersonFuture implements Future<IPersonAttributes> {
+        private final String uid;
+        private final Future<Set<IPersonAttributes>> peopleFuture;
+        
+        public PersonFuture(String uid, Future<Set<IPersonAttributes>> peopleFuture) {
+            this.uid = uid;
+            this.peopleFuture = peopleFuture;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return this.peopleFuture.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled() {
+            return this.peopleFuture.isCancelled();
+        }
+
+        public boolean isDone() {
+            return this.peopleFuture.isDone();
+        }
+
+        public IPersonAttributes get() throws InterruptedException, ExecutionException {
+            return this.toPerson(this.peopleFuture.get());
+        }
+
+        public IPersonAttributes get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return this.toPerson(this.peopleFuture.get(timeout, unit));
+        }
+        
+        private IPersonAttributes toPerson(Set<IPersonAttributes> people) throws ExecutionException {
+            try {
+                return AbstractDefaultAttributePersonAttributeDao.toPerson(this.uid, people);
+            }
+            catch (RuntimeException re) {
+                throw new ExecutionException(re);
+            }
+        }
+    }
 }
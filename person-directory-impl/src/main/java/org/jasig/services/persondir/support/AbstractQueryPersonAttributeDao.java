@@ -19,13 +19,16 @@
 
 package org.jasig.services.persondir.support;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.commons.lang.Validate;
 import org.jasig.services.persondir.IPersonAttributes;
@@ -84,18 +87,44 @@ import org.jasig.services.persondir.IPersonAttributes;
  *         <td valign="top">No</td>
  *         <td valign="top">null</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">maxBatchSize</td>
+ *         <td>
+ *             The most queries to combine into one when queried through
+ *             {@link IBatchingPersonAttributeDao#getPeopleForQueries(List)}, for example by
+ *             {@link CascadingPersonAttributeDao} for all of the people found by the previous DAOs. The results of a
+ *             batch can't be matched back to the query that found them so the username attribute must be returned
+ *             by the query, see <b>unmappedUsernameAttribute</b>. 1 or less disables batches.
+ *             <br/>
+ *             Also used by {@link #getPeopleForUids(Collection)} to look up that many uids with each query, the
+ *             people found are matched to the uids by name.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">valueInterner</td>
+ *         <td>
+ *             The {@link AttributeValueInterner} used to share equal attribute values between the people returned
+ *             by queries. Applied to the mapped result attribute names. If null values are not interned.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
  * </table>
  * 
  * @author Eric Dalquist 
  * @version $Revision$
  */
-public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaultAttributePersonAttributeDao {
+public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaultAttributePersonAttributeDao implements IBatchingPersonAttributeDao {
     private Map<String, Set<String>> queryAttributeMapping;
     private Map<String, Set<String>> resultAttributeMapping;
     private Set<String> possibleUserAttributes;
     private boolean requireAllQueryAttributes = false;
     private boolean useAllQueryAttributes = true;
     private String unmappedUsernameAttribute = null;
+    private int maxBatchSize = 0;
+    private AttributeValueInterner valueInterner = null;
     
 
     public boolean isUseAllQueryAttributes() {
@@ -197,6 +226,34 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
         this.unmappedUsernameAttribute = userNameAttribute;
     }
     
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.IBatchingPersonAttributeDao#getMaxBatchSize()
+     */
+    public int getMaxBatchSize() {
+        return this.maxBatchSize;
+    }
+    /**
+     * The most queries to combine into one when queried through {@link #getPeopleForQueries(List)}. The username
+     * attribute must be returned by the query when batches are used. Defaults to 0, batches are disabled.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+    
+    /**
+     * @return the valueInterner
+     */
+    public AttributeValueInterner getValueInterner() {
+        return this.valueInterner;
+    }
+    /**
+     * The interner used to share equal attribute values between returned people, null to not intern values.
+     * Defaults to null.
+     */
+    public void setValueInterner(AttributeValueInterner valueInterner) {
+        this.valueInterner = valueInterner;
+    }
+    
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
      */
@@ -221,7 +278,155 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
             return null;
         }
 
-        //Map the attributes of the found people according to resultAttributeMapping if it is set
+        return this.mapPeople(unmappedPeople);
+    }
+    
+    /**
+     * Generates the query for each of the queries and, if the subclass can combine them with
+     * {@link #combineQueries(List)}, runs them as a single query. Results from a combined query are not matched back
+     * to the query that found them so the username passed to {@link #getPeopleForQuery(Object, String)} is null
+     * unless all of the queries have the same username.
+     * 
+     * @see org.jasig.services.persondir.support.IBatchingPersonAttributeDao#getPeopleForQueries(java.util.List)
+     */
+    public final Set<IPersonAttributes> getPeopleForQueries(List<Map<String, List<Object>>> queries) {
+        Validate.notNull(queries, "queries may not be null.");
+        Validate.noNullElements(queries, "queries may not contain null.");
+        
+        final IUsernameAttributeProvider usernameAttributeProvider = this.getUsernameAttributeProvider();
+        
+        //Generate the queries to pass to the subclass, skipping those that can't be run
+        final List<QB> queryBuilders = new ArrayList<QB>(queries.size());
+        final List<String> usernames = new ArrayList<String>(queries.size());
+        for (final Map<String, List<Object>> query : queries) {
+            final QB queryBuilder = this.generateQuery(query);
+            if (queryBuilder == null) {
+                if (this.queryAttributeMapping != null || this.useAllQueryAttributes == true) {
+                    this.logger.debug("No queryBuilder was generated for query " + query + ", it will be skipped");
+                    continue;
+                }
+                
+                //An unrestricted query returns the same people for every query
+                return this.getPeopleWithMultivaluedAttributes(query);
+            }
+            
+            queryBuilders.add(queryBuilder);
+            usernames.add(usernameAttributeProvider.getUsernameFromQuery(query));
+        }
+        
+        if (queryBuilders.isEmpty()) {
+            return null;
+        }
+        
+        final QB combinedQueryBuilder;
+        if (queryBuilders.size() == 1) {
+            combinedQueryBuilder = queryBuilders.get(0);
+        }
+        else {
+            combinedQueryBuilder = this.combineQueries(queryBuilders);
+        }
+        
+        final List<IPersonAttributes> unmappedPeople;
+        if (combinedQueryBuilder != null) {
+            final Set<String> distinctUsernames = new LinkedHashSet<String>(usernames);
+            final String username = distinctUsernames.size() == 1 ? distinctUsernames.iterator().next() : null;
+            
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Combined " + queryBuilders.size() + " queries into query builder '" + combinedQueryBuilder + "'");
+            }
+            
+            unmappedPeople = this.getPeopleForQuery(combinedQueryBuilder, username);
+        }
+        else {
+            //The subclass can't combine the queries, run them one at a time
+            List<IPersonAttributes> allPeople = null;
+            for (int index = 0; index < queryBuilders.size(); index++) {
+                final List<IPersonAttributes> people = this.getPeopleForQuery(queryBuilders.get(index), usernames.get(index));
+                if (people != null) {
+                    if (allPeople == null) {
+                        allPeople = new ArrayList<IPersonAttributes>(people);
+                    }
+                    else {
+                        allPeople.addAll(people);
+                    }
+                }
+            }
+            
+            unmappedPeople = allPeople;
+        }
+        
+        if (unmappedPeople == null) {
+            return null;
+        }
+        
+        return this.mapPeople(unmappedPeople);
+    }
+    
+    /**
+     * If batches are enabled by <b>maxBatchSize</b> the uids are looked up in batches of that size through
+     * {@link #getPeopleForQueries(List)}, each person found is returned for the uids matching its name ignoring case,
+     * as the source may return the name in a different case than it was queried with. Otherwise each uid is looked
+     * up with {@link #getPerson(String)}.
+     * 
+     * @see org.jasig.services.persondir.support.BasePersonAttributeDao#getPeopleForUids(java.util.Collection)
+     */
+    @Override
+    public Map<String, IPersonAttributes> getPeopleForUids(Collection<String> uids) {
+        Validate.notNull(uids, "uids may not be null.");
+        Validate.noNullElements(uids, "uids may not contain null.");
+        
+        final Set<String> distinctUids = new LinkedHashSet<String>(uids);
+        if (this.maxBatchSize <= 1 || distinctUids.size() <= 1) {
+            return super.getPeopleForUids(distinctUids);
+        }
+        
+        final Map<String, IPersonAttributes> people = new LinkedHashMap<String, IPersonAttributes>();
+        final Map<String, List<String>> batchUids = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+        final List<Map<String, List<Object>>> batchQueries = new ArrayList<Map<String, List<Object>>>(this.maxBatchSize);
+        for (final Iterator<String> uidItr = distinctUids.iterator(); uidItr.hasNext(); ) {
+            final String uid = uidItr.next();
+            List<String> matchingUids = batchUids.get(uid);
+            if (matchingUids == null) {
+                matchingUids = new ArrayList<String>(1);
+                batchUids.put(uid, matchingUids);
+            }
+            matchingUids.add(uid);
+            batchQueries.add(this.toSeedMap(uid));
+            
+            if (batchQueries.size() == this.maxBatchSize || !uidItr.hasNext()) {
+                final Set<IPersonAttributes> batchPeople = this.getPeopleForQueries(batchQueries);
+                if (batchPeople != null) {
+                    for (final IPersonAttributes person : batchPeople) {
+                        final String name = person.getName();
+                        final List<String> personUids = name != null ? batchUids.get(name) : null;
+                        if (personUids == null) {
+                            if (this.logger.isDebugEnabled()) {
+                                this.logger.debug("Person '" + name + "' found by batch does not match a queried uid and will be ignored");
+                            }
+                            continue;
+                        }
+                        
+                        //A person whose name matches the uid exactly wins over one that only matches ignoring case
+                        for (final String personUid : personUids) {
+                            if (personUid.equals(name) || !people.containsKey(personUid)) {
+                                people.put(personUid, person);
+                            }
+                        }
+                    }
+                }
+                
+                batchUids.clear();
+                batchQueries.clear();
+            }
+        }
+        
+        return people;
+    }
+    
+    /**
+     * Map the attributes of the found people according to resultAttributeMapping if it is set
+     */
+    private Set<IPersonAttributes> mapPeople(final List<IPersonAttributes> unmappedPeople) {
         final Set<IPersonAttributes> mappedPeople = new LinkedHashSet<IPersonAttributes>();
         for (final IPersonAttributes unmappedPerson : unmappedPeople) {
             final IPersonAttributes mappedPerson = this.mapPersonAttributes(unmappedPerson);
@@ -270,6 +475,18 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
      */
     protected abstract QB appendAttributeToQuery(QB queryBuilder, String dataAttribute, List<Object> queryValues);
     
+    /**
+     * Combines query builders into one that matches the people matched by any of them, used to run batches of
+     * queries passed to {@link #getPeopleForQueries(List)} as a single query.
+     * 
+     * @param queryBuilders The queries generated by {@link #generateQuery(Map)}, contains at least two entries.
+     * @return The combined query builder, null if the queries can't be combined and must be run one at a time. This
+     * implementation always returns null.
+     */
+    protected QB combineQueries(List<QB> queryBuilders) {
+        return null;
+    }
+    
     /**
      * Generates a query using the queryBuilder object passed by the subclass. Attribute/Value pairs are added to the
      * queryBuilder by calling {@link #appendAttributeToQuery(Object, String, String)}. Attributes are only added if
@@ -341,7 +558,7 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
     protected final IPersonAttributes mapPersonAttributes(final IPersonAttributes person) {
         final Map<String, List<Object>> personAttributes = person.getAttributes();
         
-        final Map<String, List<Object>> mappedAttributes;
+        Map<String, List<Object>> mappedAttributes;
         //If no mapping just use the attributes as-is
         if (this.resultAttributeMapping == null) {
             mappedAttributes = personAttributes;
@@ -377,6 +594,11 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
             }
         }
         
+        //Share equal values with the other people returned by the interner
+        if (this.valueInterner != null) {
+            mappedAttributes = this.valueInterner.internValues(mappedAttributes);
+        }
+        
         final IPersonAttributes newPerson;
         
         final String name = person.getName();
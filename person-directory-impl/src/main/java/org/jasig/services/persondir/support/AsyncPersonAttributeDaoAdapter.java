@@ -0,0 +1,187 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.services.persondir.support;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang.Validate;
+import org.apache.commons.logging.Log;
+import org.jasig.services.persondir.IAsyncPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+
+/**
+ * Provides the {@link IAsyncPersonAttributeDao} API for any {@link IPersonAttributeDao}. If the wrapped DAO
+ * implements {@link IAsyncPersonAttributeDao} itself calls are passed straight through, otherwise each call is
+ * submitted to the executor so the blocking query runs on one of its threads instead of the caller's.
+ * 
+ * <br>
+ * <br>
+ * Configuration:
+ * <table border="1">
+ *     <tr>
+ *         <th align="left">Property</th>
+ *         <th align="left">Description</th>
+ *         <th align="left">Required</th>
+ *         <th align="left">Default</th>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">personAttributeDao</td>
+ *         <td>
+ *             The {@link IPersonAttributeDao} to run queries against.
+ *         </td>
+ *         <td valign="top">Yes</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">executorService</td>
+ *         <td>
+ *             The {@link ExecutorService} blocking queries are run on. The executor is not shut down by
+ *             this class.
+ *         </td>
+ *         <td valign="top">Yes</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ * </table>
+ * 
+ * @version $Revision$
+ */
+public class AsyncPersonAttributeDaoAdapter implements IAsyncPersonAttributeDao {
+    private IPersonAttributeDao personAttributeDao = null;
+    private ExecutorService executorService = null;
+    
+    public AsyncPersonAttributeDaoAdapter() {
+    }
+    
+    public AsyncPersonAttributeDaoAdapter(IPersonAttributeDao personAttributeDao, ExecutorService executorService) {
+        this.setPersonAttributeDao(personAttributeDao);
+        this.setExecutorService(executorService);
+    }
+    
+    /**
+     * Runs the task on the executor. If the executor is null the task is run on the calling thread, which blocks
+     * the caller, so a warning is logged and the returned {@link Future} is already complete.
+     * 
+     * @param logger The log of the DAO the asyncExecutor is missing from
+     */
+    static <V> Future<V> submit(ExecutorService executorService, Callable<V> task, Log logger) {
+        if (executorService != null) {
+            return executorService.submit(task);
+        }
+        
+        logger.warn("No 'asyncExecutor' has been specified, the asynchronous query is run on the calling thread and blocks it");
+        return complete(task);
+    }
+    
+    /**
+     * Runs the task on the calling thread, for results that are available without doing any I/O.
+     * 
+     * @return An already completed {@link Future} for the result or exception of the task
+     */
+    static <V> Future<V> complete(Callable<V> task) {
+        try {
+            return new CompletedFuture<V>(task.call());
+        }
+        catch (Exception e) {
+            return new CompletedFuture<V>(e);
+        }
+    }
+
+    /**
+     * @return the personAttributeDao
+     */
+    public IPersonAttributeDao getPersonAttributeDao() {
+        return this.personAttributeDao;
+    }
+    /**
+     * @param personAttributeDao The {@link IPersonAttributeDao} to run queries against.
+     */
+    public void setPersonAttributeDao(IPersonAttributeDao personAttributeDao) {
+        Validate.notNull(personAttributeDao, "personAttributeDao can not be null");
+        this.personAttributeDao = personAttributeDao;
+    }
+
+    /**
+     * @return the executorService
+     */
+    public ExecutorService getExecutorService() {
+        return this.executorService;
+    }
+    /**
+     * @param executorService The {@link ExecutorService} blocking queries are run on.
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        Validate.notNull(executorService, "executorService can not be null");
+        this.executorService = executorService;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPersonAsync(java.lang.String)
+     */
+    public Future<IPersonAttributes> getPersonAsync(final String uid) {
+        Validate.notNull(uid, "uid may not be null.");
+        this.checkState();
+        
+        if (this.personAttributeDao instanceof IAsyncPersonAttributeDao) {
+            return ((IAsyncPersonAttributeDao)this.personAttributeDao).getPersonAsync(uid);
+        }
+        
+        final IPersonAttributeDao dao = this.personAttributeDao;
+        return this.executorService.submit(new Callable<IPersonAttributes>() {
+            public IPersonAttributes call() throws Exception {
+                return dao.getPerson(uid);
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPeopleWithMultivaluedAttributesAsync(java.util.Map)
+     */
+    public Future<Set<IPersonAttributes>> getPeopleWithMultivaluedAttributesAsync(final Map<String, List<Object>> query) {
+        Validate.notNull(query, "query may not be null.");
+        this.checkState();
+        
+        if (this.personAttributeDao instanceof IAsyncPersonAttributeDao) {
+            return ((IAsyncPersonAttributeDao)this.personAttributeDao).getPeopleWithMultivaluedAttributesAsync(query);
+        }
+        
+        final IPersonAttributeDao dao = this.personAttributeDao;
+        return this.executorService.submit(new Callable<Set<IPersonAttributes>>() {
+            public Set<IPersonAttributes> call() throws Exception {
+                return dao.getPeopleWithMultivaluedAttributes(query);
+            }
+        });
+    }
+    
+    private void checkState() {
+        if (this.personAttributeDao == null) {
+            throw new IllegalStateException("No 'personAttributeDao' has been specified.");
+        }
+        if (this.executorService == null) {
+            throw new IllegalStateException("No 'executorService' has been specified.");
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Cache key built from the key attributes of a query seed. The attribute names are stored in sorted order and the
+ * values of all attributes are flattened into a single array. For each attribute the number of values it contributed
+ * is recorded, with {@link #SINGLE_VALUE} marking a value that was not a {@link java.util.List}, so a seed of
+ * <code>uid=bob</code> and a seed of <code>uid=[bob]</code> produce different keys.
+ * <br/>
+ * Unlike a key based on the hash code of the seed {@link java.util.Map} equals compares every name and value so two
+ * different seeds never share a cache entry.
+ *
+ * @version $Revision$
+ */
+public final class AttributeBasedCacheKey implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Value count recorded for an attribute whose value was a single object instead of a {@link java.util.List}
+     */
+    public static final int SINGLE_VALUE = -1;
+
+    private final String[] names;
+    private final int[] valueCounts;
+    private final Object[] values;
+    private final int hashCode;
+
+    /**
+     * Creates a key from pre-built arrays, the arrays are used directly and must not be modified by the caller.
+     *
+     * @param names The key attribute names, in sorted order
+     * @param valueCounts The number of entries in values each attribute contributed, {@link #SINGLE_VALUE} for one non-List value
+     * @param values The flattened attribute values
+     */
+    AttributeBasedCacheKey(String[] names, int[] valueCounts, Object[] values) {
+        Validate.notNull(names, "names can not be null");
+        Validate.notNull(valueCounts, "valueCounts can not be null");
+        Validate.notNull(values, "values can not be null");
+        Validate.isTrue(names.length == valueCounts.length, "names and valueCounts must be the same length");
+
+        this.names = names;
+        this.valueCounts = valueCounts;
+        this.values = values;
+
+        int hashCode = Arrays.hashCode(this.names);
+        hashCode = 31 * hashCode + Arrays.hashCode(this.valueCounts);
+        hashCode = 31 * hashCode + Arrays.hashCode(this.values);
+        this.hashCode = hashCode;
+    }
+
+    /**
+     * @return The number of attributes in the key
+     */
+    public int getAttributeCount() {
+        return this.names.length;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return this.hashCode;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof AttributeBasedCacheKey)) {
+            return false;
+        }
+
+        final AttributeBasedCacheKey other = (AttributeBasedCacheKey)obj;
+        return this.hashCode == other.hashCode
+            && Arrays.equals(this.names, other.names)
+            && Arrays.equals(this.valueCounts, other.valueCounts)
+            && Arrays.equals(this.values, other.values);
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("AttributeBasedCacheKey[");
+
+        int valueIndex = 0;
+        for (int index = 0; index < this.names.length; index++) {
+            if (index > 0) {
+                builder.append(", ");
+            }
+            builder.append(this.names[index]).append("=");
+
+            final int valueCount = this.valueCounts[index];
+            if (valueCount == SINGLE_VALUE) {
+                builder.append(this.values[valueIndex++]);
+            }
+            else {
+                builder.append("[");
+                for (int valueOffset = 0; valueOffset < valueCount; valueOffset++) {
+                    if (valueOffset > 0) {
+                        builder.append(", ");
+                    }
+                    builder.append(this.values[valueIndex++]);
+                }
+                builder.append("]");
+            }
+        }
+
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -25,8 +25,12 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.aopalliance.intercept.MethodInvocation;
 import org.apache.commons.collections.CollectionUtils;
@@ -35,16 +39,15 @@ import org.apache.commons.lang.Validate;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springmodules.cache.key.CacheKeyGenerator;
-import org.springmodules.cache.key.HashCodeCacheKey;
-import org.springmodules.cache.key.HashCodeCalculator;
 
 /**
- * Generates a cache key using a hash of the {@link Method} being called and for
+ * Generates an {@link AttributeBasedCacheKey} for
  * {@link org.jasig.services.persondir.IPersonAttributeDao#getMultivaluedUserAttributes(String)} and
  * {@link org.jasig.services.persondir.IPersonAttributeDao#getUserAttributes(String)} the {@link String} uid or for
  * {@link org.jasig.services.persondir.IPersonAttributeDao#getMultivaluedUserAttributes(Map)} and
  * {@link org.jasig.services.persondir.IPersonAttributeDao#getUserAttributes(Map)} attributes from the seed {@link Map}
- * as specified by the <code>cacheKeyAttributes</code> {@link Set}
+ * as specified by the <code>cacheKeyAttributes</code> {@link Set}. The key holds the names and values of the key
+ * attributes so two different seeds never generate equal keys.
  * 
  * @author Eric Dalquist
  * @version $Revision$
@@ -55,6 +58,11 @@ public class AttributeBasedCacheKeyGenerator implements CacheKeyGenerator {
     
     protected final Log logger = LogFactory.getLog(this.getClass());
     
+    /*
+     * Cachable methods implemented by each target class, built the first time a class is seen.
+     */
+    private final ConcurrentMap<Class<?>, Map<Method, CachableMethod>> cachableMethodsByClass = new ConcurrentHashMap<Class<?>, Map<Method, CachableMethod>>();
+    
     /**
      * Methods on {@link org.jasig.services.persondir.IPersonAttributeDao} that are cachable
      */
@@ -105,9 +113,10 @@ public class AttributeBasedCacheKeyGenerator implements CacheKeyGenerator {
      * The set of attributes to use to generate the cache key.
      */
     private Set<String> cacheKeyAttributes = null;
+    private String[] sortedCacheKeyAttributes = null;
     
     private String defaultAttributeName = "username";
-    private Set<String> defaultAttributeNameSet = Collections.singleton(this.defaultAttributeName);
+    private String[] defaultAttributeNameArray = new String[] { this.defaultAttributeName };
     private boolean useAllAttributes = false;
     private boolean ignoreEmptyAttributes = false;
     
@@ -121,6 +130,17 @@ public class AttributeBasedCacheKeyGenerator implements CacheKeyGenerator {
      * @param cacheKeyAttributes the cacheKeyAttributes to set
      */
     public void setCacheKeyAttributes(Set<String> cacheKeyAttributes) {
+        if (cacheKeyAttributes == null) {
+            this.sortedCacheKeyAttributes = null;
+        }
+        else {
+            Validate.noNullElements(cacheKeyAttributes, "cacheKeyAttributes may not contain null elements");
+            
+            final String[] sortedCacheKeyAttributes = cacheKeyAttributes.toArray(new String[cacheKeyAttributes.size()]);
+            Arrays.sort(sortedCacheKeyAttributes);
+            this.sortedCacheKeyAttributes = sortedCacheKeyAttributes;
+        }
+        
         this.cacheKeyAttributes = cacheKeyAttributes;
     }
 
@@ -136,7 +156,7 @@ public class AttributeBasedCacheKeyGenerator implements CacheKeyGenerator {
     public void setDefaultAttributeName(String defaultAttributeName) {
         Validate.notNull(defaultAttributeName);
         this.defaultAttributeName = defaultAttributeName;
-        this.defaultAttributeNameSet = Collections.singleton(this.defaultAttributeName);
+        this.defaultAttributeNameArray = new String[] { this.defaultAttributeName };
     }
     
     public boolean isUseAllAttributes() {
@@ -172,29 +192,85 @@ public class AttributeBasedCacheKeyGenerator implements CacheKeyGenerator {
         //Use the resolved cachableMethod to determine the seed Map and then get the hash of the key elements
         final Object[] methodArguments = methodInvocation.getArguments();
         final Map<String, Object> seed = this.getSeed(methodArguments, cachableMethod);
-        final Integer keyHashCode = this.getKeyHash(seed);
+        final AttributeBasedCacheKey cacheKey = this.getKey(seed);
         
-        //If no code generated return null
-        if (keyHashCode == null) {
-            if (this.logger.isDebugEnabled()) {
+        if (this.logger.isDebugEnabled()) {
+            if (cacheKey == null) {
                 this.logger.debug("No cache key generated for MethodInvocation='" + methodInvocation + "'");
             }
-            return null;
+            else {
+                this.logger.debug("Generated cache key '" + cacheKey + "' for MethodInvocation='" + methodInvocation + "'");
+            }
         }
         
-        //Calculate the hashCode and checkSum
-        final HashCodeCalculator hashCodeCalculator = new HashCodeCalculator();
-        hashCodeCalculator.append(keyHashCode);
+        return cacheKey;
+    }
 
-        //Assemble the serializable key object
-        final long checkSum = hashCodeCalculator.getCheckSum();
-        final int hashCode = hashCodeCalculator.getHashCode();
-        final HashCodeCacheKey hashCodeCacheKey = new HashCodeCacheKey(checkSum, hashCode);
+    /**
+     * Generates the cache key for a call to one of the {@link CachableMethod}s that takes a {@link Map} argument or no
+     * arguments. This is the same key {@link #generateKey(MethodInvocation)} returns for the equivalent invocation but
+     * without needing a {@link MethodInvocation} or any reflection.
+     * 
+     * @param cachableMethod The method being called
+     * @param seed The seed Map passed to the method, ignored for methods that take no arguments
+     * @return The cache key, null if the seed contains no key attributes
+     * @throws IllegalArgumentException If the method takes a String argument, use {@link #generateKey(CachableMethod, String)}
+     */
+    public AttributeBasedCacheKey generateKey(CachableMethod cachableMethod, Map<String, ?> seed) {
+        Validate.notNull(cachableMethod, "cachableMethod may not be null");
         
-        if (this.logger.isDebugEnabled()) {
-            this.logger.debug("Generated cache key '" + hashCodeCacheKey + "' for MethodInvocation='" + methodInvocation + "'");
+        final AttributeBasedCacheKey cacheKey;
+        switch (cachableMethod) {
+            case PEOPLE_MAP:
+            case PEOPLE_MULTIVALUED_MAP:
+            case MULTIVALUED_USER_ATTRIBUTES__MAP:
+            case USER_ATTRIBUTES__MAP: {
+                Validate.notNull(seed, "seed may not be null");
+                cacheKey = this.getKey(seed);
+            }
+            break;
+            
+            case POSSIBLE_USER_ATTRIBUTE_NAMES: {
+                cacheKey = this.getKey(POSSIBLE_USER_ATTRIBUTE_NAMES_SEED_MAP);
+            }
+            break;
+            
+            case AVAILABLE_QUERY_ATTRIBUTES: {
+                cacheKey = this.getKey(AVAILABLE_QUERY_ATTRIBUTES_SEED_MAP);
+            }
+            break;
+            
+            default: {
+                throw new IllegalArgumentException("CachableMethod '" + cachableMethod + "' does not take a Map argument");
+            }
+        }
+        
+        return cacheKey;
+    }
+    
+    /**
+     * Generates the cache key for a call to one of the {@link CachableMethod}s that takes a {@link String} argument.
+     * 
+     * @param cachableMethod The method being called
+     * @param uid The uid passed to the method
+     * @return The cache key, null if the uid is not part of the key
+     * @throws IllegalArgumentException If the method does not take a String argument
+     */
+    public AttributeBasedCacheKey generateKey(CachableMethod cachableMethod, String uid) {
+        Validate.notNull(cachableMethod, "cachableMethod may not be null");
+        
+        switch (cachableMethod) {
+            case MULTIVALUED_USER_ATTRIBUTES__STR:
+            case PERSON_STR:
+            case USER_ATTRIBUTES__STR: {
+                final Map<String, Object> seed = this.getSeed(new Object[] { uid }, cachableMethod);
+                return this.getKey(seed);
+            }
+            
+            default: {
+                throw new IllegalArgumentException("CachableMethod '" + cachableMethod + "' does not take a String argument");
+            }
         }
-        return hashCodeCacheKey;
     }
 
     /**
@@ -254,73 +330,168 @@ public class AttributeBasedCacheKeyGenerator implements CacheKeyGenerator {
     }
     
     /**
-     * Gets the hash of the key elements from the seed {@link Map}. The key elements are specified by
+     * Gets the hash of the key elements from the seed {@link Map}.
+     * 
+     * @deprecated The hash is not unique for the key elements, use {@link #getKey(Map)}
+     */
+    @Deprecated
+    protected Integer getKeyHash(Map<String, Object> seed) {
+        final AttributeBasedCacheKey cacheKey = this.getKey(seed);
+        if (cacheKey == null) {
+            return null;
+        }
+        
+        return cacheKey.hashCode();
+    }
+    
+    /**
+     * Builds the cache key from the key elements of the seed {@link Map}. The key elements are specified by
      * the <code>cacheKeyAttributes</code> {@link Set} or if it is <code>null</code> the
      * <code>defaultAttributeName</code> is used as the key attribute.
+     * 
+     * @return The key, null if the seed contains none of the key elements
      */
-    protected Integer getKeyHash(Map<String, Object> seed) {
-        //Determine the attributes to build the cache key with
-        final Set<String> cacheAttributes;
+    protected AttributeBasedCacheKey getKey(Map<String, ?> seed) {
+        //Determine the attributes to build the cache key with, in sorted order
+        final String[] cacheAttributes;
         if (this.useAllAttributes) {
-            cacheAttributes = seed.keySet();
+            final Set<String> seedAttributes = seed.keySet();
+            cacheAttributes = seedAttributes.toArray(new String[seedAttributes.size()]);
+            Arrays.sort(cacheAttributes);
         }
-        else if (this.cacheKeyAttributes != null) {
-            cacheAttributes = this.cacheKeyAttributes;
+        else if (this.sortedCacheKeyAttributes != null) {
+            cacheAttributes = this.sortedCacheKeyAttributes;
         }
         else {
-            cacheAttributes = this.defaultAttributeNameSet;
+            cacheAttributes = this.defaultAttributeNameArray;
         }
         
-        //Build the cache key based on the attribute Set
-        final HashMap<String, Object> cacheKey = new HashMap<String, Object>(cacheAttributes.size());
+        //Size the key arrays so they can be filled without copying
+        int attributeCount = 0;
+        int valueCount = 0;
         for (final String attr : cacheAttributes) {
             if (seed.containsKey(attr)) {
                 final Object value = seed.get(attr);
                 
-                if (!this.ignoreEmptyAttributes) {
-                    cacheKey.put(attr, value);
+                if (this.isKeyValue(value)) {
+                    attributeCount++;
+                    valueCount += (value instanceof List ? ((List<?>)value).size() : 1);
                 }
-                else if (value instanceof Collection) {
-                    if (CollectionUtils.isNotEmpty((Collection<?>)value)) {
-                        cacheKey.put(attr, value);
+            }
+        }
+        
+        //If no entries don't return a key
+        if (attributeCount == 0) {
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("No cache key attributes found in seed Map " + seed);
+            }
+            return null;
+        }
+        
+        //The cacheAttributes array is never modified so it can be shared if every attribute is in the key
+        final String[] names = (attributeCount == cacheAttributes.length ? cacheAttributes : new String[attributeCount]);
+        final int[] valueCounts = new int[attributeCount];
+        final Object[] values = new Object[valueCount];
+        
+        int attributeIndex = 0;
+        int valueIndex = 0;
+        for (final String attr : cacheAttributes) {
+            if (attributeIndex == attributeCount) {
+                break;
+            }
+            
+            if (seed.containsKey(attr)) {
+                final Object value = seed.get(attr);
+                
+                if (this.isKeyValue(value)) {
+                    if (names != cacheAttributes) {
+                        names[attributeIndex] = attr;
                     }
-                }
-                else if (value instanceof String) {
-                    if (StringUtils.isNotEmpty((String)value)) {
-                        cacheKey.put(attr, value);
+                    
+                    if (value instanceof List) {
+                        final List<?> valueList = (List<?>)value;
+                        if (valueList instanceof RandomAccess) {
+                            for (int index = 0; index < valueList.size(); index++) {
+                                values[valueIndex++] = valueList.get(index);
+                            }
+                        }
+                        else {
+                            for (final Object listValue : valueList) {
+                                values[valueIndex++] = listValue;
+                            }
+                        }
+                        
+                        valueCounts[attributeIndex] = valueList.size();
                     }
-                }
-                else if (value != null) {
-                    cacheKey.put(attr, value);
+                    else {
+                        values[valueIndex++] = value;
+                        valueCounts[attributeIndex] = AttributeBasedCacheKey.SINGLE_VALUE;
+                    }
+                    
+                    attributeIndex++;
                 }
             }
         }
         
+        final AttributeBasedCacheKey cacheKey = new AttributeBasedCacheKey(names, valueCounts, values);
+        
         if (this.logger.isDebugEnabled()) {
-            this.logger.debug("Generated cache Map " + cacheKey + " from seed Map " + seed);
+            this.logger.debug("Generated cache key " + cacheKey + " from seed Map " + seed);
         }
         
-        //If no entries don't return a key
-        if (cacheKey.size() == 0) {
-            return null;
+        return cacheKey;
+    }
+    
+    /**
+     * @return true if the seed value should be part of the cache key, takes <code>ignoreEmptyAttributes</code> into account
+     */
+    protected boolean isKeyValue(Object value) {
+        if (!this.ignoreEmptyAttributes) {
+            return true;
+        }
+        else if (value instanceof Collection) {
+            return CollectionUtils.isNotEmpty((Collection<?>)value);
+        }
+        else if (value instanceof String) {
+            return StringUtils.isNotEmpty((String)value);
         }
         
-        //Return the key map's hash code
-        return cacheKey.hashCode();
+        return value != null;
     }
     
     /**
-     * Iterates over the {@link CachableMethod} instances to determine which instance the
-     * passed {@link MethodInvocation} applies to.
+     * Determines which {@link CachableMethod} the passed {@link MethodInvocation} applies to. The cachable methods
+     * implemented by the declaring class of the invoked method are resolved the first time the class is seen.
      */
     protected CachableMethod resolveCacheableMethod(MethodInvocation methodInvocation) {
         final Method targetMethod = methodInvocation.getMethod();
         final Class<?> targetClass = targetMethod.getDeclaringClass();
         
+        Map<Method, CachableMethod> cachableMethods = this.cachableMethodsByClass.get(targetClass);
+        if (cachableMethods == null) {
+            cachableMethods = this.findCachableMethods(targetClass);
+            this.cachableMethodsByClass.putIfAbsent(targetClass, cachableMethods);
+        }
+        
+        final CachableMethod cachableMethod = cachableMethods.get(targetMethod);
+        if (cachableMethod != null) {
+            return cachableMethod;
+        }
+        
+        throw new IllegalArgumentException("Do not know how to generate a cache for for '" + targetMethod + "' on class '" + targetClass + "'. Is the advice applied to the correct bean and methods?");
+    }
+    
+    /**
+     * Iterates over the {@link CachableMethod} instances to find the {@link Method}s on the target class that they
+     * apply to.
+     */
+    protected Map<Method, CachableMethod> findCachableMethods(Class<?> targetClass) {
+        final Map<Method, CachableMethod> cachableMethods = new HashMap<Method, CachableMethod>();
+        
         for (final CachableMethod cachableMethod : CachableMethod.values()) {
-            Method cacheableMethod = null;
             try {
-                cacheableMethod = targetClass.getMethod(cachableMethod.getName(), cachableMethod.getArgs());
+                final Method cacheableMethod = targetClass.getMethod(cachableMethod.getName(), cachableMethod.getArgs());
+                cachableMethods.put(cacheableMethod, cachableMethod);
             }
             catch (SecurityException e) {
                 this.logger.warn("Security exception while attempting to if the target class '" + targetClass + "' implements the cachable method '" + cachableMethod + "'", e);
@@ -335,12 +506,8 @@ public class AttributeBasedCacheKeyGenerator implements CacheKeyGenerator {
                     this.logger.warn(message);
                 }
             }
-
-            if (targetMethod.equals(cacheableMethod)) {
-                return cachableMethod;
-            }
         }
         
-        throw new IllegalArgumentException("Do not know how to generate a cache for for '" + targetMethod + "' on class '" + targetClass + "'. Is the advice applied to the correct bean and methods?");
+        return cachableMethods;
     }
 }
@@ -0,0 +1,297 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * An ordered set of attribute names that maps each name to a slot index. Used by {@link CompactPersonImpl} so that
+ * people with the same attribute names share one copy of the names and store only their values.
+ * <br/>
+ * Schemas are interned with {@link #getInstance(Collection, boolean)}, equal schemas return the same instance for
+ * as long as any person references it. Looking up an existing schema doesn't lock or create a schema, only the
+ * hash code of the names is boxed. A case insensitive schema looks up names ignoring case, like
+ * {@link CaseInsensitiveNamedPersonImpl}.
+ * 
+ * @version $Revision$
+ */
+public final class AttributeSchema implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    /*
+     * Interned schemas by hash code, weakly referenced so schemas no longer used by any person can be collected. Each
+     * bucket is an immutable array, buckets are only replaced while holding the SCHEMAS lock.
+     */
+    private static final ConcurrentMap<Integer, SchemaReference[]> SCHEMAS = new ConcurrentHashMap<Integer, SchemaReference[]>();
+    private static final ReferenceQueue<AttributeSchema> COLLECTED_SCHEMAS = new ReferenceQueue<AttributeSchema>();
+    
+    private final String[] names;
+    private final boolean caseInsensitive;
+    private final int hashCode;
+    
+    /*
+     * Built from names, not serialized
+     */
+    private transient Map<String, Integer> slots;
+    
+    /**
+     * Returns the shared schema for the attribute names.
+     * 
+     * @param names The attribute names, in slot order
+     * @param caseInsensitive If names are looked up ignoring case
+     * @return The interned schema
+     * @throws IllegalArgumentException If names is null or contains duplicate names
+     */
+    public static AttributeSchema getInstance(Collection<String> names, boolean caseInsensitive) {
+        Validate.notNull(names, "names can not be null");
+        
+        //Check for an existing schema before building a new one
+        final int hashCode = hashCode(names, caseInsensitive);
+        final SchemaReference[] bucket = SCHEMAS.get(hashCode);
+        if (bucket != null) {
+            for (final SchemaReference schemaRef : bucket) {
+                final AttributeSchema interned = schemaRef.get();
+                if (interned != null && interned.hasNames(names, caseInsensitive)) {
+                    return interned;
+                }
+            }
+        }
+        
+        final AttributeSchema schema = new AttributeSchema(names.toArray(new String[names.size()]), caseInsensitive);
+        return intern(schema);
+    }
+    
+    private static AttributeSchema intern(AttributeSchema schema) {
+        synchronized (SCHEMAS) {
+            expungeCollectedSchemas();
+            
+            final SchemaReference[] bucket = SCHEMAS.get(schema.hashCode);
+            if (bucket == null) {
+                SCHEMAS.put(schema.hashCode, new SchemaReference[] { new SchemaReference(schema) });
+                return schema;
+            }
+            
+            for (final SchemaReference schemaRef : bucket) {
+                final AttributeSchema interned = schemaRef.get();
+                if (schema.equals(interned)) {
+                    return interned;
+                }
+            }
+            
+            final SchemaReference[] newBucket = Arrays.copyOf(bucket, bucket.length + 1);
+            newBucket[bucket.length] = new SchemaReference(schema);
+            SCHEMAS.put(schema.hashCode, newBucket);
+            return schema;
+        }
+    }
+    
+    /**
+     * Removes the references to collected schemas from their buckets, must be called while holding the SCHEMAS lock.
+     */
+    private static void expungeCollectedSchemas() {
+        for (Reference<? extends AttributeSchema> collected = COLLECTED_SCHEMAS.poll(); collected != null; collected = COLLECTED_SCHEMAS.poll()) {
+            final int hashCode = ((SchemaReference)collected).hashCode;
+            final SchemaReference[] bucket = SCHEMAS.get(hashCode);
+            if (bucket == null) {
+                continue;
+            }
+            
+            int liveCount = 0;
+            final SchemaReference[] liveRefs = new SchemaReference[bucket.length];
+            for (final SchemaReference schemaRef : bucket) {
+                if (schemaRef != collected) {
+                    liveRefs[liveCount++] = schemaRef;
+                }
+            }
+            
+            if (liveCount == 0) {
+                SCHEMAS.remove(hashCode);
+            }
+            else if (liveCount < bucket.length) {
+                SCHEMAS.put(hashCode, Arrays.copyOf(liveRefs, liveCount));
+            }
+        }
+    }
+    
+    /**
+     * @return The hash code of a schema with the names, computed without copying them
+     */
+    private static int hashCode(Collection<String> names, boolean caseInsensitive) {
+        //Same as Arrays.hashCode(String[])
+        int namesHashCode = 1;
+        for (final String name : names) {
+            namesHashCode = 31 * namesHashCode + (name == null ? 0 : name.hashCode());
+        }
+        
+        return 31 * namesHashCode + (caseInsensitive ? 1 : 0);
+    }
+    
+    private AttributeSchema(String[] names, boolean caseInsensitive) {
+        this.names = names;
+        this.caseInsensitive = caseInsensitive;
+        this.slots = this.buildSlots();
+        this.hashCode = 31 * Arrays.hashCode(this.names) + (this.caseInsensitive ? 1 : 0);
+    }
+    
+    /**
+     * @return true if this schema has the names, in the same order, and the same case sensitivity
+     */
+    private boolean hasNames(Collection<String> names, boolean caseInsensitive) {
+        if (this.caseInsensitive != caseInsensitive || this.names.length != names.size()) {
+            return false;
+        }
+        
+        final Iterator<String> nameItr = names.iterator();
+        for (final String name : this.names) {
+            if (!nameItr.hasNext()) {
+                return false;
+            }
+            
+            final String otherName = nameItr.next();
+            if (name == null ? otherName != null : !name.equals(otherName)) {
+                return false;
+            }
+        }
+        
+        return !nameItr.hasNext();
+    }
+    
+    private Map<String, Integer> buildSlots() {
+        final Map<String, Integer> slots = new HashMap<String, Integer>(this.names.length * 2);
+        for (int slot = 0; slot < this.names.length; slot++) {
+            final Integer previousSlot = slots.put(this.toKey(this.names[slot]), slot);
+            Validate.isTrue(previousSlot == null, "Duplicate attribute name '" + this.names[slot] + "'");
+        }
+        return slots;
+    }
+    
+    private String toKey(String name) {
+        if (this.caseInsensitive && name != null) {
+            return name.toLowerCase();
+        }
+        
+        return name;
+    }
+    
+    /**
+     * @return The number of attributes in the schema
+     */
+    public int size() {
+        return this.names.length;
+    }
+    
+    /**
+     * @param slot The slot index
+     * @return The name of the attribute stored in the slot
+     */
+    public String getName(int slot) {
+        return this.names[slot];
+    }
+    
+    /**
+     * @param name The attribute name
+     * @return The slot index of the attribute, -1 if the schema doesn't contain it
+     */
+    public int getSlot(Object name) {
+        if (name != null && !(name instanceof String)) {
+            return -1;
+        }
+        
+        final Integer slot = this.slots.get(this.toKey((String)name));
+        if (slot == null) {
+            return -1;
+        }
+        
+        return slot;
+    }
+    
+    /**
+     * @return true if names are looked up ignoring case
+     */
+    public boolean isCaseInsensitive() {
+        return this.caseInsensitive;
+    }
+    
+    /**
+     * Schemas read from a stream are interned again and their slots rebuilt.
+     */
+    private Object readResolve() {
+        this.slots = this.buildSlots();
+        return intern(this);
+    }
+    
+    /* (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return this.hashCode;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof AttributeSchema)) {
+            return false;
+        }
+        
+        final AttributeSchema other = (AttributeSchema)obj;
+        return this.hashCode == other.hashCode
+            && this.caseInsensitive == other.caseInsensitive
+            && Arrays.equals(this.names, other.names);
+    }
+    
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "AttributeSchema" + Arrays.toString(this.names);
+    }
+    
+    /**
+     * Weak reference to an interned schema that remembers the bucket it is in.
+     */
+    private static final class SchemaReference extends WeakReference<AttributeSchema> {
+        private final int hashCode;
+        
+        public SchemaReference(AttributeSchema schema) {
+            super(schema, COLLECTED_SCHEMAS);
+            this.hashCode = schema.hashCode;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.Validate;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.cache.StripedCounter;
+
+/**
+ * Replaces attribute values with an equal, shared instance so the many people that have the same value for an
+ * attribute, such as an affiliation or department, reference one copy of it. Only immutable values are pooled:
+ * {@link String}s, {@link Boolean}s, {@link Character}s, integral {@link Number}s and {@link BigDecimal}s.
+ * <br/>
+ * The pool is bounded by <code>maximumSize</code>, once full new values are returned as-is while pooled values
+ * continue to be shared. Pooled values are never removed so only attributes with a limited number of distinct
+ * values should be interned, no values are interned until those attributes are configured with
+ * <code>internedAttributes</code>.
+ * <br/>
+ * Used by {@link AbstractQueryPersonAttributeDao} for query results and {@link CachingPersonAttributeDaoImpl} for
+ * cached people. One interner can be shared by several DAOs.
+ * <br>
+ * <br>
+ * Configuration:
+ * <table border="1">
+ *     <tr>
+ *         <th align="left">Property</th>
+ *         <th align="left">Description</th>
+ *         <th align="left">Required</th>
+ *         <th align="left">Default</th>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">internedAttributes</td>
+ *         <td>
+ *             The names of the attributes to intern the values of. Attributes with many distinct values, such as
+ *             a uid or mail, would fill the pool with values that are never shared and should not be included.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">empty</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">maximumSize</td>
+ *         <td>
+ *             The most distinct values to pool.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">10000</td>
+ *     </tr>
+ * </table>
+ * 
+ * @version $Revision$
+ */
+public class AttributeValueInterner implements AttributeValueInternerMBean {
+    /*
+     * Estimated heap used by an object header and fields, a String adds its char[] and two bytes per character
+     */
+    private static final int OBJECT_SIZE = 16;
+    private static final int STRING_SIZE = 40;
+    private static final int BIG_NUMBER_SIZE = 48;
+    
+    private final ConcurrentMap<Object, Object> pool = new ConcurrentHashMap<Object, Object>();
+    
+    private final StripedCounter internedValues = new StripedCounter();
+    private final StripedCounter rejectedValues = new StripedCounter();
+    private final StripedCounter bytesSaved = new StripedCounter();
+    
+    private Set<String> internedAttributes = Collections.emptySet();
+    private int maximumSize = 10000;
+    
+    /**
+     * @return the internedAttributes
+     */
+    public Set<String> getInternedAttributes() {
+        return this.internedAttributes;
+    }
+    /**
+     * The names of the attributes to intern the values of, defaults to none.
+     * 
+     * @param internedAttributes the internedAttributes to set, may not be null
+     */
+    public void setInternedAttributes(Set<String> internedAttributes) {
+        Validate.notNull(internedAttributes, "internedAttributes may not be null");
+        this.internedAttributes = Collections.unmodifiableSet(new LinkedHashSet<String>(internedAttributes));
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.AttributeValueInternerMBean#getMaximumSize()
+     */
+    public int getMaximumSize() {
+        return this.maximumSize;
+    }
+    /**
+     * The most distinct values to pool, defaults to 10000.
+     * 
+     * @param maximumSize the maximumSize to set
+     */
+    public void setMaximumSize(int maximumSize) {
+        Validate.isTrue(maximumSize > 0, "maximumSize must be greater than 0");
+        this.maximumSize = maximumSize;
+    }
+    
+    /**
+     * @param attribute The name of an attribute
+     * @return true if the values of the attribute are interned
+     */
+    public boolean isInterned(String attribute) {
+        return this.internedAttributes.contains(attribute);
+    }
+    
+    /**
+     * @param value The value to intern
+     * @return An equal pooled value, the value itself if it isn't pooled
+     */
+    public Object intern(Object value) {
+        if (!isInternable(value)) {
+            return value;
+        }
+        
+        final Object pooledValue = this.pool.get(value);
+        if (pooledValue != null) {
+            if (pooledValue != value) {
+                this.internedValues.increment();
+                this.bytesSaved.add(estimateSize(value));
+            }
+            return pooledValue;
+        }
+        
+        if (this.pool.size() >= this.maximumSize) {
+            this.rejectedValues.increment();
+            return value;
+        }
+        
+        final Object existingValue = this.pool.putIfAbsent(value, value);
+        if (existingValue != null) {
+            this.internedValues.increment();
+            this.bytesSaved.add(estimateSize(value));
+            return existingValue;
+        }
+        
+        return value;
+    }
+    
+    /**
+     * Interns the values of the attributes configured by internedAttributes.
+     * 
+     * @param attributes The attributes to intern the values of, not modified
+     * @return A copy of the attributes with interned values, the attributes Map itself if no values were replaced
+     */
+    public Map<String, List<Object>> internValues(Map<String, List<Object>> attributes) {
+        Map<String, List<Object>> internedAttributes = null;
+        
+        for (final Map.Entry<String, List<Object>> attributeEntry : attributes.entrySet()) {
+            final String attribute = attributeEntry.getKey();
+            final List<Object> values = attributeEntry.getValue();
+            if (values == null || !this.isInterned(attribute)) {
+                continue;
+            }
+            
+            List<Object> internedValues = null;
+            for (int index = 0; index < values.size(); index++) {
+                final Object value = values.get(index);
+                final Object internedValue = this.intern(value);
+                if (internedValue != value) {
+                    if (internedValues == null) {
+                        internedValues = new ArrayList<Object>(values);
+                    }
+                    internedValues.set(index, internedValue);
+                }
+            }
+            
+            if (internedValues != null) {
+                if (internedAttributes == null) {
+                    internedAttributes = new LinkedHashMap<String, List<Object>>(attributes);
+                }
+                internedAttributes.put(attribute, internedValues);
+            }
+        }
+        
+        if (internedAttributes == null) {
+            return attributes;
+        }
+        
+        return internedAttributes;
+    }
+    
+    /**
+     * Interns the attribute values of the person. A person with replaced values is copied into a
+     * {@link NamedPersonImpl}, keeping case insensitive attribute names for the case insensitive person types.
+     * 
+     * @param person The person to intern the attribute values of
+     * @return A copy of the person with interned values, the person itself if no values were replaced
+     */
+    public IPersonAttributes internValues(IPersonAttributes person) {
+        final Map<String, List<Object>> attributes = person.getAttributes();
+        final Map<String, List<Object>> internedAttributes = this.internValues(attributes);
+        if (internedAttributes == attributes) {
+            return person;
+        }
+        
+        final String name = person.getName();
+        if (person instanceof CompactPersonImpl) {
+            return new CompactPersonImpl(name, internedAttributes, ((CompactPersonImpl)person).getSchema().isCaseInsensitive());
+        }
+        if (person instanceof CaseInsensitiveNamedPersonImpl || person instanceof CaseInsensitiveAttributeNamedPersonImpl) {
+            return new CaseInsensitiveNamedPersonImpl(name, internedAttributes);
+        }
+        
+        return new NamedPersonImpl(name, internedAttributes);
+    }
+    
+    /**
+     * Removes all values from the pool and resets the statistics.
+     */
+    public void clear() {
+        this.pool.clear();
+        this.internedValues.reset();
+        this.rejectedValues.reset();
+        this.bytesSaved.reset();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.AttributeValueInternerMBean#getSize()
+     */
+    public int getSize() {
+        return this.pool.size();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.AttributeValueInternerMBean#getInternedValues()
+     */
+    public long getInternedValues() {
+        return this.internedValues.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.AttributeValueInternerMBean#getRejectedValues()
+     */
+    public long getRejectedValues() {
+        return this.rejectedValues.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.AttributeValueInternerMBean#getEstimatedBytesSaved()
+     */
+    public long getEstimatedBytesSaved() {
+        return this.bytesSaved.sum();
+    }
+    
+    private static boolean isInternable(Object value) {
+        return value instanceof String
+            || value instanceof Integer
+            || value instanceof Long
+            || value instanceof Short
+            || value instanceof Byte
+            || value instanceof Boolean
+            || value instanceof Character
+            //BigInteger and BigDecimal are not final, subclasses may be mutable
+            || (value != null && (value.getClass() == BigInteger.class || value.getClass() == BigDecimal.class));
+    }
+    
+    private static long estimateSize(Object value) {
+        if (value instanceof String) {
+            return STRING_SIZE + 2 * ((String)value).length();
+        }
+        if (value instanceof BigInteger || value instanceof BigDecimal) {
+            return BIG_NUMBER_SIZE;
+        }
+        
+        return OBJECT_SIZE;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "AttributeValueInterner[size=" + this.getSize() + ", internedValues=" + this.getInternedValues() + ", estimatedBytesSaved=" + this.getEstimatedBytesSaved() + "]";
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+/**
+ * JMX management interface for the statistics of an {@link AttributeValueInterner}.
+ * 
+ * @version $Revision$
+ */
+public interface AttributeValueInternerMBean {
+    /**
+     * @return The number of distinct values in the pool.
+     */
+    public int getSize();
+    
+    /**
+     * @return The most values the pool will hold.
+     */
+    public int getMaximumSize();
+    
+    /**
+     * @return The number of values that were replaced by an equal value from the pool.
+     */
+    public long getInternedValues();
+    
+    /**
+     * @return The number of new values that were not pooled because the pool was full.
+     */
+    public long getRejectedValues();
+    
+    /**
+     * @return Estimate of the bytes of heap saved by the replaced values, assuming the replaced values are no longer referenced.
+     */
+    public long getEstimatedBytesSaved();
+}
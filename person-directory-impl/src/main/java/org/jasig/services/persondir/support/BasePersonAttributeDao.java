@@ -19,6 +19,7 @@
 
 package org.jasig.services.persondir.support;
 
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,6 +35,9 @@ import org.springframework.dao.support.DataAccessUtils;
 /**
  * Base {@link IPersonAttributeDao} that provides implementations of the deprecated methods. This class will be removed
  * in 1.6
+ * <br>
+ * Also provides {@link #getPeopleForUids(Collection)} by calling {@link #getPerson(String)} for each uid, subclasses
+ * that can find many people with one query should override it.
  * 
  * @author Eric Dalquist
  * @version $Revision$
@@ -41,6 +45,28 @@ import org.springframework.dao.support.DataAccessUtils;
 public abstract class BasePersonAttributeDao implements IPersonAttributeDao {
     protected final Log logger = LogFactory.getLog(getClass());
     
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleForUids(java.util.Collection)
+     */
+    public Map<String, IPersonAttributes> getPeopleForUids(Collection<String> uids) {
+        Validate.notNull(uids, "uids may not be null.");
+        Validate.noNullElements(uids, "uids may not contain null.");
+        
+        final Map<String, IPersonAttributes> people = new LinkedHashMap<String, IPersonAttributes>();
+        for (final String uid : uids) {
+            if (people.containsKey(uid)) {
+                continue;
+            }
+            
+            final IPersonAttributes person = this.getPerson(uid);
+            if (person != null) {
+                people.put(uid, person);
+            }
+        }
+        
+        return people;
+    }
+    
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.IPersonAttributeDao#getMultivaluedUserAttributes(java.util.Map)
      */
@@ -22,19 +22,52 @@ package org.jasig.services.persondir.support;
 import java.io.Serializable;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Method;
+import java.util.AbstractSet;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 
 import org.aopalliance.intercept.MethodInvocation;
 import org.apache.commons.lang.Validate;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jasig.services.persondir.IAsyncPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.AttributeBasedCacheKeyGenerator.CachableMethod;
+import org.jasig.services.persondir.support.cache.BoundedCacheMap;
+import org.jasig.services.persondir.support.cache.StripedCounter;
 import org.springframework.beans.factory.BeanNameAware;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.naming.SelfNaming;
 import org.springmodules.cache.key.CacheKeyGenerator;
 
 /**
@@ -42,6 +75,16 @@ import org.springmodules.cache.key.CacheKeyGenerator;
  * which caches results from a wrapped IPersonAttributeDao. 
  * <br>
  * <br>
+ * Cache statistics are exposed through {@link CachingPersonAttributeDaoImplMBean}. The DAO names itself
+ * <code>org.jasig.services.persondir:type=CachingPersonAttributeDao,name="&lt;beanName&gt;"</code> so a Spring
+ * {@link org.springframework.jmx.export.MBeanExporter} with autodetect enabled will register it.
+ * <br>
+ * <br>
+ * With <code>indexPersonNames</code> enabled cached results are indexed by the name of each person they contain so
+ * {@link #invalidatePerson(String)} can remove every entry for a person, including entries cached for seeds other
+ * than the person's uid.
+ * <br>
+ * <br>
  * Configuration:
  * <table border="1">
  *     <tr>
@@ -64,7 +107,10 @@ import org.springmodules.cache.key.CacheKeyGenerator;
  *         <td>
  *             The {@link java.util.Map} to use for result caching. This class does no cache
  *             maintenence. It is assumed the underlying Map implementation will ensure the cache
- *             is in a good state at all times.
+ *             is in a good state at all times. {@link org.jasig.services.persondir.support.cache.BoundedCacheMap}
+ *             provides a size bounded, expiring Map suitable for this purpose. Besides get, put and remove the
+ *             person name index periodically calls containsKey to drop keys the Map has evicted, it should not
+ *             count as an access to the entry.
  *         </td>
  *         <td valign="top">Yes</td>
  *         <td valign="top">null</td>
@@ -98,6 +144,100 @@ import org.springmodules.cache.key.CacheKeyGenerator;
  *         <td valign="top">No</td>
  *         <td valign="top">{@link CachingPersonAttributeDaoImpl#NULL_RESULTS_OBJECT}</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">coalesceConcurrentQueries</td>
+ *         <td>
+ *             If concurrent cache misses for the same cache key should be coalesced into a single
+ *             call to the wrapped IPersonAttributeDao. The first thread to miss runs the query, the
+ *             other threads wait for and share its result or its exception.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">true</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">coalescedWaitTimeout</td>
+ *         <td>
+ *             Milliseconds a thread waits for the query of another thread it was coalesced with. A wait that
+ *             times out fails like the query itself had failed, the query keeps running and its results are still
+ *             cached. When the DAO is queried by an aggregating DAO with a deadline the wait ends at that
+ *             deadline if it is earlier. 0 or less to wait without a limit.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">30000</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">compactCachedPeople</td>
+ *         <td>
+ *             If people are copied into {@link CompactPersonImpl}s before being stored in the cache. People
+ *             with the same attribute names share one {@link AttributeSchema} and only store their values,
+ *             greatly reducing the memory used by large caches. The results of the query that loaded the
+ *             cache entry are returned unchanged.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">indexPersonNames</td>
+ *         <td>
+ *             If cached results should be indexed by the names of the people they contain so
+ *             {@link #invalidatePerson(String)} removes the entries cached for every seed that found the person.
+ *             Without the index only the entry cached for the person's uid is removed. The index costs a small
+ *             set of cache keys per cached person.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">valueInterner</td>
+ *         <td>
+ *             The {@link AttributeValueInterner} used to share equal attribute values between cached people before
+ *             they are stored in the cache. If null values are not interned.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">refreshAfterWrite</td>
+ *         <td>
+ *             Milliseconds after results are cached that they are considered stale. Stale results are
+ *             still returned but a reload is started on the refreshExecutor. If the reload fails the
+ *             stale results continue to be returned. 0 or less disables refresh-ahead.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">expireAfterWrite</td>
+ *         <td>
+ *             Milliseconds after results are cached that they are no longer returned, even if a refresh
+ *             has been failing. Only applies when refreshAfterWrite is set. 0 or less means results are
+ *             only removed by the userInfoCache itself.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">refreshExecutor</td>
+ *         <td>
+ *             The {@link ExecutorService} background refreshes are run on. If not set a bounded pool of
+ *             refreshThreads daemon threads with a queue of refreshQueueSize is created and shut down
+ *             with this bean. If the executor rejects a refresh the stale results are returned and the
+ *             refresh is retried on a later request.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">asyncExecutor</td>
+ *         <td>
+ *             The {@link ExecutorService} cache misses from the {@link IAsyncPersonAttributeDao} methods are
+ *             run on. Cache hits are returned as already completed {@link Future}s without using the executor.
+ *             If not set cache misses block the calling thread and a warning is logged for each of them. The
+ *             executor is not shut down by this bean.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
  * </table>
  * 
  * 
@@ -105,13 +245,42 @@ import org.springmodules.cache.key.CacheKeyGenerator;
  * @author Eric Dalquist
  * @version $Id
  */
-public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePersonAttributeDao implements InitializingBean, BeanNameAware {
+public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePersonAttributeDao implements InitializingBean, DisposableBean, BeanNameAware, SelfNaming, CachingPersonAttributeDaoImplMBean, IAsyncPersonAttributeDao {
     protected static final Set<IPersonAttributes> NULL_RESULTS_OBJECT = Collections.singleton((IPersonAttributes)new SingletonPersonImpl());
+    
+    /*
+     * Number of cache keys the person name index must hold before it is first pruned
+     */
+    private static final int MINIMUM_PRUNE_SIZE = 1024;
             
     protected Log statsLogger = LogFactory.getLog(this.getClass().getName() + ".statistics");
 
-    private long queries = 0;
-    private long misses = 0;
+    private final StripedCounter queries = new StripedCounter();
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter nullResultHits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter loads = new StripedCounter();
+    private final StripedCounter loadTime = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+    private final StripedCounter coalescedWaits = new StripedCounter();
+    private final StripedCounter refreshes = new StripedCounter();
+    private final StripedCounter refreshFailures = new StripedCounter();
+    private final StripedCounter staleHits = new StripedCounter();
+    
+    /*
+     * Queries currently being run against the wrapped IPersonAttributeDao, keyed by cache key.
+     */
+    private final ConcurrentMap<Serializable, FutureTask<Set<IPersonAttributes>>> pendingQueries = new ConcurrentHashMap<Serializable, FutureTask<Set<IPersonAttributes>>>();
+    
+    /*
+     * Index of person name to the cache keys whose results contain that person, used by invalidatePerson. Entries
+     * may refer to keys that have since been removed from the userInfoCache, these are pruned each time the number
+     * of indexed keys doubles since the last prune.
+     */
+    private final ConcurrentMap<String, Set<Serializable>> personCacheKeys = new ConcurrentHashMap<String, Set<Serializable>>();
+    private final AtomicInteger personCacheKeysSize = new AtomicInteger();
+    private final Lock personCacheKeysPruneLock = new ReentrantLock();
+    private volatile int personCacheKeysPruneSize = MINIMUM_PRUNE_SIZE;
     
     /*
      * The IPersonAttributeDao to delegate cache misses to.
@@ -143,6 +312,46 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
      */
     private Set<IPersonAttributes> nullResultsObject = NULL_RESULTS_OBJECT;
     
+    /*
+     * If concurrent misses for the same key should share a single query
+     */
+    private boolean coalesceConcurrentQueries = true;
+    
+    /*
+     * Milliseconds to wait for a query another thread is running for the same key
+     */
+    private long coalescedWaitTimeout = 30000;
+    
+    /*
+     * If cached results should be indexed by person name for invalidatePerson
+     */
+    private boolean indexPersonNames = false;
+    
+    /*
+     * If cached people should be stored as CompactPersonImpls
+     */
+    private boolean compactCachedPeople = false;
+    
+    /*
+     * Shares equal attribute values between cached people
+     */
+    private AttributeValueInterner valueInterner = null;
+    
+    /*
+     * Refresh-ahead configuration
+     */
+    private long refreshAfterWrite = 0;
+    private long expireAfterWrite = 0;
+    private int refreshThreads = 2;
+    private int refreshQueueSize = 100;
+    private ExecutorService refreshExecutor = null;
+    private boolean internalRefreshExecutor = false;
+    
+    /*
+     * Executor cache misses from the async API are run on
+     */
+    private ExecutorService asyncExecutor = null;
+    
     private String beanName;
     
     /**
@@ -236,6 +445,183 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
         this.nullResultsObject = nullResultsObject;
     }
     
+    /**
+     * @return the coalesceConcurrentQueries
+     */
+    public boolean isCoalesceConcurrentQueries() {
+        return this.coalesceConcurrentQueries;
+    }
+    /**
+     * If concurrent cache misses for the same cache key should be coalesced into a single query against the
+     * wrapped IPersonAttributeDao. Defaults to true.
+     * 
+     * @param coalesceConcurrentQueries the coalesceConcurrentQueries to set
+     */
+    public void setCoalesceConcurrentQueries(boolean coalesceConcurrentQueries) {
+        this.coalesceConcurrentQueries = coalesceConcurrentQueries;
+    }
+    
+    /**
+     * @return the coalescedWaitTimeout
+     */
+    public long getCoalescedWaitTimeout() {
+        return this.coalescedWaitTimeout;
+    }
+    /**
+     * Milliseconds to wait for a coalesced query run by another thread before failing, 0 or less to wait without a
+     * limit. Defaults to 30000.
+     * 
+     * @param coalescedWaitTimeout the coalescedWaitTimeout to set
+     */
+    public void setCoalescedWaitTimeout(long coalescedWaitTimeout) {
+        this.coalescedWaitTimeout = coalescedWaitTimeout;
+    }
+    
+    /**
+     * @return the compactCachedPeople
+     */
+    public boolean isCompactCachedPeople() {
+        return this.compactCachedPeople;
+    }
+    /**
+     * If people should be copied into {@link CompactPersonImpl}s, which share their attribute names with other
+     * people, before being cached. Defaults to false.
+     * 
+     * @param compactCachedPeople the compactCachedPeople to set
+     */
+    public void setCompactCachedPeople(boolean compactCachedPeople) {
+        this.compactCachedPeople = compactCachedPeople;
+    }
+    
+    /**
+     * @return the indexPersonNames
+     */
+    public boolean isIndexPersonNames() {
+        return this.indexPersonNames;
+    }
+    /**
+     * If cached results should be indexed by the names of the people they contain so {@link #invalidatePerson(String)}
+     * can remove the entries cached for every seed. Defaults to false.
+     * 
+     * @param indexPersonNames the indexPersonNames to set
+     */
+    public void setIndexPersonNames(boolean indexPersonNames) {
+        this.indexPersonNames = indexPersonNames;
+    }
+    
+    /**
+     * @return the valueInterner
+     */
+    public AttributeValueInterner getValueInterner() {
+        return this.valueInterner;
+    }
+    /**
+     * The interner used to share equal attribute values between people before they are cached, null to not intern
+     * values. Defaults to null.
+     * 
+     * @param valueInterner the valueInterner to set
+     */
+    public void setValueInterner(AttributeValueInterner valueInterner) {
+        this.valueInterner = valueInterner;
+    }
+    
+    /**
+     * @return the refreshAfterWrite
+     */
+    public long getRefreshAfterWrite() {
+        return this.refreshAfterWrite;
+    }
+    /**
+     * Milliseconds after results are cached that they should be reloaded in the background. Stale results are
+     * returned until the reload completes. 0 or less disables refresh-ahead. Defaults to 0.
+     * 
+     * @param refreshAfterWrite the refreshAfterWrite to set
+     */
+    public void setRefreshAfterWrite(long refreshAfterWrite) {
+        this.refreshAfterWrite = refreshAfterWrite;
+    }
+    
+    /**
+     * @return the expireAfterWrite
+     */
+    public long getExpireAfterWrite() {
+        return this.expireAfterWrite;
+    }
+    /**
+     * Milliseconds after results are cached that they must no longer be returned, even if the background refresh
+     * has been failing. Only used when refreshAfterWrite is set. Defaults to 0, no limit.
+     * 
+     * @param expireAfterWrite the expireAfterWrite to set
+     */
+    public void setExpireAfterWrite(long expireAfterWrite) {
+        this.expireAfterWrite = expireAfterWrite;
+    }
+    
+    /**
+     * @return the refreshExecutor
+     */
+    public ExecutorService getRefreshExecutor() {
+        return this.refreshExecutor;
+    }
+    /**
+     * The executor to run background refreshes on. If not set a bounded pool is created when refreshAfterWrite is
+     * set.
+     * 
+     * @param refreshExecutor the refreshExecutor to set
+     */
+    public void setRefreshExecutor(ExecutorService refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+        this.internalRefreshExecutor = false;
+    }
+    
+    /**
+     * @return the asyncExecutor
+     */
+    public ExecutorService getAsyncExecutor() {
+        return this.asyncExecutor;
+    }
+    /**
+     * The executor to run cache misses from {@link #getPeopleWithMultivaluedAttributesAsync(Map)} on. If not set
+     * misses are run on the calling thread with a warning.
+     * 
+     * @param asyncExecutor the asyncExecutor to set
+     */
+    public void setAsyncExecutor(ExecutorService asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+    
+    /**
+     * @return the refreshThreads
+     */
+    public int getRefreshThreads() {
+        return this.refreshThreads;
+    }
+    /**
+     * Maximum number of threads in the default refreshExecutor. Defaults to 2.
+     * 
+     * @param refreshThreads the refreshThreads to set
+     */
+    public void setRefreshThreads(int refreshThreads) {
+        Validate.isTrue(refreshThreads > 0, "refreshThreads must be greater than 0");
+        this.refreshThreads = refreshThreads;
+    }
+    
+    /**
+     * @return the refreshQueueSize
+     */
+    public int getRefreshQueueSize() {
+        return this.refreshQueueSize;
+    }
+    /**
+     * Maximum number of refreshes waiting for a thread in the default refreshExecutor. Defaults to 100.
+     * 
+     * @param refreshQueueSize the refreshQueueSize to set
+     */
+    public void setRefreshQueueSize(int refreshQueueSize) {
+        Validate.isTrue(refreshQueueSize > 0, "refreshQueueSize must be greater than 0");
+        this.refreshQueueSize = refreshQueueSize;
+    }
+    
     /**
      * @return the cacheKeyGenerator
      */
@@ -269,20 +655,150 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
             cacheKeyGenerator.setDefaultAttributeName(usernameAttribute);
             this.cacheKeyGenerator = cacheKeyGenerator;
         }
+        
+        if (this.refreshAfterWrite > 0 && this.refreshExecutor == null) {
+            final ThreadPoolExecutor refreshExecutor = new ThreadPoolExecutor(this.refreshThreads, this.refreshThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(this.refreshQueueSize), new RefreshThreadFactory(this.beanName));
+            refreshExecutor.allowCoreThreadTimeOut(true);
+            this.refreshExecutor = refreshExecutor;
+            this.internalRefreshExecutor = true;
+        }
     }
     
-    /**
-     * @return Returns the number of cache misses.
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public void destroy() throws Exception {
+        if (this.internalRefreshExecutor) {
+            this.refreshExecutor.shutdownNow();
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see org.springframework.jmx.export.naming.SelfNaming#getObjectName()
+     */
+    public ObjectName getObjectName() throws MalformedObjectNameException {
+        final String name = (this.beanName != null ? this.beanName : this.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this)));
+        return new ObjectName("org.jasig.services.persondir:type=CachingPersonAttributeDao,name=" + ObjectName.quote(name));
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CachingPersonAttributeDaoImplMBean#getBeanName()
+     */
+    public String getBeanName() {
+        return this.beanName;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CachingPersonAttributeDaoImplMBean#getMisses()
      */
     public long getMisses() {
-        return this.misses;
+        return this.misses.sum();
     }
     
-    /**
-     * @return Returns the number of queries.
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CachingPersonAttributeDaoImplMBean#getQueries()
      */
     public long getQueries() {
-        return this.queries;
+        return this.queries.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CachingPersonAttributeDaoImplMBean#getHits()
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CachingPersonAttributeDaoImplMBean#getNullResultHits()
+     */
+    public long getNullResultHits() {
+        return this.nullResultHits.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CachingPersonAttributeDaoImplMBean#getCoalescedWaits()
+     */
+    public long getCoalescedWaits() {
+        return this.coalescedWaits.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CachingPersonAttributeDaoImplMBean#getLoads()
+     */
+    public long getLoads() {
+        return this.loads.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CachingPersonAttributeDaoImplMBean#getTotalLoadTime()
+     */
+    public long getTotalLoadTime() {
+        return TimeUnit.NANOSECONDS.toMillis(this.loadTime.sum());
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CachingPersonAttributeDaoImplMBean#getAverageLoadTime()
+     */
+    public double getAverageLoadTime() {
+        final long loads = this.loads.sum();
+        if (loads == 0) {
+            return 0;
+        }
+        
+        return this.loadTime.sum() / (double)loads / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CachingPersonAttributeDaoImplMBean#getEvictions()
+     */
+    public long getEvictions() {
+        long evictions = this.evictions.sum();
+        
+        if (this.userInfoCache instanceof BoundedCacheMap<?, ?>) {
+            final BoundedCacheMap<?, ?> boundedCacheMap = (BoundedCacheMap<?, ?>)this.userInfoCache;
+            evictions += boundedCacheMap.getEvictionCount() + boundedCacheMap.getExpirationCount();
+        }
+        
+        return evictions;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CachingPersonAttributeDaoImplMBean#getRefreshes()
+     */
+    public long getRefreshes() {
+        return this.refreshes.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CachingPersonAttributeDaoImplMBean#getRefreshFailures()
+     */
+    public long getRefreshFailures() {
+        return this.refreshFailures.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CachingPersonAttributeDaoImplMBean#getStaleHits()
+     */
+    public long getStaleHits() {
+        return this.staleHits.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CachingPersonAttributeDaoImplMBean#resetStatistics()
+     */
+    public void resetStatistics() {
+        this.queries.reset();
+        this.hits.reset();
+        this.nullResultHits.reset();
+        this.misses.reset();
+        this.loads.reset();
+        this.loadTime.reset();
+        this.evictions.reset();
+        this.coalescedWaits.reset();
+        this.refreshes.reset();
+        this.refreshFailures.reset();
+        this.staleHits.reset();
     }
     
     /**
@@ -291,7 +807,7 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
      * 
      * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
      */
-    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> seed) {
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> seed) {
         //Ensure the arguments and state are valid
         if (seed == null) {
             throw new IllegalArgumentException("The query seed Map cannot be null.");
@@ -305,54 +821,628 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
         }
         
         //Get the cache key
-        final MethodInvocation methodInvocation = new PersonAttributeDaoMethodInvocation(seed);
-        final Serializable cacheKey = this.cacheKeyGenerator.generateKey(methodInvocation);
+        final Serializable cacheKey = this.generateCacheKey(seed);
 
         if (cacheKey != null) {
             Set<IPersonAttributes> cacheResults = this.userInfoCache.get(cacheKey);
+            
+            //Results cached in refresh-ahead mode carry their load time
+            if (cacheResults instanceof TimestampedResults) {
+                cacheResults = this.checkFreshness(seed, cacheKey, (TimestampedResults)cacheResults);
+            }
+            
             if (cacheResults != null) {
                 //If the returned object is the null results object, set the cache results to null
                 if (this.nullResultsObject.equals(cacheResults)) {
                     cacheResults = null;
+                    this.nullResultHits.increment();
                 }
                 
                 if (logger.isDebugEnabled()) {
                     logger.debug("Retrieved query from cache for " + beanName + ". key='" + cacheKey + "', results='" + cacheResults + "'");
                 }
                     
-                this.queries++;
-                if (statsLogger.isDebugEnabled()) {
-                    statsLogger.debug("Cache Stats " + beanName + ": queries=" + this.queries + ", hits=" + (this.queries - this.misses) + ", misses=" + this.misses);
-                }
+                this.queries.increment();
+                this.hits.increment();
+                this.logStatistics();
                 
                 return cacheResults;
             }
         }
     
-        final Set<IPersonAttributes> queryResults = this.cachedPersonAttributesDao.getPeopleWithMultivaluedAttributes(seed);
-    
-        if (cacheKey != null) {
-            if (queryResults != null) {
-                this.userInfoCache.put(cacheKey, queryResults);
-            }
-            else if (this.cacheNullResults) {
-                this.userInfoCache.put(cacheKey, this.nullResultsObject);
+        if (cacheKey == null) {
+            return this.cachedPersonAttributesDao.getPeopleWithMultivaluedAttributes(seed);
+        }
+        
+        if (!this.coalesceConcurrentQueries) {
+            final Set<IPersonAttributes> queryResults = this.queryAndCache(seed, cacheKey);
+            this.recordMiss();
+            return queryResults;
+        }
+        
+        //Register this thread as the one running the query for the key, or find the thread that already is
+        final FutureTask<Set<IPersonAttributes>> queryTask = new FutureTask<Set<IPersonAttributes>>(new Callable<Set<IPersonAttributes>>() {
+            public Set<IPersonAttributes> call() throws Exception {
+                return queryAndCache(seed, cacheKey);
             }
-            
+        });
+        final FutureTask<Set<IPersonAttributes>> pendingTask = this.pendingQueries.putIfAbsent(cacheKey, queryTask);
+        
+        if (pendingTask != null) {
+            this.coalescedWaits.increment();
             if (logger.isDebugEnabled()) {
-                logger.debug("Retrieved query from wrapped IPersonAttributeDao and stored in cache for " + beanName + ". key='" + cacheKey + "', results='" + queryResults + "'");
+                logger.debug("Waiting on in-flight query for " + beanName + ". key='" + cacheKey + "'");
             }
             
-            this.queries++;
-            this.misses++;
-            if (statsLogger.isDebugEnabled()) {
-                statsLogger.debug("Cache Stats " + beanName + ": queries=" + this.queries + ", hits=" + (this.queries - this.misses) + ", misses=" + this.misses);
-            }
+            final Set<IPersonAttributes> queryResults = this.getQueryResults(pendingTask, cacheKey);
+            
+            this.queries.increment();
+            this.logStatistics();
+            
+            return queryResults;
+        }
+        
+        try {
+            queryTask.run();
+        }
+        finally {
+            //The results are already in the cache at this point so later callers will hit it
+            this.pendingQueries.remove(cacheKey, queryTask);
+        }
+        
+        final Set<IPersonAttributes> queryResults = this.getQueryResults(queryTask, cacheKey);
+        this.recordMiss();
+        return queryResults;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPersonAsync(java.lang.String)
+     */
+    public Future<IPersonAttributes> getPersonAsync(String uid) {
+        Validate.notNull(uid, "uid may not be null.");
+        
+        final Map<String, List<Object>> seed = this.toSeedMap(uid);
+        final Future<Set<IPersonAttributes>> peopleFuture = this.getPeopleWithMultivaluedAttributesAsync(seed);
+        return this.toPersonFuture(uid, peopleFuture);
+    }
+    
+    /**
+     * Cache hits are answered on the calling thread with an already completed {@link Future}, misses are run
+     * through {@link #getPeopleWithMultivaluedAttributes(Map)} on the asyncExecutor so they are still coalesced
+     * with concurrent misses for the same key.
+     * 
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPeopleWithMultivaluedAttributesAsync(java.util.Map)
+     */
+    public Future<Set<IPersonAttributes>> getPeopleWithMultivaluedAttributesAsync(final Map<String, List<Object>> seed) {
+        if (seed == null) {
+            throw new IllegalArgumentException("The query seed Map cannot be null.");
+        }
+        if (this.userInfoCache == null) {
+            throw new IllegalStateException("No 'userInfoCache' has been specified.");
+        }
+        
+        final Serializable cacheKey = this.generateCacheKey(seed);
+        final Callable<Set<IPersonAttributes>> query = new Callable<Set<IPersonAttributes>>() {
+            public Set<IPersonAttributes> call() throws Exception {
+                return getPeopleWithMultivaluedAttributes(seed);
+            }
+        };
+        
+        if (this.isCached(cacheKey)) {
+            return AsyncPersonAttributeDaoAdapter.complete(query);
+        }
+        
+        return AsyncPersonAttributeDaoAdapter.submit(this.asyncExecutor, query, this.logger);
+    }
+    
+    /**
+     * Uids with usable cached results are answered from the cache through {@link #getPerson(String)}. The remaining
+     * uids are loaded with a single call to the wrapped DAO's
+     * {@link IPersonAttributeDao#getPeopleForUids(Collection)} if it extends {@link BasePersonAttributeDao}, other
+     * wrapped DAOs are called once per uid with {@link IPersonAttributeDao#getPerson(String)}. Each uid's person is stored through the same code
+     * as a miss in {@link #getPeopleWithMultivaluedAttributes(Map)}, as the single person results of the uid's seed,
+     * which is what that query caches whenever {@link #getPerson(String)} for the uid is well defined. Misses are
+     * coalesced with concurrent queries for the same keys from either method.
+     * 
+     * @see org.jasig.services.persondir.support.BasePersonAttributeDao#getPeopleForUids(java.util.Collection)
+     */
+    @Override
+    public Map<String, IPersonAttributes> getPeopleForUids(Collection<String> uids) {
+        Validate.notNull(uids, "uids may not be null.");
+        Validate.noNullElements(uids, "uids may not contain null.");
+        
+        if (this.cachedPersonAttributesDao == null) {
+            throw new IllegalStateException("No 'cachedPersonAttributesDao' has been specified.");
+        }
+        if (this.userInfoCache == null) {
+            throw new IllegalStateException("No 'userInfoCache' has been specified.");
+        }
+        
+        final Set<String> distinctUids = new LinkedHashSet<String>(uids);
+        final Map<String, IPersonAttributes> cachedPeople = new HashMap<String, IPersonAttributes>();
+        final Map<String, Serializable> loadKeys = new LinkedHashMap<String, Serializable>();
+        for (final String uid : distinctUids) {
+            final Serializable cacheKey = this.generateCacheKey(this.toSeedMap(uid));
+            
+            //Uids that can't be cached are passed through getPerson as well
+            if (cacheKey == null || this.isCached(cacheKey)) {
+                cachedPeople.put(uid, this.getPerson(uid));
+            }
+            else {
+                loadKeys.put(uid, cacheKey);
+            }
+        }
+        
+        //One load of the wrapped DAO for every uid this thread owns the query for, run by the first task that needs it
+        final Set<String> ownedUids = new LinkedHashSet<String>();
+        final FutureTask<Map<String, IPersonAttributes>> batchTask = new FutureTask<Map<String, IPersonAttributes>>(new Callable<Map<String, IPersonAttributes>>() {
+            public Map<String, IPersonAttributes> call() throws Exception {
+                return loadPeopleForUids(ownedUids);
+            }
+        });
+        
+        //Register this thread as the one loading each missed key, or find the query that already is
+        final Map<String, FutureTask<Set<IPersonAttributes>>> queryTasks = new HashMap<String, FutureTask<Set<IPersonAttributes>>>();
+        final Map<Serializable, FutureTask<Set<IPersonAttributes>>> ownedTasks = new LinkedHashMap<Serializable, FutureTask<Set<IPersonAttributes>>>();
+        for (final Map.Entry<String, Serializable> loadKeyEntry : loadKeys.entrySet()) {
+            final String uid = loadKeyEntry.getKey();
+            final Serializable cacheKey = loadKeyEntry.getValue();
+            
+            final FutureTask<Set<IPersonAttributes>> queryTask = new FutureTask<Set<IPersonAttributes>>(new Callable<Set<IPersonAttributes>>() {
+                public Set<IPersonAttributes> call() throws Exception {
+                    batchTask.run();
+                    final IPersonAttributes person = getQueryResults(batchTask, cacheKey).get(uid);
+                    return storeResults(cacheKey, person != null ? Collections.singleton(person) : null);
+                }
+            });
+            
+            final FutureTask<Set<IPersonAttributes>> pendingTask = this.coalesceConcurrentQueries ? this.pendingQueries.putIfAbsent(cacheKey, queryTask) : null;
+            if (pendingTask != null) {
+                this.coalescedWaits.increment();
+                queryTasks.put(uid, pendingTask);
+            }
+            else {
+                ownedUids.add(uid);
+                ownedTasks.put(cacheKey, queryTask);
+                queryTasks.put(uid, queryTask);
+            }
+        }
+        
+        try {
+            for (final FutureTask<Set<IPersonAttributes>> ownedTask : ownedTasks.values()) {
+                ownedTask.run();
+            }
+        }
+        finally {
+            //The results are already in the cache at this point so later callers will hit it
+            if (this.coalesceConcurrentQueries) {
+                for (final Map.Entry<Serializable, FutureTask<Set<IPersonAttributes>>> ownedTaskEntry : ownedTasks.entrySet()) {
+                    this.pendingQueries.remove(ownedTaskEntry.getKey(), ownedTaskEntry.getValue());
+                }
+            }
+        }
+        
+        if (!loadKeys.isEmpty()) {
+            this.queries.add(loadKeys.size());
+            this.misses.add(ownedTasks.size());
+            this.logStatistics();
+        }
+        
+        //Return the people in the order the uids were given
+        final Map<String, IPersonAttributes> people = new LinkedHashMap<String, IPersonAttributes>();
+        for (final String uid : distinctUids) {
+            final IPersonAttributes person;
+            final FutureTask<Set<IPersonAttributes>> queryTask = queryTasks.get(uid);
+            if (queryTask != null) {
+                person = toPerson(uid, this.getQueryResults(queryTask, loadKeys.get(uid)));
+            }
+            else {
+                person = cachedPeople.get(uid);
+            }
+            
+            if (person != null) {
+                people.put(uid, person);
+            }
+        }
+        
+        return people;
+    }
+    
+    /**
+     * Loads the uids from the wrapped IPersonAttributeDao with a single call, or one call per uid if the wrapped DAO
+     * was written against the IPersonAttributeDao API from before getPeopleForUids was added.
+     */
+    private Map<String, IPersonAttributes> loadPeopleForUids(Set<String> uids) {
+        final Map<String, IPersonAttributes> loadedPeople;
+        final long loadStart = System.nanoTime();
+        try {
+            if (this.cachedPersonAttributesDao instanceof BasePersonAttributeDao) {
+                loadedPeople = this.cachedPersonAttributesDao.getPeopleForUids(uids);
+            }
+            else {
+                loadedPeople = new LinkedHashMap<String, IPersonAttributes>();
+                for (final String uid : uids) {
+                    final IPersonAttributes person = this.cachedPersonAttributesDao.getPerson(uid);
+                    if (person != null) {
+                        loadedPeople.put(uid, person);
+                    }
+                }
+            }
+        }
+        finally {
+            this.loads.increment();
+            this.loadTime.add(System.nanoTime() - loadStart);
+        }
+        
+        if (logger.isDebugEnabled()) {
+            logger.debug("Retrieved " + uids.size() + " uids from wrapped IPersonAttributeDao for " + beanName + ". found=" + loadedPeople.size());
+        }
+        
+        return loadedPeople;
+    }
+    
+    /**
+     * @return true if the cache holds usable results for the key
+     */
+    private boolean isCached(Serializable cacheKey) {
+        if (cacheKey == null) {
+            return false;
+        }
+        
+        final Set<IPersonAttributes> cacheResults = this.userInfoCache.get(cacheKey);
+        if (cacheResults instanceof TimestampedResults) {
+            final long age = this.currentTimeMillis() - ((TimestampedResults)cacheResults).getLoadTime();
+            return this.expireAfterWrite <= 0 || age < this.expireAfterWrite;
+        }
+        
+        return cacheResults != null;
+    }
+    
+    /**
+     * Runs the query against the wrapped IPersonAttributeDao and stores the results in the cache.
+     */
+    protected Set<IPersonAttributes> queryAndCache(Map<String, List<Object>> seed, Serializable cacheKey) {
+        final Set<IPersonAttributes> queryResults;
+        final long loadStart = System.nanoTime();
+        try {
+            queryResults = this.cachedPersonAttributesDao.getPeopleWithMultivaluedAttributes(seed);
+        }
+        finally {
+            this.loads.increment();
+            this.loadTime.add(System.nanoTime() - loadStart);
+        }
+    
+        this.storeResults(cacheKey, queryResults);
+        
+        if (logger.isDebugEnabled()) {
+            logger.debug("Retrieved query from wrapped IPersonAttributeDao and stored in cache for " + beanName + ". key='" + cacheKey + "', results='" + queryResults + "'");
         }
 
         return queryResults;
     }
     
+    /**
+     * Stores the results of a query in the cache, null results are only stored if cacheNullResults is true. Otherwise
+     * null results remove the key so results cached by an earlier load, such as the stale results a refresh was
+     * replacing, are not returned for a person that no longer exists.
+     * 
+     * @return The results as they were stored in the cache, with interned values and compacted if configured
+     */
+    private Set<IPersonAttributes> storeResults(Serializable cacheKey, Set<IPersonAttributes> queryResults) {
+        Set<IPersonAttributes> preparedResults = null;
+        Set<IPersonAttributes> cacheResults = null;
+        if (queryResults != null) {
+            preparedResults = this.prepareCachedPeople(queryResults);
+            cacheResults = preparedResults;
+        }
+        else if (this.cacheNullResults) {
+            cacheResults = this.nullResultsObject;
+        }
+        
+        if (cacheResults != null) {
+            if (this.refreshAfterWrite > 0) {
+                cacheResults = new TimestampedResults(cacheResults, this.currentTimeMillis());
+            }
+            
+            this.userInfoCache.put(cacheKey, cacheResults);
+        }
+        else if (this.userInfoCache.remove(cacheKey) != null) {
+            this.evictions.increment();
+        }
+        
+        if (queryResults != null && this.indexPersonNames) {
+            this.addToPersonNameIndex(queryResults, cacheKey);
+        }
+        
+        return preparedResults;
+    }
+    
+    /**
+     * @return The people to store in the cache, a read-only copy with interned values and as CompactPersonImpls if configured.
+     */
+    private Set<IPersonAttributes> prepareCachedPeople(Set<IPersonAttributes> people) {
+        if (this.valueInterner == null && !this.compactCachedPeople) {
+            return people;
+        }
+        
+        if (people.size() == 1) {
+            return Collections.singleton(this.prepareCachedPerson(people.iterator().next()));
+        }
+        
+        final Set<IPersonAttributes> cachedPeople = new LinkedHashSet<IPersonAttributes>(people.size() * 2);
+        for (final IPersonAttributes person : people) {
+            cachedPeople.add(this.prepareCachedPerson(person));
+        }
+        
+        return Collections.unmodifiableSet(cachedPeople);
+    }
+    
+    private IPersonAttributes prepareCachedPerson(IPersonAttributes person) {
+        if (this.valueInterner != null) {
+            person = this.valueInterner.internValues(person);
+        }
+        if (this.compactCachedPeople) {
+            person = CompactPersonImpl.compact(person);
+        }
+        return person;
+    }
+    
+    /**
+     * Returns the results to use for a cache entry stored in refresh-ahead mode. Stale results trigger a background
+     * refresh, results past expireAfterWrite are ignored.
+     * 
+     * @return The cached results, null if they have expired
+     */
+    protected Set<IPersonAttributes> checkFreshness(Map<String, List<Object>> seed, Serializable cacheKey, TimestampedResults cachedResults) {
+        final long age = this.currentTimeMillis() - cachedResults.getLoadTime();
+        
+        if (this.expireAfterWrite > 0 && age >= this.expireAfterWrite) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Cached results for " + beanName + " have expired, reloading. key='" + cacheKey + "', age=" + age);
+            }
+            
+            return null;
+        }
+        
+        if (this.refreshAfterWrite > 0 && age >= this.refreshAfterWrite) {
+            this.staleHits.increment();
+            this.scheduleRefresh(seed, cacheKey);
+        }
+        
+        return cachedResults.getResults();
+    }
+    
+    /**
+     * Reloads the results for the cache key on the refreshExecutor unless a query for the key is already running.
+     */
+    protected void scheduleRefresh(Map<String, List<Object>> seed, final Serializable cacheKey) {
+        if (this.refreshExecutor == null) {
+            throw new IllegalStateException("refreshAfterWrite is set but no 'refreshExecutor' exists, was afterPropertiesSet called?");
+        }
+        
+        //The caller is free to modify the seed once we return
+        final Map<String, List<Object>> refreshSeed = new LinkedHashMap<String, List<Object>>(seed);
+        
+        final FutureTask<Set<IPersonAttributes>> refreshTask = new FutureTask<Set<IPersonAttributes>>(new Callable<Set<IPersonAttributes>>() {
+            public Set<IPersonAttributes> call() throws Exception {
+                refreshes.increment();
+                try {
+                    return queryAndCache(refreshSeed, cacheKey);
+                }
+                catch (RuntimeException re) {
+                    refreshFailures.increment();
+                    logger.warn("Refresh failed for " + beanName + ", stale results will be used. key='" + cacheKey + "'", re);
+                    throw re;
+                }
+            }
+        }) {
+            @Override
+            protected void done() {
+                pendingQueries.remove(cacheKey, this);
+            }
+        };
+        
+        if (this.pendingQueries.putIfAbsent(cacheKey, refreshTask) != null) {
+            //Already being loaded
+            return;
+        }
+        
+        try {
+            this.refreshExecutor.execute(refreshTask);
+            
+            if (logger.isDebugEnabled()) {
+                logger.debug("Scheduled refresh of stale results for " + beanName + ". key='" + cacheKey + "'");
+            }
+        }
+        catch (RejectedExecutionException ree) {
+            this.pendingQueries.remove(cacheKey, refreshTask);
+            
+            if (logger.isDebugEnabled()) {
+                logger.debug("Refresh rejected for " + beanName + ", stale results will be used. key='" + cacheKey + "'", ree);
+            }
+        }
+    }
+    
+    /**
+     * @return The current time in milliseconds, used for refresh-ahead. Protected to allow for testing.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+    
+    private void recordMiss() {
+        this.queries.increment();
+        this.misses.increment();
+        this.logStatistics();
+    }
+    
+    private void logStatistics() {
+        if (statsLogger.isDebugEnabled()) {
+            statsLogger.debug("Cache Stats " + beanName + ": queries=" + this.queries + ", hits=" + this.hits + ", nullResultHits=" + this.nullResultHits + ", misses=" + this.misses + ", coalescedWaits=" + this.coalescedWaits + ", averageLoadTime=" + this.getAverageLoadTime() + "ms");
+        }
+    }
+    
+    /**
+     * Waits for the query task to complete and returns its result, re-throwing any exception thrown by the query.
+     * The wait ends with an {@link IllegalStateException} after coalescedWaitTimeout or at the deadline of the
+     * enclosing aggregated query, whichever is first.
+     */
+    private <T> T getQueryResults(FutureTask<T> queryTask, Serializable cacheKey) {
+        long deadline = Long.MAX_VALUE;
+        if (this.coalescedWaitTimeout > 0) {
+            deadline = System.currentTimeMillis() + this.coalescedWaitTimeout;
+        }
+        final Long queryDeadline = AbstractAggregatingDefaultQueryPersonAttributeDao.getActiveQueryDeadline();
+        if (queryDeadline != null) {
+            deadline = Math.min(deadline, queryDeadline);
+        }
+        
+        try {
+            if (deadline == Long.MAX_VALUE) {
+                return queryTask.get();
+            }
+            
+            return queryTask.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for query results for " + beanName + ". key='" + cacheKey + "'", e);
+        }
+        catch (TimeoutException e) {
+            //The query is left running for the thread that owns it and any other waiters
+            logger.warn("Timed out waiting for in-flight query for " + beanName + ". key='" + cacheKey + "'");
+            throw new IllegalStateException("Timed out waiting for query results for " + beanName + ". key='" + cacheKey + "'", e);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            
+            throw new IllegalStateException("Query for " + beanName + " failed. key='" + cacheKey + "'", cause);
+        }
+    }
+    
+    /**
+     * Removes every cached result that contains the person with the specified name, no matter which seed the
+     * results were cached for. If indexPersonNames is false only the result cached for the uid is removed.
+     * 
+     * @param uid The name of the person, as returned by {@link IPersonAttributes#getName()}
+     * @return The number of entries removed from the cache
+     */
+    public int invalidatePerson(String uid) {
+        Validate.notNull(uid, "uid may not be null.");
+        
+        final Set<Serializable> cacheKeys;
+        if (this.indexPersonNames) {
+            cacheKeys = this.personCacheKeys.remove(uid);
+            if (cacheKeys == null) {
+                return 0;
+            }
+            
+            this.personCacheKeysSize.addAndGet(-cacheKeys.size());
+        }
+        else {
+            final Serializable cacheKey = this.generateCacheKey(this.toSeedMap(uid));
+            if (cacheKey == null) {
+                return 0;
+            }
+            
+            cacheKeys = Collections.singleton(cacheKey);
+        }
+        
+        int removed = 0;
+        synchronized (cacheKeys) {
+            for (final Serializable cacheKey : cacheKeys) {
+                if (this.userInfoCache.remove(cacheKey) != null) {
+                    this.evictions.increment();
+                    removed++;
+                }
+            }
+        }
+        
+        if (logger.isDebugEnabled()) {
+            logger.debug("Invalidated " + removed + " cache entries for person '" + uid + "' in " + beanName);
+        }
+        
+        return removed;
+    }
+    
+    /**
+     * Records the cache key under the name of each person in the results.
+     */
+    protected void addToPersonNameIndex(Set<IPersonAttributes> results, Serializable cacheKey) {
+        for (final IPersonAttributes person : results) {
+            final String name = person.getName();
+            if (name == null) {
+                continue;
+            }
+            
+            //Retry if the key Set was removed from the index by a prune or invalidation while the key was added
+            Set<Serializable> cacheKeys;
+            do {
+                cacheKeys = this.personCacheKeys.get(name);
+                if (cacheKeys == null) {
+                    //Most people are cached under one or two seeds
+                    cacheKeys = Collections.synchronizedSet(new HashSet<Serializable>(2));
+                    final Set<Serializable> existingCacheKeys = this.personCacheKeys.putIfAbsent(name, cacheKeys);
+                    if (existingCacheKeys != null) {
+                        cacheKeys = existingCacheKeys;
+                    }
+                }
+                
+                if (cacheKeys.add(cacheKey)) {
+                    this.personCacheKeysSize.incrementAndGet();
+                }
+            } while (this.personCacheKeys.get(name) != cacheKeys);
+        }
+        
+        //Entries removed by the cache itself are not seen here, drop them once the index has doubled since the last
+        //prune so the cost of walking the index is amortized over the stores that grew it
+        if (this.personCacheKeysSize.get() >= this.personCacheKeysPruneSize * 2) {
+            this.prunePersonNameIndex();
+        }
+    }
+    
+    /**
+     * Removes cache keys that are no longer in the userInfoCache from the person name index. Only one thread prunes
+     * at a time, other threads skip the prune. Uses containsKey so the check is not counted as an access to the
+     * cached entry.
+     */
+    private void prunePersonNameIndex() {
+        if (!this.personCacheKeysPruneLock.tryLock()) {
+            return;
+        }
+        
+        try {
+            for (final Iterator<Set<Serializable>> cacheKeysItr = this.personCacheKeys.values().iterator(); cacheKeysItr.hasNext(); ) {
+                final Set<Serializable> cacheKeys = cacheKeysItr.next();
+                
+                synchronized (cacheKeys) {
+                    for (final Iterator<Serializable> cacheKeyItr = cacheKeys.iterator(); cacheKeyItr.hasNext(); ) {
+                        final Serializable cacheKey = cacheKeyItr.next();
+                        if (!this.userInfoCache.containsKey(cacheKey)) {
+                            cacheKeyItr.remove();
+                            this.personCacheKeysSize.decrementAndGet();
+                        }
+                    }
+                    
+                    if (cacheKeys.isEmpty()) {
+                        cacheKeysItr.remove();
+                    }
+                }
+            }
+            
+            this.personCacheKeysPruneSize = Math.max(MINIMUM_PRUNE_SIZE, this.personCacheKeysSize.get());
+        }
+        finally {
+            this.personCacheKeysPruneLock.unlock();
+        }
+    }
+    
     public void removeUserAttributes(String uid) {
         Validate.notNull(uid, "uid may not be null.");
         final Map<String, List<Object>> seed = this.toSeedMap(uid);
@@ -365,9 +1455,24 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
     }
     
     public void removeUserAttributesMultivaluedSeed(Map<String, List<Object>> seed) {
+        final Serializable cacheKey = this.generateCacheKey(seed);
+        if (cacheKey != null && this.userInfoCache.remove(cacheKey) != null) {
+            this.evictions.increment();
+        }
+    }
+    
+    /**
+     * Generates the cache key for a call to {@link #getPeopleWithMultivaluedAttributes(Map)}. An
+     * {@link AttributeBasedCacheKeyGenerator} is called directly, any other {@link CacheKeyGenerator} is passed a
+     * {@link MethodInvocation} for the call.
+     */
+    protected Serializable generateCacheKey(Map<String, List<Object>> seed) {
+        if (this.cacheKeyGenerator instanceof AttributeBasedCacheKeyGenerator) {
+            return ((AttributeBasedCacheKeyGenerator)this.cacheKeyGenerator).generateKey(CachableMethod.PEOPLE_MULTIVALUED_MAP, seed);
+        }
+        
         final MethodInvocation methodInvocation = new PersonAttributeDaoMethodInvocation(seed);
-        final Serializable cacheKey = this.cacheKeyGenerator.generateKey(methodInvocation);
-        this.userInfoCache.remove(cacheKey);
+        return this.cacheKeyGenerator.generateKey(methodInvocation);
     }
 
     /* (non-Javadoc)
@@ -444,6 +1549,54 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
         }
     }
     
+    /**
+     * Cached query results along with the time they were loaded, used in refresh-ahead mode
+     */
+    protected static final class TimestampedResults extends AbstractSet<IPersonAttributes> implements Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        private final Set<IPersonAttributes> results;
+        private final long loadTime;
+        
+        public TimestampedResults(Set<IPersonAttributes> results, long loadTime) {
+            this.results = results;
+            this.loadTime = loadTime;
+        }
+
+        public Set<IPersonAttributes> getResults() {
+            return this.results;
+        }
+
+        public long getLoadTime() {
+            return this.loadTime;
+        }
+
+        @Override
+        public Iterator<IPersonAttributes> iterator() {
+            return Collections.unmodifiableSet(this.results).iterator();
+        }
+
+        @Override
+        public int size() {
+            return this.results.size();
+        }
+    }
+    
+    private static final class RefreshThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicLong threadCount = new AtomicLong();
+        
+        public RefreshThreadFactory(String beanName) {
+            this.namePrefix = (beanName != null ? beanName : CachingPersonAttributeDaoImpl.class.getSimpleName()) + "-refresh-";
+        }
+        
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, this.namePrefix + this.threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+    
     private static final class SingletonPersonImpl extends BasePersonImpl {
         private static final long serialVersionUID = 1L;
 
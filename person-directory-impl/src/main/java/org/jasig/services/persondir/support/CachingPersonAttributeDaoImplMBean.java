@@ -0,0 +1,106 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+/**
+ * JMX management interface for the statistics of a {@link CachingPersonAttributeDaoImpl}.
+ * 
+ * @version $Revision$
+ */
+public interface CachingPersonAttributeDaoImplMBean {
+    /**
+     * @return The name of the bean the statistics are for.
+     */
+    public String getBeanName();
+    
+    /**
+     * @return The number of queries, the sum of hits, misses and coalesced waits.
+     */
+    public long getQueries();
+    
+    /**
+     * @return The number of queries answered from the cache.
+     */
+    public long getHits();
+    
+    /**
+     * @return The number of hits on a cached null result, included in the hits.
+     */
+    public long getNullResultHits();
+    
+    /**
+     * @return The number of queries that were not in the cache and were passed to the wrapped DAO.
+     */
+    public long getMisses();
+    
+    /**
+     * @return The number of queries that waited on a concurrent query for the same key instead of calling the wrapped DAO.
+     */
+    public long getCoalescedWaits();
+    
+    /**
+     * @return The number of calls to the wrapped DAO, including background refreshes.
+     */
+    public long getLoads();
+    
+    /**
+     * @return The total time spent in the wrapped DAO in milliseconds.
+     */
+    public long getTotalLoadTime();
+    
+    /**
+     * @return The average time of a call to the wrapped DAO in milliseconds.
+     */
+    public double getAverageLoadTime();
+    
+    /**
+     * @return The number of entries removed from the cache, by removeUserAttributes or by the cache itself when it
+     * can report evictions.
+     */
+    public long getEvictions();
+    
+    /**
+     * @return The number of background refreshes run.
+     */
+    public long getRefreshes();
+    
+    /**
+     * @return The number of background refreshes that threw an exception.
+     */
+    public long getRefreshFailures();
+    
+    /**
+     * @return The number of queries answered with results older than refreshAfterWrite.
+     */
+    public long getStaleHits();
+    
+    /**
+     * Removes every cached result that contains the named person, or only the result cached for the uid if
+     * person names are not indexed.
+     * 
+     * @return The number of entries removed from the cache
+     */
+    public int invalidatePerson(String uid);
+    
+    /**
+     * Sets all of the statistics back to zero.
+     */
+    public void resetStatistics();
+}
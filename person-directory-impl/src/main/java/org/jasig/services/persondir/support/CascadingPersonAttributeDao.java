@@ -19,6 +19,7 @@
 
 package org.jasig.services.persondir.support;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -27,6 +28,7 @@ import java.util.Set;
 
 import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.support.merger.MergeAccumulator;
 import org.jasig.services.persondir.support.merger.ReplacingAttributeAdder;
 
 
@@ -53,6 +55,10 @@ import org.jasig.services.persondir.support.merger.ReplacingAttributeAdder;
  * It is <u>highly</u> recomended that the first DAO on the list for this class is
  * the {@link org.jasig.services.persondir.support.EchoPersonAttributeDaoImpl}
  * to ensure the seed gets placed into the general result map.
+ * <br>
+ * When the previous DAOs found more than one person a child DAO that implements {@link IBatchingPersonAttributeDao}
+ * and has a maxBatchSize greater than 1 is passed the queries for the people in batches instead of being queried
+ * once per person.
  * 
  * @author Eric Dalquist
  * @version $Revision$ $Date$
@@ -65,6 +71,26 @@ public class CascadingPersonAttributeDao extends AbstractAggregatingDefaultQuery
     
     
 
+    /**
+     * The username attribute and the attributes of all people found so far, the seed for the first query.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getChildQueryAttributeNames(java.util.Map, boolean, java.util.Set)
+     */
+    @Override
+    protected Set<String> getChildQueryAttributeNames(Map<String, List<Object>> seed, boolean isFirstQuery, Set<IPersonAttributes> resultPeople) {
+        if (isFirstQuery || resultPeople == null || resultPeople.size() == 0) {
+            return seed.keySet();
+        }
+        
+        final Set<String> queryAttributeNames = new LinkedHashSet<String>();
+        queryAttributeNames.add(this.getUsernameAttributeProvider().getUsernameAttribute());
+        for (final IPersonAttributes person : resultPeople) {
+            queryAttributeNames.addAll(person.getAttributes().keySet());
+        }
+        
+        return queryAttributeNames;
+    }
+
     /**
      * If this is the first call or there are no results in the resultPeople Set the seed map is used. If not the
      * attributes of the first user in the resultPeople Set are used.
@@ -77,7 +103,8 @@ public class CascadingPersonAttributeDao extends AbstractAggregatingDefaultQuery
             return currentlyConsidering.getPeopleWithMultivaluedAttributes(seed);
         }
         
-        Set<IPersonAttributes> mergedPeopleResults = null;
+        //Build the query for each person found so far
+        final List<Map<String, List<Object>>> personQueries = new ArrayList<Map<String, List<Object>>>(resultPeople.size());
         for (final IPersonAttributes person : resultPeople) {
             final Map<String, List<Object>> queryAttributes = new LinkedHashMap<String, List<Object>>();
             
@@ -92,19 +119,31 @@ public class CascadingPersonAttributeDao extends AbstractAggregatingDefaultQuery
             final Map<String, List<Object>> personAttributes = person.getAttributes();
             queryAttributes.putAll(personAttributes);
             
-            final Set<IPersonAttributes> newResults = currentlyConsidering.getPeopleWithMultivaluedAttributes(queryAttributes);
-            if (newResults != null) {
-                if (mergedPeopleResults == null) {
-                    //If this is the first valid result set just use it.
-                    mergedPeopleResults = new LinkedHashSet<IPersonAttributes>(newResults);
-                }
-                else {
-                    //Merge the Sets of IPersons
-                    mergedPeopleResults = this.attrMerger.mergeResults(mergedPeopleResults, newResults);
-                }
+            personQueries.add(queryAttributes);
+        }
+        
+        //Children that can run queries in batches get the queries for all of the people in as few calls as possible
+        int maxBatchSize = 1;
+        if (personQueries.size() > 1 && currentlyConsidering instanceof IBatchingPersonAttributeDao) {
+            maxBatchSize = ((IBatchingPersonAttributeDao)currentlyConsidering).getMaxBatchSize();
+        }
+        
+        //Results are merged in place and only built into people once all queries are done
+        final MergeAccumulator mergedPeopleResults = new MergeAccumulator(this.attrMerger);
+        for (int batchStart = 0; batchStart < personQueries.size(); batchStart += Math.max(1, maxBatchSize)) {
+            final Set<IPersonAttributes> newResults;
+            if (maxBatchSize > 1) {
+                final int batchEnd = Math.min(personQueries.size(), batchStart + maxBatchSize);
+                final List<Map<String, List<Object>>> batchQueries = personQueries.subList(batchStart, batchEnd);
+                newResults = ((IBatchingPersonAttributeDao)currentlyConsidering).getPeopleForQueries(batchQueries);
             }
+            else {
+                newResults = currentlyConsidering.getPeopleWithMultivaluedAttributes(personQueries.get(batchStart));
+            }
+            
+            mergedPeopleResults.merge(newResults);
         }
         
-        return mergedPeopleResults;
+        return mergedPeopleResults.toPeople();
     }
 }
\ No newline at end of file
@@ -22,8 +22,7 @@ package org.jasig.services.persondir.support;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.collections.map.CaseInsensitiveMap;
-import org.apache.commons.collections.map.ListOrderedMap;
+import org.jasig.services.persondir.util.LinkedCaseInsensitiveMap;
 
 /**
  * Custom IPersonAttributes that uses a case insensitive Map to hide attribute name case
@@ -38,9 +37,8 @@ public class CaseInsensitiveNamedPersonImpl extends NamedPersonImpl {
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.support.BasePersonImpl#createImmutableAttributeMap(int)
      */
-    @SuppressWarnings("unchecked")
     @Override
     protected Map<String, List<Object>> createImmutableAttributeMap(int size) {
-        return ListOrderedMap.decorate(new CaseInsensitiveMap(size > 0 ? size : 1));
+        return new LinkedCaseInsensitiveMap<List<Object>>(size);
     }
 }
\ No newline at end of file
@@ -0,0 +1,289 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.util.LinkedList;
+
+import org.apache.commons.lang.Validate;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Tracks failures of calls to a resource and stops calls to it while it is failing. The breaker starts
+ * {@link State#CLOSED}, allowing all calls. When <code>failureThreshold</code> calls fail, or take longer than
+ * <code>slowCallTime</code>, within <code>window</code> milliseconds the breaker goes {@link State#OPEN} and no calls
+ * are allowed. After <code>openTime</code> milliseconds the breaker goes {@link State#HALF_OPEN} and allows one
+ * probe call every <code>openTime</code> milliseconds. A successful probe closes the breaker, a failed one opens it
+ * again.
+ * <br/>
+ * Used by {@link AbstractAggregatingDefaultQueryPersonAttributeDao} to skip child DAOs that are failing.
+ *
+ * @version $Revision$
+ */
+public class CircuitBreaker {
+    /**
+     * States of the breaker.
+     */
+    public enum State {
+        /**
+         * Calls are allowed, failures are being counted.
+         */
+        CLOSED,
+        /**
+         * Calls are not allowed.
+         */
+        OPEN,
+        /**
+         * Periodic probe calls are allowed to test if the resource has recovered.
+         */
+        HALF_OPEN;
+    }
+
+    protected final Log logger = LogFactory.getLog(this.getClass());
+
+    private final String name;
+    private final int failureThreshold;
+    private final long window;
+    private final long openTime;
+    private final long slowCallTime;
+
+    /*
+     * Mutable state, guarded by this
+     */
+    private final LinkedList<Long> failureTimes = new LinkedList<Long>();
+    private State state = State.CLOSED;
+    private long stateChangeTime = 0;
+    private long lastProbeTime = 0;
+
+    /*
+     * Statistics, guarded by this
+     */
+    private long successes = 0;
+    private long failures = 0;
+    private long slowCalls = 0;
+    private long rejectedCalls = 0;
+    private long timesOpened = 0;
+    private long timesHalfOpened = 0;
+    private long timesClosed = 0;
+
+    /**
+     * @param name Name of the resource the breaker is for, used for logging
+     * @param failureThreshold Failures within the window that open the breaker
+     * @param window Milliseconds failures are counted for
+     * @param openTime Milliseconds the breaker stays open before allowing a probe call
+     * @param slowCallTime Calls taking at least this many milliseconds count as failures, 0 or less to disable
+     */
+    public CircuitBreaker(String name, int failureThreshold, long window, long openTime, long slowCallTime) {
+        Validate.isTrue(failureThreshold > 0, "failureThreshold must be greater than 0");
+        Validate.isTrue(window > 0, "window must be greater than 0");
+        Validate.isTrue(openTime > 0, "openTime must be greater than 0");
+
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.window = window;
+        this.openTime = openTime;
+        this.slowCallTime = slowCallTime;
+    }
+
+    /**
+     * Checks if a call may be made. While open calls are rejected, while half-open one probe call is allowed per
+     * <code>openTime</code>.
+     *
+     * @return true if the call may be made
+     */
+    public synchronized boolean allowRequest() {
+        final long now = this.currentTimeMillis();
+
+        if (this.state == State.OPEN && now - this.stateChangeTime >= this.openTime) {
+            this.transitionTo(State.HALF_OPEN, now);
+        }
+
+        switch (this.state) {
+            case CLOSED: {
+                return true;
+            }
+
+            case HALF_OPEN: {
+                if (this.lastProbeTime < this.stateChangeTime || now - this.lastProbeTime >= this.openTime) {
+                    this.lastProbeTime = now;
+                    return true;
+                }
+            }
+            break;
+        }
+
+        this.rejectedCalls++;
+        return false;
+    }
+
+    /**
+     * Records a call that returned normally. A call slower than <code>slowCallTime</code> is recorded as a failure.
+     *
+     * @param duration Milliseconds the call took
+     */
+    public synchronized void recordSuccess(long duration) {
+        if (this.slowCallTime > 0 && duration >= this.slowCallTime) {
+            this.slowCalls++;
+            this.recordFailure();
+            return;
+        }
+
+        this.successes++;
+
+        if (this.state == State.HALF_OPEN) {
+            this.transitionTo(State.CLOSED, this.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Records a call that failed or timed out.
+     */
+    public synchronized void recordFailure() {
+        final long now = this.currentTimeMillis();
+        this.failures++;
+
+        switch (this.state) {
+            case HALF_OPEN: {
+                this.transitionTo(State.OPEN, now);
+            }
+            break;
+
+            case CLOSED: {
+                this.failureTimes.addLast(now);
+                while (now - this.failureTimes.getFirst() > this.window) {
+                    this.failureTimes.removeFirst();
+                }
+
+                if (this.failureTimes.size() >= this.failureThreshold) {
+                    this.transitionTo(State.OPEN, now);
+                }
+            }
+            break;
+        }
+    }
+
+    private void transitionTo(State newState, long now) {
+        if (newState == State.OPEN) {
+            this.logger.warn("Circuit breaker for '" + this.name + "' is open, calls will be skipped for " + this.openTime + "ms");
+            this.timesOpened++;
+        }
+        else if (newState == State.HALF_OPEN) {
+            if (this.logger.isInfoEnabled()) {
+                this.logger.info("Circuit breaker for '" + this.name + "' is half-open, allowing a probe call");
+            }
+            this.timesHalfOpened++;
+        }
+        else {
+            if (this.logger.isInfoEnabled()) {
+                this.logger.info("Circuit breaker for '" + this.name + "' is closed");
+            }
+            this.timesClosed++;
+        }
+
+        this.failureTimes.clear();
+        this.state = newState;
+        this.stateChangeTime = now;
+    }
+
+    /**
+     * @return The current time in milliseconds. Protected to allow for testing.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @return The name of the resource the breaker is for
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return The current state, an open breaker whose openTime has passed is reported as open until the next call
+     */
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    /**
+     * @return The time of the last state change in milliseconds
+     */
+    public synchronized long getStateChangeTime() {
+        return this.stateChangeTime;
+    }
+
+    /**
+     * @return The number of calls that returned normally and were not slow
+     */
+    public synchronized long getSuccesses() {
+        return this.successes;
+    }
+
+    /**
+     * @return The number of calls that failed, including slow calls
+     */
+    public synchronized long getFailures() {
+        return this.failures;
+    }
+
+    /**
+     * @return The number of calls slower than slowCallTime
+     */
+    public synchronized long getSlowCalls() {
+        return this.slowCalls;
+    }
+
+    /**
+     * @return The number of calls rejected while the breaker was open
+     */
+    public synchronized long getRejectedCalls() {
+        return this.rejectedCalls;
+    }
+
+    /**
+     * @return The number of times the breaker opened
+     */
+    public synchronized long getTimesOpened() {
+        return this.timesOpened;
+    }
+
+    /**
+     * @return The number of times the breaker went half-open
+     */
+    public synchronized long getTimesHalfOpened() {
+        return this.timesHalfOpened;
+    }
+
+    /**
+     * @return The number of times the breaker closed after being half-open
+     */
+    public synchronized long getTimesClosed() {
+        return this.timesClosed;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker[name=" + this.name + ", state=" + this.state + ", failures=" + this.failures + ", rejectedCalls=" + this.rejectedCalls + "]";
+    }
+}
@@ -0,0 +1,309 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import org.apache.commons.lang.Validate;
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+import org.jasig.services.persondir.IPersonAttributes;
+
+/**
+ * Compact {@link IPersonAttributes} meant for long lived people such as cached query results. The attribute names
+ * are held in a shared {@link AttributeSchema} and the values in a flat array indexed by schema slot. An attribute
+ * with exactly one value stores the value itself, other attributes store a read-only array backed {@link List}.
+ * <br/>
+ * {@link #getAttributes()} returns a read-only view of the array in schema order, it is a full {@link Map} but
+ * is created on each call. Equality and hash code only use the name and match {@link BasePersonImpl}.
+ * 
+ * @version $Revision$
+ */
+public class CompactPersonImpl implements IPersonAttributes {
+    private static final long serialVersionUID = 1L;
+    
+    private final String name;
+    private final AttributeSchema schema;
+    private final Object[] values;
+    
+    /**
+     * Creates a compact copy of the person. Attributes of a {@link CaseInsensitiveNamedPersonImpl} or
+     * {@link CaseInsensitiveAttributeNamedPersonImpl} keep being looked up ignoring case.
+     * 
+     * @param person The person to copy, returned as is if it is already a CompactPersonImpl
+     * @return The compact person
+     */
+    public static IPersonAttributes compact(IPersonAttributes person) {
+        Validate.notNull(person, "person can not be null");
+        
+        if (person instanceof CompactPersonImpl) {
+            return person;
+        }
+        
+        final boolean caseInsensitive = person instanceof CaseInsensitiveNamedPersonImpl || person instanceof CaseInsensitiveAttributeNamedPersonImpl;
+        return new CompactPersonImpl(person.getName(), person.getAttributes(), caseInsensitive);
+    }
+    
+    /**
+     * @param name The name of the person
+     * @param attributes The attributes of the person, copied
+     */
+    public CompactPersonImpl(String name, Map<String, List<Object>> attributes) {
+        this(name, attributes, false);
+    }
+    
+    /**
+     * @param name The name of the person
+     * @param attributes The attributes of the person, copied
+     * @param caseInsensitive If attribute names are looked up ignoring case
+     */
+    public CompactPersonImpl(String name, Map<String, List<Object>> attributes, boolean caseInsensitive) {
+        Validate.notNull(attributes, "attributes can not be null");
+        
+        this.name = name;
+        this.schema = AttributeSchema.getInstance(attributes.keySet(), caseInsensitive);
+        this.values = new Object[this.schema.size()];
+        
+        int slot = 0;
+        for (final List<Object> attributeValues : attributes.values()) {
+            this.values[slot++] = toSlotValue(attributeValues);
+        }
+    }
+    
+    private static Object toSlotValue(List<Object> attributeValues) {
+        if (attributeValues == null) {
+            return null;
+        }
+        
+        //A null slot is a null List, a single null or ValueList value is kept in a ValueList of its own
+        if (attributeValues.size() == 1) {
+            final Object value = attributeValues.get(0);
+            if (value != null && !(value instanceof ValueList)) {
+                return value;
+            }
+        }
+        
+        return new ValueList(attributeValues.toArray());
+    }
+    
+    @SuppressWarnings("unchecked")
+    private List<Object> toValues(Object slotValue) {
+        if (slotValue instanceof ValueList) {
+            return (List<Object>)slotValue;
+        }
+        
+        return Collections.singletonList(slotValue);
+    }
+    
+    /**
+     * @return The schema of the attributes of this person
+     */
+    public AttributeSchema getSchema() {
+        return this.schema;
+    }
+
+    /* (non-Javadoc)
+     * @see java.security.Principal#getName()
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributes#getAttributeValue(java.lang.String)
+     */
+    public Object getAttributeValue(String name) {
+        final int slot = this.schema.getSlot(name);
+        if (slot < 0) {
+            return null;
+        }
+        
+        final Object slotValue = this.values[slot];
+        if (slotValue instanceof ValueList) {
+            final ValueList valueList = (ValueList)slotValue;
+            if (valueList.isEmpty()) {
+                return null;
+            }
+            return valueList.get(0);
+        }
+        
+        return slotValue;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributes#getAttributeValues(java.lang.String)
+     */
+    public List<Object> getAttributeValues(String name) {
+        final int slot = this.schema.getSlot(name);
+        if (slot < 0) {
+            return null;
+        }
+        
+        return this.getSlotValues(slot);
+    }
+    
+    private List<Object> getSlotValues(int slot) {
+        final Object slotValue = this.values[slot];
+        if (slotValue == null) {
+            return null;
+        }
+        
+        return this.toValues(slotValue);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributes#getAttributes()
+     */
+    public Map<String, List<Object>> getAttributes() {
+        return new AttributesView();
+    }
+
+    /**
+     * @see java.lang.Object#equals(Object)
+     */
+    @Override
+    public boolean equals(Object object) {
+        if (object == this) {
+            return true;
+        }
+        if (!(object instanceof IPersonAttributes)) {
+            return false;
+        }
+        IPersonAttributes rhs = (IPersonAttributes) object;
+        return new EqualsBuilder()
+            .append(this.getName(), rhs.getName())
+            .isEquals();
+    }
+
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(1574945487, 827742191)
+            .append(this.getName())
+            .toHashCode();
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+            .append("name", this.getName())
+            .append("attributes", this.getAttributes())
+            .toString();
+    }
+    
+    /**
+     * Read-only List of the values of a multi-valued attribute.
+     */
+    private static final class ValueList extends AbstractList<Object> implements RandomAccess, Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        private final Object[] values;
+        
+        public ValueList(Object[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public Object get(int index) {
+            return this.values[index];
+        }
+
+        @Override
+        public int size() {
+            return this.values.length;
+        }
+    }
+    
+    /**
+     * Read-only Map view of the attributes.
+     */
+    private final class AttributesView extends AbstractMap<String, List<Object>> {
+        @Override
+        public int size() {
+            return values.length;
+        }
+        
+        @Override
+        public boolean containsKey(Object key) {
+            return schema.getSlot(key) >= 0;
+        }
+        
+        @Override
+        public List<Object> get(Object key) {
+            final int slot = schema.getSlot(key);
+            if (slot < 0) {
+                return null;
+            }
+            
+            return getSlotValues(slot);
+        }
+
+        @Override
+        public Set<Map.Entry<String, List<Object>>> entrySet() {
+            return new AbstractSet<Map.Entry<String, List<Object>>>() {
+                @Override
+                public int size() {
+                    return values.length;
+                }
+                
+                @Override
+                public Iterator<Map.Entry<String, List<Object>>> iterator() {
+                    return new Iterator<Map.Entry<String, List<Object>>>() {
+                        private int slot = 0;
+                        
+                        public boolean hasNext() {
+                            return this.slot < values.length;
+                        }
+
+                        public Map.Entry<String, List<Object>> next() {
+                            if (!this.hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            
+                            final int entrySlot = this.slot++;
+                            return new SimpleImmutableEntry<String, List<Object>>(schema.getName(entrySlot), getSlotValues(entrySlot));
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
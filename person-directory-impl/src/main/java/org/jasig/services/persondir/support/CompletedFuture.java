@@ -0,0 +1,103 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.services.persondir.support;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Future} whose result is already known, either a value or the exception thrown while computing it.
+ * Returned by the {@link org.jasig.services.persondir.IAsyncPersonAttributeDao} implementations when results are
+ * available without running a query.
+ *
+ * @version $Revision$
+ */
+public final class CompletedFuture<V> implements Future<V> {
+    private final V value;
+    private final Throwable exception;
+
+    /**
+     * Creates a future that returns the value.
+     */
+    public CompletedFuture(V value) {
+        this.value = value;
+        this.exception = null;
+    }
+
+    /**
+     * Creates a future that throws an {@link ExecutionException} wrapping the exception.
+     */
+    public CompletedFuture(Throwable exception) {
+        this.value = null;
+        this.exception = exception;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#cancel(boolean)
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#isCancelled()
+     */
+    public boolean isCancelled() {
+        return false;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#isDone()
+     */
+    public boolean isDone() {
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#get()
+     */
+    public V get() throws ExecutionException {
+        if (this.exception != null) {
+            throw new ExecutionException(this.exception);
+        }
+
+        return this.value;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+     */
+    public V get(long timeout, TimeUnit unit) throws ExecutionException {
+        return this.get();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        if (this.exception != null) {
+            return "CompletedFuture[exception=" + this.exception + "]";
+        }
+        return "CompletedFuture[value=" + this.value + "]";
+    }
+}
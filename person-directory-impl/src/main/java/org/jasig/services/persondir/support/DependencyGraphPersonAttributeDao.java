@@ -0,0 +1,179 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.merger.MergeAccumulator;
+import org.jasig.services.persondir.support.merger.MultivaluedAttributeMerger;
+
+/**
+ * A {@link IPersonAttributeDao} implementation that queries each child DAO as soon as the attributes it queries on
+ * are available. A child depends on every other child whose {@link IPersonAttributeDao#getPossibleUserAttributeNames()}
+ * includes one of its {@link IPersonAttributeDao#getAvailableQueryAttributes()} that is not in the seed. Children
+ * that depend on no other child are queried with the seed, the rest are queried once the children they depend on
+ * have returned, once per person found by those children, with the seed plus that person's attributes.
+ * <br/>
+ * For example an LDAP and an XML source that query on the username are run together and two JDBC sources that query
+ * on an <code>employeeId</code> returned by the LDAP source are run as soon as the LDAP source returns. If a
+ * <code>queryExecutor</code> is configured independent children are queried at the same time, otherwise one at a
+ * time in dependency order. The results of all children are merged in the configured order by the configured
+ * {@link org.jasig.services.persondir.support.merger.IAttributeMerger}, the default is {@link MultivaluedAttributeMerger}.
+ * <br/>
+ * Children that depend on each other are queried in the configured order with the results available at the time.
+ * With <code>stopOnSuccess</code> the results are those of the first child in the configured order that does not
+ * fail, even if a later child returns first.
+ * 
+ * @version $Revision$
+ */
+public class DependencyGraphPersonAttributeDao extends AbstractAggregatingDefaultQueryPersonAttributeDao {
+    public DependencyGraphPersonAttributeDao() {
+        this.attrMerger = new MultivaluedAttributeMerger();
+    }
+    
+    
+    /**
+     * Builds the dependencies from the query and result attributes of the children. A child whose attributes can't
+     * be determined because it threw an exception is treated as having no dependencies and producing no attributes.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getChildDependencies(java.util.Map)
+     */
+    @Override
+    protected Map<IPersonAttributeDao, Set<IPersonAttributeDao>> getChildDependencies(Map<String, List<Object>> query) {
+        final Map<IPersonAttributeDao, Set<IPersonAttributeDao>> childDependencies = new IdentityHashMap<IPersonAttributeDao, Set<IPersonAttributeDao>>();
+        
+        //Collect the attributes each child produces
+        final Map<IPersonAttributeDao, Set<String>> childResultAttributes = new IdentityHashMap<IPersonAttributeDao, Set<String>>();
+        for (final IPersonAttributeDao childDao : this.personAttributeDaos) {
+            Set<String> resultAttributes = null;
+            try {
+                resultAttributes = childDao.getPossibleUserAttributeNames();
+            }
+            catch (final RuntimeException rte) {
+                this.logger.debug("Failed to get possible attribute names from '" + childDao + "', it will not be a dependency of other child DAOs", rte);
+            }
+            
+            childResultAttributes.put(childDao, resultAttributes != null ? resultAttributes : Collections.<String>emptySet());
+        }
+        
+        for (final IPersonAttributeDao childDao : this.personAttributeDaos) {
+            Set<String> queryAttributes = null;
+            try {
+                queryAttributes = childDao.getAvailableQueryAttributes();
+            }
+            catch (final RuntimeException rte) {
+                this.logger.debug("Failed to get query attribute names from '" + childDao + "', it will not depend on other child DAOs", rte);
+            }
+            
+            if (queryAttributes == null) {
+                continue;
+            }
+            
+            //Attributes in the seed are available from the start
+            final Set<IPersonAttributeDao> dependencies = Collections.newSetFromMap(new IdentityHashMap<IPersonAttributeDao, Boolean>());
+            for (final String queryAttribute : queryAttributes) {
+                if (query.containsKey(queryAttribute)) {
+                    continue;
+                }
+                
+                for (final Map.Entry<IPersonAttributeDao, Set<String>> resultAttributesEntry : childResultAttributes.entrySet()) {
+                    final IPersonAttributeDao producer = resultAttributesEntry.getKey();
+                    if (producer != childDao && resultAttributesEntry.getValue().contains(queryAttribute)) {
+                        dependencies.add(producer);
+                    }
+                }
+            }
+            
+            if (!dependencies.isEmpty()) {
+                childDependencies.put(childDao, dependencies);
+            }
+        }
+        
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Child DAO dependencies for query='" + query + "' are " + childDependencies);
+        }
+        
+        return childDependencies;
+    }
+
+    /**
+     * The seed attributes plus, for children with dependencies, the username attribute and the attributes of the
+     * people found by the dependencies.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getChildQueryAttributeNames(java.util.Map, boolean, java.util.Set)
+     */
+    @Override
+    protected Set<String> getChildQueryAttributeNames(Map<String, List<Object>> seed, boolean isFirstQuery, Set<IPersonAttributes> resultPeople) {
+        if (isFirstQuery || resultPeople == null || resultPeople.size() == 0) {
+            return seed.keySet();
+        }
+        
+        final Set<String> queryAttributeNames = new LinkedHashSet<String>(seed.keySet());
+        queryAttributeNames.add(this.getUsernameAttributeProvider().getUsernameAttribute());
+        for (final IPersonAttributes person : resultPeople) {
+            queryAttributeNames.addAll(person.getAttributes().keySet());
+        }
+        
+        return queryAttributeNames;
+    }
+
+    /**
+     * Queries children without dependencies with the seed. Children with dependencies are queried once for each
+     * person found by their dependencies with the seed, the person's name and the person's attributes.
+     *  
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getAttributesFromDao(java.util.Map, boolean, org.jasig.services.persondir.IPersonAttributeDao, java.util.Set)
+     */
+    @Override
+    protected Set<IPersonAttributes> getAttributesFromDao(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople) {
+        if (isFirstQuery || resultPeople == null || resultPeople.size() == 0) {
+            return currentlyConsidering.getPeopleWithMultivaluedAttributes(seed);
+        }
+        
+        //Results are merged in place and only built into people once all queries are done
+        final MergeAccumulator mergedPeopleResults = new MergeAccumulator(this.attrMerger);
+        for (final IPersonAttributes person : resultPeople) {
+            final Map<String, List<Object>> queryAttributes = new LinkedHashMap<String, List<Object>>(seed);
+            
+            //Add the userName into the query map
+            final String userName = person.getName();
+            if (userName != null) {
+                final Map<String, List<Object>> userNameMap = this.toSeedMap(userName);
+                queryAttributes.putAll(userNameMap);
+            }
+            
+            //Add the rest of the attributes into the query map
+            final Map<String, List<Object>> personAttributes = person.getAttributes();
+            queryAttributes.putAll(personAttributes);
+            
+            final Set<IPersonAttributes> newResults = currentlyConsidering.getPeopleWithMultivaluedAttributes(queryAttributes);
+            mergedPeopleResults.merge(newResults);
+        }
+        
+        return mergedPeopleResults.toPeople();
+    }
+}
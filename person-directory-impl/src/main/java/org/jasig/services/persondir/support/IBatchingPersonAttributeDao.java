@@ -0,0 +1,51 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+
+/**
+ * An {@link IPersonAttributeDao} that can run several queries in one call, for example as a single SQL statement
+ * or LDAP search. Used by {@link CascadingPersonAttributeDao} to query for all of the people found by the previous
+ * DAOs at once instead of one query per person.
+ * 
+ * @version $Revision$
+ */
+public interface IBatchingPersonAttributeDao extends IPersonAttributeDao {
+    /**
+     * @return The most queries {@link #getPeopleForQueries(List)} should be passed in one call, 1 or less if the DAO
+     * is not currently configured to run queries in batches.
+     */
+    public int getMaxBatchSize();
+    
+    /**
+     * Runs all of the queries at once. People matched by more than one of the queries are returned once.
+     * 
+     * @param queries The queries to run, each follows the rules of {@link IPersonAttributeDao#getPeopleWithMultivaluedAttributes(Map)}.
+     * @return The people matching any of the queries, null if none of the queries could be run.
+     * @throws IllegalArgumentException If queries is null or contains null.
+     */
+    public Set<IPersonAttributes> getPeopleForQueries(List<Map<String, List<Object>>> queries);
+}
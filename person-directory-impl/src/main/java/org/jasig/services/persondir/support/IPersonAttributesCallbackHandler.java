@@ -0,0 +1,37 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.services.persondir.support;
+
+import org.jasig.services.persondir.IPersonAttributes;
+
+/**
+ * Receives the people found by {@link IScanningPersonAttributeDao#scanPeople(IPersonAttributesCallbackHandler)}
+ * one at a time.
+ * 
+ * @version $Revision$
+ */
+public interface IPersonAttributesCallbackHandler {
+    /**
+     * Called once for each person found by the scan, in the order the source returns them. The person is not
+     * referenced by the DAO after this call returns.
+     * 
+     * @param person A person from the scan, will not be null.
+     */
+    public void processPerson(IPersonAttributes person);
+}
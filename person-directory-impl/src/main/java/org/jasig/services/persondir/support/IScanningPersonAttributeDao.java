@@ -0,0 +1,39 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.services.persondir.support;
+
+import org.jasig.services.persondir.IPersonAttributeDao;
+
+/**
+ * An {@link IPersonAttributeDao} that can walk every person in its source, for example to warm a cache or build a
+ * report. People are passed to a callback as they are read so the memory used does not grow with the size of the
+ * source, unlike a query that returns every person in one {@link java.util.Set}.
+ * 
+ * @version $Revision$
+ */
+public interface IScanningPersonAttributeDao extends IPersonAttributeDao {
+    /**
+     * Reads every person from the source, passing each to the callback handler as it is read. The attributes of
+     * each person are mapped the same way as the results of {@link IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)}.
+     * 
+     * @param callbackHandler The handler to pass each person to.
+     * @throws IllegalArgumentException If callbackHandler is null.
+     */
+    public void scanPeople(IPersonAttributesCallbackHandler callbackHandler);
+}
@@ -32,6 +32,9 @@ import org.jasig.services.persondir.support.merger.MultivaluedAttributeMerger;
  * IPersonAttributeDaos queries each with the same data and merges their
  * reported attributes in a configurable way. The default merger is
  * {@link MultivaluedAttributeMerger}.
+ * <br/>
+ * Each child is queried with the original seed so if a <code>queryExecutor</code> is configured all of the
+ * children are queried in parallel.
  * 
  * @author andrew.petro@yale.edu
  * @author Eric Dalquist
@@ -53,4 +56,14 @@ public class MergingPersonAttributeDaoImpl extends AbstractAggregatingDefaultQue
     protected Set<IPersonAttributes> getAttributesFromDao(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople) {
         return currentlyConsidering.getPeopleWithMultivaluedAttributes(seed);
     }
+    
+    /**
+     * Children are always queried with the original seed so they can be queried in parallel.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#isParallelQuerySupported()
+     */
+    @Override
+    protected boolean isParallelQuerySupported() {
+        return true;
+    }
 }
\ No newline at end of file
@@ -24,10 +24,14 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang.Validate;
+import org.jasig.services.persondir.IAsyncPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
 
@@ -85,13 +89,28 @@ import org.jasig.services.persondir.IPersonAttributes;
  *         <td valign="top">No</td>
  *         <td valign="top">false</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">asyncExecutor</td>
+ *         <td>
+ *             The {@link ExecutorService} asynchronous queries are run on when the criteria is met and the
+ *             <code>targetPersonAttributeDao</code> does not implement {@link IAsyncPersonAttributeDao}.
+ *             If not set those queries block the calling thread and a warning is logged for each of them.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
  * </table>
+ * <br>
+ * The criteria is tested on the calling thread by the {@link IAsyncPersonAttributeDao} methods, a query that does
+ * not meet it returns an already completed {@link Future}. When it is met the call is passed to the
+ * <code>targetPersonAttributeDao</code>'s own asynchronous method if it has one.
  */
-public final class RegexGatewayPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao {
+public final class RegexGatewayPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao implements IAsyncPersonAttributeDao {
     private boolean matchAllPatterns = false;
     private boolean matchAllValues = false;
     private Map<String, Pattern> patterns = null;
     private IPersonAttributeDao targetPersonAttributeDao = null;
+    private ExecutorService asyncExecutor = null;
     
     /**
      * Default constructor, {@link #setPatterns(Map)} and {@link #setTargetPersonAttributeDao(IPersonAttributeDao)}
@@ -204,12 +223,88 @@ public final class RegexGatewayPersonAttributeDao extends AbstractDefaultAttribu
         this.matchAllValues = matchAllValues;
     }
 
+    /**
+     * @return the asyncExecutor
+     */
+    public ExecutorService getAsyncExecutor() {
+        return this.asyncExecutor;
+    }
+    /**
+     * @param asyncExecutor The {@link ExecutorService} to run asynchronous queries on when the target DAO can't
+     */
+    public void setAsyncExecutor(ExecutorService asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
      */
     public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> seed) {
         Validate.notNull(seed, "Argument 'seed' cannot be null.");
 
+        //Execute the wrapped DAO if the match criteria was met
+        if (this.isMatched(seed)) {
+            if (this.logger.isInfoEnabled()) {
+                this.logger.info("Matching criteria '" + this.patterns + "' was met for query '" + seed + "', delegating call to the targetPersonAttributeDao='" + this.targetPersonAttributeDao + "'");
+            }
+            
+            return this.targetPersonAttributeDao.getPeopleWithMultivaluedAttributes(seed);
+        }
+
+        if (this.logger.isInfoEnabled()) {
+            this.logger.info("Matching criteria '" + this.patterns + "' was not met for query '" + seed + "', return null");
+        }
+        
+        return null;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPersonAsync(java.lang.String)
+     */
+    public Future<IPersonAttributes> getPersonAsync(String uid) {
+        Validate.notNull(uid, "uid may not be null.");
+        
+        final Map<String, List<Object>> seed = this.toSeedMap(uid);
+        final Future<Set<IPersonAttributes>> peopleFuture = this.getPeopleWithMultivaluedAttributesAsync(seed);
+        return this.toPersonFuture(uid, peopleFuture);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPeopleWithMultivaluedAttributesAsync(java.util.Map)
+     */
+    public Future<Set<IPersonAttributes>> getPeopleWithMultivaluedAttributesAsync(final Map<String, List<Object>> seed) {
+        Validate.notNull(seed, "Argument 'seed' cannot be null.");
+        
+        if (!this.isMatched(seed)) {
+            if (this.logger.isInfoEnabled()) {
+                this.logger.info("Matching criteria '" + this.patterns + "' was not met for query '" + seed + "', return null");
+            }
+            
+            return new CompletedFuture<Set<IPersonAttributes>>((Set<IPersonAttributes>)null);
+        }
+        
+        if (this.logger.isInfoEnabled()) {
+            this.logger.info("Matching criteria '" + this.patterns + "' was met for query '" + seed + "', delegating async call to the targetPersonAttributeDao='" + this.targetPersonAttributeDao + "'");
+        }
+        
+        if (this.targetPersonAttributeDao instanceof IAsyncPersonAttributeDao) {
+            return ((IAsyncPersonAttributeDao)this.targetPersonAttributeDao).getPeopleWithMultivaluedAttributesAsync(seed);
+        }
+        
+        final IPersonAttributeDao targetDao = this.targetPersonAttributeDao;
+        return AsyncPersonAttributeDaoAdapter.submit(this.asyncExecutor, new Callable<Set<IPersonAttributes>>() {
+            public Set<IPersonAttributes> call() throws Exception {
+                return targetDao.getPeopleWithMultivaluedAttributes(seed);
+            }
+        }, this.logger);
+    }
+
+    /**
+     * Tests the seed against the configured patterns.
+     * 
+     * @return true if the matching criteria is met and the targetPersonAttributeDao should be queried
+     */
+    private boolean isMatched(Map<String, List<Object>> seed) {
         if (patterns == null || patterns.size() < 1) {
             throw new IllegalStateException("patterns Map may not be null and must contain at least 1 mapping.");
         }
@@ -233,7 +328,7 @@ public final class RegexGatewayPersonAttributeDao extends AbstractDefaultAttribu
                         this.logger.info("All patterns must match and attribute='" + attributeName + "' does not exist in the seed, returning null.");
                     }
 
-                    return null;
+                    return false;
                 }
 
                 //Don't need to match all, just go to the next attribute and see if it exists
@@ -321,20 +416,7 @@ public final class RegexGatewayPersonAttributeDao extends AbstractDefaultAttribu
             }
         }
         
-        //Execute the wrapped DAO if the match criteria was met
-        if (matchedPatterns) {
-            if (this.logger.isInfoEnabled()) {
-                this.logger.info("Matching criteria '" + this.patterns + "' was met for query '" + seed + "', delegating call to the targetPersonAttributeDao='" + this.targetPersonAttributeDao + "'");
-            }
-            
-            return this.targetPersonAttributeDao.getPeopleWithMultivaluedAttributes(seed);
-        }
-
-        if (this.logger.isInfoEnabled()) {
-            this.logger.info("Matching criteria '" + this.patterns + "' was not met for query '" + seed + "', return null");
-        }
-        
-        return null;
+        return matchedPatterns;
     }
 
     /*
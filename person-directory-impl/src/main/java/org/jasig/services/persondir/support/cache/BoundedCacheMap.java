@@ -0,0 +1,663 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * A bounded, concurrent {@link Map} intended for use as the
+ * {@link org.jasig.services.persondir.support.CachingPersonAttributeDaoImpl#setUserInfoCache(Map)} cache.
+ * <br>
+ * The table is split into lock-striped segments, each segment holds at most <code>maximumSize / concurrencyLevel</code>
+ * entries. Eviction follows the W-TinyLFU policy: new entries enter a small LRU window (1% of the segment), entries
+ * leaving the window are only admitted to the main segmented-LRU region if they have been requested more often than
+ * the entry they would replace, as estimated by a {@link FrequencySketch}. This keeps frequently used entries in the
+ * cache when it is flooded with one-time lookups.
+ * <br>
+ * Entries can also expire a fixed time after they were written and/or last read. Expired entries are removed when
+ * they are read and swept from the least recently used end of each region on writes.
+ * <br>
+ * Null keys and values are not supported. The {@link #entrySet()}, {@link #keySet()} and {@link #values()} views
+ * are read-only snapshots.
+ * <br>
+ * <br>
+ * Configuration:
+ * <table border="1">
+ *     <tr>
+ *         <th align="left">Property</th>
+ *         <th align="left">Description</th>
+ *         <th align="left">Required</th>
+ *         <th align="left">Default</th>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">maximumSize</td>
+ *         <td>
+ *             Constructor argument, the maximum number of entries the cache will hold.
+ *         </td>
+ *         <td valign="top">Yes</td>
+ *         <td valign="top"></td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">concurrencyLevel</td>
+ *         <td>
+ *             Constructor argument, the number of lock-striped segments. Rounded up to a power of two.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">16</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">expireAfterWrite</td>
+ *         <td>
+ *             Milliseconds after an entry is written that it expires. 0 or less disables write expiration.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">expireAfterAccess</td>
+ *         <td>
+ *             Milliseconds after an entry is last read or written that it expires. 0 or less disables access
+ *             expiration.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ * </table>
+ * 
+ * @version $Revision$
+ */
+public class BoundedCacheMap<K, V> extends AbstractMap<K, V> {
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final Segment<K, V>[] segments;
+    private final int segmentMask;
+    private final int maximumSize;
+    
+    private volatile long expireAfterWrite = 0;
+    private volatile long expireAfterAccess = 0;
+    
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong expirationCount = new AtomicLong();
+    
+    /**
+     * @param maximumSize The maximum number of entries to cache
+     */
+    public BoundedCacheMap(int maximumSize) {
+        this(maximumSize, DEFAULT_CONCURRENCY_LEVEL);
+    }
+    
+    /**
+     * @param maximumSize The maximum number of entries to cache
+     * @param concurrencyLevel The number of independently locked segments, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public BoundedCacheMap(int maximumSize, int concurrencyLevel) {
+        Validate.isTrue(maximumSize > 0, "maximumSize must be greater than 0");
+        Validate.isTrue(concurrencyLevel > 0, "concurrencyLevel must be greater than 0");
+        
+        //Never have more segments than entries, each segment must be able to hold at least one entry
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel && segmentCount * 2 <= maximumSize) {
+            segmentCount <<= 1;
+        }
+        
+        this.maximumSize = maximumSize;
+        this.segmentMask = segmentCount - 1;
+        this.segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+        
+        //Spread the maximumSize across the segments, the first segments get any remainder
+        final int segmentSize = maximumSize / segmentCount;
+        final int remainder = maximumSize % segmentCount;
+        for (int index = 0; index < segmentCount; index++) {
+            this.segments[index] = new Segment<K, V>(this, segmentSize + (index < remainder ? 1 : 0));
+        }
+    }
+    
+    /**
+     * @return The maximum number of entries this cache will hold
+     */
+    public int getMaximumSize() {
+        return this.maximumSize;
+    }
+    
+    /**
+     * @return the expireAfterWrite
+     */
+    public long getExpireAfterWrite() {
+        return this.expireAfterWrite;
+    }
+    /**
+     * Milliseconds after an entry is written that it expires. 0 or less disables write expiration.
+     * 
+     * @param expireAfterWrite the expireAfterWrite to set
+     */
+    public void setExpireAfterWrite(long expireAfterWrite) {
+        this.expireAfterWrite = expireAfterWrite;
+    }
+
+    /**
+     * @return the expireAfterAccess
+     */
+    public long getExpireAfterAccess() {
+        return this.expireAfterAccess;
+    }
+    /**
+     * Milliseconds after an entry is last read or written that it expires. 0 or less disables access expiration.
+     * 
+     * @param expireAfterAccess the expireAfterAccess to set
+     */
+    public void setExpireAfterAccess(long expireAfterAccess) {
+        this.expireAfterAccess = expireAfterAccess;
+    }
+    
+    /**
+     * @return Number of reads that found a live entry
+     */
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+    /**
+     * @return Number of reads that found no entry or an expired entry
+     */
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+    /**
+     * @return Number of entries removed to keep the cache within maximumSize
+     */
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+    /**
+     * @return Number of entries removed because they expired
+     */
+    public long getExpirationCount() {
+        return this.expirationCount.get();
+    }
+    
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#get(java.lang.Object)
+     */
+    @Override
+    public V get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        
+        final V value = this.segmentFor(key).get(key, this.currentTimeMillis(), true);
+        if (value != null) {
+            this.hitCount.incrementAndGet();
+        }
+        else {
+            this.missCount.incrementAndGet();
+        }
+        
+        return value;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#containsKey(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        if (key == null) {
+            return false;
+        }
+        
+        return this.segmentFor(key).get(key, this.currentTimeMillis(), false) != null;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public V put(K key, V value) {
+        Validate.notNull(key, "key can not be null");
+        Validate.notNull(value, "value can not be null");
+        
+        return this.segmentFor(key).put(key, value, this.currentTimeMillis());
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#remove(java.lang.Object)
+     */
+    @Override
+    public V remove(Object key) {
+        if (key == null) {
+            return null;
+        }
+        
+        return this.segmentFor(key).remove(key);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public void clear() {
+        for (final Segment<K, V> segment : this.segments) {
+            segment.clear();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public int size() {
+        long size = 0;
+        for (final Segment<K, V> segment : this.segments) {
+            size += segment.size();
+        }
+        
+        return (int)Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns a read-only snapshot of the live entries in the cache. Reading the snapshot does not count as an access
+     * of the entries.
+     * 
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        final long now = this.currentTimeMillis();
+        
+        final Map<K, V> snapshot = new LinkedHashMap<K, V>();
+        for (final Segment<K, V> segment : this.segments) {
+            segment.copyTo(snapshot, now);
+        }
+        
+        return Collections.unmodifiableMap(snapshot).entrySet();
+    }
+    
+    /**
+     * @return The current time in milliseconds, used for expiration. Protected to allow for testing.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+    
+    private Segment<K, V> segmentFor(Object key) {
+        final int hash = FrequencySketch.spread(key.hashCode());
+        return this.segments[(hash >>> 16) & this.segmentMask];
+    }
+    
+    private boolean isExpired(Node<K, V> node, long now) {
+        final long expireAfterWrite = this.expireAfterWrite;
+        if (expireAfterWrite > 0 && now - node.writeTime >= expireAfterWrite) {
+            return true;
+        }
+        
+        final long expireAfterAccess = this.expireAfterAccess;
+        if (expireAfterAccess > 0 && now - node.accessTime >= expireAfterAccess) {
+            return true;
+        }
+        
+        return false;
+    }
+    
+    
+    /**
+     * The region of a segment a {@link Node} currently lives in
+     */
+    private enum Region {
+        WINDOW,
+        PROBATION,
+        PROTECTED;
+    }
+    
+    /**
+     * A cache entry, also a link in the access ordered queue of its {@link Region}
+     */
+    private static final class Node<K, V> {
+        final K key;
+        V value;
+        long writeTime;
+        long accessTime;
+        Region region = Region.WINDOW;
+        
+        Node<K, V> previous;
+        Node<K, V> next;
+        
+        Node(K key, V value, long now) {
+            this.key = key;
+            this.value = value;
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+    }
+    
+    /**
+     * Intrusive doubly linked list of {@link Node}s from least to most recently used
+     */
+    private static final class NodeQueue<K, V> {
+        private Node<K, V> first;
+        private Node<K, V> last;
+        private int size = 0;
+        
+        public Node<K, V> peekFirst() {
+            return this.first;
+        }
+        
+        public int size() {
+            return this.size;
+        }
+        
+        public void addLast(Node<K, V> node) {
+            node.previous = this.last;
+            node.next = null;
+            if (this.last == null) {
+                this.first = node;
+            }
+            else {
+                this.last.next = node;
+            }
+            this.last = node;
+            this.size++;
+        }
+        
+        public void remove(Node<K, V> node) {
+            if (node.previous == null) {
+                this.first = node.next;
+            }
+            else {
+                node.previous.next = node.next;
+            }
+            
+            if (node.next == null) {
+                this.last = node.previous;
+            }
+            else {
+                node.next.previous = node.previous;
+            }
+            
+            node.previous = null;
+            node.next = null;
+            this.size--;
+        }
+        
+        public void moveToLast(Node<K, V> node) {
+            if (node != this.last) {
+                this.remove(node);
+                this.addLast(node);
+            }
+        }
+        
+        public void clear() {
+            this.first = null;
+            this.last = null;
+            this.size = 0;
+        }
+    }
+    
+    /**
+     * An independently locked portion of the cache with its own W-TinyLFU regions and frequency sketch
+     */
+    private static final class Segment<K, V> {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final BoundedCacheMap<K, V> cache;
+        private final Map<Object, Node<K, V>> data;
+        private final NodeQueue<K, V> window = new NodeQueue<K, V>();
+        private final NodeQueue<K, V> probation = new NodeQueue<K, V>();
+        private final NodeQueue<K, V> protectedQueue = new NodeQueue<K, V>();
+        private final FrequencySketch sketch;
+        private final int maximumWindow;
+        private final int maximumMain;
+        private final int maximumProtected;
+        
+        Segment(BoundedCacheMap<K, V> cache, int maximumSize) {
+            this.cache = cache;
+            this.data = new HashMap<Object, Node<K, V>>();
+            this.sketch = new FrequencySketch(maximumSize);
+            
+            this.maximumWindow = Math.max(1, (maximumSize * WINDOW_PERCENT) / 100);
+            this.maximumMain = maximumSize - this.maximumWindow;
+            this.maximumProtected = (this.maximumMain * PROTECTED_PERCENT) / 100;
+        }
+        
+        public V get(Object key, long now, boolean recordAccess) {
+            this.lock.lock();
+            try {
+                if (recordAccess) {
+                    this.sketch.increment(key);
+                }
+                
+                final Node<K, V> node = this.data.get(key);
+                if (node == null) {
+                    return null;
+                }
+                
+                if (this.cache.isExpired(node, now)) {
+                    this.removeNode(node);
+                    this.cache.expirationCount.incrementAndGet();
+                    return null;
+                }
+                
+                if (recordAccess) {
+                    node.accessTime = now;
+                    this.onAccess(node);
+                }
+                
+                return node.value;
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+        
+        public V put(K key, V value, long now) {
+            this.lock.lock();
+            try {
+                this.sketch.increment(key);
+                
+                final Node<K, V> existing = this.data.get(key);
+                if (existing != null) {
+                    final V oldValue = this.cache.isExpired(existing, now) ? null : existing.value;
+                    existing.value = value;
+                    existing.writeTime = now;
+                    existing.accessTime = now;
+                    this.onAccess(existing);
+                    return oldValue;
+                }
+                
+                final Node<K, V> node = new Node<K, V>(key, value, now);
+                this.data.put(key, node);
+                this.window.addLast(node);
+                
+                this.expire(now);
+                this.evict();
+                
+                return null;
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+        
+        public V remove(Object key) {
+            this.lock.lock();
+            try {
+                final Node<K, V> node = this.data.get(key);
+                if (node == null) {
+                    return null;
+                }
+                
+                this.removeNode(node);
+                return node.value;
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+        
+        public void clear() {
+            this.lock.lock();
+            try {
+                this.data.clear();
+                this.window.clear();
+                this.probation.clear();
+                this.protectedQueue.clear();
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+        
+        public int size() {
+            this.lock.lock();
+            try {
+                return this.data.size();
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+        
+        public void copyTo(Map<K, V> target, long now) {
+            this.lock.lock();
+            try {
+                for (final Node<K, V> node : this.data.values()) {
+                    if (!this.cache.isExpired(node, now)) {
+                        target.put(node.key, node.value);
+                    }
+                }
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+        
+        /**
+         * Moves the node to the most recently used position, promoting it from probation to protected
+         */
+        private void onAccess(Node<K, V> node) {
+            switch (node.region) {
+                case WINDOW: {
+                    this.window.moveToLast(node);
+                } break;
+                
+                case PROBATION: {
+                    this.probation.remove(node);
+                    node.region = Region.PROTECTED;
+                    this.protectedQueue.addLast(node);
+                    
+                    //Demote the least recently used protected entry if the protected region is full
+                    if (this.protectedQueue.size() > this.maximumProtected) {
+                        final Node<K, V> demoted = this.protectedQueue.peekFirst();
+                        this.protectedQueue.remove(demoted);
+                        demoted.region = Region.PROBATION;
+                        this.probation.addLast(demoted);
+                    }
+                } break;
+                
+                case PROTECTED: {
+                    this.protectedQueue.moveToLast(node);
+                } break;
+            }
+        }
+        
+        /**
+         * Moves entries that overflow the window into the main region, evicting either the candidate or the main
+         * region's victim based on their estimated frequency.
+         */
+        private void evict() {
+            while (this.window.size() > this.maximumWindow) {
+                final Node<K, V> candidate = this.window.peekFirst();
+                this.window.remove(candidate);
+                
+                if (this.probation.size() + this.protectedQueue.size() < this.maximumMain) {
+                    candidate.region = Region.PROBATION;
+                    this.probation.addLast(candidate);
+                    continue;
+                }
+                
+                Node<K, V> victim = this.probation.peekFirst();
+                if (victim == null) {
+                    victim = this.protectedQueue.peekFirst();
+                }
+                
+                if (victim != null && this.sketch.frequency(candidate.key) > this.sketch.frequency(victim.key)) {
+                    this.removeNode(victim);
+                    candidate.region = Region.PROBATION;
+                    this.probation.addLast(candidate);
+                }
+                else {
+                    this.data.remove(candidate.key);
+                }
+                
+                this.cache.evictionCount.incrementAndGet();
+            }
+        }
+        
+        /**
+         * Removes expired entries from the least recently used end of each region
+         */
+        private void expire(long now) {
+            if (this.cache.expireAfterWrite <= 0 && this.cache.expireAfterAccess <= 0) {
+                return;
+            }
+            
+            this.expire(this.window, now);
+            this.expire(this.probation, now);
+            this.expire(this.protectedQueue, now);
+        }
+        
+        private void expire(NodeQueue<K, V> queue, long now) {
+            for (Node<K, V> node = queue.peekFirst(); node != null && this.cache.isExpired(node, now); node = queue.peekFirst()) {
+                this.removeNode(node);
+                this.cache.expirationCount.incrementAndGet();
+            }
+        }
+        
+        private void removeNode(Node<K, V> node) {
+            this.data.remove(node.key);
+            
+            switch (node.region) {
+                case WINDOW: {
+                    this.window.remove(node);
+                } break;
+                
+                case PROBATION: {
+                    this.probation.remove(node);
+                } break;
+                
+                case PROTECTED: {
+                    this.protectedQueue.remove(node);
+                } break;
+            }
+        }
+    }
+}
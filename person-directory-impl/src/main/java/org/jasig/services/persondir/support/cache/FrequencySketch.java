@@ -0,0 +1,129 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+/**
+ * Approximate, aging frequency counter used by {@link BoundedCacheMap} to decide if a new entry should be
+ * admitted in place of an existing one. This is a count-min sketch with four 4-bit counters per key packed
+ * into a long[]. Once the number of recorded increments reaches ten times the cache size all counters are
+ * halved so that keys which were popular a long time ago don't stay in the cache forever.
+ * <br>
+ * Not thread safe, callers must hold the lock of the owning segment.
+ * 
+ * @version $Revision$
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+    
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size = 0;
+
+    /**
+     * @param maximumSize The maximum number of entries the owning cache (segment) can hold.
+     */
+    public FrequencySketch(int maximumSize) {
+        final int minimumSize = Math.max(maximumSize, 16);
+        
+        int tableLength = 1;
+        while (tableLength < minimumSize) {
+            tableLength <<= 1;
+        }
+        
+        this.table = new long[tableLength];
+        this.tableMask = tableLength - 1;
+        this.sampleSize = 10 * minimumSize;
+    }
+    
+    /**
+     * @return The estimated number of times the key has been seen, capped at 15.
+     */
+    public int frequency(Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        
+        int frequency = MAX_COUNT;
+        for (int depth = 0; depth < 4; depth++) {
+            final int index = this.indexOf(hash, depth);
+            final int offset = (start + depth) << 2;
+            final int count = (int)((this.table[index] >>> offset) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        
+        return frequency;
+    }
+    
+    /**
+     * Records an access of the key, periodically aging all counters.
+     */
+    public void increment(Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        
+        boolean added = false;
+        for (int depth = 0; depth < 4; depth++) {
+            final int index = this.indexOf(hash, depth);
+            final int offset = (start + depth) << 2;
+            added |= this.incrementAt(index, offset);
+        }
+        
+        if (added && ++this.size >= this.sampleSize) {
+            this.reset();
+        }
+    }
+    
+    private boolean incrementAt(int index, int offset) {
+        final long mask = 0xfL << offset;
+        if ((this.table[index] & mask) != mask) {
+            this.table[index] += 1L << offset;
+            return true;
+        }
+        
+        return false;
+    }
+    
+    private int indexOf(int hash, int depth) {
+        long index = (hash + SEEDS[depth]) * SEEDS[depth];
+        index += index >>> 32;
+        return ((int)index) & this.tableMask;
+    }
+    
+    /**
+     * Halves every counter
+     */
+    private void reset() {
+        for (int index = 0; index < this.table.length; index++) {
+            this.table[index] = (this.table[index] >>> 1) & RESET_MASK;
+        }
+        this.size = this.size >>> 1;
+    }
+    
+    static int spread(int hash) {
+        hash ^= (hash >>> 17);
+        hash *= 0xed5ad4bb;
+        hash ^= (hash >>> 11);
+        hash *= 0xac4c1b51;
+        hash ^= (hash >>> 15);
+        return hash;
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * A counter for statistics that are updated from many threads. Updates are spread over a number of cells, chosen
+ * by the id of the updating thread, so concurrent updates rarely contend on the same memory. Each cell is updated
+ * atomically so no updates are lost, {@link #sum()} adds up all of the cells.
+ * <br/>
+ * The sum is not an atomic snapshot, updates made while summing may or may not be included.
+ *
+ * @version $Revision$
+ */
+public final class StripedCounter {
+    /*
+     * Cells are spaced 8 longs (64 bytes) apart so two cells never share a cache line
+     */
+    private static final int CELL_SPACING = 8;
+    private static final int MAXIMUM_STRIPES = 64;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    /**
+     * Creates a counter with enough stripes for the number of available processors.
+     */
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Creates a counter with at least the specified number of stripes, rounded up to a power of two.
+     */
+    public StripedCounter(int stripes) {
+        Validate.isTrue(stripes > 0, "stripes must be greater than 0");
+
+        int stripeCount = 1;
+        while (stripeCount < stripes && stripeCount < MAXIMUM_STRIPES) {
+            stripeCount <<= 1;
+        }
+
+        this.mask = stripeCount - 1;
+        this.cells = new AtomicLongArray(stripeCount * CELL_SPACING);
+    }
+
+    /**
+     * Adds one to the counter.
+     */
+    public void increment() {
+        this.add(1);
+    }
+
+    /**
+     * Adds the value to the counter.
+     */
+    public void add(long value) {
+        this.cells.addAndGet(this.cellIndex(), value);
+    }
+
+    /**
+     * @return The sum of all updates to the counter.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int cell = 0; cell <= this.mask; cell++) {
+            sum += this.cells.get(cell * CELL_SPACING);
+        }
+        return sum;
+    }
+
+    /**
+     * Sets the counter back to zero, updates made concurrently with the reset may be lost.
+     */
+    public void reset() {
+        for (int cell = 0; cell <= this.mask; cell++) {
+            this.cells.set(cell * CELL_SPACING, 0);
+        }
+    }
+
+    private int cellIndex() {
+        final long threadId = Thread.currentThread().getId();
+
+        //Mix the bits of the id so sequentially created threads spread over all of the cells
+        int hash = (int)(threadId ^ (threadId >>> 32));
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+
+        return (hash & this.mask) * CELL_SPACING;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return Long.toString(this.sum());
+    }
+}
@@ -19,9 +19,15 @@
 
 package org.jasig.services.persondir.support.jdbc;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.sql.DataSource;
 
@@ -30,12 +36,27 @@ import org.apache.commons.lang.Validate;
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.support.AbstractQueryPersonAttributeDao;
+import org.jasig.services.persondir.support.IPersonAttributesCallbackHandler;
+import org.jasig.services.persondir.support.IScanningPersonAttributeDao;
 import org.jasig.services.persondir.support.QueryType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
 import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
 
 /**
  * Provides common logic for executing a JDBC based query including building the WHERE clause SQL string.
+ * <br/>
+ * Query values are always passed as statement parameters so the SQL only depends on the shape of the query, the
+ * attributes used, if each is an equality or LIKE test and the number of values. The complete SQL for each shape is
+ * cached so repeated queries pass the driver the same SQL String, letting drivers and connection pools that cache
+ * prepared statements reuse them.
+ * <br/>
+ * {@link #scanPeople(IPersonAttributesCallbackHandler)} runs the <b>scanQuery</b> and passes each person to the
+ * callback as its rows are read, the full results are never held in memory. Set <b>fetchSize</b> so the driver
+ * does not read the whole result set at once, some drivers also need other settings to use a server side cursor.
+ * <br/>
+ * To spread queries over read replicas pass a {@link ReplicaRoutingDataSource} as the DataSource.
  * <br>
  * <br>
  * Configuration:
@@ -54,17 +75,45 @@ import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
  *         <td valign="top">No</td>
  *         <td valign="top">AND</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">fetchSize</td>
+ *         <td>
+ *             The number of rows the driver should fetch from the database at a time, 0 or less uses the default
+ *             of the driver.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">scanQuery</td>
+ *         <td>
+ *             The SQL to run to read every person for {@link #scanPeople(IPersonAttributesCallbackHandler)}.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">The queryTemplate with '1=1' as the WHERE clause</td>
+ *     </tr>
  * </table>
  * 
  * @author Eric Dalquist 
  * @version $Revision$
  */
-public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPersonAttributeDao<PartialWhereClause> {
-    private static final Pattern WHERE_PLACEHOLDER = Pattern.compile("\\{0\\}");
+public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPersonAttributeDao<PartialWhereClause> implements IScanningPersonAttributeDao {
+    private static final String WHERE_PLACEHOLDER = "{0}";
+    private static final String SCAN_WHERE_CLAUSE = "1=1";
+    
+    /*
+     * Query shapes are bounded by the attributes and batch sizes used, the limit only guards against a
+     * misconfiguration creating unbounded shapes
+     */
+    private static final int MAXIMUM_CACHED_QUERIES = 1000;
     
+    private final JdbcTemplate jdbcTemplate;
     private final SimpleJdbcTemplate simpleJdbcTemplate;
     private final String queryTemplate;
+    private final String[] queryTemplateParts;
+    private final ConcurrentMap<String, String> querySqlCache = new ConcurrentHashMap<String, String>();
     private QueryType queryType = QueryType.AND;
+    private String scanQuery = null;
     
     /**
      * @param ds The DataSource to use for queries
@@ -74,8 +123,26 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
         Validate.notNull(ds, "DataSource can not be null");
         Validate.notNull(queryTemplate, "queryTemplate can not be null");
         
-        this.simpleJdbcTemplate = new SimpleJdbcTemplate(ds);
+        this.jdbcTemplate = new JdbcTemplate(ds);
+        this.simpleJdbcTemplate = new SimpleJdbcTemplate(this.jdbcTemplate);
         this.queryTemplate = queryTemplate;
+        this.queryTemplateParts = splitQueryTemplate(queryTemplate);
+    }
+    
+    /**
+     * @return The parts of the template between the WHERE clause placeholders
+     */
+    private static String[] splitQueryTemplate(String queryTemplate) {
+        final List<String> parts = new ArrayList<String>();
+        
+        int partStart = 0;
+        for (int placeholder = queryTemplate.indexOf(WHERE_PLACEHOLDER); placeholder >= 0; placeholder = queryTemplate.indexOf(WHERE_PLACEHOLDER, partStart)) {
+            parts.add(queryTemplate.substring(partStart, placeholder));
+            partStart = placeholder + WHERE_PLACEHOLDER.length();
+        }
+        parts.add(queryTemplate.substring(partStart));
+        
+        return parts.toArray(new String[parts.size()]);
     }
     
     /**
@@ -99,6 +166,40 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
     public void setQueryType(QueryType queryType) {
         this.queryType = queryType;
     }
+    
+    /**
+     * @return the fetchSize
+     */
+    public int getFetchSize() {
+        return this.jdbcTemplate.getFetchSize();
+    }
+    /**
+     * The number of rows the driver should fetch at a time, 0 or less to use the driver default.
+     * 
+     * @param fetchSize the fetchSize to set
+     */
+    public void setFetchSize(int fetchSize) {
+        this.jdbcTemplate.setFetchSize(fetchSize);
+    }
+    
+    /**
+     * @return The SQL run by {@link #scanPeople(IPersonAttributesCallbackHandler)}
+     */
+    public String getScanQuery() {
+        if (this.scanQuery != null) {
+            return this.scanQuery;
+        }
+        
+        return StringUtils.join(this.queryTemplateParts, SCAN_WHERE_CLAUSE);
+    }
+    /**
+     * The SQL to run to read every person, defaults to the queryTemplate with '1=1' as the WHERE clause.
+     * 
+     * @param scanQuery the scanQuery to set
+     */
+    public void setScanQuery(String scanQuery) {
+        this.scanQuery = scanQuery;
+    }
 
 
     /**
@@ -111,6 +212,8 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
     protected abstract List<IPersonAttributes> parseAttributeMapFromResults(final List<R> queryResults, String queryUserName);
     
     /**
+     * Called for each query, a mapper that keeps state between rows must be a new instance for each call.
+     * 
      * @return The ParameterizedRowMapper to handle the results of the SQL query.
      */
     protected abstract ParameterizedRowMapper<R> getRowMapper();
@@ -123,28 +226,46 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
         for (final Object queryValue : queryValues) {
             final String queryString = queryValue != null ? queryValue.toString() : null;
             if (StringUtils.isNotBlank(queryString)) {
+                final boolean firstArgument;
                 if (queryBuilder == null) {
                     queryBuilder = new PartialWhereClause();
+                    firstArgument = true;
                 }
-                else if (queryBuilder.sql.length() > 0) {
-                    queryBuilder.sql.append(" ").append(this.queryType.toString()).append(" ");
+                else {
+                    firstArgument = queryBuilder.sql.length() == 0;
+                    if (!firstArgument) {
+                        queryBuilder.sql.append(" ").append(this.queryType.toString()).append(" ");
+                    }
                 }
 
                 //Convert to SQL wildcard
-                final Matcher queryValueMatcher = IPersonAttributeDao.WILDCARD_PATTERN.matcher(queryString);
-                final String formattedQueryValue = queryValueMatcher.replaceAll("%");
+                final boolean wildcard = queryString.indexOf(IPersonAttributeDao.WILDCARD) >= 0;
+                final String formattedQueryValue;
+                if (wildcard) {
+                    final Matcher queryValueMatcher = IPersonAttributeDao.WILDCARD_PATTERN.matcher(queryString);
+                    formattedQueryValue = queryValueMatcher.replaceAll("%");
+                }
+                else {
+                    formattedQueryValue = queryString;
+                }
                 
                 queryBuilder.arguments.add(formattedQueryValue);
                 if (dataAttribute != null) {
                     queryBuilder.sql.append(dataAttribute);
-                    if (formattedQueryValue.equals(queryString)) {
+                    if (!wildcard) {
                         queryBuilder.sql.append(" = ");
                     }
                     else {
                         queryBuilder.sql.append(" LIKE ");
                     }
                 }
+                else {
+                    queryBuilder.unnamedArguments = true;
+                }
                 queryBuilder.sql.append("?");
+                
+                //Only a clause of a single equality test can be combined into an IN clause
+                queryBuilder.equalityColumn = (firstArgument && !wildcard) ? dataAttribute : null;
             }
         }
         
@@ -152,6 +273,189 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
     }
 
     
+    /**
+     * Combines the WHERE clauses with OR, each clause in parentheses. Clauses with arguments that are not
+     * associated with a column can't be combined. If every clause tests the same column for equality with a single
+     * value, as a batch of uids does, they are combined into one IN clause instead.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractQueryPersonAttributeDao#combineQueries(java.util.List)
+     */
+    @Override
+    protected PartialWhereClause combineQueries(List<PartialWhereClause> queryBuilders) {
+        final PartialWhereClause inQueryBuilder = this.combineQueriesToInClause(queryBuilders);
+        if (inQueryBuilder != null) {
+            return inQueryBuilder;
+        }
+        
+        final PartialWhereClause combinedQueryBuilder = new PartialWhereClause();
+        combinedQueryBuilder.sql.append("(");
+        
+        for (final PartialWhereClause queryBuilder : queryBuilders) {
+            if (queryBuilder.unnamedArguments) {
+                return null;
+            }
+            
+            if (combinedQueryBuilder.sql.length() > 1) {
+                combinedQueryBuilder.sql.append(" OR ");
+            }
+            combinedQueryBuilder.sql.append("(").append(queryBuilder.sql).append(")");
+            combinedQueryBuilder.arguments.addAll(queryBuilder.arguments);
+        }
+        
+        combinedQueryBuilder.sql.append(")");
+        return combinedQueryBuilder;
+    }
+    
+    /**
+     * @return A single 'column IN (?, ...)' clause, null if the clauses are not all an equality test of the same column
+     */
+    private PartialWhereClause combineQueriesToInClause(List<PartialWhereClause> queryBuilders) {
+        String column = null;
+        for (final PartialWhereClause queryBuilder : queryBuilders) {
+            final String clauseColumn = queryBuilder.equalityColumn;
+            if (clauseColumn == null || queryBuilder.unnamedArguments || queryBuilder.arguments.size() != 1) {
+                return null;
+            }
+            
+            if (column == null) {
+                column = clauseColumn;
+            }
+            else if (!column.equals(clauseColumn)) {
+                return null;
+            }
+        }
+        
+        final PartialWhereClause inQueryBuilder = new PartialWhereClause();
+        inQueryBuilder.sql.append(column).append(" IN (");
+        for (final PartialWhereClause queryBuilder : queryBuilders) {
+            if (!inQueryBuilder.arguments.isEmpty()) {
+                inQueryBuilder.sql.append(", ");
+            }
+            inQueryBuilder.sql.append("?");
+            inQueryBuilder.arguments.addAll(queryBuilder.arguments);
+        }
+        inQueryBuilder.sql.append(")");
+        
+        return inQueryBuilder;
+    }
+    
+    /**
+     * Merges the generated WHERE clause with the queryTemplate. The SQL is cached by WHERE clause, which only
+     * depends on the shape of the query, so the same SQL String is returned for every query of the same shape.
+     * 
+     * @param queryBuilder The generated WHERE clause
+     * @return The SQL to execute
+     */
+    protected final String getQuerySql(PartialWhereClause queryBuilder) {
+        final String partialSqlWhere = queryBuilder.sql.toString();
+        
+        final String cachedQuerySql = this.querySqlCache.get(partialSqlWhere);
+        if (cachedQuerySql != null) {
+            return cachedQuerySql;
+        }
+        
+        final StringBuilder querySqlBuilder = new StringBuilder(this.queryTemplate.length() + partialSqlWhere.length());
+        querySqlBuilder.append(this.queryTemplateParts[0]);
+        for (int part = 1; part < this.queryTemplateParts.length; part++) {
+            querySqlBuilder.append(partialSqlWhere).append(this.queryTemplateParts[part]);
+        }
+        final String querySql = querySqlBuilder.toString();
+        
+        if (this.querySqlCache.size() >= MAXIMUM_CACHED_QUERIES) {
+            return querySql;
+        }
+        
+        final String existingQuerySql = this.querySqlCache.putIfAbsent(partialSqlWhere, querySql);
+        return existingQuerySql != null ? existingQuerySql : querySql;
+    }
+    
+    /**
+     * Executes the query passing each row of the results to the handler as it is read, for subclasses that
+     * process the {@link java.sql.ResultSet} directly instead of through {@link #getRowMapper()}.
+     * 
+     * @param queryBuilder The generated WHERE clause, null to run the queryTemplate as-is
+     * @param rowCallbackHandler The handler to process the rows with
+     */
+    protected final void query(PartialWhereClause queryBuilder, RowCallbackHandler rowCallbackHandler) {
+        if (queryBuilder != null) {
+            final String querySQL = this.getQuerySql(queryBuilder);
+            this.jdbcTemplate.query(querySQL, queryBuilder.arguments.toArray(), rowCallbackHandler);
+            
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Executed '" + this.queryTemplate + "' with arguments " + queryBuilder.arguments);
+            }
+        }
+        else {
+            this.jdbcTemplate.query(this.queryTemplate, rowCallbackHandler);
+            
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Executed '" + this.queryTemplate + "'");
+            }
+        }
+    }
+    
+    /**
+     * Runs the scan SQL passing each row of the results to the handler as it is read.
+     * 
+     * @param scanSql The SQL to run
+     * @param arguments The arguments for the SQL, null if it has none
+     * @param rowCallbackHandler The handler to process the rows with
+     */
+    protected final void scan(String scanSql, Object[] arguments, RowCallbackHandler rowCallbackHandler) {
+        if (arguments == null) {
+            this.jdbcTemplate.query(scanSql, rowCallbackHandler);
+        }
+        else {
+            this.jdbcTemplate.query(scanSql, arguments, rowCallbackHandler);
+        }
+        
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Executed scan '" + scanSql + "'" + (arguments != null ? " with arguments " + Arrays.asList(arguments) : ""));
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.IScanningPersonAttributeDao#scanPeople(org.jasig.services.persondir.support.IPersonAttributesCallbackHandler)
+     */
+    public final void scanPeople(IPersonAttributesCallbackHandler callbackHandler) {
+        this.scanPeople(this.getScanQuery(), null, callbackHandler, null);
+    }
+    
+    /**
+     * Runs SQL that selects the same columns as the queryTemplate, passing each person to the callback as it is read.
+     * Each row is mapped with {@link #getRowMapper()} and parsed into people on its own, subclasses that need more
+     * than one row per person must override this.
+     * 
+     * @param scanSql The SQL to run
+     * @param arguments The arguments for the SQL, null if it has none
+     * @param callbackHandler The handler to pass each person to
+     * @param rowListener Optional handler called with each row before it is mapped, may be null
+     */
+    protected void scanPeople(String scanSql, Object[] arguments, final IPersonAttributesCallbackHandler callbackHandler, final RowCallbackHandler rowListener) {
+        Validate.notNull(scanSql, "scanSql can not be null");
+        Validate.notNull(callbackHandler, "callbackHandler can not be null");
+        
+        final ParameterizedRowMapper<R> rowMapper = this.getRowMapper();
+        this.scan(scanSql, arguments, new RowCallbackHandler() {
+            private int rowNum = 0;
+            
+            public void processRow(ResultSet rs) throws SQLException {
+                if (rowListener != null) {
+                    rowListener.processRow(rs);
+                }
+                
+                final R row = rowMapper.mapRow(rs, this.rowNum++);
+                
+                final List<IPersonAttributes> people = parseAttributeMapFromResults(Collections.singletonList(row), null);
+                if (people != null) {
+                    for (final IPersonAttributes person : people) {
+                        callbackHandler.processPerson(mapPersonAttributes(person));
+                    }
+                }
+            }
+        });
+    }
+    
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.support.AbstractQueryPersonAttributeDao#getPeopleForQuery(java.lang.Object, java.lang.String)
      */
@@ -162,10 +466,7 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
         
         final List<R> results;
         if (queryBuilder != null) {
-            //Merge the generated SQL with the base query template
-            final StringBuilder partialSqlWhere = queryBuilder.sql;
-            final Matcher queryMatcher = WHERE_PLACEHOLDER.matcher(this.queryTemplate);
-            final String querySQL = queryMatcher.replaceAll(partialSqlWhere.toString());
+            final String querySQL = this.getQuerySql(queryBuilder);
             
             results = this.simpleJdbcTemplate.query(querySQL, rowMapper, queryBuilder.arguments.toArray());
             
@@ -22,28 +22,53 @@ package org.jasig.services.persondir.support.jdbc;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.collections.map.CaseInsensitiveMap;
-import org.apache.commons.collections.map.ListOrderedMap;
+import org.jasig.services.persondir.util.LinkedCaseInsensitiveMap;
 import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
 import org.springframework.jdbc.support.JdbcUtils;
 
 /**
  * JDK5 clone of {@link org.springframework.jdbc.core.ColumnMapRowMapper}
+ * <br/>
+ * The column names and keys are looked up from the {@link ResultSetMetaData} for the first row of each query and
+ * reused for the rest of its rows, so all rows share the same key instances. The keys are held by the mapper which
+ * makes it stateful: a mapper may run any number of queries one after another but must not be shared by concurrent
+ * queries, create one per query instead.
  * 
  * @author Eric Dalquist
  * @version $Revision$
  */
 public class ColumnMapParameterizedRowMapper implements ParameterizedRowMapper<Map<String, Object>> {
+    private String[] columnKeys = null;
     private final boolean ignoreNull;
+    private final boolean multivalued;
     
     public ColumnMapParameterizedRowMapper() {
         this(false);
     }
     
     public ColumnMapParameterizedRowMapper(boolean ignoreNull) {
+        this(ignoreNull, false);
+    }
+    
+    /**
+     * @param ignoreNull If columns with null values should be left out of the column map
+     * @param multivalued If each value should be wrapped in a single element {@link List}, allows the column map to
+     *                    be used as a multivalued attribute map without a second copy
+     */
+    public ColumnMapParameterizedRowMapper(boolean ignoreNull, boolean multivalued) {
         this.ignoreNull = ignoreNull;
+        this.multivalued = multivalued;
+    }
+    
+    /**
+     * @return If each value is wrapped in a single element {@link List}
+     */
+    public boolean isMultivalued() {
+        return this.multivalued;
     }
     
     
@@ -51,22 +76,43 @@ public class ColumnMapParameterizedRowMapper implements ParameterizedRowMapper<M
      * @see org.springframework.jdbc.core.simple.ParameterizedRowMapper#mapRow(java.sql.ResultSet, int)
      */
     public final Map<String, Object> mapRow(ResultSet rs, int rowNum) throws SQLException {
-        final ResultSetMetaData rsmd = rs.getMetaData();
-        final int columnCount = rsmd.getColumnCount();
-        final Map<String, Object> mapOfColValues = this.createColumnMap(columnCount);
+        final String[] columnKeys = this.getColumnKeys(rs, rowNum);
+        final Map<String, Object> mapOfColValues = this.createColumnMap(columnKeys.length);
         
-        for (int i = 1; i <= columnCount; i++) {
-            final String columnName = JdbcUtils.lookupColumnName(rsmd, i);
-            final Object obj = this.getColumnValue(rs, i);
+        for (int i = 0; i < columnKeys.length; i++) {
+            final Object obj = this.getColumnValue(rs, i + 1);
             if (!this.ignoreNull || obj != null) {
-                final String key = this.getColumnKey(columnName);
-                mapOfColValues.put(key, obj);
+                if (this.multivalued) {
+                    mapOfColValues.put(columnKeys[i], Collections.singletonList(obj));
+                }
+                else {
+                    mapOfColValues.put(columnKeys[i], obj);
+                }
             }
         }
 
         return mapOfColValues;
     }
-
+    
+    /**
+     * Gets the column keys, by column index - 1, looking them up again for the first row of each query.
+     */
+    private String[] getColumnKeys(ResultSet rs, int rowNum) throws SQLException {
+        String[] columnKeys = this.columnKeys;
+        if (columnKeys == null || rowNum == 0) {
+            final ResultSetMetaData rsmd = rs.getMetaData();
+            final int columnCount = rsmd.getColumnCount();
+            columnKeys = new String[columnCount];
+            for (int i = 1; i <= columnCount; i++) {
+                final String columnName = JdbcUtils.lookupColumnName(rsmd, i);
+                columnKeys[i - 1] = this.getColumnKey(columnName);
+            }
+            
+            this.columnKeys = columnKeys;
+        }
+        
+        return columnKeys;
+    }
     /**
      * Create a Map instance to be used as column map.
      * <br/>
@@ -75,9 +121,8 @@ public class ColumnMapParameterizedRowMapper implements ParameterizedRowMapper<M
      * @param columnCount the column count, to be used as initial capacity for the Map
      * @return the new Map instance
      */
-    @SuppressWarnings("unchecked")
     protected Map<String, Object> createColumnMap(int columnCount) {
-        return ListOrderedMap.decorate(new CaseInsensitiveMap(columnCount > 0 ? columnCount : 1));
+        return new LinkedCaseInsensitiveMap<Object>(columnCount);
     }
 
     /**
@@ -106,4 +151,4 @@ public class ColumnMapParameterizedRowMapper implements ParameterizedRowMapper<M
     protected Object getColumnValue(ResultSet rs, int index) throws SQLException {
         return JdbcUtils.getResultSetValue(rs, index);
     }
-}
\ No newline at end of file
+}
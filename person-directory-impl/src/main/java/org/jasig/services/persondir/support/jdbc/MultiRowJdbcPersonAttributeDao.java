@@ -19,6 +19,9 @@
 
 package org.jasig.services.persondir.support.jdbc;
 
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -29,11 +32,16 @@ import javax.sql.DataSource;
 
 import org.apache.commons.collections.Factory;
 import org.apache.commons.collections.map.LazyMap;
+import org.apache.commons.lang.Validate;
 import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.IPersonAttributesCallbackHandler;
 import org.jasig.services.persondir.support.MultivaluedPersonAttributeUtils;
 import org.jasig.services.persondir.support.NamedPersonImpl;
+import org.jasig.services.persondir.util.LinkedCaseInsensitiveMap;
 import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
+import org.springframework.jdbc.support.JdbcUtils;
 
 /**
  * An {@link org.jasig.services.persondir.IPersonAttributeDao}
@@ -75,6 +83,11 @@ import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
  * a single row result for a user query. <br>
  * 
  * <br>
+ * 
+ * When scanning, the rows of each person are grouped as they are read so the <b>scanQuery</b> must order the rows
+ * by the userName column, for example 'SELECT netid, attr_name, attr_val FROM user_table ORDER BY netid'. <br>
+ * 
+ * <br>
  * <br>
  * Configuration:
  * <table border="1">
@@ -94,6 +107,18 @@ import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
  *         <td valign="top">Yes</td>
  *         <td valign="top">null</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">streamResults</td>
+ *         <td>
+ *             If the rows should be pivoted into people directly from the {@link ResultSet} as they are read
+ *             instead of first reading every row into a {@link Map}. The columns are looked up once per query.
+ *             Recommended for name/value tables with many rows per person, together with <b>fetchSize</b>.
+ *             Subclasses that override {@link #getRowMapper()} or {@link #parseAttributeMapFromResults(List, String)}
+ *             are bypassed when streaming.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
  * </table>
  * 
  * @author andrew.petro@yale.edu
@@ -102,14 +127,14 @@ import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
  * @since uPortal 2.5
  */
 public class MultiRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeDao<Map<String, Object>> {
-    private static final ParameterizedRowMapper<Map<String, Object>> MAPPER = new ColumnMapParameterizedRowMapper();
-    
     /**
      * {@link Map} of columns from a name column to value columns.
      * Keys are Strings, Values are Strings or List of Strings 
      */
     private Map<String, Set<String>> nameValueColumnMappings = null;
     
+    private boolean streamResults = false;
+    
     /**
      * Creates a new MultiRowJdbcPersonAttributeDao specifying the DataSource and SQL to use.
      * 
@@ -148,6 +173,22 @@ public class MultiRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeD
             this.nameValueColumnMappings = mappings;
         }
     }
+    
+    /**
+     * @return the streamResults
+     */
+    public boolean isStreamResults() {
+        return this.streamResults;
+    }
+    /**
+     * If rows should be pivoted into people directly from the ResultSet instead of first being read into a List
+     * of row Maps. Defaults to false.
+     * 
+     * @param streamResults the streamResults to set
+     */
+    public void setStreamResults(boolean streamResults) {
+        this.streamResults = streamResults;
+    }
 
 
     /* (non-Javadoc)
@@ -155,7 +196,36 @@ public class MultiRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeD
      */
     @Override
     protected ParameterizedRowMapper<Map<String, Object>> getRowMapper() {
-        return MAPPER;
+        return new ColumnMapParameterizedRowMapper();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.jdbc.AbstractJdbcPersonAttributeDao#getPeopleForQuery(org.jasig.services.persondir.support.jdbc.PartialWhereClause, java.lang.String)
+     */
+    @Override
+    protected List<IPersonAttributes> getPeopleForQuery(PartialWhereClause queryBuilder, String queryUserName) {
+        if (!this.streamResults) {
+            return super.getPeopleForQuery(queryBuilder, queryUserName);
+        }
+        
+        final PivotingRowCallbackHandler rowCallbackHandler = new PivotingRowCallbackHandler(queryUserName, null, null);
+        this.query(queryBuilder, rowCallbackHandler);
+        return this.toPeople(rowCallbackHandler.peopleAttributesBuilder);
+    }
+    
+    /**
+     * Pivots the rows as they are read, passing each person on when a row for a different userName is read.
+     * 
+     * @see org.jasig.services.persondir.support.jdbc.AbstractJdbcPersonAttributeDao#scanPeople(java.lang.String, java.lang.Object[], org.jasig.services.persondir.support.IPersonAttributesCallbackHandler, org.springframework.jdbc.core.RowCallbackHandler)
+     */
+    @Override
+    protected void scanPeople(String scanSql, Object[] arguments, IPersonAttributesCallbackHandler callbackHandler, RowCallbackHandler rowListener) {
+        Validate.notNull(scanSql, "scanSql can not be null");
+        Validate.notNull(callbackHandler, "callbackHandler can not be null");
+        
+        final PivotingRowCallbackHandler rowCallbackHandler = new PivotingRowCallbackHandler(null, callbackHandler, rowListener);
+        this.scan(scanSql, arguments, rowCallbackHandler);
+        rowCallbackHandler.flushPeople();
     }
 
     
@@ -171,27 +241,7 @@ public class MultiRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeD
         final String userNameAttribute = this.getConfiguredUserNameAttribute();
         
         for (final Map<String, Object> queryResult : queryResults) {
-            final String userName;  // Choose a username from the best available option
-            if (this.isUserNameAttributeConfigured() && queryResult.containsKey(userNameAttribute)) {
-                // Option #1:  An attribute is named explicitly in the config, 
-                // and that attribute is present in the results from LDAP;  use it
-                final Object userNameValue = queryResult.get(userNameAttribute);
-                userName = userNameValue.toString();
-            } else if (queryUserName != null) {
-                // Option #2:  Use the userName attribute provided in the query 
-                // parameters.  (NB:  I'm not entirely sure this choice is 
-                // preferable to Option #3.  Keeping it because it most closely 
-                // matches the legacy behavior there the new option -- Option #1 
-                // -- doesn't apply.  ~drewwills)
-                userName = queryUserName;
-            } else if (queryResult.containsKey(userNameAttribute)) {
-                // Option #3:  Create the IPersonAttributes useing the default 
-                // userName attribute, which we know to be present
-                final Object userNameValue = queryResult.get(userNameAttribute);
-                userName = userNameValue.toString();
-            } else {
-                throw new BadSqlGrammarException("No userName column named '" + userNameAttribute + "' exists in result set and no userName provided in query Map", this.getQueryTemplate(), null);
-            }
+            final String userName = this.getUserName(queryResult.containsKey(userNameAttribute), queryResult.get(userNameAttribute), queryUserName);
             
             final Map<String, List<Object>> attributes = peopleAttributesBuilder.get(userName);
             
@@ -224,7 +274,41 @@ public class MultiRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeD
         }
         
         
-        //Convert the builder structure into a List of IPersons
+        return this.toPeople(peopleAttributesBuilder);
+    }
+    
+    /**
+     * Chooses the username for a row from the best available option.
+     * 
+     * @param hasUserNameColumn If the results contain the username attribute column
+     * @param userNameValue The value of the username attribute column for the row
+     * @param queryUserName The username passed in the query map, may be null
+     */
+    private String getUserName(boolean hasUserNameColumn, Object userNameValue, String queryUserName) {
+        if (this.isUserNameAttributeConfigured() && hasUserNameColumn) {
+            // Option #1:  An attribute is named explicitly in the config, 
+            // and that attribute is present in the results from LDAP;  use it
+            return userNameValue.toString();
+        } else if (queryUserName != null) {
+            // Option #2:  Use the userName attribute provided in the query 
+            // parameters.  (NB:  I'm not entirely sure this choice is 
+            // preferable to Option #3.  Keeping it because it most closely 
+            // matches the legacy behavior there the new option -- Option #1 
+            // -- doesn't apply.  ~drewwills)
+            return queryUserName;
+        } else if (hasUserNameColumn) {
+            // Option #3:  Create the IPersonAttributes useing the default 
+            // userName attribute, which we know to be present
+            return userNameValue.toString();
+        } else {
+            throw new BadSqlGrammarException("No userName column named '" + this.getConfiguredUserNameAttribute() + "' exists in result set and no userName provided in query Map", this.getQueryTemplate(), null);
+        }
+    }
+    
+    /**
+     * Convert the builder structure into a List of IPersons
+     */
+    private List<IPersonAttributes> toPeople(Map<String, Map<String, List<Object>>> peopleAttributesBuilder) {
         final List<IPersonAttributes> people = new ArrayList<IPersonAttributes>(peopleAttributesBuilder.size());
         
         for (final Map.Entry<String, Map<String, List<Object>>> mappedAttributesEntry : peopleAttributesBuilder.entrySet()) {
@@ -237,6 +321,122 @@ public class MultiRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeD
         return people;
     }
     
+    /**
+     * Pivots each row into the attributes of its person as it is read. The columns are resolved to indexes from the
+     * metadata of the first row so no per row Map is created. When scanning people are passed to the callback handler
+     * as soon as all of their rows have been read.
+     */
+    private final class PivotingRowCallbackHandler implements RowCallbackHandler {
+        private final Map<String, Map<String, List<Object>>> peopleAttributesBuilder = new LinkedHashMap<String, Map<String, List<Object>>>();
+        private final String queryUserName;
+        private final IPersonAttributesCallbackHandler callbackHandler;
+        private final RowCallbackHandler rowListener;
+        private String currentUserName = null;
+        
+        /*
+         * Resolved from the first row, column indexes are 1 based, 0 if there is no username column
+         */
+        private boolean columnsResolved = false;
+        private int userNameColumn;
+        private int[] nameColumns;
+        private int[][] valueColumns;
+        
+        public PivotingRowCallbackHandler(String queryUserName, IPersonAttributesCallbackHandler callbackHandler, RowCallbackHandler rowListener) {
+            this.queryUserName = queryUserName;
+            this.callbackHandler = callbackHandler;
+            this.rowListener = rowListener;
+        }
+        
+        /**
+         * Passes the people built so far to the callback handler.
+         */
+        public void flushPeople() {
+            for (final IPersonAttributes person : toPeople(this.peopleAttributesBuilder)) {
+                this.callbackHandler.processPerson(mapPersonAttributes(person));
+            }
+            
+            this.peopleAttributesBuilder.clear();
+        }
+        
+        /* (non-Javadoc)
+         * @see org.springframework.jdbc.core.RowCallbackHandler#processRow(java.sql.ResultSet)
+         */
+        public void processRow(ResultSet rs) throws SQLException {
+            if (!this.columnsResolved) {
+                this.resolveColumns(rs.getMetaData());
+            }
+            
+            if (this.rowListener != null) {
+                this.rowListener.processRow(rs);
+            }
+            
+            final Object userNameValue = this.userNameColumn > 0 ? JdbcUtils.getResultSetValue(rs, this.userNameColumn) : null;
+            final String userName = getUserName(this.userNameColumn > 0, userNameValue, this.queryUserName);
+            
+            if (this.callbackHandler != null && !userName.equals(this.currentUserName)) {
+                this.flushPeople();
+                this.currentUserName = userName;
+            }
+            
+            Map<String, List<Object>> attributes = this.peopleAttributesBuilder.get(userName);
+            if (attributes == null) {
+                attributes = new LinkedHashMap<String, List<Object>>();
+                this.peopleAttributesBuilder.put(userName, attributes);
+            }
+            
+            for (int mapping = 0; mapping < this.nameColumns.length; mapping++) {
+                final String attrName = String.valueOf(JdbcUtils.getResultSetValue(rs, this.nameColumns[mapping]));
+                
+                final int[] mappingValueColumns = this.valueColumns[mapping];
+                final List<Object> attrValues = new ArrayList<Object>(mappingValueColumns.length);
+                for (final int valueColumn : mappingValueColumns) {
+                    attrValues.add(JdbcUtils.getResultSetValue(rs, valueColumn));
+                }
+                
+                MultivaluedPersonAttributeUtils.addResult(attributes, attrName, attrValues);
+            }
+        }
+        
+        private void resolveColumns(ResultSetMetaData rsmd) throws SQLException {
+            final int columnCount = rsmd.getColumnCount();
+            final Map<String, Integer> columnIndexes = new LinkedCaseInsensitiveMap<Integer>(columnCount);
+            for (int column = 1; column <= columnCount; column++) {
+                columnIndexes.put(JdbcUtils.lookupColumnName(rsmd, column), column);
+            }
+            
+            final Integer userNameColumn = columnIndexes.get(getConfiguredUserNameAttribute());
+            this.userNameColumn = userNameColumn != null ? userNameColumn : 0;
+            
+            this.nameColumns = new int[nameValueColumnMappings.size()];
+            this.valueColumns = new int[nameValueColumnMappings.size()][];
+            int mapping = 0;
+            for (final Map.Entry<String, Set<String>> columnMapping : nameValueColumnMappings.entrySet()) {
+                final String keyColumn = columnMapping.getKey();
+                final Integer nameColumn = columnIndexes.get(keyColumn);
+                if (nameColumn == null) {
+                    throw new BadSqlGrammarException("No attribute key column named '" + keyColumn + "' exists in result set", getQueryTemplate(), null);
+                }
+                this.nameColumns[mapping] = nameColumn;
+                
+                final Set<String> valueColumnNames = columnMapping.getValue();
+                final int[] mappingValueColumns = new int[valueColumnNames.size()];
+                int valueIndex = 0;
+                for (final String valueColumn : valueColumnNames) {
+                    final Integer valueColumnIndex = columnIndexes.get(valueColumn);
+                    if (valueColumnIndex == null) {
+                        throw new BadSqlGrammarException("No attribute value column named '" + valueColumn + "' exists in result set", getQueryTemplate(), null);
+                    }
+                    mappingValueColumns[valueIndex++] = valueColumnIndex;
+                }
+                this.valueColumns[mapping] = mappingValueColumns;
+                
+                mapping++;
+            }
+            
+            this.columnsResolved = true;
+        }
+    }
+    
     private static final class LinkedHashMapFactory<K, V> implements Factory {
         public Map<K, V> create() {
             return new LinkedHashMap<K, V>();
@@ -19,12 +19,20 @@
 
 package org.jasig.services.persondir.support.jdbc;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 class PartialWhereClause {
     public final StringBuilder sql = new StringBuilder();
-    public final List<String> arguments = new LinkedList<String>();
+    public final List<String> arguments = new ArrayList<String>();
+    /**
+     * The column if the clause is a single 'column = ?' test, null otherwise. Used to combine clauses into an IN clause.
+     */
+    public String equalityColumn = null;
+    /**
+     * True if an argument was added without a column name, the template then contains the column and the clause can't be combined with others.
+     */
+    public boolean unnamedArguments = false;
     
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
@@ -0,0 +1,745 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.jdbc;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.lang.Validate;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.services.persondir.support.CircuitBreaker;
+import org.jasig.services.persondir.support.cache.StripedCounter;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * A {@link DataSource} that spreads connections over a set of read replicas, for use as the DataSource of a
+ * {@link AbstractJdbcPersonAttributeDao}. Each connection is taken from the next replica picked by the
+ * <b>selectionStrategy</b>, either in turn or from the replica with the fewest connections in use.
+ * <br/>
+ * Each replica has a {@link CircuitBreaker}. Failures to get a connection, SQLExceptions from using it that are not
+ * caused by the SQL or data, and statements that take longer than <b>slowStatementTime</b> to execute count as
+ * failures. A replica
+ * with <b>failureThreshold</b> failures within <b>failureWindow</b> milliseconds is ejected for <b>ejectionTime</b>
+ * milliseconds, then one connection is allowed through to test if it has recovered. If a replica fails to provide a
+ * connection the next one is tried. If every replica is ejected connections come from the <b>primaryDataSource</b>,
+ * if configured. The connection counts, timings and breaker state of each replica are available from
+ * {@link #getReplicas()}.
+ * <br/>
+ * Only the execute calls of the connection's statements are timed, not how long the connection is held, so a long
+ * but healthy use such as a full directory scan reading a large ResultSet does not count as a slow replica.
+ * 
+ * <br>
+ * <br>
+ * Configuration:
+ * <table border="1">
+ *     <tr>
+ *         <th align="left">Property</th>
+ *         <th align="left">Description</th>
+ *         <th align="left">Required</th>
+ *         <th align="left">Default</th>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">replicaDataSources</td>
+ *         <td>
+ *             The replicas to spread connections over, keyed by a name used for logging and statistics.
+ *         </td>
+ *         <td valign="top">Yes</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">primaryDataSource</td>
+ *         <td>
+ *             Used when every replica is ejected.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">selectionStrategy</td>
+ *         <td>
+ *             ROUND_ROBIN to use the replicas in turn, LEAST_IN_FLIGHT to use the replica with the fewest
+ *             connections in use.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">ROUND_ROBIN</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">failureThreshold</td>
+ *         <td>
+ *             The number of failures within the failureWindow that ejects a replica.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">3</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">failureWindow</td>
+ *         <td>
+ *             Milliseconds failures are counted for.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">60000</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">ejectionTime</td>
+ *         <td>
+ *             Milliseconds an ejected replica is skipped before it is retried.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">30000</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">slowStatementTime</td>
+ *         <td>
+ *             Statements that take at least this many milliseconds to execute count as failures, 0 or less to
+ *             disable.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ * </table>
+ * 
+ * @version $Revision$
+ */
+public class ReplicaRoutingDataSource implements DataSource, InitializingBean {
+    /**
+     * How the replica for each connection is picked.
+     */
+    public enum SelectionStrategy {
+        /**
+         * Use the replicas in turn.
+         */
+        ROUND_ROBIN,
+        /**
+         * Use the replica with the fewest connections in use, replicas with the same number are used in turn.
+         */
+        LEAST_IN_FLIGHT;
+    }
+    
+    /*
+     * Statement and ResultSet types returned by the JDBC objects that are wrapped to track failures
+     */
+    private static final Class<?>[] TRACKED_TYPES = { Statement.class, PreparedStatement.class, CallableStatement.class, ResultSet.class };
+    
+    protected final Log logger = LogFactory.getLog(this.getClass());
+    
+    private Map<String, DataSource> replicaDataSources = null;
+    private DataSource primaryDataSource = null;
+    private SelectionStrategy selectionStrategy = SelectionStrategy.ROUND_ROBIN;
+    private int failureThreshold = 3;
+    private long failureWindow = 60000;
+    private long ejectionTime = 30000;
+    private long slowStatementTime = 0;
+    
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final StripedCounter primaryConnections = new StripedCounter();
+    private volatile Replica[] replicas = null;
+    
+    
+    /**
+     * @return the replicaDataSources
+     */
+    public Map<String, DataSource> getReplicaDataSources() {
+        return this.replicaDataSources;
+    }
+    /**
+     * The replicas to spread connections over, keyed by name.
+     * 
+     * @param replicaDataSources the replicaDataSources to set
+     */
+    public void setReplicaDataSources(Map<String, DataSource> replicaDataSources) {
+        Validate.notEmpty(replicaDataSources, "replicaDataSources can not be empty");
+        Validate.noNullElements(replicaDataSources.values(), "replicaDataSources can not contain null");
+        this.replicaDataSources = Collections.unmodifiableMap(new LinkedHashMap<String, DataSource>(replicaDataSources));
+    }
+
+    /**
+     * @return the primaryDataSource
+     */
+    public DataSource getPrimaryDataSource() {
+        return this.primaryDataSource;
+    }
+    /**
+     * The DataSource used when every replica is ejected, if null getting a connection fails instead.
+     * 
+     * @param primaryDataSource the primaryDataSource to set
+     */
+    public void setPrimaryDataSource(DataSource primaryDataSource) {
+        this.primaryDataSource = primaryDataSource;
+    }
+
+    /**
+     * @return the selectionStrategy
+     */
+    public SelectionStrategy getSelectionStrategy() {
+        return this.selectionStrategy;
+    }
+    /**
+     * How the replica for each connection is picked.
+     * 
+     * @param selectionStrategy the selectionStrategy to set
+     */
+    public void setSelectionStrategy(SelectionStrategy selectionStrategy) {
+        Validate.notNull(selectionStrategy, "selectionStrategy can not be null");
+        this.selectionStrategy = selectionStrategy;
+    }
+
+    /**
+     * @return the failureThreshold
+     */
+    public int getFailureThreshold() {
+        return this.failureThreshold;
+    }
+    /**
+     * The number of failures within the failureWindow that ejects a replica.
+     * 
+     * @param failureThreshold the failureThreshold to set
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * @return the failureWindow
+     */
+    public long getFailureWindow() {
+        return this.failureWindow;
+    }
+    /**
+     * Milliseconds failures are counted for.
+     * 
+     * @param failureWindow the failureWindow to set
+     */
+    public void setFailureWindow(long failureWindow) {
+        this.failureWindow = failureWindow;
+    }
+
+    /**
+     * @return the ejectionTime
+     */
+    public long getEjectionTime() {
+        return this.ejectionTime;
+    }
+    /**
+     * Milliseconds an ejected replica is skipped before it is retried.
+     * 
+     * @param ejectionTime the ejectionTime to set
+     */
+    public void setEjectionTime(long ejectionTime) {
+        this.ejectionTime = ejectionTime;
+    }
+
+    /**
+     * @return the slowStatementTime
+     */
+    public long getSlowStatementTime() {
+        return this.slowStatementTime;
+    }
+    /**
+     * Statements that take at least this many milliseconds to execute count as failures, 0 or less to disable.
+     * 
+     * @param slowStatementTime the slowStatementTime to set
+     */
+    public void setSlowStatementTime(long slowStatementTime) {
+        this.slowStatementTime = slowStatementTime;
+    }
+    
+    /**
+     * @return The replicas with their statistics, in the order they were configured
+     */
+    public List<Replica> getReplicas() {
+        return Collections.unmodifiableList(Arrays.asList(this.getReplicaArray()));
+    }
+    
+    /**
+     * @return The number of connections taken from the primaryDataSource
+     */
+    public long getPrimaryConnections() {
+        return this.primaryConnections.sum();
+    }
+    
+
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+     */
+    public void afterPropertiesSet() throws Exception {
+        Validate.notNull(this.replicaDataSources, "replicaDataSources must be set");
+        
+        final List<Replica> replicas = new ArrayList<Replica>(this.replicaDataSources.size());
+        for (final Map.Entry<String, DataSource> replicaEntry : this.replicaDataSources.entrySet()) {
+            final String name = replicaEntry.getKey();
+            final CircuitBreaker circuitBreaker = new CircuitBreaker(name, this.failureThreshold, this.failureWindow, this.ejectionTime, this.slowStatementTime) {
+                @Override
+                protected long currentTimeMillis() {
+                    return ReplicaRoutingDataSource.this.currentTimeMillis();
+                }
+            };
+            replicas.add(new Replica(name, replicaEntry.getValue(), circuitBreaker));
+        }
+        
+        this.replicas = replicas.toArray(new Replica[replicas.size()]);
+    }
+    
+    /**
+     * @return The current time in milliseconds, also used by the replica circuit breakers. Protected to allow for testing.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+    
+    private Replica[] getReplicaArray() {
+        final Replica[] replicas = this.replicas;
+        if (replicas == null) {
+            throw new IllegalStateException("No replicas exist, was afterPropertiesSet called?");
+        }
+        
+        return replicas;
+    }
+
+    /* (non-Javadoc)
+     * @see javax.sql.DataSource#getConnection()
+     */
+    public Connection getConnection() throws SQLException {
+        return this.getConnection(null, null, false);
+    }
+
+    /* (non-Javadoc)
+     * @see javax.sql.DataSource#getConnection(java.lang.String, java.lang.String)
+     */
+    public Connection getConnection(String username, String password) throws SQLException {
+        return this.getConnection(username, password, true);
+    }
+    
+    /**
+     * Returns 0, the replicas are configured with their own login timeouts.
+     * 
+     * @see javax.sql.DataSource#getLoginTimeout()
+     */
+    public int getLoginTimeout() throws SQLException {
+        return 0;
+    }
+
+    /**
+     * Not supported, configure the login timeout of the replicas instead.
+     * 
+     * @see javax.sql.DataSource#setLoginTimeout(int)
+     */
+    public void setLoginTimeout(int timeout) throws SQLException {
+        throw new UnsupportedOperationException("setLoginTimeout");
+    }
+
+    /**
+     * Not supported, configure the log writer of the replicas instead.
+     * 
+     * @see javax.sql.DataSource#getLogWriter()
+     */
+    public PrintWriter getLogWriter() {
+        throw new UnsupportedOperationException("getLogWriter");
+    }
+
+    /**
+     * Not supported, configure the log writer of the replicas instead.
+     * 
+     * @see javax.sql.DataSource#setLogWriter(java.io.PrintWriter)
+     */
+    public void setLogWriter(PrintWriter pw) throws SQLException {
+        throw new UnsupportedOperationException("setLogWriter");
+    }
+
+    /* (non-Javadoc)
+     * @see java.sql.Wrapper#unwrap(java.lang.Class)
+     */
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("DataSource of type [" + this.getClass().getName() + "] cannot be unwrapped as [" + iface.getName() + "]");
+    }
+
+    /* (non-Javadoc)
+     * @see java.sql.Wrapper#isWrapperFor(java.lang.Class)
+     */
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+    
+    /**
+     * Not supported, declared for the JDBC 4.1 DataSource interface.
+     */
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+    
+    private Connection getConnection(String username, String password, boolean useCredentials) throws SQLException {
+        final Replica[] candidates = this.orderReplicas(this.getReplicaArray());
+        
+        SQLException lastException = null;
+        for (final Replica replica : candidates) {
+            if (!replica.circuitBreaker.allowRequest()) {
+                continue;
+            }
+            
+            final long start = this.currentTimeMillis();
+            replica.inFlight.incrementAndGet();
+            try {
+                final Connection connection = useCredentials ? replica.dataSource.getConnection(username, password) : replica.dataSource.getConnection();
+                replica.connections.increment();
+                
+                final ReplicaUse replicaUse = new ReplicaUse(this, replica, start);
+                return (Connection)Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class<?>[] { Connection.class }, new ReplicaInvocationHandler(connection, replicaUse, null));
+            }
+            catch (SQLException sqle) {
+                this.logger.warn("Failed to get connection from replica '" + replica.name + "', trying next replica", sqle);
+                replica.release();
+                replica.circuitBreaker.recordFailure();
+                lastException = sqle;
+            }
+            catch (RuntimeException re) {
+                this.logger.warn("Failed to get connection from replica '" + replica.name + "', trying next replica", re);
+                replica.release();
+                replica.circuitBreaker.recordFailure();
+                final SQLException sqle = new SQLException("Failed to get connection from replica '" + replica.name + "'");
+                sqle.initCause(re);
+                lastException = sqle;
+            }
+        }
+        
+        if (this.primaryDataSource != null) {
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("No replica is available, using primaryDataSource");
+            }
+            
+            this.primaryConnections.increment();
+            return useCredentials ? this.primaryDataSource.getConnection(username, password) : this.primaryDataSource.getConnection();
+        }
+        
+        if (lastException != null) {
+            throw lastException;
+        }
+        throw new SQLException("No replica is available, all " + candidates.length + " replicas are ejected and no primaryDataSource is configured");
+    }
+    
+    /**
+     * @return The replicas in the order they should be tried
+     */
+    private Replica[] orderReplicas(Replica[] replicas) {
+        final int first = (this.nextReplica.getAndIncrement() & Integer.MAX_VALUE) % replicas.length;
+        
+        final Replica[] ordered = new Replica[replicas.length];
+        for (int index = 0; index < replicas.length; index++) {
+            ordered[index] = replicas[(first + index) % replicas.length];
+        }
+        
+        if (this.selectionStrategy == SelectionStrategy.LEAST_IN_FLIGHT) {
+            //Stable insertion sort, there are only a few replicas and ties keep the round robin order
+            final int[] inFlight = new int[ordered.length];
+            for (int index = 0; index < ordered.length; index++) {
+                inFlight[index] = ordered[index].inFlight.get();
+            }
+            
+            for (int index = 1; index < ordered.length; index++) {
+                final Replica replica = ordered[index];
+                final int replicaInFlight = inFlight[index];
+                
+                int insert = index;
+                while (insert > 0 && inFlight[insert - 1] > replicaInFlight) {
+                    ordered[insert] = ordered[insert - 1];
+                    inFlight[insert] = inFlight[insert - 1];
+                    insert--;
+                }
+                ordered[insert] = replica;
+                inFlight[insert] = replicaInFlight;
+            }
+        }
+        
+        return ordered;
+    }
+    
+    /**
+     * @return true if the exception indicates a problem with the replica, false if it was caused by the SQL or data
+     */
+    static boolean isReplicaFailure(SQLException sqle) {
+        if (sqle instanceof SQLSyntaxErrorException || sqle instanceof SQLDataException || sqle instanceof SQLIntegrityConstraintViolationException) {
+            return false;
+        }
+        
+        //Syntax, data and constraint errors for drivers that don't use the JDBC 4 exception types, S0 is the X/Open
+        //class for syntax and access rule errors
+        final String sqlState = sqle.getSQLState();
+        if (sqlState != null && (sqlState.startsWith("42") || sqlState.startsWith("S0") || sqlState.startsWith("22") || sqlState.startsWith("23"))) {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    
+    /**
+     * A replica and its statistics.
+     */
+    public static final class Replica {
+        private final String name;
+        private final DataSource dataSource;
+        private final CircuitBreaker circuitBreaker;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final StripedCounter connections = new StripedCounter();
+        private final StripedCounter failedConnections = new StripedCounter();
+        private final StripedCounter closedConnections = new StripedCounter();
+        private final StripedCounter connectionTime = new StripedCounter();
+        
+        private Replica(String name, DataSource dataSource, CircuitBreaker circuitBreaker) {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.circuitBreaker = circuitBreaker;
+        }
+        
+        private void release() {
+            this.inFlight.decrementAndGet();
+        }
+        
+        /**
+         * @return The name of the replica
+         */
+        public String getName() {
+            return this.name;
+        }
+        
+        /**
+         * @return The state of the circuit breaker, {@link CircuitBreaker.State#OPEN} while the replica is ejected
+         */
+        public CircuitBreaker.State getState() {
+            return this.circuitBreaker.getState();
+        }
+        
+        /**
+         * @return The number of connections from the replica currently in use
+         */
+        public int getInFlight() {
+            return this.inFlight.get();
+        }
+        
+        /**
+         * @return The number of connections taken from the replica
+         */
+        public long getConnections() {
+            return this.connections.sum();
+        }
+        
+        /**
+         * @return The number of connections that were closed after an SQLException caused by the replica
+         */
+        public long getFailedConnections() {
+            return this.failedConnections.sum();
+        }
+        
+        /**
+         * @return The number of failures recorded by the circuit breaker, including failures to get a connection
+         * and slow connections
+         */
+        public long getFailures() {
+            return this.circuitBreaker.getFailures();
+        }
+        
+        /**
+         * @return The number of connections that executed a statement taking at least slowStatementTime
+         */
+        public long getSlowConnections() {
+            return this.circuitBreaker.getSlowCalls();
+        }
+        
+        /**
+         * @return The number of times the replica was skipped while ejected
+         */
+        public long getSkipped() {
+            return this.circuitBreaker.getRejectedCalls();
+        }
+        
+        /**
+         * @return The number of times the replica was ejected
+         */
+        public long getEjections() {
+            return this.circuitBreaker.getTimesOpened();
+        }
+        
+        /**
+         * @return The average milliseconds from requesting a connection until it was closed
+         */
+        public double getAverageConnectionTime() {
+            final long closedConnections = this.closedConnections.sum();
+            if (closedConnections == 0) {
+                return 0;
+            }
+            
+            return (double)this.connectionTime.sum() / closedConnections;
+        }
+        
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "Replica[name=" + this.name + ", state=" + this.getState() + ", inFlight=" + this.getInFlight() + ", connections=" + this.getConnections() + ", failures=" + this.getFailures() + "]";
+        }
+    }
+    
+    /**
+     * One connection from a replica, records the outcome with the replica when the connection is closed. A connection
+     * that was not failed is recorded as a success taking as long as its slowest statement execution.
+     */
+    private static final class ReplicaUse {
+        private final ReplicaRoutingDataSource routingDataSource;
+        private final Replica replica;
+        private final long start;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile boolean failed = false;
+        private volatile long slowestStatementTime = 0;
+        
+        public ReplicaUse(ReplicaRoutingDataSource routingDataSource, Replica replica, long start) {
+            this.routingDataSource = routingDataSource;
+            this.replica = replica;
+            this.start = start;
+        }
+        
+        public void recordStatementTime(long statementTime) {
+            //Statements of one connection are not run concurrently, a lost update only loses a single timing
+            if (statementTime > this.slowestStatementTime) {
+                this.slowestStatementTime = statementTime;
+            }
+        }
+        
+        public void close() {
+            if (!this.closed.compareAndSet(false, true)) {
+                return;
+            }
+            
+            final long connectionTime = this.routingDataSource.currentTimeMillis() - this.start;
+            this.replica.release();
+            this.replica.closedConnections.increment();
+            this.replica.connectionTime.add(connectionTime);
+            
+            if (this.failed) {
+                this.replica.failedConnections.increment();
+                this.replica.circuitBreaker.recordFailure();
+            }
+            else {
+                this.replica.circuitBreaker.recordSuccess(this.slowestStatementTime);
+            }
+        }
+    }
+    
+    /**
+     * Wraps a Connection, or a Statement or ResultSet from it, marking the use failed when an SQLException caused by
+     * the replica is thrown. Statement.getConnection() and ResultSet.getStatement() return the proxy the object came
+     * from so closing through them still closes the ReplicaUse.
+     */
+    private static final class ReplicaInvocationHandler implements InvocationHandler {
+        private final Object target;
+        private final ReplicaUse replicaUse;
+        private final Object parent;
+        
+        /**
+         * @param parent The proxy whose method returned the target, null for the Connection
+         */
+        public ReplicaInvocationHandler(Object target, ReplicaUse replicaUse, Object parent) {
+            this.target = target;
+            this.replicaUse = replicaUse;
+            this.parent = parent;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+         */
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String methodName = method.getName();
+            if ("equals".equals(methodName) && args != null && args.length == 1) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(methodName) && (args == null || args.length == 0)) {
+                return System.identityHashCode(proxy);
+            }
+            
+            final boolean closeConnection = "close".equals(methodName) && this.target instanceof Connection;
+            final boolean timeStatement = methodName.startsWith("execute") && this.target instanceof Statement;
+            
+            final long start = timeStatement ? this.replicaUse.routingDataSource.currentTimeMillis() : 0;
+            final Object result;
+            try {
+                result = method.invoke(this.target, args);
+            }
+            catch (InvocationTargetException ite) {
+                final Throwable cause = ite.getTargetException();
+                if (cause instanceof SQLException && isReplicaFailure((SQLException)cause)) {
+                    this.replicaUse.failed = true;
+                }
+                throw cause;
+            }
+            finally {
+                if (timeStatement) {
+                    this.replicaUse.recordStatementTime(this.replicaUse.routingDataSource.currentTimeMillis() - start);
+                }
+                if (closeConnection) {
+                    this.replicaUse.close();
+                }
+            }
+            
+            final Class<?> returnType = method.getReturnType();
+            if (result != null) {
+                //The back-reference to the object this one came from
+                if (this.parent != null && returnType.isInstance(this.parent) &&
+                        (("getConnection".equals(methodName) && this.target instanceof Statement) ||
+                         ("getStatement".equals(methodName) && this.target instanceof ResultSet))) {
+                    return this.parent;
+                }
+                
+                for (final Class<?> trackedType : TRACKED_TYPES) {
+                    if (trackedType == returnType) {
+                        return Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class<?>[] { returnType }, new ReplicaInvocationHandler(result, this.replicaUse, proxy));
+                    }
+                }
+            }
+            
+            return result;
+        }
+    }
+}
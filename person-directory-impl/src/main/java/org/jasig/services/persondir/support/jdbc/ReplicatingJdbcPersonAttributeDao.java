@@ -0,0 +1,664 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
+import org.jasig.services.persondir.support.IPersonAttributesCallbackHandler;
+import org.jasig.services.persondir.support.QueryType;
+import org.jasig.services.persondir.util.PatternHelper;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * Serves people from an in-memory replica of a JDBC source. The replica is loaded with the scanQuery of the
+ * source DAO and kept up to date by polling with a change query that only returns the rows modified since the last
+ * poll, the query and attribute mappings of the source DAO are used for both.
+ * <br/>
+ * The change query is passed one argument, the highest value of the <b>changeTrackingColumn</b> seen so far, and
+ * must return every row of each changed person. For example with a last modified timestamp:
+ * <pre>
+ * SELECT netid, name, email, last_modified FROM user_table WHERE last_modified &gt;= ?
+ * </pre>
+ * Using &gt;= re-reads the rows at the last seen value so rows written at the same time as the last poll are not
+ * missed. Both the scanQuery and changeQuery must select the changeTrackingColumn. Deleted rows are not seen by the
+ * change query, people are only removed by a full reload.
+ * <br/>
+ * Queries are answered from the replica using the mapped attribute names. Like the source DAO only the attributes
+ * in its queryAttributeMapping are used, combined with its queryType, and a query missing one of them returns null
+ * if it has requireAllQueryAttributes set. An AND query on a single username is a direct lookup, other queries are
+ * matched against every person in the replica. The replica is loaded by the first query if it has not been loaded
+ * yet.
+ * 
+ * <br>
+ * <br>
+ * Configuration:
+ * <table border="1">
+ *     <tr>
+ *         <th align="left">Property</th>
+ *         <th align="left">Description</th>
+ *         <th align="left">Required</th>
+ *         <th align="left">Default</th>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">sourceDao</td>
+ *         <td>
+ *             The JDBC DAO to load people from.
+ *         </td>
+ *         <td valign="top">Yes</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">changeQuery</td>
+ *         <td>
+ *             The SQL to find the rows changed since the last poll. If not set every poll is a full reload.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">changeTrackingColumn</td>
+ *         <td>
+ *             The last modified or sequence column to track the changes seen with, values must be {@link Comparable}.
+ *         </td>
+ *         <td valign="top">If changeQuery is set</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">pollInterval</td>
+ *         <td>
+ *             Milliseconds between polls once {@link #afterPropertiesSet()} is called. If 0 or less no polling thread
+ *             is started and {@link #synchronize()} must be called to update the replica.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">60000</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">fullReloadInterval</td>
+ *         <td>
+ *             Milliseconds between full reloads, which remove deleted people. If 0 or less the replica is only fully
+ *             loaded once.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ * </table>
+ * 
+ * @version $Revision$
+ */
+public class ReplicatingJdbcPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao implements InitializingBean, DisposableBean {
+    private AbstractJdbcPersonAttributeDao<?> sourceDao = null;
+    private String changeQuery = null;
+    private String changeTrackingColumn = null;
+    private long pollInterval = 60000;
+    private long fullReloadInterval = 0;
+    
+    private ScheduledExecutorService pollExecutor = null;
+    
+    /*
+     * Replica state, the maps are replaced by a full load and updated in place by deltas. Only changed while
+     * holding syncLock.
+     */
+    private final Lock syncLock = new ReentrantLock();
+    private volatile Map<String, IPersonAttributes> replica = null;
+    private volatile Set<String> possibleUserAttributeNames = Collections.emptySet();
+    private volatile Object highWaterMark = null;
+    
+    /*
+     * Statistics, only changed while holding syncLock
+     */
+    private volatile long lastFullLoadTime = 0;
+    private volatile long lastSyncTime = 0;
+    private volatile long fullLoads = 0;
+    private volatile long deltaSyncs = 0;
+    private volatile long deltaPeople = 0;
+    
+    
+    /**
+     * @return the sourceDao
+     */
+    public AbstractJdbcPersonAttributeDao<?> getSourceDao() {
+        return this.sourceDao;
+    }
+    /**
+     * The JDBC DAO whose scanQuery, row mapping and attribute mappings are used to load the replica.
+     * 
+     * @param sourceDao the sourceDao to set
+     */
+    public void setSourceDao(AbstractJdbcPersonAttributeDao<?> sourceDao) {
+        Validate.notNull(sourceDao, "sourceDao can not be null");
+        this.sourceDao = sourceDao;
+    }
+
+    /**
+     * @return the changeQuery
+     */
+    public String getChangeQuery() {
+        return this.changeQuery;
+    }
+    /**
+     * The SQL to find the rows changed since the last poll, passed the highest changeTrackingColumn value seen.
+     * 
+     * @param changeQuery the changeQuery to set
+     */
+    public void setChangeQuery(String changeQuery) {
+        this.changeQuery = changeQuery;
+    }
+
+    /**
+     * @return the changeTrackingColumn
+     */
+    public String getChangeTrackingColumn() {
+        return this.changeTrackingColumn;
+    }
+    /**
+     * The last modified or sequence column selected by the scanQuery and changeQuery.
+     * 
+     * @param changeTrackingColumn the changeTrackingColumn to set
+     */
+    public void setChangeTrackingColumn(String changeTrackingColumn) {
+        this.changeTrackingColumn = changeTrackingColumn;
+    }
+
+    /**
+     * @return the pollInterval
+     */
+    public long getPollInterval() {
+        return this.pollInterval;
+    }
+    /**
+     * Milliseconds between polls, 0 or less to only update the replica when {@link #synchronize()} is called.
+     * 
+     * @param pollInterval the pollInterval to set
+     */
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * @return the fullReloadInterval
+     */
+    public long getFullReloadInterval() {
+        return this.fullReloadInterval;
+    }
+    /**
+     * Milliseconds between full reloads, 0 or less to only fully load the replica once.
+     * 
+     * @param fullReloadInterval the fullReloadInterval to set
+     */
+    public void setFullReloadInterval(long fullReloadInterval) {
+        this.fullReloadInterval = fullReloadInterval;
+    }
+    
+    /**
+     * @return The number of people in the replica, 0 if it has not been loaded
+     */
+    public int getSize() {
+        final Map<String, IPersonAttributes> replica = this.replica;
+        return replica != null ? replica.size() : 0;
+    }
+    
+    /**
+     * @return The highest changeTrackingColumn value seen, null if none has been seen
+     */
+    public Object getHighWaterMark() {
+        return this.highWaterMark;
+    }
+
+    /**
+     * @return The time in milliseconds of the last full load, 0 if there has not been one
+     */
+    public long getLastFullLoadTime() {
+        return this.lastFullLoadTime;
+    }
+
+    /**
+     * @return The time in milliseconds of the last successful full load or delta
+     */
+    public long getLastSyncTime() {
+        return this.lastSyncTime;
+    }
+
+    /**
+     * @return The number of full loads
+     */
+    public long getFullLoads() {
+        return this.fullLoads;
+    }
+
+    /**
+     * @return The number of deltas applied
+     */
+    public long getDeltaSyncs() {
+        return this.deltaSyncs;
+    }
+
+    /**
+     * @return The number of people updated by deltas
+     */
+    public long getDeltaPeople() {
+        return this.deltaPeople;
+    }
+    
+
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+     */
+    public void afterPropertiesSet() throws Exception {
+        Validate.notNull(this.sourceDao, "sourceDao must be set");
+        if (this.changeQuery != null) {
+            Validate.notNull(this.changeTrackingColumn, "changeTrackingColumn must be set if changeQuery is set");
+        }
+        
+        if (this.pollInterval > 0 && this.pollExecutor == null) {
+            final ScheduledThreadPoolExecutor pollExecutor = new ScheduledThreadPoolExecutor(1, new PollThreadFactory());
+            pollExecutor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        synchronize();
+                    }
+                    catch (RuntimeException re) {
+                        //Keep polling, the replica continues to be served as it is
+                        logger.warn("Failed to synchronize replica of " + sourceDao + ", will retry in " + pollInterval + "ms", re);
+                    }
+                }
+            }, 0, this.pollInterval, TimeUnit.MILLISECONDS);
+            this.pollExecutor = pollExecutor;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public void destroy() throws Exception {
+        if (this.pollExecutor != null) {
+            this.pollExecutor.shutdownNow();
+            this.pollExecutor = null;
+        }
+    }
+    
+    /**
+     * Brings the replica up to date. Does a full load if the replica has not been loaded, no changes can be tracked
+     * or the fullReloadInterval has passed, otherwise applies the changes found by the changeQuery.
+     */
+    public void synchronize() {
+        Validate.notNull(this.sourceDao, "sourceDao must be set");
+        
+        this.syncLock.lock();
+        try {
+            final long now = System.currentTimeMillis();
+            
+            if (this.replica == null || this.changeQuery == null || this.highWaterMark == null 
+                    || (this.fullReloadInterval > 0 && now - this.lastFullLoadTime >= this.fullReloadInterval)) {
+                this.fullLoad(now);
+            }
+            else {
+                this.applyChanges(now);
+            }
+        }
+        finally {
+            this.syncLock.unlock();
+        }
+    }
+    
+    private void fullLoad(long now) {
+        final Map<String, IPersonAttributes> newReplica = new ConcurrentHashMap<String, IPersonAttributes>();
+        final Set<String> attributeNames = new LinkedHashSet<String>();
+        final ChangeTracker changeTracker = this.createChangeTracker(null);
+        
+        this.sourceDao.scanPeople(this.sourceDao.getScanQuery(), null, new IPersonAttributesCallbackHandler() {
+            public void processPerson(IPersonAttributes person) {
+                if (addPerson(newReplica, person)) {
+                    attributeNames.addAll(person.getAttributes().keySet());
+                }
+            }
+        }, changeTracker);
+        
+        this.replica = newReplica;
+        this.possibleUserAttributeNames = Collections.unmodifiableSet(attributeNames);
+        this.highWaterMark = changeTracker != null ? changeTracker.highWaterMark : null;
+        this.lastFullLoadTime = now;
+        this.lastSyncTime = now;
+        this.fullLoads++;
+        
+        if (this.logger.isInfoEnabled()) {
+            this.logger.info("Loaded " + newReplica.size() + " people into replica of " + this.sourceDao + " with high water mark " + this.highWaterMark);
+        }
+    }
+    
+    private void applyChanges(long now) {
+        final Map<String, IPersonAttributes> replica = this.replica;
+        final Set<String> newAttributeNames = new LinkedHashSet<String>();
+        final ChangeTracker changeTracker = this.createChangeTracker(this.highWaterMark);
+        final int[] changedPeople = new int[1];
+        
+        this.sourceDao.scanPeople(this.changeQuery, new Object[] { this.highWaterMark }, new IPersonAttributesCallbackHandler() {
+            public void processPerson(IPersonAttributes person) {
+                if (addPerson(replica, person)) {
+                    changedPeople[0]++;
+                    
+                    for (final String attributeName : person.getAttributes().keySet()) {
+                        if (!possibleUserAttributeNames.contains(attributeName)) {
+                            newAttributeNames.add(attributeName);
+                        }
+                    }
+                }
+            }
+        }, changeTracker);
+        
+        if (!newAttributeNames.isEmpty()) {
+            final Set<String> attributeNames = new LinkedHashSet<String>(this.possibleUserAttributeNames);
+            attributeNames.addAll(newAttributeNames);
+            this.possibleUserAttributeNames = Collections.unmodifiableSet(attributeNames);
+        }
+        
+        this.highWaterMark = changeTracker.highWaterMark;
+        this.lastSyncTime = now;
+        this.deltaSyncs++;
+        this.deltaPeople += changedPeople[0];
+        
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Applied " + changedPeople[0] + " changed people to replica of " + this.sourceDao + ", high water mark is now " + this.highWaterMark);
+        }
+    }
+    
+    /**
+     * @return true if the person was added, false if the person has no name
+     */
+    private boolean addPerson(Map<String, IPersonAttributes> replica, IPersonAttributes person) {
+        final String name = person.getName();
+        if (name == null) {
+            this.logger.warn("Ignoring person with no name from " + this.sourceDao + ": " + person);
+            return false;
+        }
+        
+        replica.put(name, person);
+        return true;
+    }
+    
+    private ChangeTracker createChangeTracker(Object highWaterMark) {
+        if (this.changeTrackingColumn == null) {
+            return null;
+        }
+        
+        return new ChangeTracker(this.changeTrackingColumn, highWaterMark);
+    }
+    
+    /**
+     * @return The replica, loading it if it has not been loaded yet
+     */
+    private Map<String, IPersonAttributes> getReplica() {
+        Map<String, IPersonAttributes> replica = this.replica;
+        if (replica == null) {
+            this.synchronize();
+            replica = this.replica;
+        }
+        
+        return replica;
+    }
+    
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
+     */
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+        Validate.notNull(query, "query may not be null.");
+        
+        final Map<String, IPersonAttributes> replica = this.getReplica();
+        final String usernameAttribute = this.getUsernameAttributeProvider().getUsernameAttribute();
+        
+        final List<QueryTerm> queryTerms = this.getQueryTerms(query, usernameAttribute);
+        if (queryTerms == null) {
+            this.logger.debug("No query terms would be generated by " + this.sourceDao + " for " + query + ", null will be returned");
+            return null;
+        }
+        
+        final boolean requireAllTerms = this.sourceDao.getQueryType() == QueryType.AND;
+        
+        //Direct lookup when every match must have the username
+        if (requireAllTerms) {
+            for (final QueryTerm queryTerm : queryTerms) {
+                if (queryTerm.username && queryTerm.pattern == null) {
+                    final IPersonAttributes person = replica.get(queryTerm.value);
+                    if (person == null || !this.matches(person, queryTerms, requireAllTerms)) {
+                        return null;
+                    }
+                    
+                    return Collections.singleton(person);
+                }
+            }
+        }
+        
+        final Set<IPersonAttributes> people = new LinkedHashSet<IPersonAttributes>();
+        for (final IPersonAttributes person : replica.values()) {
+            if (this.matches(person, queryTerms, requireAllTerms)) {
+                people.add(person);
+            }
+        }
+        
+        if (people.isEmpty()) {
+            return null;
+        }
+        
+        return people;
+    }
+    
+    /**
+     * Builds the terms the sourceDao would put in the WHERE clause for the query, one per non-blank value of each
+     * query attribute it uses.
+     * 
+     * @return The terms, null if the sourceDao would not run the query. Empty if the sourceDao would run the query
+     * without a WHERE clause, which every person matches.
+     */
+    private List<QueryTerm> getQueryTerms(Map<String, List<Object>> query, String usernameAttribute) {
+        final List<QueryTerm> queryTerms = new ArrayList<QueryTerm>();
+        
+        final Map<String, Set<String>> queryAttributeMapping = this.sourceDao.getQueryAttributeMapping();
+        if (queryAttributeMapping != null) {
+            for (final Map.Entry<String, Set<String>> queryAttrEntry : queryAttributeMapping.entrySet()) {
+                final String queryAttr = queryAttrEntry.getKey();
+                final List<Object> queryValues = query.get(queryAttr);
+                if (queryValues != null) {
+                    final Set<String> dataAttributes = queryAttrEntry.getValue();
+                    if (dataAttributes == null || !dataAttributes.isEmpty()) {
+                        this.addQueryTerms(queryTerms, queryAttr, queryValues, usernameAttribute);
+                    }
+                }
+                else if (this.sourceDao.isRequireAllQueryAttributes()) {
+                    return null;
+                }
+            }
+        }
+        else if (this.sourceDao.isUseAllQueryAttributes()) {
+            for (final Map.Entry<String, List<Object>> queryAttrEntry : query.entrySet()) {
+                this.addQueryTerms(queryTerms, queryAttrEntry.getKey(), queryAttrEntry.getValue(), usernameAttribute);
+            }
+        }
+        else {
+            return queryTerms;
+        }
+        
+        if (queryTerms.isEmpty()) {
+            return null;
+        }
+        
+        return queryTerms;
+    }
+    
+    private void addQueryTerms(List<QueryTerm> queryTerms, String attribute, List<Object> queryValues, String usernameAttribute) {
+        if (queryValues == null) {
+            return;
+        }
+        
+        for (final Object queryValue : queryValues) {
+            final String queryString = queryValue != null ? queryValue.toString() : null;
+            if (StringUtils.isNotBlank(queryString)) {
+                queryTerms.add(new QueryTerm(attribute, usernameAttribute.equals(attribute), queryString));
+            }
+        }
+    }
+    
+    /**
+     * @return true if the person matches all of the terms, or any of them if requireAllTerms is false
+     */
+    private boolean matches(IPersonAttributes person, List<QueryTerm> queryTerms, boolean requireAllTerms) {
+        if (queryTerms.isEmpty()) {
+            return true;
+        }
+        
+        for (final QueryTerm queryTerm : queryTerms) {
+            if (queryTerm.matches(person) != requireAllTerms) {
+                return !requireAllTerms;
+            }
+        }
+        
+        return requireAllTerms;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getPossibleUserAttributeNames()
+     */
+    public Set<String> getPossibleUserAttributeNames() {
+        return this.possibleUserAttributeNames;
+    }
+
+    /**
+     * The replica answers the same queries as the sourceDao, so it has the same query attributes.
+     * 
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getAvailableQueryAttributes()
+     */
+    public Set<String> getAvailableQueryAttributes() {
+        return this.sourceDao.getAvailableQueryAttributes();
+    }
+    
+    
+    /**
+     * Tracks the highest value of the change tracking column seen in the rows of a scan.
+     */
+    private static final class ChangeTracker implements RowCallbackHandler {
+        private final String changeTrackingColumn;
+        private int columnIndex = 0;
+        private Object highWaterMark;
+        
+        public ChangeTracker(String changeTrackingColumn, Object highWaterMark) {
+            this.changeTrackingColumn = changeTrackingColumn;
+            this.highWaterMark = highWaterMark;
+        }
+
+        /* (non-Javadoc)
+         * @see org.springframework.jdbc.core.RowCallbackHandler#processRow(java.sql.ResultSet)
+         */
+        @SuppressWarnings("unchecked")
+        public void processRow(ResultSet rs) throws SQLException {
+            if (this.columnIndex == 0) {
+                this.columnIndex = rs.findColumn(this.changeTrackingColumn);
+            }
+            
+            final Object value = rs.getObject(this.columnIndex);
+            if (value == null) {
+                return;
+            }
+            
+            if (!(value instanceof Comparable)) {
+                throw new IllegalArgumentException("changeTrackingColumn '" + this.changeTrackingColumn + "' value '" + value + "' of type " + value.getClass().getName() + " is not Comparable");
+            }
+            
+            if (this.highWaterMark == null || ((Comparable<Object>)value).compareTo(this.highWaterMark) > 0) {
+                this.highWaterMark = value;
+            }
+        }
+    }
+    
+    /**
+     * Creates daemon threads so polling doesn't prevent the JVM from exiting.
+     */
+    private static final class PollThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, ReplicatingJdbcPersonAttributeDao.class.getSimpleName() + "-poll");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+    
+    /**
+     * A value one attribute of a person must match, the username attribute matches the person's name.
+     */
+    private static final class QueryTerm {
+        private final String attribute;
+        private final boolean username;
+        private final String value;
+        private final Pattern pattern;
+        
+        public QueryTerm(String attribute, boolean username, String value) {
+            this.attribute = attribute;
+            this.username = username;
+            this.value = value;
+            this.pattern = value.contains(IPersonAttributeDao.WILDCARD) ? PatternHelper.compilePattern(value) : null;
+        }
+        
+        public boolean matches(IPersonAttributes person) {
+            final List<Object> personValues;
+            if (this.username) {
+                personValues = Collections.singletonList((Object)person.getName());
+            }
+            else {
+                personValues = person.getAttributeValues(this.attribute);
+            }
+            
+            if (personValues == null) {
+                return false;
+            }
+            
+            for (final Object personValue : personValues) {
+                if (personValue == null) {
+                    continue;
+                }
+                
+                final String personString = String.valueOf(personValue);
+                if (this.pattern != null ? this.pattern.matcher(personString).matches() : this.value.equals(personString)) {
+                    return true;
+                }
+            }
+            
+            return false;
+        }
+    }
+}
@@ -66,8 +66,6 @@ import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
  * @since uPortal 2.5
  */
 public class SingleRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeDao<Map<String, Object>> {
-    private static final ParameterizedRowMapper<Map<String, Object>> MAPPER = new ColumnMapParameterizedRowMapper(true);
-
     /**
      * Creates a new MultiRowJdbcPersonAttributeDao specifying the DataSource and SQL to use.
      * 
@@ -84,7 +82,7 @@ public class SingleRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttribute
      */
     @Override
     protected ParameterizedRowMapper<Map<String, Object>> getRowMapper() {
-        return MAPPER;
+        return new ColumnMapParameterizedRowMapper(true, true);
     }
 
     
@@ -95,8 +93,20 @@ public class SingleRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttribute
     protected List<IPersonAttributes> parseAttributeMapFromResults(List<Map<String, Object>> queryResults, String queryUserName) {
         final List<IPersonAttributes> peopleAttributes = new ArrayList<IPersonAttributes>(queryResults.size());
         
+        //Rows from the default mapper already have multivalued values, only rows from an overridden mapper need converting
+        final ParameterizedRowMapper<Map<String, Object>> rowMapper = this.getRowMapper();
+        final boolean multivaluedResults = rowMapper instanceof ColumnMapParameterizedRowMapper && ((ColumnMapParameterizedRowMapper)rowMapper).isMultivalued();
+        
         for (final Map<String, Object> queryResult : queryResults) {
-            final Map<String, List<Object>> multivaluedQueryResult = MultivaluedPersonAttributeUtils.toMultivaluedMap(queryResult);
+            final Map<String, List<Object>> multivaluedQueryResult;
+            if (multivaluedResults) {
+                @SuppressWarnings("unchecked")
+                final Map<String, List<Object>> multivaluedColumnMap = (Map<String, List<Object>>)(Map<String, ?>)queryResult;
+                multivaluedQueryResult = multivaluedColumnMap;
+            }
+            else {
+                multivaluedQueryResult = MultivaluedPersonAttributeUtils.toMultivaluedMap(queryResult);
+            }
             
             final IPersonAttributes person;
             final String userNameAttribute = this.getConfiguredUserNameAttribute();
@@ -28,8 +28,7 @@ import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 
 import org.apache.commons.collections.EnumerationUtils;
-import org.apache.commons.collections.map.CaseInsensitiveMap;
-import org.apache.commons.collections.map.ListOrderedMap;
+import org.jasig.services.persondir.util.LinkedCaseInsensitiveMap;
 import org.springframework.ldap.core.AttributesMapper;
 
 /**
@@ -82,9 +81,8 @@ class AttributeMapAttributesMapper implements AttributesMapper {
      * @param attributeCount the attribute count, to be used as initial capacity for the Map
      * @return the new Map instance
      */
-    @SuppressWarnings("unchecked")
     protected Map<String, Object> createAttributeMap(int attributeCount) {
-        return ListOrderedMap.decorate(new CaseInsensitiveMap(attributeCount > 0 ? attributeCount : 1));
+        return new LinkedCaseInsensitiveMap<Object>(attributeCount);
     }
 
     /**
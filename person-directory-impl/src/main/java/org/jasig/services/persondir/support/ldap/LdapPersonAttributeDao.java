@@ -19,6 +19,7 @@
 
 package org.jasig.services.persondir.support.ldap;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -26,17 +27,28 @@ import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
 import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 
 import org.apache.commons.lang.StringUtils;
 import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.support.AbstractQueryPersonAttributeDao;
 import org.jasig.services.persondir.support.CaseInsensitiveAttributeNamedPersonImpl;
 import org.jasig.services.persondir.support.CaseInsensitiveNamedPersonImpl;
+import org.jasig.services.persondir.support.IPersonAttributesCallbackHandler;
+import org.jasig.services.persondir.support.IScanningPersonAttributeDao;
 import org.jasig.services.persondir.support.QueryType;
 import org.springframework.beans.factory.BeanCreationException;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.ContextExecutor;
 import org.springframework.ldap.core.ContextSource;
 import org.springframework.ldap.core.LdapTemplate;
 import org.springframework.ldap.filter.EqualsFilter;
@@ -48,6 +60,11 @@ import org.springframework.util.Assert;
  * LDAP implementation of {@link org.jasig.services.persondir.IPersonAttributeDao}.
  * 
  * In the case of multi valued attributes a {@link java.util.List} is set as the value.
+ * <br/>
+ * {@link #scanPeople(IPersonAttributesCallbackHandler)} searches with the <b>scanFilter</b> and passes each person to
+ * the callback as it is read. The search is split into pages of <b>pageSize</b> entries with the paged results
+ * control, all pages are read over the same connection. The control is not critical so a server that does not
+ * support it returns all entries in one page.
  * 
  * <br>
  * <br>
@@ -110,6 +127,23 @@ import org.springframework.util.Assert;
  *         <td valign="top">No</td>
  *         <td valign="top">null</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">scanFilter</td>
+ *         <td>
+ *             The filter used to find every person for {@link #scanPeople(IPersonAttributesCallbackHandler)}, it is
+ *             inserted into the queryTemplate if one is configured.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">(objectclass=*)</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">pageSize</td>
+ *         <td>
+ *             The number of entries to request per page when scanning, 0 or less to scan without paging.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">1000</td>
+ *     </tr>
  * </table>
  * 
  * @author andrew.petro@yale.edu
@@ -117,7 +151,7 @@ import org.springframework.util.Assert;
  * @version $Revision$ $Date$
  * @since uPortal 2.5
  */
-public class LdapPersonAttributeDao extends AbstractQueryPersonAttributeDao<LogicalFilterWrapper> implements InitializingBean {
+public class LdapPersonAttributeDao extends AbstractQueryPersonAttributeDao<LogicalFilterWrapper> implements IScanningPersonAttributeDao, InitializingBean {
     private static final Pattern QUERY_PLACEHOLDER = Pattern.compile("\\{0\\}");
     private final static AttributesMapper MAPPER = new AttributeMapAttributesMapper();
 
@@ -132,6 +166,8 @@ public class LdapPersonAttributeDao extends AbstractQueryPersonAttributeDao<Logi
     private SearchControls searchControls = new SearchControls();
     private boolean setReturningAttributes = true;
     private QueryType queryType = QueryType.AND;
+    private String scanFilter = "(objectclass=*)";
+    private int pageSize = 1000;
     
     
     public LdapPersonAttributeDao() {
@@ -182,6 +218,24 @@ public class LdapPersonAttributeDao extends AbstractQueryPersonAttributeDao<Logi
         return queryBuilder;
     }
 
+    /**
+     * Combines the filters with OR, filters that are empty are dropped.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractQueryPersonAttributeDao#combineQueries(java.util.List)
+     */
+    @Override
+    protected LogicalFilterWrapper combineQueries(List<LogicalFilterWrapper> queryBuilders) {
+        final LogicalFilterWrapper combinedQueryBuilder = new LogicalFilterWrapper(QueryType.OR);
+        
+        for (final LogicalFilterWrapper queryBuilder : queryBuilders) {
+            if (StringUtils.isNotBlank(queryBuilder.encode())) {
+                combinedQueryBuilder.append(queryBuilder);
+            }
+        }
+        
+        return combinedQueryBuilder;
+    }
+
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.support.AbstractQueryPersonAttributeDao#getPeopleForQuery(java.lang.Object, java.lang.String)
      */
@@ -195,17 +249,7 @@ public class LdapPersonAttributeDao extends AbstractQueryPersonAttributeDao<Logi
         }
         
         //Insert the generated query into the template if it is configured
-        final String ldapQuery;
-        if (this.queryTemplate == null) {
-            ldapQuery = generatedLdapQuery;
-        }
-        else {
-            final Matcher queryMatcher = QUERY_PLACEHOLDER.matcher(this.queryTemplate);
-            ldapQuery = queryMatcher.replaceAll(generatedLdapQuery);
-            if (logger.isDebugEnabled()) {
-                logger.debug("Final ldapQuery after applying queryTemplate: '" + ldapQuery + "'");
-            }
-        }
+        final String ldapQuery = this.applyQueryTemplate(generatedLdapQuery);
 
         //Execute the query
         @SuppressWarnings("unchecked")
@@ -213,32 +257,152 @@ public class LdapPersonAttributeDao extends AbstractQueryPersonAttributeDao<Logi
         
         final List<IPersonAttributes> peopleAttributes = new ArrayList<IPersonAttributes>(queryResults.size());
         for (final Map<String, List<Object>> queryResult : queryResults) {
-            final IPersonAttributes person;
-
-            // Choose a username from the best available option
-            final String userNameAttribute = this.getConfiguredUserNameAttribute();
-            if (this.isUserNameAttributeConfigured() && queryResult.containsKey(userNameAttribute)) {
-                // Option #1:  An attribute is named explicitly in the config, 
-                // and that attribute is present in the results from LDAP;  use it
-                person = new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, queryResult);
-            } else if (queryUserName != null) {
-                // Option #2:  Use the userName attribute provided in the query 
-                // parameters.  (NB:  I'm not entirely sure this choice is 
-                // preferable to Option #3.  Keeping it because it most closely 
-                // matches the legacy behavior there the new option -- Option #1 
-                // -- doesn't apply.  ~drewwills)
-                person = new CaseInsensitiveNamedPersonImpl(queryUserName, queryResult);
-            } else {
-                // Option #3:  Create the IPersonAttributes doing a best-guess 
-                // at a userName attribute
-                person = new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, queryResult);
-            }
-            
+            final IPersonAttributes person = this.createPerson(queryResult, queryUserName);
             peopleAttributes.add(person);
         }
         
         return peopleAttributes;
     }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.IScanningPersonAttributeDao#scanPeople(org.jasig.services.persondir.support.IPersonAttributesCallbackHandler)
+     */
+    public void scanPeople(final IPersonAttributesCallbackHandler callbackHandler) {
+        Assert.notNull(callbackHandler, "callbackHandler can not be null");
+        
+        final String ldapQuery = this.applyQueryTemplate(this.scanFilter);
+        
+        //All pages must be read from the same connection
+        this.ldapTemplate.executeReadOnly(new ContextExecutor() {
+            public Object executeWithContext(DirContext ctx) throws NamingException {
+                scanPeople(ctx, ldapQuery, callbackHandler);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Searches one page at a time, passing each entry to the callback handler as it is read.
+     */
+    private void scanPeople(DirContext ctx, String ldapQuery, IPersonAttributesCallbackHandler callbackHandler) throws NamingException {
+        final LdapContext pagedContext;
+        if (this.pageSize > 0 && ctx instanceof LdapContext) {
+            pagedContext = (LdapContext)ctx;
+        }
+        else {
+            if (this.pageSize > 0) {
+                this.logger.warn("Paged results require an LdapContext, scanning '" + ldapQuery + "' without paging");
+            }
+            pagedContext = null;
+        }
+        
+        int pages = 0;
+        byte[] cookie = null;
+        try {
+            do {
+                if (pagedContext != null) {
+                    pagedContext.setRequestControls(new Control[] { this.createPagedResultsControl(cookie) });
+                }
+                
+                final NamingEnumeration<SearchResult> results = ctx.search(this.baseDN, ldapQuery, this.searchControls);
+                try {
+                    while (results.hasMore()) {
+                        final SearchResult result = results.next();
+                        
+                        @SuppressWarnings("unchecked")
+                        final Map<String, List<Object>> attributes = (Map<String, List<Object>>)MAPPER.mapFromAttributes(result.getAttributes());
+                        
+                        final IPersonAttributes person = this.createPerson(attributes, null);
+                        callbackHandler.processPerson(this.mapPersonAttributes(person));
+                    }
+                }
+                finally {
+                    results.close();
+                }
+                pages++;
+                
+                cookie = pagedContext != null ? this.getPagedResultsCookie(pagedContext.getResponseControls()) : null;
+            } while (cookie != null && cookie.length > 0);
+        }
+        finally {
+            //Don't leave the paging control on a context that may be reused
+            if (pagedContext != null) {
+                pagedContext.setRequestControls(null);
+            }
+        }
+        
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Scanned '" + ldapQuery + "' in " + pages + " pages");
+        }
+    }
+    
+    private Control createPagedResultsControl(byte[] cookie) throws NamingException {
+        try {
+            return new PagedResultsControl(this.pageSize, cookie, Control.NONCRITICAL);
+        }
+        catch (IOException ioe) {
+            final NamingException ne = new NamingException("Failed to create paged results control");
+            ne.setRootCause(ioe);
+            throw ne;
+        }
+    }
+    
+    /**
+     * @return The cookie for the next page, null if there are no more pages
+     */
+    private byte[] getPagedResultsCookie(Control[] responseControls) {
+        if (responseControls == null) {
+            return null;
+        }
+        
+        for (final Control responseControl : responseControls) {
+            if (responseControl instanceof PagedResultsResponseControl) {
+                return ((PagedResultsResponseControl)responseControl).getCookie();
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Inserts the generated query into the template if it is configured
+     */
+    private String applyQueryTemplate(String generatedLdapQuery) {
+        if (this.queryTemplate == null) {
+            return generatedLdapQuery;
+        }
+        
+        final Matcher queryMatcher = QUERY_PLACEHOLDER.matcher(this.queryTemplate);
+        final String ldapQuery = queryMatcher.replaceAll(generatedLdapQuery);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Final ldapQuery after applying queryTemplate: '" + ldapQuery + "'");
+        }
+        
+        return ldapQuery;
+    }
+    
+    /**
+     * Creates the person for an entry, choosing a username from the best available option.
+     */
+    private IPersonAttributes createPerson(Map<String, List<Object>> queryResult, String queryUserName) {
+        final String userNameAttribute = this.getConfiguredUserNameAttribute();
+        if (this.isUserNameAttributeConfigured() && queryResult.containsKey(userNameAttribute)) {
+            // Option #1:  An attribute is named explicitly in the config, 
+            // and that attribute is present in the results from LDAP;  use it
+            return new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, queryResult);
+        } else if (queryUserName != null) {
+            // Option #2:  Use the userName attribute provided in the query 
+            // parameters.  (NB:  I'm not entirely sure this choice is 
+            // preferable to Option #3.  Keeping it because it most closely 
+            // matches the legacy behavior there the new option -- Option #1 
+            // -- doesn't apply.  ~drewwills)
+            return new CaseInsensitiveNamedPersonImpl(queryUserName, queryResult);
+        } else {
+            // Option #3:  Create the IPersonAttributes doing a best-guess 
+            // at a userName attribute
+            return new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, queryResult);
+        }
+    }
 
     /**
      * @see javax.naming.directory.SearchControls#getTimeLimit()
@@ -341,4 +505,35 @@ public class LdapPersonAttributeDao extends AbstractQueryPersonAttributeDao<Logi
     public void setQueryTemplate(String queryTemplate) {
         this.queryTemplate = queryTemplate;
     }
+
+    /**
+     * @return the scanFilter
+     */
+    public String getScanFilter() {
+        return this.scanFilter;
+    }
+    /**
+     * The filter used to find every person when scanning, inserted into the queryTemplate if one is configured.
+     * 
+     * @param scanFilter the scanFilter to set
+     */
+    public void setScanFilter(String scanFilter) {
+        Assert.hasText(scanFilter, "scanFilter can not be empty");
+        this.scanFilter = scanFilter;
+    }
+
+    /**
+     * @return the pageSize
+     */
+    public int getPageSize() {
+        return this.pageSize;
+    }
+    /**
+     * The number of entries to request per page when scanning, 0 or less to scan without paging.
+     * 
+     * @param pageSize the pageSize to set
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
 }
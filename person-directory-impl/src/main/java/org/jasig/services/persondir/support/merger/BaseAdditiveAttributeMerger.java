@@ -123,6 +123,9 @@ public abstract class BaseAdditiveAttributeMerger implements IAttributeMerger {
      * may or may not be the same reference as the "toModify" argument. The modification performed is
      * implementation-specific -- implementations of this interface exist to perform some particular transformation on
      * the toModify argument given the toConsider argument.
+     * <br/>
+     * {@link MergeAccumulator} calls this repeatedly with the same toModify Map. The Map and the Lists created by
+     * {@link #buildMutableAttributeMap(Map)} may be modified, Lists taken from toConsider must not be.
      * 
      * @param toModify - modify this map
      * @param toConsider - in consideration of this map
@@ -0,0 +1,177 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.merger;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.Validate;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.NamedPersonImpl;
+
+/**
+ * Merges the results of a series of queries, such as those of the child DAOs of an aggregating DAO, into one set
+ * of people. Results are merged in the order they are added with {@link #merge(Set)}.
+ * <br/>
+ * With a {@link BaseAdditiveAttributeMerger} each person is kept as a mutable attribute {@link Map} that all later
+ * results are merged into, the attributes are copied once when a second result for the person is merged and an
+ * immutable person is only built when {@link #toPeople()} is called. Other {@link IAttributeMerger}s are called
+ * through {@link IAttributeMerger#mergeResults(Set, Set)} for each result.
+ * <br/>
+ * Not thread safe, an accumulator is meant to be used by a single query.
+ * 
+ * @version $Revision$
+ */
+public class MergeAccumulator {
+    private final IAttributeMerger attributeMerger;
+    private final BaseAdditiveAttributeMerger additiveMerger;
+    
+    /*
+     * People merged by the additiveMerger, by name, in the order they were first found
+     */
+    private final Map<String, MergedPerson> people = new LinkedHashMap<String, MergedPerson>();
+    
+    /*
+     * People merged by any other IAttributeMerger
+     */
+    private Set<IPersonAttributes> mergedPeople = null;
+    
+    private boolean hasResults = false;
+    private Set<IPersonAttributes> frozenPeople = null;
+
+    /**
+     * @param attributeMerger The merger to merge results with
+     */
+    public MergeAccumulator(IAttributeMerger attributeMerger) {
+        Validate.notNull(attributeMerger, "attributeMerger can not be null");
+        
+        this.attributeMerger = attributeMerger;
+        if (attributeMerger instanceof BaseAdditiveAttributeMerger) {
+            this.additiveMerger = (BaseAdditiveAttributeMerger)attributeMerger;
+        }
+        else {
+            this.additiveMerger = null;
+        }
+    }
+    
+    /**
+     * Merges the people into the results so far. The people and their attributes are not modified.
+     * 
+     * @param toConsider The people to merge, null is ignored
+     */
+    public void merge(Set<IPersonAttributes> toConsider) {
+        if (toConsider == null) {
+            return;
+        }
+        
+        this.frozenPeople = null;
+        
+        if (this.additiveMerger == null) {
+            if (this.mergedPeople == null) {
+                //If this is the first valid result set just use it.
+                this.mergedPeople = new LinkedHashSet<IPersonAttributes>(toConsider);
+            }
+            else {
+                this.mergedPeople = this.attributeMerger.mergeResults(this.mergedPeople, toConsider);
+            }
+            
+            this.hasResults = true;
+            return;
+        }
+        
+        this.hasResults = true;
+        
+        for (final IPersonAttributes toConsiderPerson : toConsider) {
+            final String name = toConsiderPerson.getName();
+            final MergedPerson mergedPerson = this.people.get(name);
+            
+            //No matching person, keep the new person as is until there is something to merge into it
+            if (mergedPerson == null) {
+                this.people.put(name, new MergedPerson(toConsiderPerson));
+                continue;
+            }
+            
+            //First merge for the person since it was added or frozen, take a mutable copy of its attributes
+            if (mergedPerson.attributes == null) {
+                mergedPerson.attributes = this.additiveMerger.buildMutableAttributeMap(mergedPerson.person.getAttributes());
+                mergedPerson.person = null;
+            }
+            
+            mergedPerson.attributes = this.additiveMerger.mergePersonAttributes(mergedPerson.attributes, toConsiderPerson.getAttributes());
+        }
+    }
+    
+    /**
+     * @return true if at least one non-null result has been merged
+     */
+    public boolean hasResults() {
+        return this.hasResults;
+    }
+    
+    /**
+     * Builds the merged people. The returned people are not changed by later calls to {@link #merge(Set)}, the
+     * accumulator copies the attributes of a person again if more results are merged into it.
+     * 
+     * @return An unmodifiable {@link Set} of the merged people, null if no non-null results have been merged
+     */
+    public Set<IPersonAttributes> toPeople() {
+        if (!this.hasResults) {
+            return null;
+        }
+        
+        if (this.frozenPeople == null) {
+            if (this.additiveMerger == null) {
+                this.frozenPeople = Collections.unmodifiableSet(new LinkedHashSet<IPersonAttributes>(this.mergedPeople));
+            }
+            else {
+                final Set<IPersonAttributes> frozenPeople = new LinkedHashSet<IPersonAttributes>();
+                for (final Map.Entry<String, MergedPerson> mergedPersonEntry : this.people.entrySet()) {
+                    final MergedPerson mergedPerson = mergedPersonEntry.getValue();
+                    if (mergedPerson.person == null) {
+                        mergedPerson.person = new NamedPersonImpl(mergedPersonEntry.getKey(), mergedPerson.attributes);
+                        mergedPerson.attributes = null;
+                    }
+                    
+                    frozenPeople.add(mergedPerson.person);
+                }
+                
+                this.frozenPeople = Collections.unmodifiableSet(frozenPeople);
+            }
+        }
+        
+        return this.frozenPeople;
+    }
+    
+    /**
+     * A person being merged, either an unchanged person or the mutable attributes merged so far.
+     */
+    private static final class MergedPerson {
+        private IPersonAttributes person;
+        private Map<String, List<Object>> attributes = null;
+        
+        public MergedPerson(IPersonAttributes person) {
+            this.person = person;
+        }
+    }
+}
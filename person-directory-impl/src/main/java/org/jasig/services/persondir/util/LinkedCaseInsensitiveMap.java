@@ -0,0 +1,452 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.util;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Insertion ordered {@link Map} with case insensitive String keys, a replacement for
+ * <code>ListOrderedMap.decorate(new CaseInsensitiveMap())</code> that doesn't create a lower case copy of the key
+ * on every call.
+ * <br/>
+ * The hash of each key is computed from its case folded characters when it is added and stored with the entry,
+ * lookups compare keys character by character ignoring case. Keys keep the case they were first added with and are
+ * pooled, so lookups with the same attribute name String usually match on identity. Iteration follows insertion
+ * order, replacing the value of an existing key doesn't change its position or case.
+ * <br/>
+ * Null keys and values are allowed. Not thread safe.
+ * 
+ * @version $Revision$
+ */
+public class LinkedCaseInsensitiveMap<V> extends AbstractMap<String, V> implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private static final int MINIMUM_CAPACITY = 4;
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+    
+    /*
+     * Canonical instances of keys, attribute and column names are a small set so the pool is bounded rather than
+     * evicted. String.intern() is not used as it is several times slower than a put.
+     */
+    private static final int MAXIMUM_CANONICAL_KEYS = 10000;
+    private static final ConcurrentMap<String, String> CANONICAL_KEYS = new ConcurrentHashMap<String, String>();
+    
+    /*
+     * Hash table of entries and the head of the circular insertion order list, rebuilt on deserialization
+     */
+    private transient Entry<V>[] table;
+    private transient Entry<V> header;
+    private transient int size;
+    private transient int modCount;
+    
+    public LinkedCaseInsensitiveMap() {
+        this(MINIMUM_CAPACITY);
+    }
+    
+    /**
+     * @param expectedSize The number of keys the map is expected to hold
+     */
+    public LinkedCaseInsensitiveMap(int expectedSize) {
+        this.init(expectedSize);
+    }
+    
+    /**
+     * @param map The Map to copy the entries of, in its iteration order
+     */
+    public LinkedCaseInsensitiveMap(Map<? extends String, ? extends V> map) {
+        this(map.size());
+        this.putAll(map);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void init(int expectedSize) {
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity < MAXIMUM_CAPACITY && capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        
+        this.table = (Entry<V>[]) new Entry<?>[capacity];
+        this.header = new Entry<V>(null, 0, null, null);
+        this.header.before = this.header;
+        this.header.after = this.header;
+        this.size = 0;
+    }
+    
+    /**
+     * @return The hash of the key with the case of each character folded the same way {@link String#equalsIgnoreCase(String)} ignores it
+     */
+    static int foldedHash(String key) {
+        if (key == null) {
+            return 0;
+        }
+        
+        int hash = 0;
+        for (int index = 0; index < key.length(); index++) {
+            hash = 31 * hash + foldCase(key.charAt(index));
+        }
+        
+        //Spread the high bits down as the table index only uses the low bits
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        return hash ^ (hash >>> 7) ^ (hash >>> 4);
+    }
+    
+    private static char foldCase(char c) {
+        if (c < 128) {
+            if (c >= 'A' && c <= 'Z') {
+                return (char)(c + ('a' - 'A'));
+            }
+            return c;
+        }
+        
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+    
+    /**
+     * @return The canonical instance of the key, the key itself if the pool is full
+     */
+    static String canonicalize(String key) {
+        if (key == null) {
+            return null;
+        }
+        
+        final String canonicalKey = CANONICAL_KEYS.get(key);
+        if (canonicalKey != null) {
+            return canonicalKey;
+        }
+        
+        if (CANONICAL_KEYS.size() >= MAXIMUM_CANONICAL_KEYS) {
+            return key;
+        }
+        
+        final String existingKey = CANONICAL_KEYS.putIfAbsent(key, key);
+        return existingKey != null ? existingKey : key;
+    }
+    
+    private static boolean foldedEquals(String key, String otherKey) {
+        if (key == otherKey) {
+            return true;
+        }
+        if (key == null || otherKey == null || key.length() != otherKey.length()) {
+            return false;
+        }
+        
+        for (int index = 0; index < key.length(); index++) {
+            final char c = key.charAt(index);
+            final char otherC = otherKey.charAt(index);
+            if (c != otherC && foldCase(c) != foldCase(otherC)) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private Entry<V> getEntry(Object key) {
+        if (key != null && !(key instanceof String)) {
+            return null;
+        }
+        
+        final String stringKey = (String)key;
+        final int hash = foldedHash(stringKey);
+        for (Entry<V> entry = this.table[hash & (this.table.length - 1)]; entry != null; entry = entry.next) {
+            if (entry.hash == hash && foldedEquals(entry.key, stringKey)) {
+                return entry;
+            }
+        }
+        
+        return null;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public int size() {
+        return this.size;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#containsKey(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return this.getEntry(key) != null;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#get(java.lang.Object)
+     */
+    @Override
+    public V get(Object key) {
+        final Entry<V> entry = this.getEntry(key);
+        if (entry == null) {
+            return null;
+        }
+        
+        return entry.value;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public V put(String key, V value) {
+        final int hash = foldedHash(key);
+        final int index = hash & (this.table.length - 1);
+        for (Entry<V> entry = this.table[index]; entry != null; entry = entry.next) {
+            if (entry.hash == hash && foldedEquals(entry.key, key)) {
+                final V oldValue = entry.value;
+                entry.value = value;
+                return oldValue;
+            }
+        }
+        
+        final String canonicalKey = canonicalize(key);
+        final Entry<V> entry = new Entry<V>(canonicalKey, hash, value, this.table[index]);
+        this.table[index] = entry;
+        
+        entry.after = this.header;
+        entry.before = this.header.before;
+        entry.before.after = entry;
+        this.header.before = entry;
+        
+        this.size++;
+        this.modCount++;
+        
+        if (this.size > this.table.length * 3 / 4 && this.table.length < MAXIMUM_CAPACITY) {
+            this.resize(this.table.length << 1);
+        }
+        
+        return null;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void resize(int capacity) {
+        final Entry<V>[] newTable = (Entry<V>[]) new Entry<?>[capacity];
+        for (Entry<V> entry = this.header.after; entry != this.header; entry = entry.after) {
+            final int index = entry.hash & (capacity - 1);
+            entry.next = newTable[index];
+            newTable[index] = entry;
+        }
+        this.table = newTable;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#remove(java.lang.Object)
+     */
+    @Override
+    public V remove(Object key) {
+        final Entry<V> entry = this.getEntry(key);
+        if (entry == null) {
+            return null;
+        }
+        
+        this.removeEntry(entry);
+        return entry.value;
+    }
+    
+    private void removeEntry(Entry<V> entry) {
+        final int index = entry.hash & (this.table.length - 1);
+        if (this.table[index] == entry) {
+            this.table[index] = entry.next;
+        }
+        else {
+            Entry<V> previous = this.table[index];
+            while (previous.next != entry) {
+                previous = previous.next;
+            }
+            previous.next = entry.next;
+        }
+        
+        entry.before.after = entry.after;
+        entry.after.before = entry.before;
+        
+        this.size--;
+        this.modCount++;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public void clear() {
+        for (int index = 0; index < this.table.length; index++) {
+            this.table[index] = null;
+        }
+        this.header.before = this.header;
+        this.header.after = this.header;
+        this.size = 0;
+        this.modCount++;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        return new AbstractSet<Map.Entry<String, V>>() {
+            @Override
+            public Iterator<Map.Entry<String, V>> iterator() {
+                return new EntryIterator();
+            }
+            
+            @Override
+            public int size() {
+                return size;
+            }
+            
+            @Override
+            public void clear() {
+                LinkedCaseInsensitiveMap.this.clear();
+            }
+        };
+    }
+    
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(this.size);
+        for (Entry<V> entry = this.header.after; entry != this.header; entry = entry.after) {
+            out.writeObject(entry.key);
+            out.writeObject(entry.value);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        final int entryCount = in.readInt();
+        this.init(entryCount);
+        for (int entry = 0; entry < entryCount; entry++) {
+            final String key = (String)in.readObject();
+            final V value = (V)in.readObject();
+            this.put(key, value);
+        }
+    }
+    
+    private final class EntryIterator implements Iterator<Map.Entry<String, V>> {
+        private Entry<V> nextEntry = header.after;
+        private Entry<V> lastReturned = null;
+        private int expectedModCount = modCount;
+        
+        public boolean hasNext() {
+            return this.nextEntry != header;
+        }
+
+        public Map.Entry<String, V> next() {
+            if (modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (this.nextEntry == header) {
+                throw new NoSuchElementException();
+            }
+            
+            this.lastReturned = this.nextEntry;
+            this.nextEntry = this.nextEntry.after;
+            return this.lastReturned;
+        }
+
+        public void remove() {
+            if (this.lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            if (modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            
+            removeEntry(this.lastReturned);
+            this.lastReturned = null;
+            this.expectedModCount = modCount;
+        }
+    }
+    
+    private static final class Entry<V> implements Map.Entry<String, V> {
+        private final String key;
+        private final int hash;
+        private V value;
+        
+        /*
+         * Next entry in the same hash bucket
+         */
+        private Entry<V> next;
+        
+        /*
+         * Neighbours in insertion order
+         */
+        private Entry<V> before;
+        private Entry<V> after;
+        
+        public Entry(String key, int hash, V value, Entry<V> next) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+
+        public V getValue() {
+            return this.value;
+        }
+
+        public V setValue(V value) {
+            final V oldValue = this.value;
+            this.value = value;
+            return oldValue;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Map.Entry)) {
+                return false;
+            }
+            
+            final Map.Entry<?, ?> other = (Map.Entry<?, ?>)obj;
+            return (this.key == null ? other.getKey() == null : this.key.equals(other.getKey()))
+                && (this.value == null ? other.getValue() == null : this.value.equals(other.getValue()));
+        }
+        
+        @Override
+        public int hashCode() {
+            return (this.key == null ? 0 : this.key.hashCode()) ^ (this.value == null ? 0 : this.value.hashCode());
+        }
+        
+        @Override
+        public String toString() {
+            return this.key + "=" + this.value;
+        }
+    }
+}
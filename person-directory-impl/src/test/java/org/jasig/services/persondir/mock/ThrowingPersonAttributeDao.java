@@ -19,6 +19,7 @@
 
 package org.jasig.services.persondir.mock;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -60,6 +61,13 @@ public class ThrowingPersonAttributeDao implements IPersonAttributeDao {
         throw new RuntimeException("ThrowingPersonAttributeDao always throws");
     }
 
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleForUids(java.util.Collection)
+     */
+    public Map<String, IPersonAttributes> getPeopleForUids(Collection<String> uids) {
+        throw new RuntimeException("ThrowingPersonAttributeDao always throws");
+    }
+
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.IPersonAttributeDao#getPossibleUserAttributeNames()
      */
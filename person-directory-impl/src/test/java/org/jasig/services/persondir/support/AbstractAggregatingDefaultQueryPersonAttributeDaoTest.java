@@ -26,6 +26,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
@@ -52,6 +56,13 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDaoTest exte
     protected abstract AbstractAggregatingDefaultQueryPersonAttributeDao getConfiguredAbstractAggregatingDefaultQueryPersonAttributeDao();
 
     protected abstract AbstractAggregatingDefaultQueryPersonAttributeDao getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+    
+    /**
+     * @return An empty DAO whose circuit breakers use {@link #circuitBreakerTime} as the current time
+     */
+    protected abstract AbstractAggregatingDefaultQueryPersonAttributeDao getClockedAbstractAggregatingDefaultQueryPersonAttributeDao();
+    
+    protected volatile long circuitBreakerTime = 0;
  
     
     public void testGetPossibleNamesWithException() {
@@ -178,4 +189,390 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDaoTest exte
         dao.setRecoverExceptions(true);
         assertTrue(dao.isRecoverExceptions());
     }
+    
+    public void testChildQueryTimeout() {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+        
+        final Map<String, List<Object>> attrMap1 = new HashMap<String, List<Object>>();
+        attrMap1.put("username", Util.list("test"));
+        attrMap1.put("key1.1", Util.list("val1.1"));
+        
+        final Map<String, List<Object>> attrMap2 = new HashMap<String, List<Object>>();
+        attrMap2.put("username", Util.list("test"));
+        attrMap2.put("key2.1", Util.list("val2.1"));
+        
+        final SleepingPersonAttributeDao slowDao = new SleepingPersonAttributeDao(30000, attrMap2);
+        final List<IPersonAttributeDao> childDaos = new ArrayList<IPersonAttributeDao>(2);
+        childDaos.add(new StubPersonAttributeDao(attrMap1));
+        childDaos.add(slowDao);
+        dao.setPersonAttributeDaos(childDaos);
+        dao.setChildQueryTimeouts(Collections.<IPersonAttributeDao, Long>singletonMap(slowDao, 100l));
+        
+        final ExecutorService queryExecutor = Executors.newCachedThreadPool();
+        try {
+            dao.setQueryExecutor(queryExecutor);
+            
+            final long start = System.currentTimeMillis();
+            final IPersonAttributes person = dao.getPerson("test");
+            assertTrue("Query should not wait for the slow DAO", System.currentTimeMillis() - start < 10000);
+            assertEquals(attrMap1, person.getAttributes());
+            
+            dao.setRecoverExceptions(false);
+            try {
+                dao.getPerson("test");
+                fail("Timeout should be thrown when recoverExceptions is false");
+            }
+            catch (RuntimeException re) {
+                //expected
+            }
+        }
+        finally {
+            queryExecutor.shutdownNow();
+        }
+    }
+    
+    public void testQueryTimeoutPassedToNestedDao() {
+        final Map<String, List<Object>> attrMap1 = new HashMap<String, List<Object>>();
+        attrMap1.put("username", Util.list("test"));
+        attrMap1.put("key1.1", Util.list("val1.1"));
+        
+        final Map<String, List<Object>> attrMap2 = new HashMap<String, List<Object>>();
+        attrMap2.put("username", Util.list("test"));
+        attrMap2.put("key2.1", Util.list("val2.1"));
+        
+        final ExecutorService queryExecutor = Executors.newCachedThreadPool();
+        try {
+            //The nested DAO has no timeout of its own but can enforce the outer deadline with its executor
+            final AbstractAggregatingDefaultQueryPersonAttributeDao nestedDao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+            nestedDao.setPersonAttributeDaos(Util.genList((IPersonAttributeDao)new SleepingPersonAttributeDao(30000, attrMap2)));
+            nestedDao.setQueryExecutor(queryExecutor);
+            
+            final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+            dao.setPersonAttributeDaos(Util.genList((IPersonAttributeDao)new StubPersonAttributeDao(attrMap1), nestedDao));
+            dao.setQueryTimeout(200);
+            
+            final long start = System.currentTimeMillis();
+            final IPersonAttributes person = dao.getPerson("test");
+            assertTrue("Query should not wait for the slow DAO", System.currentTimeMillis() - start < 10000);
+            assertEquals(attrMap1, person.getAttributes());
+        }
+        finally {
+            queryExecutor.shutdownNow();
+        }
+    }
+    
+    public void testQueryTimeoutWithoutExecutor() {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+        
+        final Map<String, List<Object>> attrMap1 = new HashMap<String, List<Object>>();
+        attrMap1.put("username", Util.list("test"));
+        attrMap1.put("key1.1", Util.list("val1.1"));
+        
+        final Map<String, List<Object>> attrMap2 = new HashMap<String, List<Object>>();
+        attrMap2.put("username", Util.list("test"));
+        attrMap2.put("key2.1", Util.list("val2.1"));
+        
+        //Without an executor, such as in a nested DAO, the deadline is checked before each child is queried
+        final StubPersonAttributeDao skippedDao = new StubPersonAttributeDao(attrMap2);
+        dao.setPersonAttributeDaos(Util.genList((IPersonAttributeDao)new SleepingPersonAttributeDao(300, attrMap1), skippedDao));
+        dao.setQueryTimeout(100);
+        
+        final IPersonAttributes person = dao.getPerson("test");
+        assertEquals(attrMap1, person.getAttributes());
+    }
+    
+    public void testTimeoutRequiresQueryExecutor() throws Exception {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+        dao.setPersonAttributeDaos(Collections.<IPersonAttributeDao>emptyList());
+        dao.afterPropertiesSet();
+        
+        dao.setQueryTimeout(100);
+        this.assertAfterPropertiesSetFails(dao);
+        dao.setQueryTimeout(0);
+        
+        dao.setChildQueryTimeout(100);
+        this.assertAfterPropertiesSetFails(dao);
+        dao.setChildQueryTimeout(0);
+        
+        dao.setChildQueryTimeouts(Collections.<IPersonAttributeDao, Long>singletonMap(new StubPersonAttributeDao(), 100l));
+        this.assertAfterPropertiesSetFails(dao);
+        
+        final ExecutorService queryExecutor = Executors.newCachedThreadPool();
+        try {
+            dao.setQueryExecutor(queryExecutor);
+            dao.afterPropertiesSet();
+        }
+        finally {
+            queryExecutor.shutdownNow();
+        }
+    }
+    
+    private void assertAfterPropertiesSetFails(AbstractAggregatingDefaultQueryPersonAttributeDao dao) throws Exception {
+        try {
+            dao.afterPropertiesSet();
+            fail("IllegalStateException should have been thrown with a timeout and no queryExecutor");
+        }
+        catch (IllegalStateException ise) {
+            //expected
+        }
+    }
+    
+    public void testHangingChild() throws Exception {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+        
+        final Map<String, List<Object>> attrMap1 = new HashMap<String, List<Object>>();
+        attrMap1.put("username", Util.list("test"));
+        attrMap1.put("key1.1", Util.list("val1.1"));
+        
+        final Map<String, List<Object>> attrMap2 = new HashMap<String, List<Object>>();
+        attrMap2.put("username", Util.list("test"));
+        attrMap2.put("key2.1", Util.list("val2.1"));
+        
+        //The hanging child is skipped after its timeout and the following child is still queried
+        final SleepingPersonAttributeDao hangingDao = new SleepingPersonAttributeDao(30000, attrMap1);
+        dao.setPersonAttributeDaos(Util.genList((IPersonAttributeDao)hangingDao, new StubPersonAttributeDao(attrMap2)));
+        dao.setChildQueryTimeouts(Collections.<IPersonAttributeDao, Long>singletonMap(hangingDao, 100l));
+        
+        final ExecutorService queryExecutor = Executors.newCachedThreadPool();
+        try {
+            dao.setQueryExecutor(queryExecutor);
+            dao.afterPropertiesSet();
+            
+            final long start = System.currentTimeMillis();
+            final IPersonAttributes person = dao.getPerson("test");
+            assertTrue("Query should not wait for the hanging DAO", System.currentTimeMillis() - start < 10000);
+            assertEquals(attrMap2, person.getAttributes());
+            
+            final Map<String, IPersonAttributes> people = dao.getPeopleForUids(Util.genList("test", "other"));
+            assertTrue("Query should not wait for the hanging DAO", System.currentTimeMillis() - start < 20000);
+            assertEquals(attrMap2, people.get("test").getAttributes());
+        }
+        finally {
+            queryExecutor.shutdownNow();
+        }
+    }
+    
+    public void testCircuitBreaker() throws Exception {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getClockedAbstractAggregatingDefaultQueryPersonAttributeDao();
+        
+        final Map<String, List<Object>> attrMap1 = new HashMap<String, List<Object>>();
+        attrMap1.put("username", Util.list("test"));
+        attrMap1.put("key1.1", Util.list("val1.1"));
+        
+        final Map<String, List<Object>> attrMap2 = new HashMap<String, List<Object>>();
+        attrMap2.put("username", Util.list("test"));
+        attrMap2.put("key2.1", Util.list("val2.1"));
+        
+        final FailingPersonAttributeDao failingDao = new FailingPersonAttributeDao(attrMap1);
+        dao.setPersonAttributeDaos(Util.genList((IPersonAttributeDao)failingDao, new StubPersonAttributeDao(attrMap2)));
+        dao.setCircuitBreakerFailureThreshold(2);
+        dao.setCircuitBreakerOpenTime(100);
+        
+        //Two failures open the breaker, after that the failing child is skipped
+        failingDao.failing = true;
+        for (int query = 0; query < 4; query++) {
+            assertEquals(attrMap2, dao.getPerson("test").getAttributes());
+        }
+        assertEquals(2, failingDao.queries);
+        
+        final CircuitBreaker circuitBreaker = dao.getCircuitBreakers().get(failingDao);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertEquals(2, circuitBreaker.getFailures());
+        assertEquals(2, circuitBreaker.getRejectedCalls());
+        assertEquals(1, circuitBreaker.getTimesOpened());
+        
+        //After the open time a probe is let through, it succeeds and closes the breaker
+        this.circuitBreakerTime += 100;
+        failingDao.failing = false;
+        
+        final IPersonAttributes person = dao.getPerson("test");
+        assertEquals(Util.list("val1.1"), person.getAttributeValues("key1.1"));
+        assertEquals(Util.list("val2.1"), person.getAttributeValues("key2.1"));
+        assertEquals(3, failingDao.queries);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertEquals(1, circuitBreaker.getSuccesses());
+        assertEquals(1, circuitBreaker.getTimesHalfOpened());
+        assertEquals(1, circuitBreaker.getTimesClosed());
+        
+        //Changing the configuration replaces the breakers
+        dao.setCircuitBreakerFailureThreshold(0);
+        assertEquals(Collections.emptyMap(), dao.getCircuitBreakers());
+        dao.getPerson("test");
+        assertEquals(Collections.emptyMap(), dao.getCircuitBreakers());
+    }
+    
+    public void testCircuitBreakerCountsTimeouts() throws Exception {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+        
+        final Map<String, List<Object>> attrMap1 = new HashMap<String, List<Object>>();
+        attrMap1.put("username", Util.list("test"));
+        attrMap1.put("key1.1", Util.list("val1.1"));
+        
+        final SleepingPersonAttributeDao sleepingDao = new SleepingPersonAttributeDao(1000, attrMap1);
+        dao.setPersonAttributeDaos(Util.genList((IPersonAttributeDao)sleepingDao));
+        dao.setChildQueryTimeout(50);
+        dao.setCircuitBreakerFailureThreshold(1);
+        
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            dao.setQueryExecutor(executor);
+            
+            assertNull(dao.getPerson("test"));
+            
+            final CircuitBreaker circuitBreaker = dao.getCircuitBreakers().get(sleepingDao);
+            assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+            assertEquals(1, circuitBreaker.getFailures());
+            
+            //The open breaker skips the child without waiting for it
+            final long start = System.currentTimeMillis();
+            assertNull(dao.getPerson("test"));
+            assertTrue(System.currentTimeMillis() - start < 50);
+            assertEquals(1, circuitBreaker.getRejectedCalls());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    public void testRouteQueries() {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+        
+        final Map<String, List<Object>> attrMap1 = new HashMap<String, List<Object>>();
+        attrMap1.put("username", Util.list("test"));
+        attrMap1.put("key1.1", Util.list("val1.1"));
+        
+        final Map<String, List<Object>> attrMap2 = new HashMap<String, List<Object>>();
+        attrMap2.put("username", Util.list("test"));
+        attrMap2.put("key2.1", Util.list("val2.1"));
+        
+        //Only queries containing employeeId are routed to the first child, the second reports no query attributes
+        final FailingPersonAttributeDao employeeDao = new FailingPersonAttributeDao(attrMap2) {
+            @Override
+            public Set<String> getAvailableQueryAttributes() {
+                return Collections.singleton("employeeId");
+            }
+        };
+        dao.setPersonAttributeDaos(Util.genList((IPersonAttributeDao)employeeDao, new StubPersonAttributeDao(attrMap1)));
+        
+        dao.getPerson("test");
+        assertEquals(1, employeeDao.queries);
+        assertEquals(0, dao.getSkippedChildQueries());
+        
+        dao.setRouteQueries(true);
+        final IPersonAttributes person = dao.getPerson("test");
+        assertEquals(attrMap1, person.getAttributes());
+        assertEquals(1, employeeDao.queries);
+        assertEquals(1, dao.getSkippedChildQueries());
+        
+        final Map<String, List<Object>> query = new HashMap<String, List<Object>>();
+        query.put("username", Util.list("test"));
+        query.put("employeeId", Util.list("E123"));
+        dao.getPeopleWithMultivaluedAttributes(query);
+        assertEquals(2, employeeDao.queries);
+        assertEquals(1, dao.getSkippedChildQueries());
+    }
+    
+    public void testPeopleForUids() {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+        
+        final Map<String, Map<String, List<Object>>> backingMap1 = new HashMap<String, Map<String, List<Object>>>();
+        final Map<String, List<Object>> user1Attrs1 = new HashMap<String, List<Object>>();
+        user1Attrs1.put("username", Util.list("user1"));
+        user1Attrs1.put("key1", Util.list("val1.1"));
+        backingMap1.put("user1", user1Attrs1);
+        final Map<String, List<Object>> user2Attrs1 = new HashMap<String, List<Object>>();
+        user2Attrs1.put("username", Util.list("user2"));
+        user2Attrs1.put("key1", Util.list("val1.2"));
+        backingMap1.put("user2", user2Attrs1);
+        
+        final Map<String, Map<String, List<Object>>> backingMap2 = new HashMap<String, Map<String, List<Object>>>();
+        final Map<String, List<Object>> user1Attrs2 = new HashMap<String, List<Object>>();
+        user1Attrs2.put("username", Util.list("user1"));
+        user1Attrs2.put("key2", Util.list("val2.1"));
+        backingMap2.put("user1", user1Attrs2);
+        
+        dao.setPersonAttributeDaos(Util.genList((IPersonAttributeDao)new ComplexStubPersonAttributeDao(backingMap1), new ComplexStubPersonAttributeDao(backingMap2)));
+        
+        final Map<String, IPersonAttributes> people = dao.getPeopleForUids(Util.genList("user1", "user2", "nobody"));
+        assertEquals(2, people.size());
+        assertEquals("user1", people.get("user1").getName());
+        assertEquals(Util.list("val1.1"), people.get("user1").getAttributeValues("key1"));
+        assertEquals(Util.list("val2.1"), people.get("user1").getAttributeValues("key2"));
+        assertEquals(Util.list("val1.2"), people.get("user2").getAttributeValues("key1"));
+        assertNull(people.get("user2").getAttributeValues("key2"));
+    }
+    
+    public void testAsyncQuery() throws Exception {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+        
+        final Map<String, List<Object>> attrMap1 = new HashMap<String, List<Object>>();
+        attrMap1.put("username", Util.list("test"));
+        attrMap1.put("key1.1", Util.list("val1.1"));
+        
+        final Map<String, List<Object>> attrMap2 = new HashMap<String, List<Object>>();
+        attrMap2.put("username", Util.list("test"));
+        attrMap2.put("key2.1", Util.list("val2.1"));
+        
+        dao.setPersonAttributeDaos(Util.genList((IPersonAttributeDao)new StubPersonAttributeDao(attrMap1), new StubPersonAttributeDao(attrMap2)));
+        
+        final ExecutorService asyncExecutor = Executors.newSingleThreadExecutor();
+        dao.setAsyncExecutor(asyncExecutor);
+        try {
+            final Future<IPersonAttributes> future = dao.getPersonAsync("test");
+            final IPersonAttributes person = future.get(10, TimeUnit.SECONDS);
+            assertEquals("test", person.getName());
+            assertEquals(Util.list("val1.1"), person.getAttributeValues("key1.1"));
+            assertEquals(Util.list("val2.1"), person.getAttributeValues("key2.1"));
+        }
+        finally {
+            asyncExecutor.shutdown();
+        }
+    }
+    
+    /**
+     * Throws while failing is true, otherwise returns the backing map. Counts the queries it receives.
+     */
+    private static class FailingPersonAttributeDao extends StubPersonAttributeDao {
+        private volatile boolean failing = false;
+        private volatile int queries = 0;
+        
+        public FailingPersonAttributeDao(Map<String, List<Object>> backingMap) {
+            super(backingMap);
+        }
+
+        @Override
+        public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+            this.queries++;
+            if (this.failing) {
+                throw new IllegalStateException("Failing");
+            }
+            
+            return super.getPeopleWithMultivaluedAttributes(query);
+        }
+    }
+    
+    /**
+     * Sleeps before returning the backing map, the sleep ends if the thread is interrupted.
+     */
+    private static class SleepingPersonAttributeDao extends StubPersonAttributeDao {
+        private final long sleep;
+        
+        public SleepingPersonAttributeDao(long sleep, Map<String, List<Object>> backingMap) {
+            super(backingMap);
+            this.sleep = sleep;
+        }
+
+        @Override
+        public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+            try {
+                Thread.sleep(this.sleep);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", e);
+            }
+            
+            return super.getPeopleWithMultivaluedAttributes(query);
+        }
+    }
 }
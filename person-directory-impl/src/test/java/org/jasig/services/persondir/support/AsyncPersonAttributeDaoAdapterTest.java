@@ -0,0 +1,114 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.services.persondir.support;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.mock.ThrowingPersonAttributeDao;
+import org.jasig.services.persondir.util.Util;
+
+/**
+ * @version $Revision$
+ */
+public class AsyncPersonAttributeDaoAdapterTest extends TestCase {
+    private ExecutorService executorService;
+    
+    /* (non-Javadoc)
+     * @see junit.framework.TestCase#setUp()
+     */
+    @Override
+    protected void setUp() throws Exception {
+        this.executorService = Executors.newSingleThreadExecutor();
+    }
+    
+    /* (non-Javadoc)
+     * @see junit.framework.TestCase#tearDown()
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        this.executorService.shutdownNow();
+    }
+    
+    public void testPropertyConstraints() {
+        final AsyncPersonAttributeDaoAdapter adapter = new AsyncPersonAttributeDaoAdapter();
+        try {
+            adapter.setPersonAttributeDao(null);
+            fail("setPersonAttributeDao(null) should throw IllegalArgumentException");
+        }
+        catch (IllegalArgumentException iae) {
+            //expected
+        }
+        
+        try {
+            adapter.getPersonAsync("edalquist");
+            fail("getPersonAsync should throw IllegalStateException with no personAttributeDao");
+        }
+        catch (IllegalStateException ise) {
+            //expected
+        }
+    }
+    
+    public void testBlockingDao() throws Exception {
+        final Map<String, List<Object>> attributes = Collections.singletonMap("phone", Util.list("777-7777"));
+        final AsyncPersonAttributeDaoAdapter adapter = new AsyncPersonAttributeDaoAdapter(new StubPersonAttributeDao(attributes), this.executorService);
+        
+        final IPersonAttributes person = adapter.getPersonAsync("edalquist").get(10, TimeUnit.SECONDS);
+        assertEquals(attributes, person.getAttributes());
+        
+        final Set<IPersonAttributes> people = adapter.getPeopleWithMultivaluedAttributesAsync(attributes).get(10, TimeUnit.SECONDS);
+        assertEquals(1, people.size());
+        assertEquals(attributes, people.iterator().next().getAttributes());
+    }
+    
+    public void testBlockingDaoException() throws Exception {
+        final AsyncPersonAttributeDaoAdapter adapter = new AsyncPersonAttributeDaoAdapter(new ThrowingPersonAttributeDao(), this.executorService);
+        
+        try {
+            adapter.getPersonAsync("edalquist").get(10, TimeUnit.SECONDS);
+            fail("ExecutionException should have been thrown");
+        }
+        catch (ExecutionException ee) {
+            assertEquals(RuntimeException.class, ee.getCause().getClass());
+        }
+    }
+    
+    public void testAsyncDao() throws Exception {
+        //An async DAO is called directly, the gateway answers non-matching queries without the executor
+        final RegexGatewayPersonAttributeDao gateway = new RegexGatewayPersonAttributeDao("username", ".*@.*", new ThrowingPersonAttributeDao());
+        this.executorService.shutdown();
+        final AsyncPersonAttributeDaoAdapter adapter = new AsyncPersonAttributeDaoAdapter(gateway, this.executorService);
+        
+        final Future<IPersonAttributes> future = adapter.getPersonAsync("edalquist");
+        assertTrue(future.isDone());
+        assertNull(future.get());
+    }
+}
@@ -19,10 +19,22 @@
 
 package org.jasig.services.persondir.support;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import org.aopalliance.intercept.MethodInvocation;
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.mock.MapCacheProviderFacade;
+import org.jasig.services.persondir.support.AttributeBasedCacheKeyGenerator.CachableMethod;
+import org.jasig.services.persondir.util.Util;
 import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.test.AbstractSingleSpringContextTests;
 
@@ -126,4 +138,153 @@ public class AttributeBasedCacheKeyGeneratorTest extends AbstractSingleSpringCon
         assertEquals(3, cacheProviderFacade.getPutCount());
         assertEquals(0, cacheProviderFacade.getRemoveCount());
     }
+    
+    public void testCollidingSeedHashCodes() {
+        final AttributeBasedCacheKeyGenerator cacheKeyGenerator = new AttributeBasedCacheKeyGenerator();
+        
+        //"Aa" and "BB" have the same String hashCode so the seed Maps have the same hashCode
+        final Map<String, Object> seed1 = Collections.singletonMap("username", (Object)Util.list("Aa"));
+        final Map<String, Object> seed2 = Collections.singletonMap("username", (Object)Util.list("BB"));
+        assertEquals(seed1.hashCode(), seed2.hashCode());
+        
+        final AttributeBasedCacheKey key1 = cacheKeyGenerator.getKey(seed1);
+        final AttributeBasedCacheKey key2 = cacheKeyGenerator.getKey(seed2);
+        assertFalse(key1.equals(key2));
+        assertEquals(key1, cacheKeyGenerator.getKey(Collections.singletonMap("username", (Object)Util.list("Aa"))));
+        assertEquals(key1.hashCode(), cacheKeyGenerator.getKey(Collections.singletonMap("username", (Object)Util.list("Aa"))).hashCode());
+    }
+    
+    public void testValueShapeAndOrder() {
+        final AttributeBasedCacheKeyGenerator cacheKeyGenerator = new AttributeBasedCacheKeyGenerator();
+        cacheKeyGenerator.setCacheKeyAttributes(new HashSet<String>(Util.genList("username", "affiliation")));
+        
+        //A single value and a List of one value are different keys
+        final AttributeBasedCacheKey singleKey = cacheKeyGenerator.getKey(Collections.singletonMap("username", (Object)"edalquist"));
+        final AttributeBasedCacheKey listKey = cacheKeyGenerator.getKey(Collections.singletonMap("username", (Object)Util.list("edalquist")));
+        assertFalse(singleKey.equals(listKey));
+        
+        //Values must not shift between attributes
+        final Map<String, Object> seed1 = new LinkedHashMap<String, Object>();
+        seed1.put("username", Util.list("a", "b"));
+        seed1.put("affiliation", Util.list("c"));
+        final Map<String, Object> seed2 = new LinkedHashMap<String, Object>();
+        seed2.put("username", Util.list("a"));
+        seed2.put("affiliation", Util.list("b", "c"));
+        assertFalse(cacheKeyGenerator.getKey(seed1).equals(cacheKeyGenerator.getKey(seed2)));
+        
+        //Seed iteration order does not matter and attributes not in the key are ignored
+        final Map<String, Object> seed3 = new LinkedHashMap<String, Object>();
+        seed3.put("email", Util.list("edalquist@example.edu"));
+        seed3.put("affiliation", Util.list("c"));
+        seed3.put("username", Util.list("a", "b"));
+        assertEquals(cacheKeyGenerator.getKey(seed1), cacheKeyGenerator.getKey(seed3));
+        assertEquals(2, cacheKeyGenerator.getKey(seed3).getAttributeCount());
+        
+        assertNull(cacheKeyGenerator.getKey(Collections.singletonMap("email", (Object)"edalquist@example.edu")));
+    }
+    
+    public void testIgnoreEmptyAttributes() {
+        final AttributeBasedCacheKeyGenerator cacheKeyGenerator = new AttributeBasedCacheKeyGenerator();
+        cacheKeyGenerator.setCacheKeyAttributes(new HashSet<String>(Util.genList("username", "affiliation")));
+        
+        final Map<String, Object> seed = new LinkedHashMap<String, Object>();
+        seed.put("username", Util.list("edalquist"));
+        seed.put("affiliation", Collections.emptyList());
+        assertEquals(2, cacheKeyGenerator.getKey(seed).getAttributeCount());
+        
+        cacheKeyGenerator.setIgnoreEmptyAttributes(true);
+        assertEquals(1, cacheKeyGenerator.getKey(seed).getAttributeCount());
+        assertEquals(cacheKeyGenerator.getKey(Collections.singletonMap("username", (Object)Util.list("edalquist"))), cacheKeyGenerator.getKey(seed));
+        
+        seed.put("username", "");
+        assertNull(cacheKeyGenerator.getKey(seed));
+    }
+    
+    public void testKeySerialization() throws Exception {
+        final AttributeBasedCacheKeyGenerator cacheKeyGenerator = new AttributeBasedCacheKeyGenerator();
+        cacheKeyGenerator.setUseAllAttributes(true);
+        
+        final Map<String, Object> seed = new LinkedHashMap<String, Object>();
+        seed.put("username", Util.list("edalquist"));
+        seed.put("affiliation", Util.list("staff", null));
+        final AttributeBasedCacheKey cacheKey = cacheKeyGenerator.getKey(seed);
+        
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(cacheKey);
+        out.close();
+        
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        final Object deserializedKey = in.readObject();
+        assertEquals(cacheKey, deserializedKey);
+        assertEquals(cacheKey.hashCode(), deserializedKey.hashCode());
+    }
+    
+    public void testTypedGenerateKey() throws Exception {
+        final AttributeBasedCacheKeyGenerator cacheKeyGenerator = new AttributeBasedCacheKeyGenerator();
+        
+        final Map<String, Object> seed = Collections.singletonMap("username", (Object)Util.list("edalquist"));
+        final Method peopleMethod = IPersonAttributeDao.class.getMethod("getPeopleWithMultivaluedAttributes", Map.class);
+        assertEquals(cacheKeyGenerator.generateKey(new SimpleMethodInvocation(peopleMethod, seed)), cacheKeyGenerator.generateKey(CachableMethod.PEOPLE_MULTIVALUED_MAP, seed));
+        
+        final Method personMethod = IPersonAttributeDao.class.getMethod("getPerson", String.class);
+        assertEquals(cacheKeyGenerator.generateKey(new SimpleMethodInvocation(personMethod, "edalquist")), cacheKeyGenerator.generateKey(CachableMethod.PERSON_STR, "edalquist"));
+        assertEquals(cacheKeyGenerator.generateKey(CachableMethod.PEOPLE_MAP, Collections.singletonMap("username", (Object)"edalquist")), cacheKeyGenerator.generateKey(CachableMethod.PERSON_STR, "edalquist"));
+        assertEquals(cacheKeyGenerator.generateKey(CachableMethod.PEOPLE_MULTIVALUED_MAP, seed), cacheKeyGenerator.generateKey(CachableMethod.MULTIVALUED_USER_ATTRIBUTES__STR, "edalquist"));
+        
+        try {
+            cacheKeyGenerator.generateKey(CachableMethod.PERSON_STR, seed);
+            fail("PERSON_STR does not take a Map");
+        }
+        catch (IllegalArgumentException iae) {
+            //expected
+        }
+        
+        try {
+            cacheKeyGenerator.generateKey(CachableMethod.PEOPLE_MAP, "edalquist");
+            fail("PEOPLE_MAP does not take a String");
+        }
+        catch (IllegalArgumentException iae) {
+            //expected
+        }
+        
+        try {
+            final Method toStringMethod = Object.class.getMethod("toString");
+            cacheKeyGenerator.generateKey(new SimpleMethodInvocation(toStringMethod));
+            fail("toString is not a cachable method");
+        }
+        catch (IllegalArgumentException iae) {
+            //expected
+        }
+    }
+    
+    private static class SimpleMethodInvocation implements MethodInvocation {
+        private final Method method;
+        private final Object[] arguments;
+        
+        public SimpleMethodInvocation(Method method, Object... arguments) {
+            this.method = method;
+            this.arguments = arguments;
+        }
+
+        public Method getMethod() {
+            return this.method;
+        }
+
+        public Object[] getArguments() {
+            return this.arguments;
+        }
+
+        public AccessibleObject getStaticPart() {
+            return this.method;
+        }
+
+        public Object getThis() {
+            return null;
+        }
+
+        public Object proceed() throws Throwable {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
@@ -0,0 +1,135 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.util.Util;
+
+/**
+ * @version $Revision$
+ */
+public class AttributeValueInternerTest extends TestCase {
+    
+    public void testIntern() {
+        final AttributeValueInterner interner = new AttributeValueInterner();
+        
+        final String student1 = new String("student");
+        final String student2 = new String("student");
+        assertSame(student1, interner.intern(student1));
+        assertSame(student1, interner.intern(student2));
+        assertSame(student1, interner.intern(student1));
+        
+        //Outside of the Integer.valueOf cache so these are distinct but equal instances
+        final Integer thousand1 = Integer.valueOf(1000);
+        final Integer thousand2 = Integer.valueOf(1000);
+        assertNotSame(thousand1, thousand2);
+        assertSame(thousand1, interner.intern(thousand1));
+        assertSame(thousand1, interner.intern(thousand2));
+        
+        //Mutable values are not pooled
+        final Date date1 = new Date(0);
+        final Date date2 = new Date(0);
+        interner.intern(date1);
+        assertSame(date2, interner.intern(date2));
+        assertNull(interner.intern(null));
+        
+        assertEquals(2, interner.getSize());
+        assertEquals(2, interner.getInternedValues());
+        assertEquals(40 + 2 * 7 + 16, interner.getEstimatedBytesSaved());
+        
+        interner.clear();
+        assertEquals(0, interner.getSize());
+        assertEquals(0, interner.getInternedValues());
+    }
+    
+    public void testMaximumSize() {
+        final AttributeValueInterner interner = new AttributeValueInterner();
+        interner.setMaximumSize(1);
+        
+        final String staff = new String("staff");
+        interner.intern("student");
+        assertSame(staff, interner.intern(staff));
+        assertNotSame(staff, interner.intern(new String("staff")));
+        assertEquals("student", interner.intern(new String("student")));
+        
+        assertEquals(1, interner.getSize());
+        assertEquals(1, interner.getInternedValues());
+        assertEquals(2, interner.getRejectedValues());
+    }
+    
+    public void testInternValues() {
+        final AttributeValueInterner interner = new AttributeValueInterner();
+        interner.setInternedAttributes(Collections.singleton("affiliation"));
+        
+        final Map<String, List<Object>> attributes1 = new LinkedHashMap<String, List<Object>>();
+        attributes1.put("uid", Util.list("edalquist"));
+        attributes1.put("affiliation", Util.list(new String("staff"), new String("student")));
+        
+        final Map<String, List<Object>> attributes2 = new LinkedHashMap<String, List<Object>>();
+        attributes2.put("uid", Util.list(new String("edalquist")));
+        attributes2.put("affiliation", Util.list(new String("student")));
+        attributes2.put("nullValues", null);
+        
+        //First values are pooled, nothing replaced
+        assertSame(attributes1, interner.internValues(attributes1));
+        
+        final Map<String, List<Object>> interned2 = interner.internValues(attributes2);
+        assertNotSame(attributes2, interned2);
+        assertEquals(attributes2, interned2);
+        assertSame(attributes1.get("affiliation").get(1), interned2.get("affiliation").get(0));
+        assertNotSame(attributes1.get("uid").get(0), interned2.get("uid").get(0));
+        
+        //The source attributes are not modified
+        assertNotSame(attributes1.get("affiliation").get(1), attributes2.get("affiliation").get(0));
+    }
+    
+    public void testInternPersonValues() {
+        final AttributeValueInterner interner = new AttributeValueInterner();
+        interner.intern("student");
+        
+        //No attributes are interned by default
+        final IPersonAttributes person = new NamedPersonImpl("edalquist", Collections.singletonMap("affiliation", Util.list(new String("student"))));
+        assertFalse(interner.isInterned("affiliation"));
+        assertSame(person, interner.internValues(person));
+        
+        interner.setInternedAttributes(Collections.singleton("affiliation"));
+        final IPersonAttributes internedPerson = interner.internValues(person);
+        assertEquals(person, internedPerson);
+        assertSame("student", internedPerson.getAttributeValue("affiliation"));
+        assertSame(internedPerson, interner.internValues(internedPerson));
+        
+        final IPersonAttributes caseInsensitivePerson = new CaseInsensitiveNamedPersonImpl("edalquist", Collections.singletonMap("affiliation", Util.list(new String("student"))));
+        final IPersonAttributes internedCaseInsensitivePerson = interner.internValues(caseInsensitivePerson);
+        assertSame("student", internedCaseInsensitivePerson.getAttributeValue("AFFILIATION"));
+        
+        final IPersonAttributes compactPerson = new CompactPersonImpl("edalquist", Collections.singletonMap("affiliation", Util.list(new String("student"))), true);
+        final IPersonAttributes internedCompactPerson = interner.internValues(compactPerson);
+        assertTrue(internedCompactPerson instanceof CompactPersonImpl);
+        assertSame("student", internedCompactPerson.getAttributeValue("Affiliation"));
+    }
+}
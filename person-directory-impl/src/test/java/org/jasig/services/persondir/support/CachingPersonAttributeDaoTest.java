@@ -20,15 +20,36 @@
 package org.jasig.services.persondir.support;
 
 import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.mock.ThrowingPersonAttributeDao;
 import org.jasig.services.persondir.util.Util;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.jmx.export.MBeanExporter;
 
 
 
@@ -144,6 +165,170 @@ public class CachingPersonAttributeDaoTest extends AbstractDefaultQueryPersonAtt
         assertEquals("Miss count incorrect", 4, dao.getMisses());
     }
     
+    public void testExtendedCacheStats() throws Exception {
+        CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setCacheNullResults(true);
+        dao.afterPropertiesSet();
+        
+        dao.getMultivaluedUserAttributes("edalquist");
+        dao.getMultivaluedUserAttributes("edalquist");
+        dao.getMultivaluedUserAttributes("nobody");
+        dao.getMultivaluedUserAttributes("nobody");
+        dao.getMultivaluedUserAttributes("nobody");
+        
+        assertEquals("Query count incorrect", 5, dao.getQueries());
+        assertEquals("Hit count incorrect", 3, dao.getHits());
+        assertEquals("Null result hit count incorrect", 2, dao.getNullResultHits());
+        assertEquals("Miss count incorrect", 2, dao.getMisses());
+        assertEquals("Load count incorrect", 2, dao.getLoads());
+        assertTrue("Average load time incorrect", dao.getAverageLoadTime() >= 0);
+        assertEquals("Eviction count incorrect", 0, dao.getEvictions());
+        
+        dao.removeUserAttributes("edalquist");
+        dao.removeUserAttributes("edalquist");
+        assertEquals("Eviction count incorrect", 1, dao.getEvictions());
+        
+        dao.resetStatistics();
+        assertEquals("Query count incorrect", 0, dao.getQueries());
+        assertEquals("Hit count incorrect", 0, dao.getHits());
+        assertEquals("Eviction count incorrect", 0, dao.getEvictions());
+    }
+    
+    public void testConcurrentCacheStats() throws Exception {
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.afterPropertiesSet();
+        dao.getMultivaluedUserAttributes("edalquist");
+        
+        final int threadCount = 8;
+        final int queriesPerThread = 1000;
+        final Thread[] threads = new Thread[threadCount];
+        for (int index = 0; index < threads.length; index++) {
+            threads[index] = new Thread() {
+                @Override
+                public void run() {
+                    for (int query = 0; query < queriesPerThread; query++) {
+                        dao.getMultivaluedUserAttributes("edalquist");
+                    }
+                }
+            };
+            threads[index].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertEquals("Query count incorrect", threadCount * queriesPerThread + 1, dao.getQueries());
+        assertEquals("Hit count incorrect", threadCount * queriesPerThread, dao.getHits());
+        assertEquals("Miss count incorrect", 1, dao.getMisses());
+    }
+    
+    public void testMBeanAutodetect() throws Exception {
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setBeanName("cachingPersonAttributeDao");
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.afterPropertiesSet();
+        
+        final DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        beanFactory.registerSingleton("cachingPersonAttributeDao", dao);
+        
+        final MBeanServer server = MBeanServerFactory.newMBeanServer();
+        final MBeanExporter exporter = new MBeanExporter();
+        exporter.setServer(server);
+        exporter.setAutodetect(true);
+        exporter.setBeanFactory(beanFactory);
+        exporter.afterPropertiesSet();
+        try {
+            dao.getMultivaluedUserAttributes("edalquist");
+            dao.getMultivaluedUserAttributes("edalquist");
+            
+            final ObjectName objectName = new ObjectName("org.jasig.services.persondir:type=CachingPersonAttributeDao,name=\"cachingPersonAttributeDao\"");
+            assertEquals(objectName, dao.getObjectName());
+            assertEquals(Long.valueOf(2), server.getAttribute(objectName, "Queries"));
+            assertEquals(Long.valueOf(1), server.getAttribute(objectName, "Hits"));
+            assertEquals(Long.valueOf(1), server.getAttribute(objectName, "Misses"));
+            
+            server.invoke(objectName, "resetStatistics", null, null);
+            assertEquals(0, dao.getQueries());
+        }
+        finally {
+            exporter.destroy();
+        }
+    }
+    
+    public void testInvalidatePerson() throws Exception {
+        final AttributeBasedCacheKeyGenerator cacheKeyGenerator = new AttributeBasedCacheKeyGenerator();
+        cacheKeyGenerator.setUseAllAttributes(true);
+        
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setCacheKeyGenerator(cacheKeyGenerator);
+        final Map<Serializable, Set<IPersonAttributes>> userInfoCache = new HashMap<Serializable, Set<IPersonAttributes>>();
+        dao.setUserInfoCache(userInfoCache);
+        dao.setIndexPersonNames(true);
+        dao.afterPropertiesSet();
+        
+        //Cache the same person under two different seeds and another person under a third
+        final Map<String, List<Object>> uidSeed = Collections.singletonMap(defaultAttr, Util.list("edalquist"));
+        final Map<String, List<Object>> phoneSeed = new HashMap<String, List<Object>>();
+        phoneSeed.put(defaultAttr, Util.list("edalquist"));
+        phoneSeed.put("phone", Util.list("777-7777"));
+        dao.getPeopleWithMultivaluedAttributes(uidSeed);
+        dao.getPeopleWithMultivaluedAttributes(phoneSeed);
+        dao.getMultivaluedUserAttributes("awp9");
+        assertEquals(3, userInfoCache.size());
+        assertEquals(3, dao.getMisses());
+        
+        assertEquals(2, dao.invalidatePerson("edalquist"));
+        assertEquals(1, userInfoCache.size());
+        assertEquals(2, dao.getEvictions());
+        assertEquals(0, dao.invalidatePerson("edalquist"));
+        assertEquals(0, dao.invalidatePerson("nobody"));
+        
+        dao.getPeopleWithMultivaluedAttributes(phoneSeed);
+        dao.getMultivaluedUserAttributes("awp9");
+        assertEquals(4, dao.getMisses());
+        assertEquals(1, dao.getHits());
+        
+        assertEquals(1, dao.invalidatePerson("edalquist"));
+    }
+    
+    public void testInvalidatePersonWithoutIndex() throws Exception {
+        final AttributeBasedCacheKeyGenerator cacheKeyGenerator = new AttributeBasedCacheKeyGenerator();
+        cacheKeyGenerator.setUseAllAttributes(true);
+        
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setCacheKeyGenerator(cacheKeyGenerator);
+        final Map<Serializable, Set<IPersonAttributes>> userInfoCache = new HashMap<Serializable, Set<IPersonAttributes>>();
+        dao.setUserInfoCache(userInfoCache);
+        dao.afterPropertiesSet();
+        
+        final Map<String, List<Object>> phoneSeed = new HashMap<String, List<Object>>();
+        phoneSeed.put(defaultAttr, Util.list("edalquist"));
+        phoneSeed.put("phone", Util.list("777-7777"));
+        dao.getMultivaluedUserAttributes("edalquist");
+        dao.getPeopleWithMultivaluedAttributes(phoneSeed);
+        assertEquals(2, userInfoCache.size());
+        
+        //Only the entry cached for the uid can be found without the index
+        assertEquals(1, dao.invalidatePerson("edalquist"));
+        assertEquals(1, userInfoCache.size());
+        assertEquals(0, dao.invalidatePerson("edalquist"));
+        
+        dao.getPeopleWithMultivaluedAttributes(phoneSeed);
+        assertEquals(1, dao.getHits());
+    }
+    
     public void testCaching() throws Exception {
         Map<Serializable, Set<IPersonAttributes>> cacheMap = new HashMap<Serializable, Set<IPersonAttributes>>();
         
@@ -401,7 +586,133 @@ public class CachingPersonAttributeDaoTest extends AbstractDefaultQueryPersonAtt
     }
 
 
-    @Override
+    public void testCoalescedQueries() throws Exception {
+        final BlockingPersonAttributeDao blockingDao = new BlockingPersonAttributeDao(this.stubDao);
+        
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(blockingDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.afterPropertiesSet();
+        
+        final int threadCount = 5;
+        final List<Map<String, List<Object>>> results = Collections.synchronizedList(new ArrayList<Map<String, List<Object>>>());
+        final Thread[] threads = new Thread[threadCount];
+        for (int index = 0; index < threadCount; index++) {
+            threads[index] = new Thread() {
+                @Override
+                public void run() {
+                    results.add(dao.getMultivaluedUserAttributes("edalquist"));
+                }
+            };
+            threads[index].start();
+        }
+        
+        //Wait for every other thread to queue up behind the first query before letting it complete
+        blockingDao.entered.await();
+        while (dao.getCoalescedWaits() < threadCount - 1) {
+            Thread.sleep(10);
+        }
+        blockingDao.release.countDown();
+        
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertEquals("Wrapped DAO should be called once", 1, blockingDao.calls.get());
+        assertEquals(threadCount - 1, dao.getCoalescedWaits());
+        assertEquals("Query count incorrect", threadCount, dao.getQueries());
+        assertEquals("Miss count incorrect", 1, dao.getMisses());
+        assertEquals(threadCount, results.size());
+        for (final Map<String, List<Object>> result : results) {
+            this.validateUser1(result);
+        }
+    }
+    
+    public void testCoalescedWaitTimeout() throws Exception {
+        final BlockingPersonAttributeDao blockingDao = new BlockingPersonAttributeDao(this.stubDao);
+        
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(blockingDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setCoalescedWaitTimeout(100);
+        dao.afterPropertiesSet();
+        
+        final List<Map<String, List<Object>>> results = Collections.synchronizedList(new ArrayList<Map<String, List<Object>>>());
+        final Thread loadingThread = new Thread() {
+            @Override
+            public void run() {
+                results.add(dao.getMultivaluedUserAttributes("edalquist"));
+            }
+        };
+        loadingThread.start();
+        
+        try {
+            //The hung query fails the waiting thread once the timeout passes
+            blockingDao.entered.await();
+            try {
+                dao.getMultivaluedUserAttributes("edalquist");
+                fail("IllegalStateException should have been thrown");
+            }
+            catch (IllegalStateException ise) {
+                //expected
+            }
+            assertEquals(1, dao.getCoalescedWaits());
+        }
+        finally {
+            blockingDao.release.countDown();
+        }
+        
+        //The query still completes and is cached for later callers
+        loadingThread.join();
+        assertEquals(1, results.size());
+        this.validateUser1(results.get(0));
+        this.validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        assertEquals("Wrapped DAO should be called once", 1, blockingDao.calls.get());
+    }
+    
+    public void testCoalescedQueryException() throws Exception {
+        final BlockingPersonAttributeDao blockingDao = new BlockingPersonAttributeDao(new ThrowingPersonAttributeDao());
+        
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(blockingDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.afterPropertiesSet();
+        
+        final AtomicInteger failures = new AtomicInteger();
+        final Thread[] threads = new Thread[2];
+        for (int index = 0; index < threads.length; index++) {
+            threads[index] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        dao.getMultivaluedUserAttributes("edalquist");
+                    }
+                    catch (RuntimeException re) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads[index].start();
+        }
+        
+        blockingDao.entered.await();
+        while (dao.getCoalescedWaits() < 1) {
+            Thread.sleep(10);
+        }
+        blockingDao.release.countDown();
+        
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertEquals("Wrapped DAO should be called once", 1, blockingDao.calls.get());
+        assertEquals("Both callers should see the exception", 2, failures.get());
+    }
+    
+        @Override
     protected AbstractDefaultAttributePersonAttributeDao getAbstractDefaultQueryPersonAttributeDao() {
         CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
         dao.setCachedPersonAttributesDao(this.stubDao);
@@ -410,4 +721,426 @@ public class CachingPersonAttributeDaoTest extends AbstractDefaultQueryPersonAtt
         
         return dao;
     }
+    
+    /**
+     * Delegating DAO that blocks the first query until released
+     */
+    public void testRefreshAhead() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        final CachingPersonAttributeDaoImpl dao = new MutableClockCachingPersonAttributeDao(time);
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setRefreshAfterWrite(100);
+        dao.setExpireAfterWrite(1000);
+        ExecutorService refreshExecutor = Executors.newSingleThreadExecutor();
+        dao.setRefreshExecutor(refreshExecutor);
+        dao.afterPropertiesSet();
+        
+        validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        assertEquals(1, dao.getMisses());
+        
+        //Change the backing data, fresh results keep coming from the cache
+        final Map<String, Map<String, List<Object>>> updatedBackingMap = new HashMap<String, Map<String, List<Object>>>(this.stubDao.getBackingMap());
+        updatedBackingMap.put("edalquist", Collections.singletonMap("phone", Util.list("555-5555")));
+        this.stubDao.setBackingMap(updatedBackingMap);
+        
+        time.addAndGet(50);
+        validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        assertEquals(0, dao.getStaleHits());
+        assertEquals(0, dao.getRefreshes());
+        
+        //Stale results are returned while the refresh runs in the background
+        time.addAndGet(100);
+        validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        refreshExecutor.shutdown();
+        assertTrue(refreshExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, dao.getStaleHits());
+        assertEquals(1, dao.getRefreshes());
+        assertEquals(0, dao.getRefreshFailures());
+        
+        assertEquals(Util.list("555-5555"), dao.getMultivaluedUserAttributes("edalquist").get("phone"));
+        assertEquals(1, dao.getMisses());
+        assertEquals(4, dao.getQueries());
+    }
+    
+    public void testRefreshFailureServesStale() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        final CachingPersonAttributeDaoImpl dao = new MutableClockCachingPersonAttributeDao(time);
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setRefreshAfterWrite(100);
+        dao.setExpireAfterWrite(1000);
+        ExecutorService refreshExecutor = Executors.newSingleThreadExecutor();
+        dao.setRefreshExecutor(refreshExecutor);
+        dao.afterPropertiesSet();
+        
+        validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        
+        //The wrapped DAO starts failing, stale results are still returned
+        dao.setCachedPersonAttributesDao(new ThrowingPersonAttributeDao());
+        time.addAndGet(500);
+        validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        refreshExecutor.shutdown();
+        assertTrue(refreshExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, dao.getRefreshes());
+        assertEquals(1, dao.getRefreshFailures());
+        
+        refreshExecutor = Executors.newSingleThreadExecutor();
+        dao.setRefreshExecutor(refreshExecutor);
+        validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        refreshExecutor.shutdown();
+        assertTrue(refreshExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(2, dao.getStaleHits());
+        assertEquals(2, dao.getRefreshFailures());
+        
+        //Past expireAfterWrite the wrapped DAO must be queried directly
+        time.addAndGet(500);
+        try {
+            dao.getMultivaluedUserAttributes("edalquist");
+            fail("Expired results should not be returned");
+        }
+        catch (RuntimeException re) {
+            //expected
+        }
+    }
+    
+    public void testRefreshRemovesDeletedPerson() throws Exception {
+        final AtomicLong time = new AtomicLong(1000);
+        final CachingPersonAttributeDaoImpl dao = new MutableClockCachingPersonAttributeDao(time);
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setRefreshAfterWrite(100);
+        ExecutorService refreshExecutor = Executors.newSingleThreadExecutor();
+        dao.setRefreshExecutor(refreshExecutor);
+        dao.afterPropertiesSet();
+        
+        validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        
+        //The person is deleted from the backing data
+        final Map<String, Map<String, List<Object>>> updatedBackingMap = new HashMap<String, Map<String, List<Object>>>(this.stubDao.getBackingMap());
+        updatedBackingMap.remove("edalquist");
+        this.stubDao.setBackingMap(updatedBackingMap);
+        
+        //The stale hit refreshes in the background, the refresh finds nobody and removes the cached results
+        time.addAndGet(150);
+        validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        refreshExecutor.shutdown();
+        assertTrue(refreshExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, dao.getRefreshes());
+        assertEquals(1, dao.getEvictions());
+        
+        refreshExecutor = Executors.newSingleThreadExecutor();
+        dao.setRefreshExecutor(refreshExecutor);
+        assertNull(dao.getMultivaluedUserAttributes("edalquist"));
+        assertNull(dao.getMultivaluedUserAttributes("edalquist"));
+        refreshExecutor.shutdown();
+        assertTrue(refreshExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, dao.getStaleHits());
+        assertEquals(1, dao.getRefreshes());
+        assertEquals(3, dao.getMisses());
+    }
+    
+    public void testDefaultRefreshExecutor() throws Exception {
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.afterPropertiesSet();
+        assertNull(dao.getRefreshExecutor());
+        
+        dao.setRefreshAfterWrite(100);
+        dao.afterPropertiesSet();
+        final ExecutorService refreshExecutor = dao.getRefreshExecutor();
+        assertNotNull(refreshExecutor);
+        
+        dao.destroy();
+        assertTrue(refreshExecutor.isShutdown());
+    }
+    
+    public void testPeopleForUids() throws Exception {
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setCacheNullResults(true);
+        dao.afterPropertiesSet();
+        
+        validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        assertEquals(1, dao.getLoads());
+        
+        //Only the misses are loaded, with one call to the wrapped DAO
+        Map<String, IPersonAttributes> people = dao.getPeopleForUids(Util.genList("edalquist", "awp9", "nobody"));
+        assertEquals(Util.genList("edalquist", "awp9"), new ArrayList<String>(people.keySet()));
+        this.validateUser1(people.get("edalquist").getAttributes());
+        this.validateUser2(people.get("awp9").getAttributes());
+        assertEquals(2, dao.getLoads());
+        assertEquals(4, dao.getQueries());
+        assertEquals(3, dao.getMisses());
+        
+        //The loaded results are cached for later single and bulk lookups
+        this.validateUser2(dao.getPerson("awp9").getAttributes());
+        assertNull(dao.getPerson("nobody"));
+        people = dao.getPeopleForUids(Util.genList("awp9", "nobody", "edalquist"));
+        assertEquals(Util.genList("awp9", "edalquist"), new ArrayList<String>(people.keySet()));
+        assertEquals(2, dao.getLoads());
+        assertEquals(3, dao.getMisses());
+    }
+    
+    public void testPeopleForUidsStoredLikeQueries() throws Exception {
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setCompactCachedPeople(true);
+        dao.afterPropertiesSet();
+        
+        //Bulk loaded people are compacted like any other cached results and returned as they were cached
+        final Map<String, IPersonAttributes> people = dao.getPeopleForUids(Util.genList("edalquist", "awp9"));
+        final IPersonAttributes loadedUser1 = people.get("edalquist");
+        assertTrue(loadedUser1 instanceof CompactPersonImpl);
+        this.validateUser1(loadedUser1.getAttributes());
+        
+        final Set<IPersonAttributes> cachedPeople = dao.getPeopleWithMultivaluedAttributes(Collections.singletonMap(defaultAttr, Util.list((Object)"edalquist")));
+        assertEquals(1, cachedPeople.size());
+        assertSame(loadedUser1, cachedPeople.iterator().next());
+        assertSame(loadedUser1, dao.getPerson("edalquist"));
+        assertEquals(1, dao.getLoads());
+    }
+    
+    public void testPeopleForUidsPerUidFallback() throws Exception {
+        //A DAO implementing IPersonAttributeDao directly may predate getPeopleForUids
+        final AtomicInteger getPersonCalls = new AtomicInteger();
+        final IPersonAttributeDao legacyDao = (IPersonAttributeDao)Proxy.newProxyInstance(
+                IPersonAttributeDao.class.getClassLoader(), new Class<?>[] { IPersonAttributeDao.class }, 
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("getPeopleForUids".equals(method.getName())) {
+                            throw new AbstractMethodError(method.getName());
+                        }
+                        if ("getPerson".equals(method.getName())) {
+                            getPersonCalls.incrementAndGet();
+                        }
+                        
+                        try {
+                            return method.invoke(stubDao, args);
+                        }
+                        catch (InvocationTargetException ite) {
+                            throw ite.getCause();
+                        }
+                    }
+                });
+        
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(legacyDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.afterPropertiesSet();
+        
+        final Map<String, IPersonAttributes> people = dao.getPeopleForUids(Util.genList("edalquist", "awp9", "nobody"));
+        assertEquals(Util.genList("edalquist", "awp9"), new ArrayList<String>(people.keySet()));
+        this.validateUser1(people.get("edalquist").getAttributes());
+        this.validateUser2(people.get("awp9").getAttributes());
+        assertEquals(3, getPersonCalls.get());
+        assertEquals(1, dao.getLoads());
+        
+        this.validateUser2(dao.getPerson("awp9").getAttributes());
+        assertEquals(3, getPersonCalls.get());
+    }
+    
+    public void testPeopleForUidsCoalesced() throws Exception {
+        final BlockingPersonAttributeDao blockingDao = new BlockingPersonAttributeDao(this.stubDao);
+        
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(blockingDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.afterPropertiesSet();
+        
+        //A single query for edalquist is in flight
+        final Thread queryThread = new Thread() {
+            @Override
+            public void run() {
+                dao.getMultivaluedUserAttributes("edalquist");
+            }
+        };
+        queryThread.start();
+        blockingDao.entered.await();
+        
+        //The bulk lookup waits for the in-flight query instead of loading edalquist again
+        final List<Map<String, IPersonAttributes>> results = Collections.synchronizedList(new ArrayList<Map<String, IPersonAttributes>>());
+        final Thread bulkThread = new Thread() {
+            @Override
+            public void run() {
+                results.add(dao.getPeopleForUids(Util.genList("edalquist")));
+            }
+        };
+        bulkThread.start();
+        while (dao.getCoalescedWaits() < 1) {
+            Thread.sleep(10);
+        }
+        blockingDao.release.countDown();
+        
+        queryThread.join();
+        bulkThread.join();
+        
+        assertEquals("Wrapped DAO should be called once", 1, blockingDao.calls.get());
+        assertEquals(1, results.size());
+        this.validateUser1(results.get(0).get("edalquist").getAttributes());
+        assertEquals(1, dao.getMisses());
+        assertEquals(2, dao.getQueries());
+    }
+    
+    public void testCompactCachedPeople() throws Exception {
+        final Map<Serializable, Set<IPersonAttributes>> cacheMap = new HashMap<Serializable, Set<IPersonAttributes>>();
+        
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(cacheMap);
+        dao.setCompactCachedPeople(true);
+        dao.afterPropertiesSet();
+        
+        //The loading query returns the wrapped DAO's people, the cache holds compact copies
+        final IPersonAttributes loadedUser1 = dao.getPerson("edalquist");
+        this.validateUser1(loadedUser1.getAttributes());
+        assertFalse(loadedUser1 instanceof CompactPersonImpl);
+        
+        final IPersonAttributes cachedUser1 = dao.getPerson("edalquist");
+        this.validateUser1(cachedUser1.getAttributes());
+        assertTrue(cachedUser1 instanceof CompactPersonImpl);
+        assertEquals(loadedUser1, cachedUser1);
+        assertEquals(loadedUser1.getAttributes(), cachedUser1.getAttributes());
+        assertEquals(1, dao.getLoads());
+        
+        //People with the same attribute names share the schema
+        dao.getPerson("awp9");
+        final IPersonAttributes cachedUser2 = dao.getPerson("awp9");
+        this.validateUser2(cachedUser2.getAttributes());
+        assertSame(((CompactPersonImpl)cachedUser1).getSchema(), ((CompactPersonImpl)cachedUser2).getSchema());
+        assertEquals(2, cacheMap.size());
+    }
+    
+    public void testCachedValueInterner() throws Exception {
+        final AttributeValueInterner valueInterner = new AttributeValueInterner();
+        valueInterner.setInternedAttributes(Collections.singleton("phone"));
+        
+        //Same phone number, from separate Lists and Strings
+        this.stubDao.getBackingMap().get("edalquist").put("phone", Util.list(new String("777-7777")));
+        this.stubDao.getBackingMap().get("awp9").put("phone", Util.list(new String("777-7777")));
+        
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setValueInterner(valueInterner);
+        dao.setCompactCachedPeople(true);
+        dao.afterPropertiesSet();
+        
+        dao.getPerson("edalquist");
+        dao.getPerson("awp9");
+        
+        final IPersonAttributes cachedUser1 = dao.getPerson("edalquist");
+        final IPersonAttributes cachedUser2 = dao.getPerson("awp9");
+        assertTrue(cachedUser1 instanceof CompactPersonImpl);
+        assertEquals("777-7777", cachedUser1.getAttributeValue("phone"));
+        assertSame(cachedUser1.getAttributeValue("phone"), cachedUser2.getAttributeValue("phone"));
+        assertEquals(Util.list("Display Name"), cachedUser1.getAttributeValues("displayName"));
+        assertEquals(1, valueInterner.getInternedValues());
+    }
+    
+    public void testAsyncQueries() throws Exception {
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        final ExecutorService asyncExecutor = Executors.newSingleThreadExecutor();
+        dao.setAsyncExecutor(asyncExecutor);
+        dao.afterPropertiesSet();
+        
+        try {
+            //A miss is run on the executor
+            final Future<IPersonAttributes> missFuture = dao.getPersonAsync("edalquist");
+            assertFalse(missFuture.getClass().getName(), missFuture.getClass().getName().endsWith("CompletedFuture"));
+            final IPersonAttributes missPerson = missFuture.get(10, TimeUnit.SECONDS);
+            assertEquals("edalquist", missPerson.getName());
+            this.validateUser1(missPerson.getAttributes());
+            assertEquals(1, dao.getMisses());
+            
+            //A hit is answered on the calling thread
+            final Future<IPersonAttributes> hitFuture = dao.getPersonAsync("edalquist");
+            assertTrue(hitFuture.isDone());
+            this.validateUser1(hitFuture.get().getAttributes());
+            assertEquals(2, dao.getQueries());
+            assertEquals(1, dao.getMisses());
+            
+            assertNull(dao.getPersonAsync("nobody").get(10, TimeUnit.SECONDS));
+        }
+        finally {
+            asyncExecutor.shutdown();
+        }
+    }
+    
+    public void testAsyncQueryException() throws Exception {
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(new ThrowingPersonAttributeDao());
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.afterPropertiesSet();
+        
+        //Without an asyncExecutor the miss blocks the calling thread with a warning, the exception is reported by the Future
+        final Future<IPersonAttributes> future = dao.getPersonAsync("edalquist");
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail("ExecutionException should have been thrown");
+        }
+        catch (ExecutionException ee) {
+            assertEquals(RuntimeException.class, ee.getCause().getClass());
+        }
+    }
+    
+    private static class MutableClockCachingPersonAttributeDao extends CachingPersonAttributeDaoImpl {
+        private final AtomicLong time;
+        
+        public MutableClockCachingPersonAttributeDao(AtomicLong time) {
+            this.time = time;
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return this.time.get();
+        }
+    }
+    
+    private static class BlockingPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao {
+        private final IPersonAttributeDao delegate;
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger calls = new AtomicInteger();
+        
+        public BlockingPersonAttributeDao(IPersonAttributeDao delegate) {
+            this.delegate = delegate;
+        }
+
+        public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+            this.calls.incrementAndGet();
+            this.entered.countDown();
+            try {
+                this.release.await();
+            }
+            catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return this.delegate.getPeopleWithMultivaluedAttributes(query);
+        }
+
+        public Set<String> getAvailableQueryAttributes() {
+            return this.delegate.getAvailableQueryAttributes();
+        }
+
+        public Set<String> getPossibleUserAttributeNames() {
+            return this.delegate.getPossibleUserAttributeNames();
+        }
+    }
 }
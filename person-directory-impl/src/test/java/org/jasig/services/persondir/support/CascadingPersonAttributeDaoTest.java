@@ -21,10 +21,14 @@ package org.jasig.services.persondir.support;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.mock.ThrowingPersonAttributeDao;
 import org.jasig.services.persondir.support.merger.MultivaluedAttributeMerger;
 import org.jasig.services.persondir.util.Util;
@@ -117,6 +121,54 @@ public class CascadingPersonAttributeDaoTest
         assertEquals(expected, results);
     }
 
+    public void testBatchingChildDao() {
+        final BatchingPersonAttributeDao batchingSource = new BatchingPersonAttributeDao(this.sourceTwo, 2);
+        
+        //First DAO that finds all of the people in sourceOne
+        final IPersonAttributeDao allPeopleSource = new StubPersonAttributeDao() {
+            @Override
+            public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+                final Set<IPersonAttributes> people = new LinkedHashSet<IPersonAttributes>();
+                for (final Map.Entry<String, Map<String, List<Object>>> personEntry : sourceOne.getBackingMap().entrySet()) {
+                    people.add(new NamedPersonImpl(personEntry.getKey(), personEntry.getValue()));
+                }
+                return people;
+            }
+        };
+        
+        final List<IPersonAttributeDao> targets = new ArrayList<IPersonAttributeDao>();
+        targets.add(allPeopleSource);
+        targets.add(batchingSource);
+        
+        final CascadingPersonAttributeDao targetDao = new CascadingPersonAttributeDao();
+        targetDao.setPersonAttributeDaos(targets);
+        
+        final Map<String, List<Object>> query = new HashMap<String, List<Object>>();
+        query.put("username", Util.list("*"));
+        final Set<IPersonAttributes> people = targetDao.getPeopleWithMultivaluedAttributes(query);
+        
+        //The three people found by the first DAO are queried in two batches
+        assertEquals(Util.genList(2, 1), batchingSource.batchSizes);
+        
+        final Map<String, IPersonAttributes> peopleByName = new HashMap<String, IPersonAttributes>();
+        for (final IPersonAttributes person : people) {
+            peopleByName.put(person.getName(), person);
+        }
+        assertEquals(3, peopleByName.size());
+        assertEquals(Util.list("CS"), peopleByName.get("edalquist").getAttributeValues("major"));
+        assertEquals(Util.list("ME"), peopleByName.get("awp9").getAttributeValues("major"));
+        assertEquals(Util.list("EE"), peopleByName.get("erider").getAttributeValues("major"));
+        assertEquals(Util.list("000000000"), peopleByName.get("erider").getAttributeValues("studentId"));
+        
+        //A single person is queried without a batch
+        batchingSource.batchSizes.clear();
+        targets.set(0, this.sourceOne);
+        targetDao.setPersonAttributeDaos(targets);
+        final Map<String, List<Object>> results = targetDao.getMultivaluedUserAttributes("awp9");
+        assertEquals(Util.list("ME"), results.get("major"));
+        assertEquals(0, batchingSource.batchSizes.size());
+    }
+    
     public void testNoChildren() {
         final CascadingPersonAttributeDao targetDao = new CascadingPersonAttributeDao();
         
@@ -186,4 +238,54 @@ public class CascadingPersonAttributeDaoTest
     protected AbstractAggregatingDefaultQueryPersonAttributeDao getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao() {
         return new CascadingPersonAttributeDao();
     }
+    
+    /**
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDaoTest#getClockedAbstractAggregatingDefaultQueryPersonAttributeDao()
+     */
+    @Override
+    protected AbstractAggregatingDefaultQueryPersonAttributeDao getClockedAbstractAggregatingDefaultQueryPersonAttributeDao() {
+        return new CascadingPersonAttributeDao() {
+            @Override
+            protected long currentTimeMillis() {
+                return CascadingPersonAttributeDaoTest.this.circuitBreakerTime;
+            }
+        };
+    }
+    
+    /**
+     * Runs each query of a batch against the delegate, recording the size of each batch.
+     */
+    private static class BatchingPersonAttributeDao extends StubPersonAttributeDao implements IBatchingPersonAttributeDao {
+        private final IPersonAttributeDao delegate;
+        private final int maxBatchSize;
+        private final List<Integer> batchSizes = new LinkedList<Integer>();
+        
+        public BatchingPersonAttributeDao(IPersonAttributeDao delegate, int maxBatchSize) {
+            this.delegate = delegate;
+            this.maxBatchSize = maxBatchSize;
+        }
+
+        public int getMaxBatchSize() {
+            return this.maxBatchSize;
+        }
+
+        public Set<IPersonAttributes> getPeopleForQueries(List<Map<String, List<Object>>> queries) {
+            this.batchSizes.add(queries.size());
+            
+            final Set<IPersonAttributes> people = new LinkedHashSet<IPersonAttributes>();
+            for (final Map<String, List<Object>> query : queries) {
+                final Set<IPersonAttributes> queryPeople = this.delegate.getPeopleWithMultivaluedAttributes(query);
+                if (queryPeople != null) {
+                    people.addAll(queryPeople);
+                }
+            }
+            
+            return people;
+        }
+
+        @Override
+        public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+            return this.delegate.getPeopleWithMultivaluedAttributes(query);
+        }
+    }
 }
@@ -0,0 +1,164 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$
+ */
+public class CircuitBreakerTest extends TestCase {
+    private MutableClockCircuitBreaker circuitBreaker;
+    
+    /* (non-Javadoc)
+     * @see junit.framework.TestCase#setUp()
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.circuitBreaker = new MutableClockCircuitBreaker(3, 1000, 500, 200);
+    }
+    
+    public void testInvalidConfiguration() {
+        try {
+            new CircuitBreaker("test", 0, 1000, 500, 0);
+            fail("IllegalArgumentException should have been thrown with a failureThreshold of 0");
+        }
+        catch (IllegalArgumentException iae) {
+            //expected
+        }
+        
+        try {
+            new CircuitBreaker("test", 1, 1000, 0, 0);
+            fail("IllegalArgumentException should have been thrown with an openTime of 0");
+        }
+        catch (IllegalArgumentException iae) {
+            //expected
+        }
+    }
+    
+    public void testOpensAtThreshold() {
+        assertTrue(this.circuitBreaker.allowRequest());
+        this.circuitBreaker.recordFailure();
+        this.circuitBreaker.recordSuccess(10);
+        this.circuitBreaker.recordFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, this.circuitBreaker.getState());
+        
+        this.circuitBreaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, this.circuitBreaker.getState());
+        assertFalse(this.circuitBreaker.allowRequest());
+        assertFalse(this.circuitBreaker.allowRequest());
+        
+        assertEquals(1, this.circuitBreaker.getSuccesses());
+        assertEquals(3, this.circuitBreaker.getFailures());
+        assertEquals(2, this.circuitBreaker.getRejectedCalls());
+        assertEquals(1, this.circuitBreaker.getTimesOpened());
+    }
+    
+    public void testFailuresOutsideWindow() {
+        this.circuitBreaker.recordFailure();
+        this.circuitBreaker.recordFailure();
+        
+        //The first two failures are no longer in the window
+        this.circuitBreaker.time = 1500;
+        this.circuitBreaker.recordFailure();
+        this.circuitBreaker.recordFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, this.circuitBreaker.getState());
+        
+        this.circuitBreaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, this.circuitBreaker.getState());
+    }
+    
+    public void testSlowCallsCountAsFailures() {
+        this.circuitBreaker.recordSuccess(200);
+        this.circuitBreaker.recordSuccess(300);
+        this.circuitBreaker.recordSuccess(199);
+        this.circuitBreaker.recordSuccess(250);
+        
+        assertEquals(CircuitBreaker.State.OPEN, this.circuitBreaker.getState());
+        assertEquals(3, this.circuitBreaker.getSlowCalls());
+        assertEquals(3, this.circuitBreaker.getFailures());
+        assertEquals(1, this.circuitBreaker.getSuccesses());
+    }
+    
+    public void testHalfOpenProbe() {
+        this.openBreaker();
+        
+        this.circuitBreaker.time = 1499;
+        assertFalse(this.circuitBreaker.allowRequest());
+        
+        //One probe is allowed per openTime
+        this.circuitBreaker.time = 1500;
+        assertTrue(this.circuitBreaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, this.circuitBreaker.getState());
+        assertFalse(this.circuitBreaker.allowRequest());
+        
+        this.circuitBreaker.time = 2000;
+        assertTrue(this.circuitBreaker.allowRequest());
+        
+        //A successful probe closes the breaker
+        this.circuitBreaker.recordSuccess(10);
+        assertEquals(CircuitBreaker.State.CLOSED, this.circuitBreaker.getState());
+        assertTrue(this.circuitBreaker.allowRequest());
+        assertTrue(this.circuitBreaker.allowRequest());
+        
+        assertEquals(1, this.circuitBreaker.getTimesHalfOpened());
+        assertEquals(1, this.circuitBreaker.getTimesClosed());
+    }
+    
+    public void testFailedProbeReopens() {
+        this.openBreaker();
+        
+        this.circuitBreaker.time = 1500;
+        assertTrue(this.circuitBreaker.allowRequest());
+        this.circuitBreaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, this.circuitBreaker.getState());
+        assertEquals(1500, this.circuitBreaker.getStateChangeTime());
+        
+        this.circuitBreaker.time = 1999;
+        assertFalse(this.circuitBreaker.allowRequest());
+        
+        this.circuitBreaker.time = 2000;
+        assertTrue(this.circuitBreaker.allowRequest());
+        assertEquals(2, this.circuitBreaker.getTimesOpened());
+        assertEquals(2, this.circuitBreaker.getTimesHalfOpened());
+    }
+    
+    private void openBreaker() {
+        this.circuitBreaker.time = 1000;
+        this.circuitBreaker.recordFailure();
+        this.circuitBreaker.recordFailure();
+        this.circuitBreaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, this.circuitBreaker.getState());
+    }
+    
+    private static class MutableClockCircuitBreaker extends CircuitBreaker {
+        private long time = 0;
+        
+        public MutableClockCircuitBreaker(int failureThreshold, long window, long openTime, long slowCallTime) {
+            super("test", failureThreshold, window, openTime, slowCallTime);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return this.time;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.util.Util;
+
+/**
+ * @version $Revision$
+ */
+public class CompactPersonImplTest extends TestCase {
+    
+    private Map<String, List<Object>> createAttributes() {
+        final Map<String, List<Object>> attributes = new LinkedHashMap<String, List<Object>>();
+        attributes.put("mail", Util.list("edalquist@example.edu"));
+        attributes.put("phone", Util.list("555-1234", "555-4321"));
+        attributes.put("nickname", Util.list((Object)null));
+        attributes.put("title", new ArrayList<Object>());
+        attributes.put("office", null);
+        return attributes;
+    }
+    
+    public void testAttributeValues() {
+        final Map<String, List<Object>> attributes = this.createAttributes();
+        final CompactPersonImpl person = new CompactPersonImpl("edalquist", attributes);
+        
+        assertEquals("edalquist", person.getName());
+        
+        assertEquals("edalquist@example.edu", person.getAttributeValue("mail"));
+        assertEquals(Util.list("edalquist@example.edu"), person.getAttributeValues("mail"));
+        
+        assertEquals("555-1234", person.getAttributeValue("phone"));
+        assertEquals(Util.list("555-1234", "555-4321"), person.getAttributeValues("phone"));
+        
+        assertNull(person.getAttributeValue("nickname"));
+        assertEquals(Util.list((Object)null), person.getAttributeValues("nickname"));
+        
+        assertNull(person.getAttributeValue("title"));
+        assertEquals(Collections.emptyList(), person.getAttributeValues("title"));
+        
+        assertNull(person.getAttributeValue("office"));
+        assertNull(person.getAttributeValues("office"));
+        
+        assertNull(person.getAttributeValue("MAIL"));
+        assertNull(person.getAttributeValues("missing"));
+        
+        //Changes to the source attributes don't affect the person
+        attributes.get("phone").clear();
+        assertEquals(Util.list("555-1234", "555-4321"), person.getAttributeValues("phone"));
+    }
+    
+    public void testAttributesView() {
+        final Map<String, List<Object>> attributes = this.createAttributes();
+        final CompactPersonImpl person = new CompactPersonImpl("edalquist", attributes);
+        
+        final Map<String, List<Object>> view = person.getAttributes();
+        assertEquals(attributes, view);
+        assertEquals(view, attributes);
+        assertEquals(attributes.hashCode(), view.hashCode());
+        assertEquals(new ArrayList<String>(attributes.keySet()), new ArrayList<String>(view.keySet()));
+        assertTrue(view.containsKey("office"));
+        assertFalse(view.containsKey("missing"));
+        assertNull(view.get(new Object()));
+        
+        try {
+            view.put("missing", Util.list("value"));
+            fail("attributes view should be read-only");
+        }
+        catch (UnsupportedOperationException uoe) {
+            //expected
+        }
+        
+        try {
+            view.get("phone").add("555-0000");
+            fail("attribute values should be read-only");
+        }
+        catch (UnsupportedOperationException uoe) {
+            //expected
+        }
+    }
+    
+    public void testSharedSchema() {
+        final CompactPersonImpl person1 = new CompactPersonImpl("edalquist", this.createAttributes());
+        final CompactPersonImpl person2 = new CompactPersonImpl("awp9", this.createAttributes());
+        assertSame(person1.getSchema(), person2.getSchema());
+        
+        final CompactPersonImpl caseInsensitive = new CompactPersonImpl("edalquist", this.createAttributes(), true);
+        assertNotSame(person1.getSchema(), caseInsensitive.getSchema());
+        assertEquals("edalquist@example.edu", caseInsensitive.getAttributeValue("MAIL"));
+    }
+    
+    public void testSchemaInterning() {
+        final AttributeSchema schema = AttributeSchema.getInstance(Util.genList("mail", "phone"), false);
+        assertSame(schema, AttributeSchema.getInstance(new LinkedHashSet<String>(Util.genList("mail", "phone")), false));
+        assertNotSame(schema, AttributeSchema.getInstance(Util.genList("phone", "mail"), false));
+        assertNotSame(schema, AttributeSchema.getInstance(Util.genList("mail", "phone", "cn"), false));
+        assertNotSame(schema, AttributeSchema.getInstance(Util.genList("mail", "phone"), true));
+        assertEquals(1, schema.getSlot("phone"));
+    }
+    
+    public void testEquality() {
+        final IPersonAttributes namedPerson = new NamedPersonImpl("edalquist", this.createAttributes());
+        final IPersonAttributes compactPerson = CompactPersonImpl.compact(namedPerson);
+        
+        assertEquals(namedPerson, compactPerson);
+        assertEquals(compactPerson, namedPerson);
+        assertEquals(namedPerson.hashCode(), compactPerson.hashCode());
+        assertSame(compactPerson, CompactPersonImpl.compact(compactPerson));
+    }
+    
+    public void testCompactCaseInsensitive() {
+        final IPersonAttributes person = CompactPersonImpl.compact(new CaseInsensitiveNamedPersonImpl("edalquist", this.createAttributes()));
+        
+        assertEquals("edalquist@example.edu", person.getAttributeValue("Mail"));
+        assertEquals(Util.list("555-1234", "555-4321"), person.getAttributes().get("PHONE"));
+    }
+    
+    public void testSerialization() throws Exception {
+        final CompactPersonImpl person = new CompactPersonImpl("edalquist", this.createAttributes());
+        
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(person);
+        out.close();
+        
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        final CompactPersonImpl readPerson = (CompactPersonImpl)in.readObject();
+        
+        assertEquals(person, readPerson);
+        assertEquals(person.getAttributes(), readPerson.getAttributes());
+        assertSame(person.getSchema(), readPerson.getSchema());
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.util.Util;
+
+/**
+ * DependencyGraphPersonAttributeDao testcase.
+ * 
+ * @version $Revision$
+ */
+public class DependencyGraphPersonAttributeDaoTest extends AbstractAggregatingDefaultQueryPersonAttributeDaoTest {
+    private QueryAttributeStubPersonAttributeDao ldapSource;
+    private QueryAttributeStubPersonAttributeDao xmlSource;
+    private QueryAttributeStubPersonAttributeDao jdbcSourceOne;
+    private QueryAttributeStubPersonAttributeDao jdbcSourceTwo;
+    
+    /* (non-Javadoc)
+     * @see junit.framework.TestCase#setUp()
+     */
+    @Override
+    protected void setUp() {
+        final Map<String, List<Object>> ldapUser = new HashMap<String, List<Object>>();
+        ldapUser.put("employeeId", Util.list("E123"));
+        ldapUser.put("mail", Util.list("edalquist@example.edu"));
+        this.ldapSource = new QueryAttributeStubPersonAttributeDao("username", Collections.singletonMap("edalquist", ldapUser));
+        
+        final Map<String, List<Object>> xmlUser = new HashMap<String, List<Object>>();
+        xmlUser.put("phone", Util.list("777-7777"));
+        this.xmlSource = new QueryAttributeStubPersonAttributeDao("username", Collections.singletonMap("edalquist", xmlUser));
+        
+        final Map<String, List<Object>> jdbcUserOne = new HashMap<String, List<Object>>();
+        jdbcUserOne.put("department", Util.list("IT"));
+        this.jdbcSourceOne = new QueryAttributeStubPersonAttributeDao("employeeId", Collections.singletonMap("E123", jdbcUserOne));
+        
+        final Map<String, List<Object>> jdbcUserTwo = new HashMap<String, List<Object>>();
+        jdbcUserTwo.put("salaryGrade", Util.list("7"));
+        this.jdbcSourceTwo = new QueryAttributeStubPersonAttributeDao("employeeId", Collections.singletonMap("E123", jdbcUserTwo));
+    }
+    
+    /**
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDaoTest#getConfiguredAbstractAggregatingDefaultQueryPersonAttributeDao()
+     */
+    @Override
+    protected AbstractAggregatingDefaultQueryPersonAttributeDao getConfiguredAbstractAggregatingDefaultQueryPersonAttributeDao() {
+        final DependencyGraphPersonAttributeDao impl = new DependencyGraphPersonAttributeDao();
+        impl.setPersonAttributeDaos(Util.genList((IPersonAttributeDao)this.jdbcSourceOne, this.ldapSource, this.xmlSource, this.jdbcSourceTwo));
+        return impl;
+    }
+
+    /**
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDaoTest#getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao()
+     */
+    @Override
+    protected AbstractAggregatingDefaultQueryPersonAttributeDao getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao() {
+        return new DependencyGraphPersonAttributeDao();
+    }
+    
+    /**
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDaoTest#getClockedAbstractAggregatingDefaultQueryPersonAttributeDao()
+     */
+    @Override
+    protected AbstractAggregatingDefaultQueryPersonAttributeDao getClockedAbstractAggregatingDefaultQueryPersonAttributeDao() {
+        return new DependencyGraphPersonAttributeDao() {
+            @Override
+            protected long currentTimeMillis() {
+                return DependencyGraphPersonAttributeDaoTest.this.circuitBreakerTime;
+            }
+        };
+    }
+    
+    public void testDependencies() {
+        final DependencyGraphPersonAttributeDao impl = (DependencyGraphPersonAttributeDao)this.getConfiguredAbstractAggregatingDefaultQueryPersonAttributeDao();
+        
+        final Map<IPersonAttributeDao, Set<IPersonAttributeDao>> dependencies = impl.getChildDependencies(Collections.singletonMap("username", Util.list((Object)"edalquist")));
+        assertEquals(2, dependencies.size());
+        assertEquals(Collections.singleton(this.ldapSource), dependencies.get(this.jdbcSourceOne));
+        assertEquals(Collections.singleton(this.ldapSource), dependencies.get(this.jdbcSourceTwo));
+        
+        //An attribute in the seed doesn't need to wait for another child
+        final Map<String, List<Object>> query = new HashMap<String, List<Object>>();
+        query.put("username", Util.list("edalquist"));
+        query.put("employeeId", Util.list("E123"));
+        assertEquals(Collections.emptyMap(), impl.getChildDependencies(query));
+    }
+    
+    public void testDependentChildrenQueriedAfterDependencies() {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao impl = this.getConfiguredAbstractAggregatingDefaultQueryPersonAttributeDao();
+        
+        //jdbcSourceOne is configured first but waits for the employeeId from ldapSource
+        final Map<String, List<Object>> attributes = impl.getMultivaluedUserAttributes("edalquist");
+        assertEquals(Util.list("E123"), attributes.get("employeeId"));
+        assertEquals(Util.list("777-7777"), attributes.get("phone"));
+        assertEquals(Util.list("IT"), attributes.get("department"));
+        assertEquals(Util.list("7"), attributes.get("salaryGrade"));
+        
+        assertEquals(Util.list("E123"), this.jdbcSourceOne.queriedValues);
+        assertEquals(Util.list("edalquist"), this.jdbcSourceOne.queriedUsernames);
+    }
+    
+    public void testIndependentChildrenRunConcurrently() {
+        //ldapSource and xmlSource must both be running to get past the barrier
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        this.ldapSource.barrier = barrier;
+        this.xmlSource.barrier = barrier;
+        
+        final AbstractAggregatingDefaultQueryPersonAttributeDao impl = this.getConfiguredAbstractAggregatingDefaultQueryPersonAttributeDao();
+        
+        final ExecutorService queryExecutor = Executors.newCachedThreadPool();
+        try {
+            impl.setQueryExecutor(queryExecutor);
+            
+            final Map<String, List<Object>> attributes = impl.getMultivaluedUserAttributes("edalquist");
+            assertEquals(Util.list("777-7777"), attributes.get("phone"));
+            assertEquals(Util.list("IT"), attributes.get("department"));
+            assertEquals(Util.list("7"), attributes.get("salaryGrade"));
+        }
+        finally {
+            queryExecutor.shutdownNow();
+        }
+    }
+    
+    public void testStopOnSuccessUsesConfiguredOrder() {
+        //ldapSource is configured first but only returns after xmlSource has been queried
+        final CountDownLatch xmlQueried = new CountDownLatch(1);
+        this.xmlSource.queriedLatch = xmlQueried;
+        this.ldapSource.awaitLatch = xmlQueried;
+        
+        final DependencyGraphPersonAttributeDao impl = new DependencyGraphPersonAttributeDao();
+        impl.setPersonAttributeDaos(Util.genList((IPersonAttributeDao)this.ldapSource, this.xmlSource));
+        impl.setStopOnSuccess(true);
+        
+        final ExecutorService queryExecutor = Executors.newCachedThreadPool();
+        try {
+            impl.setQueryExecutor(queryExecutor);
+            
+            final Map<String, List<Object>> attributes = impl.getMultivaluedUserAttributes("edalquist");
+            assertEquals(Util.list("E123"), attributes.get("employeeId"));
+            assertNull(attributes.get("phone"));
+            assertEquals(Util.list("edalquist"), this.xmlSource.queriedValues);
+        }
+        finally {
+            queryExecutor.shutdownNow();
+        }
+    }
+    
+    public void testFailedDependency() {
+        final DependencyGraphPersonAttributeDao impl = new DependencyGraphPersonAttributeDao();
+        final QueryAttributeStubPersonAttributeDao failingLdapSource = new QueryAttributeStubPersonAttributeDao("username", this.ldapSource.getBackingMap()) {
+            @Override
+            protected List<IPersonAttributes> getPeopleForQuery(String seedValue, String queryUserName) {
+                throw new IllegalStateException("LDAP is down");
+            }
+        };
+        impl.setPersonAttributeDaos(Util.genList((IPersonAttributeDao)this.jdbcSourceOne, failingLdapSource, this.xmlSource));
+        
+        //The dependent child is still queried but doesn't have the attribute it needs
+        final Map<String, List<Object>> attributes = impl.getMultivaluedUserAttributes("edalquist");
+        assertEquals(Util.list("777-7777"), attributes.get("phone"));
+        assertNull(attributes.get("department"));
+        assertEquals(Collections.emptyList(), this.jdbcSourceOne.queriedValues);
+    }
+    
+    public void testCircularDependencies() {
+        final Map<String, List<Object>> userOne = new HashMap<String, List<Object>>();
+        userOne.put("attrB", Util.list("b"));
+        final QueryAttributeStubPersonAttributeDao sourceA = new QueryAttributeStubPersonAttributeDao("attrA", Collections.singletonMap("a", userOne));
+        
+        final Map<String, List<Object>> userTwo = new HashMap<String, List<Object>>();
+        userTwo.put("attrA", Util.list("a"));
+        userTwo.put("username", Util.list("edalquist"));
+        final QueryAttributeStubPersonAttributeDao sourceB = new QueryAttributeStubPersonAttributeDao("attrB", Collections.singletonMap("b", userTwo));
+        
+        final DependencyGraphPersonAttributeDao impl = new DependencyGraphPersonAttributeDao();
+        impl.setPersonAttributeDaos(Util.genList((IPersonAttributeDao)sourceA, sourceB));
+        
+        //Neither can go first, they are queried in the configured order instead of waiting for each other
+        assertNull(impl.getPeopleWithMultivaluedAttributes(Collections.singletonMap("username", Util.list((Object)"edalquist"))));
+        
+        final Map<String, List<Object>> query = new HashMap<String, List<Object>>();
+        query.put("username", Util.list("edalquist"));
+        query.put("attrA", Util.list("a"));
+        final IPersonAttributes person = impl.getPeopleWithMultivaluedAttributes(query).iterator().next();
+        assertEquals(Util.list("b"), person.getAttributeValues("attrB"));
+        assertEquals(Util.list("b"), sourceB.queriedValues);
+    }
+    
+    /**
+     * Queries on a single attribute and records the values and usernames it is queried with, optionally waiting on a
+     * barrier or latch and counting down a latch once queried.
+     */
+    private static class QueryAttributeStubPersonAttributeDao extends ComplexStubPersonAttributeDao {
+        private final List<String> queriedValues = Collections.synchronizedList(new ArrayList<String>());
+        private final List<String> queriedUsernames = Collections.synchronizedList(new ArrayList<String>());
+        private volatile CyclicBarrier barrier = null;
+        private volatile CountDownLatch awaitLatch = null;
+        private volatile CountDownLatch queriedLatch = null;
+        
+        public QueryAttributeStubPersonAttributeDao(String queryAttributeName, Map<String, Map<String, List<Object>>> backingMap) {
+            this.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("username"));
+            this.setQueryAttributeName(queryAttributeName);
+            this.setBackingMap(backingMap);
+        }
+
+        @Override
+        public Set<String> getAvailableQueryAttributes() {
+            return Collections.singleton(this.getQueryAttributeName());
+        }
+
+        @Override
+        protected List<IPersonAttributes> getPeopleForQuery(String seedValue, String queryUserName) {
+            final CyclicBarrier barrier = this.barrier;
+            if (barrier != null) {
+                try {
+                    barrier.await(5, TimeUnit.SECONDS);
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException("Children were not queried concurrently", e);
+                }
+            }
+            
+            final CountDownLatch awaitLatch = this.awaitLatch;
+            if (awaitLatch != null) {
+                try {
+                    assertTrue(awaitLatch.await(5, TimeUnit.SECONDS));
+                    
+                    //Give the other child time to complete
+                    Thread.sleep(100);
+                }
+                catch (InterruptedException e) {
+                    throw new IllegalStateException("Interrupted", e);
+                }
+            }
+            
+            this.queriedValues.add(seedValue);
+            this.queriedUsernames.add(queryUserName);
+            
+            final CountDownLatch queriedLatch = this.queriedLatch;
+            if (queriedLatch != null) {
+                queriedLatch.countDown();
+            }
+            
+            return super.getPeopleForQuery(seedValue, queryUserName);
+        }
+    }
+}
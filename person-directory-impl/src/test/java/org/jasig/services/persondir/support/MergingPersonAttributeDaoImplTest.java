@@ -27,6 +27,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
@@ -107,6 +115,19 @@ public class MergingPersonAttributeDaoImplTest
     protected AbstractAggregatingDefaultQueryPersonAttributeDao getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao() {
         return new MergingPersonAttributeDaoImpl();
     }
+    
+    /**
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDaoTest#getClockedAbstractAggregatingDefaultQueryPersonAttributeDao()
+     */
+    @Override
+    protected AbstractAggregatingDefaultQueryPersonAttributeDao getClockedAbstractAggregatingDefaultQueryPersonAttributeDao() {
+        return new MergingPersonAttributeDaoImpl() {
+            @Override
+            protected long currentTimeMillis() {
+                return MergingPersonAttributeDaoImplTest.this.circuitBreakerTime;
+            }
+        };
+    }
 
 
     /**
@@ -325,6 +346,115 @@ public class MergingPersonAttributeDaoImplTest
         assertEquals(excepectedHomeUsers, homeUsers);
     }
     
+    /**
+     * Test that parallel queries merge in the configured order and recover exceptions like sequential queries.
+     */
+    public void testParallelQueries() {
+        final ExecutorService queryExecutor = Executors.newFixedThreadPool(4);
+        try {
+            List<IPersonAttributeDao> attributeSources = new ArrayList<IPersonAttributeDao>();
+            
+            attributeSources.add(this.sourceOne);
+            attributeSources.add(this.sourceTwo);
+            attributeSources.add(new ThrowingPersonAttributeDao());
+            attributeSources.add(this.collidesWithOne);
+            
+            MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+            impl.setPersonAttributeDaos(attributeSources);
+            impl.setQueryExecutor(queryExecutor);
+            
+            Map<String, List<Object>> queryMap = new HashMap<String, List<Object>>();
+            queryMap.put(queryAttr, Util.list("awp9"));
+            
+            Map<String, List<Object>> result = impl.getMultivaluedUserAttributes(queryMap);
+            assertEquals(this.oneAndTwoAndThree, result);
+            
+            //Merge order must follow the configured order
+            assertEquals(Util.list("blue", "white"), result.get("shirtColor"));
+            
+            impl.setRecoverExceptions(false);
+            try {
+                impl.getMultivaluedUserAttributes(queryMap);
+                fail("MergingPersonAttributeDao should have propogated RTE");
+            }
+            catch (RuntimeException rte) {
+                // good, was propogated
+            }
+            
+            impl.setRecoverExceptions(true);
+            impl.setStopOnSuccess(true);
+            attributeSources = new ArrayList<IPersonAttributeDao>();
+            attributeSources.add(new ThrowingPersonAttributeDao());
+            attributeSources.add(this.sourceTwo);
+            attributeSources.add(this.sourceOne);
+            impl.setPersonAttributeDaos(attributeSources);
+            assertEquals(this.sourceTwo.getBackingMap(), impl.getMultivaluedUserAttributes(queryMap));
+        }
+        finally {
+            queryExecutor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Test that parallel queries run at the same time, each child waits for all of the others to start.
+     */
+    public void testParallelQueriesRunConcurrently() {
+        //The executor only has two threads, the third query is rejected and runs in the calling thread
+        final ExecutorService queryExecutor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        try {
+            final CyclicBarrier barrier = new CyclicBarrier(3);
+            
+            List<IPersonAttributeDao> attributeSources = new ArrayList<IPersonAttributeDao>();
+            attributeSources.add(new BarrierPersonAttributeDao(barrier, this.sourceOne.getBackingMap()));
+            attributeSources.add(new BarrierPersonAttributeDao(barrier, this.sourceTwo.getBackingMap()));
+            attributeSources.add(new BarrierPersonAttributeDao(barrier, this.collidesWithOne.getBackingMap()));
+            
+            MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+            impl.setPersonAttributeDaos(attributeSources);
+            impl.setRecoverExceptions(false);
+            impl.setQueryExecutor(queryExecutor);
+            
+            Map<String, List<Object>> queryMap = new HashMap<String, List<Object>>();
+            queryMap.put(queryAttr, Util.list("awp9"));
+            
+            Map<String, List<Object>> result = impl.getMultivaluedUserAttributes(queryMap);
+            assertEquals(this.oneAndTwoAndThree, result);
+        }
+        finally {
+            queryExecutor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Waits for all of the DAOs sharing the barrier to be queried before returning results.
+     */
+    private static class BarrierPersonAttributeDao extends StubPersonAttributeDao {
+        private final CyclicBarrier barrier;
+        
+        public BarrierPersonAttributeDao(CyclicBarrier barrier, Map<String, List<Object>> backingMap) {
+            super(backingMap);
+            this.barrier = barrier;
+        }
+
+        @Override
+        public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+            try {
+                this.barrier.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            catch (BrokenBarrierException e) {
+                throw new IllegalStateException(e);
+            }
+            catch (TimeoutException e) {
+                throw new IllegalStateException("Child DAOs were not queried concurrently", e);
+            }
+            
+            return super.getPeopleWithMultivaluedAttributes(query);
+        }
+    }
+    
     /**
      * A mock, test implementation of IPersonAttributeDao which throws a 
      * RuntimeExcedption for the attribute getting methods and returns null
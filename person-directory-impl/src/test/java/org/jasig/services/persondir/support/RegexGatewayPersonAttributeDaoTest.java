@@ -23,10 +23,14 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 
 import junit.framework.TestCase;
 
 import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.mock.ThrowingPersonAttributeDao;
 
 @SuppressWarnings("deprecation")
 public class RegexGatewayPersonAttributeDaoTest extends TestCase {
@@ -85,6 +89,21 @@ public class RegexGatewayPersonAttributeDaoTest extends TestCase {
 		assertFalse(attributes.equals(results));
 	}
 	
+	public void testAsyncMatches() throws Exception {
+		final Future<IPersonAttributes> future = ((RegexGatewayPersonAttributeDao)target).getPersonAsync("monkey@yahoo.com");
+		assertEquals(attributes, future.get().getAttributes());
+	}
+	
+	public void testAsyncDoesNotMatch() throws Exception {
+		//The target is never queried when the seed doesn't match
+		final RegexGatewayPersonAttributeDao gateway = new RegexGatewayPersonAttributeDao("username", ".*@.*", new ThrowingPersonAttributeDao());
+		final Map<String, List<Object>> seed = Collections.singletonMap("username", Collections.singletonList((Object)"monkey"));
+		
+		final Future<Set<IPersonAttributes>> future = gateway.getPeopleWithMultivaluedAttributesAsync(seed);
+		assertTrue(future.isDone());
+		assertNull(future.get());
+	}
+	
 	public void testGetPossibleNames() {
 		assertEquals(enclosed.getPossibleUserAttributeNames(), target.getPossibleUserAttributeNames());
 	}
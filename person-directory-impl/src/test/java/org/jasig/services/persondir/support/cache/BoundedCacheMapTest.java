@@ -0,0 +1,196 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.CachingPersonAttributeDaoImpl;
+import org.jasig.services.persondir.support.ComplexStubPersonAttributeDao;
+import org.jasig.services.persondir.support.SimpleUsernameAttributeProvider;
+import org.jasig.services.persondir.util.Util;
+
+/**
+ * @version $Revision$
+ */
+public class BoundedCacheMapTest extends TestCase {
+    
+    public void testPropertyConstraints() {
+        try {
+            new BoundedCacheMap<String, String>(0);
+            fail("BoundedCacheMap(0) should have thrown an IllegalArgumentException.");
+        }
+        catch (IllegalArgumentException iae) {
+            //expected
+        }
+        
+        final BoundedCacheMap<String, String> cache = new BoundedCacheMap<String, String>(10);
+        try {
+            cache.put(null, "value");
+            fail("put(null, value) should have thrown an IllegalArgumentException.");
+        }
+        catch (IllegalArgumentException iae) {
+            //expected
+        }
+        try {
+            cache.put("key", null);
+            fail("put(key, null) should have thrown an IllegalArgumentException.");
+        }
+        catch (IllegalArgumentException iae) {
+            //expected
+        }
+    }
+    
+    public void testMapOperations() {
+        final BoundedCacheMap<String, String> cache = new BoundedCacheMap<String, String>(100);
+        
+        assertNull(cache.put("a", "1"));
+        assertEquals("1", cache.put("a", "2"));
+        assertEquals("2", cache.get("a"));
+        assertTrue(cache.containsKey("a"));
+        assertFalse(cache.containsKey("b"));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.entrySet().size());
+        
+        assertEquals("2", cache.remove("a"));
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.clear();
+        assertEquals(0, cache.size());
+        
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+    
+    public void testMaximumSize() {
+        final BoundedCacheMap<Integer, String> cache = new BoundedCacheMap<Integer, String>(100, 4);
+        
+        for (int index = 0; index < 1000; index++) {
+            cache.put(index, "value" + index);
+            assertTrue("Cache exceeded maximumSize: " + cache.size(), cache.size() <= 100);
+        }
+        
+        assertEquals(100, cache.size());
+        assertEquals(900, cache.getEvictionCount());
+    }
+    
+    public void testFrequentEntriesSurviveScan() {
+        final BoundedCacheMap<Integer, String> cache = new BoundedCacheMap<Integer, String>(100, 1);
+        
+        //Establish a frequently used working set
+        for (int round = 0; round < 5; round++) {
+            for (int index = 0; index < 50; index++) {
+                if (cache.get(index) == null) {
+                    cache.put(index, "value" + index);
+                }
+            }
+        }
+        
+        //Flood the cache with one-time entries
+        for (int index = 1000; index < 3000; index++) {
+            cache.put(index, "value" + index);
+        }
+        
+        int retained = 0;
+        for (int index = 0; index < 50; index++) {
+            if (cache.containsKey(index)) {
+                retained++;
+            }
+        }
+        
+        //The single most recently added working set entry is still in the admission window and is pushed out by the scan
+        assertTrue("Frequently used entries should not be evicted by a scan, retained " + retained, retained >= 49);
+    }
+    
+    public void testExpireAfterWrite() {
+        final MutableClockCacheMap<String, String> cache = new MutableClockCacheMap<String, String>(10);
+        cache.setExpireAfterWrite(1000);
+        
+        cache.put("a", "1");
+        cache.now = 500;
+        assertEquals("1", cache.get("a"));
+        cache.now = 1000;
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getExpirationCount());
+    }
+    
+    public void testExpireAfterAccess() {
+        final MutableClockCacheMap<String, String> cache = new MutableClockCacheMap<String, String>(10);
+        cache.setExpireAfterAccess(1000);
+        
+        cache.put("a", "1");
+        cache.now = 900;
+        assertEquals("1", cache.get("a"));
+        cache.now = 1800;
+        assertEquals("1", cache.get("a"));
+        cache.now = 2800;
+        assertFalse(cache.containsKey("a"));
+        assertNull(cache.get("a"));
+    }
+    
+    public void testAsUserInfoCache() throws Exception {
+        final ComplexStubPersonAttributeDao stubDao = new ComplexStubPersonAttributeDao();
+        final Map<String, Map<String, List<Object>>> backingMap = new HashMap<String, Map<String, List<Object>>>();
+        for (int index = 0; index < 20; index++) {
+            backingMap.put("user" + index, Collections.singletonMap("phone", Util.list("555-000" + index)));
+        }
+        stubDao.setBackingMap(backingMap);
+        stubDao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        
+        final BoundedCacheMap<Serializable, Set<IPersonAttributes>> cache = new BoundedCacheMap<Serializable, Set<IPersonAttributes>>(5, 1);
+        
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        dao.setUserInfoCache(cache);
+        dao.afterPropertiesSet();
+        
+        for (int index = 0; index < 20; index++) {
+            final IPersonAttributes person = dao.getPerson("user" + index);
+            assertEquals(Util.list("555-000" + index), person.getAttributeValues("phone"));
+        }
+        
+        assertEquals(5, cache.size());
+    }
+    
+    private static class MutableClockCacheMap<K, V> extends BoundedCacheMap<K, V> {
+        private long now = 0;
+        
+        public MutableClockCacheMap(int maximumSize) {
+            super(maximumSize);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return this.now;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$
+ */
+public class StripedCounterTest extends TestCase {
+    public void testPropertyConstraints() {
+        try {
+            new StripedCounter(0);
+            fail("0 stripes should fail");
+        }
+        catch (IllegalArgumentException iae) {
+            //expected
+        }
+    }
+    
+    public void testCounting() {
+        final StripedCounter counter = new StripedCounter(3);
+        assertEquals(0, counter.sum());
+        
+        counter.increment();
+        counter.add(10);
+        counter.add(-2);
+        assertEquals(9, counter.sum());
+        assertEquals("9", counter.toString());
+        
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+    
+    public void testConcurrentUpdates() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        
+        final int incrementsPerThread = 10000;
+        final Thread[] threads = new Thread[16];
+        for (int index = 0; index < threads.length; index++) {
+            threads[index] = new Thread() {
+                @Override
+                public void run() {
+                    for (int increment = 0; increment < incrementsPerThread; increment++) {
+                        counter.increment();
+                    }
+                }
+            };
+            threads[index].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertEquals(threads.length * incrementsPerThread, counter.sum());
+    }
+}
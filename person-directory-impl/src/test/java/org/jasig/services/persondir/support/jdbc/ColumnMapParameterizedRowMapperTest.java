@@ -0,0 +1,119 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.jdbc;
+
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+
+import org.hsqldb.jdbcDriver;
+import org.springframework.jdbc.core.simple.SimpleJdbcTemplate;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+
+/**
+ * Test the {@link ColumnMapParameterizedRowMapper} against a dummy DataSource.
+ * 
+ * @version $Revision$
+ */
+public class ColumnMapParameterizedRowMapperTest extends TestCase {
+    private DataSource testDataSource;
+    private SimpleJdbcTemplate simpleJdbcTemplate;
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.testDataSource = new SimpleDriverDataSource(new jdbcDriver(), "jdbc:hsqldb:mem:columnmapmapper", "sa", "");
+        this.simpleJdbcTemplate = new SimpleJdbcTemplate(this.testDataSource);
+
+        final Connection con = this.testDataSource.getConnection();
+        
+        con.prepareStatement("CREATE TABLE user_table " +
+                             "(netid VARCHAR, " +
+                             "name VARCHAR, " +
+                             "email VARCHAR)").execute();
+
+        con.prepareStatement("INSERT INTO user_table " +
+                             "(netid, name, email) " +
+                             "VALUES ('awp9', 'Andrew', 'andrew.petro@yale.edu')").execute();
+        con.prepareStatement("INSERT INTO user_table " +
+                             "(netid, name, email) " +
+                             "VALUES ('edalquist', 'Eric', null)").execute();
+        
+        con.close();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        
+        final Connection con = this.testDataSource.getConnection();
+        con.prepareStatement("DROP TABLE user_table").execute();
+        con.close();
+        
+        this.testDataSource = null;
+        this.simpleJdbcTemplate = null;
+    }
+    
+    public void testMapRows() {
+        final ColumnMapParameterizedRowMapper mapper = new ColumnMapParameterizedRowMapper();
+        
+        final List<Map<String, Object>> rows = this.simpleJdbcTemplate.query("SELECT netid, name, email FROM user_table ORDER BY netid", mapper);
+        assertEquals(2, rows.size());
+        
+        final Map<String, Object> first = rows.get(0);
+        assertEquals("awp9", first.get("netid"));
+        assertEquals("Andrew", first.get("NAME"));
+        assertEquals("andrew.petro@yale.edu", first.get("email"));
+        
+        final Map<String, Object> second = rows.get(1);
+        assertEquals("edalquist", second.get("netid"));
+        assertTrue(second.containsKey("email"));
+        assertNull(second.get("email"));
+        
+        //Every row shares the keys of the mapping plan
+        assertSame(first.keySet().iterator().next(), second.keySet().iterator().next());
+        
+        //A new ResultSet with different columns gets a new plan
+        final List<Map<String, Object>> nameRows = this.simpleJdbcTemplate.query("SELECT name AS first_name FROM user_table ORDER BY netid", mapper);
+        assertEquals(Collections.singletonMap("FIRST_NAME", "Andrew"), nameRows.get(0));
+        assertEquals(Collections.singletonMap("FIRST_NAME", "Eric"), nameRows.get(1));
+    }
+    
+    public void testIgnoreNullMultivalued() {
+        final ColumnMapParameterizedRowMapper mapper = new ColumnMapParameterizedRowMapper(true, true);
+        assertTrue(mapper.isMultivalued());
+        
+        final List<Map<String, Object>> rows = this.simpleJdbcTemplate.query("SELECT netid, email FROM user_table ORDER BY netid", mapper);
+        assertEquals(2, rows.size());
+        
+        final Map<String, Object> first = rows.get(0);
+        assertEquals(Collections.singletonList("awp9"), first.get("netid"));
+        assertEquals(Collections.singletonList("andrew.petro@yale.edu"), first.get("email"));
+        
+        final Map<String, Object> second = rows.get(1);
+        assertEquals(Collections.singletonMap("NETID", Collections.singletonList("edalquist")), second);
+    }
+}
@@ -20,6 +20,7 @@
 package org.jasig.services.persondir.support.jdbc;
 
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -30,8 +31,10 @@ import java.util.Set;
 import javax.sql.DataSource;
 
 import org.hsqldb.jdbcDriver;
+import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
 import org.jasig.services.persondir.support.AbstractDefaultQueryPersonAttributeDaoTest;
+import org.jasig.services.persondir.support.IPersonAttributesCallbackHandler;
 import org.jasig.services.persondir.support.SimpleUsernameAttributeProvider;
 import org.jasig.services.persondir.util.Util;
 import org.springframework.jdbc.BadSqlGrammarException;
@@ -207,6 +210,70 @@ public class MultiRowJdbcPersonAttributeDaoTest
        assertEquals(Util.list("Andrew"), attribs.get("firstName"));
    }
 
+   /**
+    * Test that streaming the rows gives the same people as reading them into a List
+    */
+   public void testStreamResults() {
+       MultiRowJdbcPersonAttributeDao impl = new MultiRowJdbcPersonAttributeDao(testDataSource, "SELECT netid, attr_name, attr_val FROM user_table WHERE {0}");
+       impl.setQueryAttributeMapping(Collections.singletonMap("color", "attr_val"));
+
+       impl.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+       impl.setUnmappedUsernameAttribute("netid");
+       impl.setNameValueColumnMappings(Collections.singletonMap("attr_name", "attr_val"));
+       
+       final Set<IPersonAttributes> expected = impl.getPeopleWithMultivaluedAttributes(Collections.singletonMap("color", Util.list("blue")));
+       assertEquals(2, expected.size());
+       
+       assertFalse(impl.isStreamResults());
+       impl.setStreamResults(true);
+       impl.setFetchSize(2);
+       assertEquals(2, impl.getFetchSize());
+       
+       final Set<IPersonAttributes> streamed = impl.getPeopleWithMultivaluedAttributes(Collections.singletonMap("color", Util.list("blue")));
+       assertEquals(expected, streamed);
+       
+       final Map<String, Map<String, List<Object>>> expectedAttributes = new LinkedHashMap<String, Map<String, List<Object>>>();
+       for (final IPersonAttributes person : expected) {
+           expectedAttributes.put(person.getName(), person.getAttributes());
+       }
+       for (final IPersonAttributes person : streamed) {
+           assertEquals(expectedAttributes.get(person.getName()), person.getAttributes());
+           assertEquals(Util.list("blue"), person.getAttributeValues("shirt_color"));
+       }
+   }
+
+   /**
+    * Test for invalid column names when streaming
+    */
+   public void testStreamResultsInvalidColumnName() {
+       MultiRowJdbcPersonAttributeDao impl = new MultiRowJdbcPersonAttributeDao(testDataSource, "SELECT netid, attr_name, attr_val FROM user_table WHERE {0}");
+       impl.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+       impl.setStreamResults(true);
+
+       impl.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+       impl.setUnmappedUsernameAttribute("netid");
+       
+       impl.setNameValueColumnMappings(Collections.singletonMap("attr_nam", "attr_val"));
+
+       try {
+           impl.getMultivaluedUserAttributes("awp9");
+           fail("BadSqlGrammarException expected with invalid attribute mapping key");
+       }
+       catch (BadSqlGrammarException bsge) {
+           //expected
+       }
+       
+       impl.setNameValueColumnMappings(Collections.singletonMap("attr_name", "attr_va"));
+
+       try {
+           impl.getMultivaluedUserAttributes("awp9");
+           fail("BadSqlGrammarException expected with invalid attribute mapping value");
+       }
+       catch (BadSqlGrammarException bsge) {
+           //expected
+       }
+   }
+
    /**
     * Test for a query with a single attribute
     */
@@ -419,6 +486,34 @@ public class MultiRowJdbcPersonAttributeDaoTest
         
     }
 
+    public void testScanPeople() {
+        MultiRowJdbcPersonAttributeDao impl = new MultiRowJdbcPersonAttributeDao(testDataSource, "SELECT netid, attr_name, attr_val FROM user_table WHERE {0}");
+        impl.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+        impl.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        impl.setUnmappedUsernameAttribute("netid");
+        impl.setNameValueColumnMappings(Collections.singletonMap("attr_name", "attr_val"));
+        impl.setScanQuery("SELECT netid, attr_name, attr_val FROM user_table ORDER BY netid");
+        impl.setFetchSize(2);
+        
+        final List<IPersonAttributes> people = new ArrayList<IPersonAttributes>();
+        impl.scanPeople(new IPersonAttributesCallbackHandler() {
+            public void processPerson(IPersonAttributes person) {
+                people.add(person);
+            }
+        });
+        
+        assertEquals(4, people.size());
+        assertEquals("atest", people.get(0).getName());
+        assertEquals("awp9", people.get(1).getName());
+        assertEquals("edalquist", people.get(2).getName());
+        assertEquals("susan", people.get(3).getName());
+        for (final IPersonAttributes person : people) {
+            assertEquals(impl.getPerson(person.getName()).getAttributes(), person.getAttributes());
+        }
+        assertEquals(Util.list("andrew.petro@yale.edu"), people.get(1).getAttributeValues("email"));
+        assertEquals(Util.list("blue"), people.get(1).getAttributeValues("shirt_color"));
+    }
+
     @Override
     protected AbstractDefaultAttributePersonAttributeDao getAbstractDefaultQueryPersonAttributeDao() {
         MultiRowJdbcPersonAttributeDao impl = new MultiRowJdbcPersonAttributeDao(this.testDataSource, "SELECT netid, name, email FROM user_table WHERE {0}");
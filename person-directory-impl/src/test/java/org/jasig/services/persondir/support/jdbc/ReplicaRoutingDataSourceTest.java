@@ -0,0 +1,375 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.jdbc;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+
+import org.hsqldb.jdbcDriver;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.CircuitBreaker;
+import org.jasig.services.persondir.support.SimpleUsernameAttributeProvider;
+import org.jasig.services.persondir.util.Util;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.CannotGetJdbcConnectionException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+
+/**
+ * Test the {@link ReplicaRoutingDataSource} against dummy DataSources.
+ * 
+ * @version $Revision$
+ */
+public class ReplicaRoutingDataSourceTest extends TestCase {
+    private DataSource replicaA;
+    private DataSource replicaB;
+    private FailingDataSource failingReplica;
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.replicaA = this.createReplica("replicaA", "Andrew");
+        this.replicaB = this.createReplica("replicaB", "Drew");
+        this.failingReplica = new FailingDataSource(this.createReplica("replicaC", "Andy"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        
+        this.failingReplica.failing = false;
+        for (final DataSource replica : new DataSource[] { this.replicaA, this.replicaB, this.failingReplica }) {
+            new JdbcTemplate(replica).execute("DROP TABLE user_table");
+        }
+        
+        this.replicaA = null;
+        this.replicaB = null;
+        this.failingReplica = null;
+    }
+    
+    private DataSource createReplica(String name, String firstName) throws Exception {
+        final DataSource dataSource = new SimpleDriverDataSource(new jdbcDriver(), "jdbc:hsqldb:mem:" + name, "sa", "");
+        
+        final Connection con = dataSource.getConnection();
+        con.prepareStatement("CREATE TABLE user_table " +
+                             "(netid VARCHAR, " +
+                             "name VARCHAR)").execute();
+        con.prepareStatement("INSERT INTO user_table " +
+                             "(netid, name) " +
+                             "VALUES ('awp9', '" + firstName + "')").execute();
+        con.close();
+        
+        return dataSource;
+    }
+    
+    private ClockedReplicaRoutingDataSource createRoutingDataSource(DataSource... replicas) throws Exception {
+        final Map<String, DataSource> replicaDataSources = new LinkedHashMap<String, DataSource>();
+        for (int index = 0; index < replicas.length; index++) {
+            replicaDataSources.put("replica" + index, replicas[index]);
+        }
+        
+        final ClockedReplicaRoutingDataSource routingDataSource = new ClockedReplicaRoutingDataSource();
+        routingDataSource.setReplicaDataSources(replicaDataSources);
+        return routingDataSource;
+    }
+    
+    public void testRoundRobin() throws Exception {
+        final ReplicaRoutingDataSource routingDataSource = this.createRoutingDataSource(this.replicaA, this.replicaB);
+        routingDataSource.afterPropertiesSet();
+        
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(routingDataSource);
+        for (int query = 0; query < 6; query++) {
+            assertEquals(1, jdbcTemplate.queryForInt("SELECT COUNT(*) FROM user_table"));
+        }
+        
+        final List<ReplicaRoutingDataSource.Replica> replicas = routingDataSource.getReplicas();
+        assertEquals(2, replicas.size());
+        for (final ReplicaRoutingDataSource.Replica replica : replicas) {
+            assertEquals(3, replica.getConnections());
+            assertEquals(0, replica.getInFlight());
+            assertEquals(0, replica.getFailures());
+            assertEquals(CircuitBreaker.State.CLOSED, replica.getState());
+        }
+        assertEquals(0, routingDataSource.getPrimaryConnections());
+    }
+    
+    public void testLeastInFlight() throws Exception {
+        final ReplicaRoutingDataSource routingDataSource = this.createRoutingDataSource(this.replicaA, this.replicaB);
+        routingDataSource.setSelectionStrategy(ReplicaRoutingDataSource.SelectionStrategy.LEAST_IN_FLIGHT);
+        routingDataSource.afterPropertiesSet();
+        
+        final ReplicaRoutingDataSource.Replica first = routingDataSource.getReplicas().get(0);
+        final ReplicaRoutingDataSource.Replica second = routingDataSource.getReplicas().get(1);
+        
+        //Hold a connection from the first replica, every other connection should come from the second
+        final Connection held = routingDataSource.getConnection();
+        assertEquals(1, first.getInFlight());
+        
+        for (int query = 0; query < 4; query++) {
+            final Connection connection = routingDataSource.getConnection();
+            assertEquals(1, second.getInFlight());
+            connection.close();
+        }
+        
+        held.close();
+        assertEquals(0, first.getInFlight());
+        assertEquals(1, first.getConnections());
+        assertEquals(4, second.getConnections());
+        assertEquals(0, second.getInFlight());
+    }
+    
+    public void testCloseThroughBackReferences() throws Exception {
+        final ReplicaRoutingDataSource routingDataSource = this.createRoutingDataSource(this.replicaA);
+        routingDataSource.afterPropertiesSet();
+        final ReplicaRoutingDataSource.Replica replica = routingDataSource.getReplicas().get(0);
+        
+        //Closing the Connection reached from a Statement releases the replica
+        Connection connection = routingDataSource.getConnection();
+        final Statement statement = connection.createStatement();
+        assertSame(connection, statement.getConnection());
+        statement.getConnection().close();
+        assertEquals(0, replica.getInFlight());
+        
+        //As does closing the Connection reached from a ResultSet through its Statement
+        connection = routingDataSource.getConnection();
+        final PreparedStatement preparedStatement = connection.prepareStatement("SELECT name FROM user_table");
+        final ResultSet resultSet = preparedStatement.executeQuery();
+        assertSame(preparedStatement, resultSet.getStatement());
+        assertEquals(1, replica.getInFlight());
+        resultSet.getStatement().getConnection().close();
+        assertEquals(0, replica.getInFlight());
+        assertEquals(2, replica.getConnections());
+    }
+    
+    public void testFailedReplicaEjected() throws Exception {
+        final ClockedReplicaRoutingDataSource routingDataSource = this.createRoutingDataSource(this.failingReplica, this.replicaA);
+        routingDataSource.setFailureThreshold(2);
+        routingDataSource.setEjectionTime(50);
+        routingDataSource.afterPropertiesSet();
+        
+        final ReplicaRoutingDataSource.Replica failing = routingDataSource.getReplicas().get(0);
+        final ReplicaRoutingDataSource.Replica working = routingDataSource.getReplicas().get(1);
+        
+        //Every query succeeds, the failing replica is skipped
+        this.failingReplica.failing = true;
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(routingDataSource);
+        for (int query = 0; query < 6; query++) {
+            assertEquals("Andrew", jdbcTemplate.queryForObject("SELECT name FROM user_table", String.class));
+        }
+        
+        assertEquals(CircuitBreaker.State.OPEN, failing.getState());
+        assertEquals(2, failing.getFailures());
+        assertEquals(1, failing.getEjections());
+        assertTrue(failing.getSkipped() > 0);
+        assertEquals(0, failing.getInFlight());
+        assertEquals(6, working.getConnections());
+        
+        //After the ejection time the recovered replica is retried and closed
+        this.failingReplica.failing = false;
+        routingDataSource.now += 50;
+        for (int query = 0; query < 4; query++) {
+            jdbcTemplate.queryForObject("SELECT name FROM user_table", String.class);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, failing.getState());
+        assertTrue(failing.getConnections() > 0);
+    }
+    
+    public void testSlowStatements() throws Exception {
+        final ClockedReplicaRoutingDataSource routingDataSource = this.createRoutingDataSource(this.replicaA);
+        routingDataSource.setFailureThreshold(2);
+        routingDataSource.setSlowStatementTime(100);
+        routingDataSource.afterPropertiesSet();
+        
+        final ReplicaRoutingDataSource.Replica replica = routingDataSource.getReplicas().get(0);
+        
+        //A connection held for a long time, like a full directory scan, is not slow if its statements are fast
+        final Connection held = routingDataSource.getConnection();
+        held.createStatement().executeQuery("SELECT name FROM user_table").close();
+        routingDataSource.now += 10000;
+        held.close();
+        assertEquals(0, replica.getSlowConnections());
+        assertEquals(0, replica.getFailures());
+        
+        //Every clock read during a statement advances the clock past slowStatementTime
+        routingDataSource.step = 100;
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(routingDataSource);
+        for (int query = 0; query < 2; query++) {
+            jdbcTemplate.queryForObject("SELECT name FROM user_table", String.class);
+        }
+        assertEquals(2, replica.getSlowConnections());
+        assertEquals(CircuitBreaker.State.OPEN, replica.getState());
+    }
+    
+    public void testAllReplicasEjected() throws Exception {
+        final ReplicaRoutingDataSource routingDataSource = this.createRoutingDataSource(this.failingReplica);
+        routingDataSource.setFailureThreshold(1);
+        routingDataSource.afterPropertiesSet();
+        
+        this.failingReplica.failing = true;
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(routingDataSource);
+        for (int query = 0; query < 2; query++) {
+            try {
+                jdbcTemplate.queryForInt("SELECT COUNT(*) FROM user_table");
+                fail("CannotGetJdbcConnectionException expected with all replicas failing");
+            }
+            catch (CannotGetJdbcConnectionException cgjce) {
+                //expected
+            }
+        }
+        
+        routingDataSource.setPrimaryDataSource(this.replicaB);
+        assertEquals("Drew", jdbcTemplate.queryForObject("SELECT name FROM user_table", String.class));
+        assertEquals(1, routingDataSource.getPrimaryConnections());
+    }
+    
+    public void testSqlErrorsDontEject() throws Exception {
+        final ReplicaRoutingDataSource routingDataSource = this.createRoutingDataSource(this.replicaA);
+        routingDataSource.setFailureThreshold(1);
+        routingDataSource.afterPropertiesSet();
+        
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(routingDataSource);
+        try {
+            jdbcTemplate.queryForInt("SELECT COUNT(*) FROM no_such_table");
+            fail("BadSqlGrammarException expected");
+        }
+        catch (BadSqlGrammarException bsge) {
+            //expected
+        }
+        
+        final ReplicaRoutingDataSource.Replica replica = routingDataSource.getReplicas().get(0);
+        assertEquals(CircuitBreaker.State.CLOSED, replica.getState());
+        assertEquals(0, replica.getFailedConnections());
+        assertEquals(0, replica.getInFlight());
+        
+        assertTrue(ReplicaRoutingDataSource.isReplicaFailure(new SQLException("Connection reset", "08S01")));
+        assertFalse(ReplicaRoutingDataSource.isReplicaFailure(new SQLException("Bad column", "42S22")));
+        assertFalse(ReplicaRoutingDataSource.isReplicaFailure(new SQLException("Table not found", "S0002")));
+    }
+    
+    public void testPersonAttributeDao() throws Exception {
+        final ReplicaRoutingDataSource routingDataSource = this.createRoutingDataSource(this.replicaA, this.failingReplica);
+        routingDataSource.afterPropertiesSet();
+        this.failingReplica.failing = true;
+        
+        final SingleRowJdbcPersonAttributeDao impl = new SingleRowJdbcPersonAttributeDao(routingDataSource, "SELECT netid, name FROM user_table WHERE {0}");
+        impl.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+        impl.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        impl.setUnmappedUsernameAttribute("netid");
+        impl.setResultAttributeMapping(Collections.singletonMap("name", "firstName"));
+        
+        for (int query = 0; query < 4; query++) {
+            final IPersonAttributes person = impl.getPerson("awp9");
+            assertEquals(Util.list("Andrew"), person.getAttributeValues("firstName"));
+        }
+        
+        assertEquals(4, routingDataSource.getReplicas().get(0).getConnections());
+        assertTrue(routingDataSource.getReplicas().get(0).getAverageConnectionTime() >= 0);
+    }
+    
+    public void testNotInitialized() throws Exception {
+        final ReplicaRoutingDataSource routingDataSource = this.createRoutingDataSource(this.replicaA);
+        try {
+            routingDataSource.getConnection();
+            fail("IllegalStateException expected before afterPropertiesSet");
+        }
+        catch (IllegalStateException ise) {
+            //expected
+        }
+    }
+    
+    /**
+     * Uses a test controlled clock, each read of the clock advances it by step.
+     */
+    private static class ClockedReplicaRoutingDataSource extends ReplicaRoutingDataSource {
+        private long now = 0;
+        private long step = 0;
+        
+        @Override
+        protected synchronized long currentTimeMillis() {
+            final long currentTime = this.now;
+            this.now += this.step;
+            return currentTime;
+        }
+    }
+    
+    /**
+     * Delegates to a DataSource unless failing is set.
+     */
+    private static class FailingDataSource implements DataSource {
+        private final DataSource delegate;
+        private volatile boolean failing = false;
+        
+        public FailingDataSource(DataSource delegate) {
+            this.delegate = delegate;
+        }
+
+        public Connection getConnection() throws SQLException {
+            if (this.failing) {
+                throw new SQLException("Replica is down", "08001");
+            }
+            return this.delegate.getConnection();
+        }
+
+        public Connection getConnection(String username, String password) throws SQLException {
+            return this.getConnection();
+        }
+
+        public PrintWriter getLogWriter() throws SQLException {
+            return this.delegate.getLogWriter();
+        }
+
+        public void setLogWriter(PrintWriter out) throws SQLException {
+            this.delegate.setLogWriter(out);
+        }
+
+        public int getLoginTimeout() throws SQLException {
+            return this.delegate.getLoginTimeout();
+        }
+
+        public void setLoginTimeout(int seconds) throws SQLException {
+            this.delegate.setLoginTimeout(seconds);
+        }
+
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            return this.delegate.unwrap(iface);
+        }
+
+        public boolean isWrapperFor(Class<?> iface) throws SQLException {
+            return this.delegate.isWrapperFor(iface);
+        }
+        
+        public java.util.logging.Logger getParentLogger() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
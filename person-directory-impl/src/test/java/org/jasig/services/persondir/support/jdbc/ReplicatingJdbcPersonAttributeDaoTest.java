@@ -0,0 +1,287 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.jdbc;
+
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+
+import org.hsqldb.jdbcDriver;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.QueryType;
+import org.jasig.services.persondir.support.SimpleUsernameAttributeProvider;
+import org.jasig.services.persondir.util.Util;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+
+/**
+ * Test the {@link ReplicatingJdbcPersonAttributeDao} against a dummy DataSource.
+ * 
+ * @version $Revision$
+ */
+public class ReplicatingJdbcPersonAttributeDaoTest extends TestCase {
+    private DataSource testDataSource;
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        this.testDataSource = new SimpleDriverDataSource(new jdbcDriver(), "jdbc:hsqldb:mem:replicads", "sa", "");
+
+        this.execute("CREATE TABLE user_table " +
+                     "(netid VARCHAR, " +
+                     "name VARCHAR, " +
+                     "email VARCHAR, " +
+                     "change_seq INTEGER)");
+
+        this.execute("INSERT INTO user_table " +
+                     "(netid, name, email, change_seq) " +
+                     "VALUES ('awp9', 'Andrew', 'andrew.petro@yale.edu', 1)");
+        this.execute("INSERT INTO user_table " +
+                     "(netid, name, email, change_seq) " +
+                     "VALUES ('edalquist', 'Eric', 'edalquist@unicon.net', 2)");
+        this.execute("INSERT INTO user_table " +
+                     "(netid, name, email, change_seq) " +
+                     "VALUES ('susan', 'Susan', 'susan.test@test.net', 3)");
+        
+        this.execute("CREATE TABLE user_attr_table " +
+                     "(netid VARCHAR, " +
+                     "attr_name VARCHAR, " +
+                     "attr_val VARCHAR, " +
+                     "change_seq INTEGER)");
+        
+        this.execute("INSERT INTO user_attr_table " +
+                     "(netid, attr_name, attr_val, change_seq) " +
+                     "VALUES ('awp9', 'name', 'Andrew', 1)");
+        this.execute("INSERT INTO user_attr_table " +
+                     "(netid, attr_name, attr_val, change_seq) " +
+                     "VALUES ('awp9', 'email', 'andrew.petro@yale.edu', 1)");
+        this.execute("INSERT INTO user_attr_table " +
+                     "(netid, attr_name, attr_val, change_seq) " +
+                     "VALUES ('edalquist', 'name', 'Eric', 2)");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        
+        this.execute("DROP TABLE user_table");
+        this.execute("DROP TABLE user_attr_table");
+        
+        this.testDataSource = null;
+    }
+    
+    private void execute(String sql) throws Exception {
+        final Connection con = this.testDataSource.getConnection();
+        try {
+            con.prepareStatement(sql).execute();
+        }
+        finally {
+            con.close();
+        }
+    }
+    
+    private ReplicatingJdbcPersonAttributeDao createSingleRowReplica() {
+        final SingleRowJdbcPersonAttributeDao sourceDao = new SingleRowJdbcPersonAttributeDao(this.testDataSource, "SELECT netid, name, email, change_seq FROM user_table WHERE {0}");
+        final Map<String, Object> queryAttributeMapping = new LinkedHashMap<String, Object>();
+        queryAttributeMapping.put("uid", "netid");
+        queryAttributeMapping.put("firstName", "name");
+        queryAttributeMapping.put("mail", "email");
+        sourceDao.setQueryAttributeMapping(queryAttributeMapping);
+        sourceDao.setUnmappedUsernameAttribute("netid");
+        
+        final Map<String, Object> columnsToAttributes = new LinkedHashMap<String, Object>();
+        columnsToAttributes.put("name", "firstName");
+        columnsToAttributes.put("email", "mail");
+        sourceDao.setResultAttributeMapping(columnsToAttributes);
+        
+        final ReplicatingJdbcPersonAttributeDao replica = new ReplicatingJdbcPersonAttributeDao();
+        replica.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        replica.setSourceDao(sourceDao);
+        replica.setChangeQuery("SELECT netid, name, email, change_seq FROM user_table WHERE change_seq >= ?");
+        replica.setChangeTrackingColumn("change_seq");
+        replica.setPollInterval(0);
+        
+        return replica;
+    }
+    
+    public void testFullLoadAndDeltas() throws Exception {
+        final ReplicatingJdbcPersonAttributeDao replica = this.createSingleRowReplica();
+        replica.afterPropertiesSet();
+        
+        //The first query loads the replica
+        assertEquals(0, replica.getSize());
+        final IPersonAttributes awp9 = replica.getPerson("awp9");
+        assertEquals("awp9", awp9.getName());
+        assertEquals(Util.list("Andrew"), awp9.getAttributeValues("firstName"));
+        assertEquals(Util.list("andrew.petro@yale.edu"), awp9.getAttributeValues("mail"));
+        assertEquals(3, replica.getSize());
+        assertEquals(1, replica.getFullLoads());
+        assertEquals(3, replica.getHighWaterMark());
+        assertEquals(new LinkedHashSet<String>(Util.genList("firstName", "mail")), replica.getPossibleUserAttributeNames());
+        assertEquals(replica.getSourceDao().getAvailableQueryAttributes(), replica.getAvailableQueryAttributes());
+        
+        this.execute("UPDATE user_table SET email = 'awp9@example.com', change_seq = 4 WHERE netid = 'awp9'");
+        this.execute("INSERT INTO user_table (netid, name, email, change_seq) VALUES ('atest', 'Andrew', 'andrew.test@test.net', 5)");
+        this.execute("DELETE FROM user_table WHERE netid = 'susan'");
+        
+        //Not visible until the next sync
+        assertEquals(Util.list("andrew.petro@yale.edu"), replica.getPerson("awp9").getAttributeValues("mail"));
+        assertNull(replica.getPerson("atest"));
+        
+        replica.synchronize();
+        assertEquals(1, replica.getFullLoads());
+        assertEquals(1, replica.getDeltaSyncs());
+        assertEquals(2, replica.getDeltaPeople());
+        assertEquals(5, replica.getHighWaterMark());
+        
+        assertEquals(Util.list("awp9@example.com"), replica.getPerson("awp9").getAttributeValues("mail"));
+        assertEquals(Util.list("Andrew"), replica.getPerson("atest").getAttributeValues("firstName"));
+        
+        //Deletes are only seen by a full reload
+        assertNotNull(replica.getPerson("susan"));
+        replica.setFullReloadInterval(1);
+        Thread.sleep(5);
+        replica.synchronize();
+        assertEquals(2, replica.getFullLoads());
+        assertNull(replica.getPerson("susan"));
+        assertEquals(3, replica.getSize());
+    }
+    
+    public void testAttributeQueries() throws Exception {
+        final ReplicatingJdbcPersonAttributeDao replica = this.createSingleRowReplica();
+        replica.afterPropertiesSet();
+        
+        final Set<IPersonAttributes> andrews = replica.getPeopleWithMultivaluedAttributes(Collections.singletonMap("firstName", Util.list("Andrew")));
+        assertEquals(1, andrews.size());
+        assertEquals("awp9", andrews.iterator().next().getName());
+        
+        final Set<IPersonAttributes> wildcard = replica.getPeopleWithMultivaluedAttributes(Collections.singletonMap("mail", Util.list("*@*.net")));
+        assertEquals(2, wildcard.size());
+        
+        final Set<IPersonAttributes> uidWildcard = replica.getPeopleWithMultivaluedAttributes(Collections.singletonMap("uid", Util.list("s*")));
+        assertEquals(1, uidWildcard.size());
+        assertEquals("susan", uidWildcard.iterator().next().getName());
+        
+        final Map<String, List<Object>> uidAndName = new LinkedHashMap<String, List<Object>>();
+        uidAndName.put("uid", Util.list("edalquist"));
+        uidAndName.put("firstName", Util.list("Andrew"));
+        assertNull(replica.getPeopleWithMultivaluedAttributes(uidAndName));
+        
+        assertNull(replica.getPeopleWithMultivaluedAttributes(Collections.singletonMap("firstName", Util.list("Nobody"))));
+        assertNull(replica.getPeopleWithMultivaluedAttributes(Collections.<String, List<Object>>emptyMap()));
+    }
+    
+    public void testSourceQuerySemantics() throws Exception {
+        final ReplicatingJdbcPersonAttributeDao replica = this.createSingleRowReplica();
+        replica.afterPropertiesSet();
+        final AbstractJdbcPersonAttributeDao<?> sourceDao = replica.getSourceDao();
+        
+        //Attributes the source does not query on are ignored, as in a seed from an aggregating DAO
+        final Map<String, List<Object>> uidAndUnmapped = new LinkedHashMap<String, List<Object>>();
+        uidAndUnmapped.put("uid", Util.list("awp9"));
+        uidAndUnmapped.put("username", Util.list("awp9"));
+        uidAndUnmapped.put("affiliation", Util.list("staff"));
+        assertEquals(sourceDao.getPeopleWithMultivaluedAttributes(uidAndUnmapped), replica.getPeopleWithMultivaluedAttributes(uidAndUnmapped));
+        assertEquals("awp9", replica.getPeopleWithMultivaluedAttributes(uidAndUnmapped).iterator().next().getName());
+        
+        final Map<String, List<Object>> nameAndUnmapped = new LinkedHashMap<String, List<Object>>();
+        nameAndUnmapped.put("firstName", Util.list("Eric"));
+        nameAndUnmapped.put("affiliation", Util.list("staff"));
+        assertEquals("edalquist", replica.getPeopleWithMultivaluedAttributes(nameAndUnmapped).iterator().next().getName());
+        
+        //Only unmapped attributes is not a query the source would run
+        assertNull(sourceDao.getPeopleWithMultivaluedAttributes(Collections.singletonMap("affiliation", Util.list("staff"))));
+        assertNull(replica.getPeopleWithMultivaluedAttributes(Collections.singletonMap("affiliation", Util.list("staff"))));
+        
+        //OR queries match any term, including the username
+        final Map<String, List<Object>> uidOrName = new LinkedHashMap<String, List<Object>>();
+        uidOrName.put("uid", Util.list("edalquist"));
+        uidOrName.put("firstName", Util.list("Andrew"));
+        sourceDao.setQueryType(QueryType.OR);
+        assertEquals(2, replica.getPeopleWithMultivaluedAttributes(uidOrName).size());
+        assertEquals(replica.getPeopleWithMultivaluedAttributes(uidOrName), sourceDao.getPeopleWithMultivaluedAttributes(uidOrName));
+        
+        sourceDao.setQueryType(QueryType.AND);
+        assertNull(replica.getPeopleWithMultivaluedAttributes(uidOrName));
+        
+        //A missing query attribute fails the query when the source requires them all
+        sourceDao.setRequireAllQueryAttributes(true);
+        assertNull(replica.getPeopleWithMultivaluedAttributes(uidAndUnmapped));
+        assertNull(sourceDao.getPeopleWithMultivaluedAttributes(uidAndUnmapped));
+    }
+    
+    public void testMultiRowSource() throws Exception {
+        final MultiRowJdbcPersonAttributeDao sourceDao = new MultiRowJdbcPersonAttributeDao(this.testDataSource, "SELECT netid, attr_name, attr_val, change_seq FROM user_attr_table WHERE {0}");
+        sourceDao.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+        sourceDao.setUnmappedUsernameAttribute("netid");
+        sourceDao.setNameValueColumnMappings(Collections.singletonMap("attr_name", "attr_val"));
+        sourceDao.setScanQuery("SELECT netid, attr_name, attr_val, change_seq FROM user_attr_table ORDER BY netid");
+        
+        final ReplicatingJdbcPersonAttributeDao replica = new ReplicatingJdbcPersonAttributeDao();
+        replica.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        replica.setSourceDao(sourceDao);
+        replica.setChangeQuery("SELECT netid, attr_name, attr_val, change_seq FROM user_attr_table WHERE netid IN (SELECT netid FROM user_attr_table WHERE change_seq >= ?) ORDER BY netid");
+        replica.setChangeTrackingColumn("change_seq");
+        replica.setPollInterval(0);
+        replica.afterPropertiesSet();
+        
+        replica.synchronize();
+        assertEquals(2, replica.getSize());
+        assertEquals(Util.list("andrew.petro@yale.edu"), replica.getPerson("awp9").getAttributeValues("email"));
+        assertNull(replica.getPerson("edalquist").getAttributeValues("email"));
+        
+        this.execute("INSERT INTO user_attr_table (netid, attr_name, attr_val, change_seq) VALUES ('edalquist', 'email', 'edalquist@unicon.net', 3)");
+        
+        replica.synchronize();
+        assertEquals(1, replica.getDeltaSyncs());
+        assertEquals(3, replica.getHighWaterMark());
+        
+        final IPersonAttributes edalquist = replica.getPerson("edalquist");
+        assertEquals(Util.list("Eric"), edalquist.getAttributeValues("name"));
+        assertEquals(Util.list("edalquist@unicon.net"), edalquist.getAttributeValues("email"));
+    }
+    
+    public void testPolling() throws Exception {
+        final ReplicatingJdbcPersonAttributeDao replica = this.createSingleRowReplica();
+        replica.setPollInterval(10);
+        replica.afterPropertiesSet();
+        try {
+            this.execute("UPDATE user_table SET name = 'Drew', change_seq = 10 WHERE netid = 'awp9'");
+            
+            for (int wait = 0; wait < 100 && !Integer.valueOf(10).equals(replica.getHighWaterMark()); wait++) {
+                Thread.sleep(20);
+            }
+            
+            assertEquals(10, replica.getHighWaterMark());
+            assertEquals(Util.list("Drew"), replica.getPerson("awp9").getAttributeValues("firstName"));
+        }
+        finally {
+            replica.destroy();
+        }
+    }
+}
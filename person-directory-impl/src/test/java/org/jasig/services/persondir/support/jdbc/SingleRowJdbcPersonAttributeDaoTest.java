@@ -20,6 +20,7 @@
 package org.jasig.services.persondir.support.jdbc;
 
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -28,12 +29,16 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.sql.DataSource;
 
 import org.hsqldb.jdbcDriver;
+import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
 import org.jasig.services.persondir.support.AbstractDefaultQueryPersonAttributeDaoTest;
+import org.jasig.services.persondir.support.AttributeValueInterner;
+import org.jasig.services.persondir.support.IPersonAttributesCallbackHandler;
 import org.jasig.services.persondir.support.SimpleUsernameAttributeProvider;
 import org.jasig.services.persondir.util.Util;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
@@ -357,6 +362,183 @@ public class SingleRowJdbcPersonAttributeDaoTest
         fail("JdbcPersonAttributeDao should have thrown IncorrectResultSizeDataAccessException for multiple results");
     }
     
+    public void testBatchQuery() {
+        final List<PartialWhereClause> executedQueries = new LinkedList<PartialWhereClause>();
+        SingleRowJdbcPersonAttributeDao impl = new SingleRowJdbcPersonAttributeDao(testDataSource, "SELECT netid, name, email FROM user_table WHERE {0}") {
+            @Override
+            protected List<IPersonAttributes> getPeopleForQuery(PartialWhereClause queryBuilder, String queryUserName) {
+                executedQueries.add(queryBuilder);
+                return super.getPeopleForQuery(queryBuilder, queryUserName);
+            }
+        };
+        impl.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+        impl.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        impl.setUnmappedUsernameAttribute("netid");
+        impl.setMaxBatchSize(10);
+        
+        Map<String, Object> columnsToAttributes = new HashMap<String, Object>();
+        columnsToAttributes.put("netid", "uid");
+        columnsToAttributes.put("name", "firstName");
+        impl.setResultAttributeMapping(columnsToAttributes);
+        
+        final List<Map<String, List<Object>>> queries = new LinkedList<Map<String, List<Object>>>();
+        queries.add(Collections.singletonMap("uid", Util.list("awp9")));
+        queries.add(Collections.singletonMap("uid", Util.list("susan")));
+        queries.add(Collections.singletonMap("uid", Util.list("nobody")));
+        queries.add(Collections.singletonMap("other", Util.list("ignored")));
+        
+        final Set<IPersonAttributes> people = impl.getPeopleForQueries(queries);
+        
+        //The three queries that can be run are combined into one
+        assertEquals(1, executedQueries.size());
+        assertEquals("netid IN (?, ?, ?)", executedQueries.get(0).sql.toString());
+        assertEquals(Util.genList("awp9", "susan", "nobody"), executedQueries.get(0).arguments);
+        
+        final Map<String, IPersonAttributes> peopleByName = new HashMap<String, IPersonAttributes>();
+        for (final IPersonAttributes person : people) {
+            peopleByName.put(person.getName(), person);
+        }
+        assertEquals(2, peopleByName.size());
+        assertEquals(Util.list("Andrew"), peopleByName.get("awp9").getAttributeValues("firstName"));
+        assertEquals(Util.list("Susan"), peopleByName.get("susan").getAttributeValues("firstName"));
+    }
+    
+    public void testPeopleForUids() {
+        final List<PartialWhereClause> executedQueries = new LinkedList<PartialWhereClause>();
+        SingleRowJdbcPersonAttributeDao impl = new SingleRowJdbcPersonAttributeDao(testDataSource, "SELECT netid, name, email FROM user_table WHERE {0}") {
+            @Override
+            protected List<IPersonAttributes> getPeopleForQuery(PartialWhereClause queryBuilder, String queryUserName) {
+                executedQueries.add(queryBuilder);
+                return super.getPeopleForQuery(queryBuilder, queryUserName);
+            }
+        };
+        impl.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+        impl.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        impl.setUnmappedUsernameAttribute("netid");
+        impl.setResultAttributeMapping(Collections.singletonMap("name", "firstName"));
+        
+        //Without batches each uid is queried on its own
+        Map<String, IPersonAttributes> people = impl.getPeopleForUids(Util.genList("awp9", "susan", "nobody"));
+        assertEquals(3, executedQueries.size());
+        assertEquals(Util.genList("awp9", "susan"), new ArrayList<String>(people.keySet()));
+        
+        executedQueries.clear();
+        impl.setMaxBatchSize(2);
+        people = impl.getPeopleForUids(Util.genList("awp9", "susan", "nobody", "awp9"));
+        assertEquals(2, executedQueries.size());
+        assertEquals("netid IN (?, ?)", executedQueries.get(0).sql.toString());
+        assertEquals(Util.genList("awp9", "susan"), executedQueries.get(0).arguments);
+        assertEquals("netid = ?", executedQueries.get(1).sql.toString());
+        
+        assertEquals(2, people.size());
+        assertEquals(Util.list("Andrew"), people.get("awp9").getAttributeValues("firstName"));
+        assertEquals(Util.list("Susan"), people.get("susan").getAttributeValues("firstName"));
+    }
+    
+    public void testPeopleForUidsNameCase() {
+        //The source returns the username in upper case
+        SingleRowJdbcPersonAttributeDao impl = new SingleRowJdbcPersonAttributeDao(testDataSource, "SELECT UPPER(netid) AS upper_netid, name FROM user_table WHERE {0}");
+        impl.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+        impl.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        impl.setUnmappedUsernameAttribute("upper_netid");
+        impl.setResultAttributeMapping(Collections.singletonMap("name", "firstName"));
+        impl.setMaxBatchSize(10);
+        
+        final Map<String, IPersonAttributes> people = impl.getPeopleForUids(Util.genList("awp9", "susan", "nobody"));
+        assertEquals(Util.genList("awp9", "susan"), new ArrayList<String>(people.keySet()));
+        assertEquals("AWP9", people.get("awp9").getName());
+        assertEquals(Util.list("Andrew"), people.get("awp9").getAttributeValues("firstName"));
+        assertEquals(Util.list("Susan"), people.get("susan").getAttributeValues("firstName"));
+    }
+    
+    public void testQuerySqlShapes() {
+        final List<String> executedSql = new LinkedList<String>();
+        SingleRowJdbcPersonAttributeDao impl = new SingleRowJdbcPersonAttributeDao(testDataSource, "SELECT netid, name, email FROM user_table WHERE {0} ORDER BY netid") {
+            @Override
+            protected List<IPersonAttributes> getPeopleForQuery(PartialWhereClause queryBuilder, String queryUserName) {
+                executedSql.add(this.getQuerySql(queryBuilder));
+                return super.getPeopleForQuery(queryBuilder, queryUserName);
+            }
+        };
+        impl.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+        impl.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        impl.setUnmappedUsernameAttribute("netid");
+        
+        assertNotNull(impl.getPerson("awp9"));
+        assertNotNull(impl.getPerson("susan"));
+        assertEquals(2, impl.getPeople(Collections.<String, Object>singletonMap("uid", "a*")).size());
+        
+        //Queries of the same shape use the same SQL
+        assertEquals("SELECT netid, name, email FROM user_table WHERE netid = ? ORDER BY netid", executedSql.get(0));
+        assertSame(executedSql.get(0), executedSql.get(1));
+        assertEquals("SELECT netid, name, email FROM user_table WHERE netid LIKE ? ORDER BY netid", executedSql.get(2));
+    }
+    
+    public void testValueInterner() {
+        final AttributeValueInterner valueInterner = new AttributeValueInterner();
+        valueInterner.setInternedAttributes(Collections.singleton("shirt"));
+        
+        SingleRowJdbcPersonAttributeDao impl = new SingleRowJdbcPersonAttributeDao(testDataSource, "SELECT netid, name, shirt_color FROM user_table WHERE {0}");
+        impl.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+        impl.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        impl.setUnmappedUsernameAttribute("netid");
+        final Map<String, Object> resultAttributeMapping = new HashMap<String, Object>();
+        resultAttributeMapping.put("name", "firstName");
+        resultAttributeMapping.put("shirt_color", "shirt");
+        impl.setResultAttributeMapping(resultAttributeMapping);
+        impl.setValueInterner(valueInterner);
+        
+        //Each person is found by a separate query
+        final Map<String, IPersonAttributes> people = impl.getPeopleForUids(Util.genList("awp9", "edalquist", "atest"));
+        assertEquals(3, people.size());
+        
+        //Only the values of the interned attribute are shared
+        assertEquals("blue", people.get("awp9").getAttributeValue("shirt"));
+        assertSame(people.get("awp9").getAttributeValue("shirt"), people.get("edalquist").getAttributeValue("shirt"));
+        assertEquals(people.get("awp9").getAttributeValue("firstName"), people.get("atest").getAttributeValue("firstName"));
+        assertNotSame(people.get("awp9").getAttributeValue("firstName"), people.get("atest").getAttributeValue("firstName"));
+        
+        assertEquals(2, valueInterner.getSize());
+        assertEquals(1, valueInterner.getInternedValues());
+        assertEquals(48, valueInterner.getEstimatedBytesSaved());
+    }
+    
+    public void testBatchQueryDifferentColumns() {
+        final List<PartialWhereClause> executedQueries = new LinkedList<PartialWhereClause>();
+        SingleRowJdbcPersonAttributeDao impl = new SingleRowJdbcPersonAttributeDao(testDataSource, "SELECT netid, name, email FROM user_table WHERE {0}") {
+            @Override
+            protected List<IPersonAttributes> getPeopleForQuery(PartialWhereClause queryBuilder, String queryUserName) {
+                executedQueries.add(queryBuilder);
+                return super.getPeopleForQuery(queryBuilder, queryUserName);
+            }
+        };
+        final Map<String, Object> queryAttributeMapping = new HashMap<String, Object>();
+        queryAttributeMapping.put("uid", "netid");
+        queryAttributeMapping.put("email", "email");
+        impl.setQueryAttributeMapping(queryAttributeMapping);
+        impl.setUnmappedUsernameAttribute("netid");
+        impl.setMaxBatchSize(10);
+        
+        final List<Map<String, List<Object>>> queries = new LinkedList<Map<String, List<Object>>>();
+        queries.add(Collections.singletonMap("uid", Util.list("awp9")));
+        queries.add(Collections.singletonMap("email", Util.list("susan@school.edu")));
+        impl.getPeopleForQueries(queries);
+        
+        //Clauses on different columns can't be an IN clause
+        assertEquals(1, executedQueries.size());
+        assertEquals("((netid = ?) OR (email = ?))", executedQueries.get(0).sql.toString());
+    }
+    
+    public void testBatchQueryNoRunnableQueries() {
+        SingleRowJdbcPersonAttributeDao impl = new SingleRowJdbcPersonAttributeDao(testDataSource, "SELECT netid, name, email FROM user_table WHERE {0}");
+        impl.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+        
+        final List<Map<String, List<Object>>> queries = new LinkedList<Map<String, List<Object>>>();
+        queries.add(Collections.singletonMap("other", Util.list("ignored")));
+        
+        assertNull(impl.getPeopleForQueries(queries));
+    }
+    
     public void testProperties() {
         SingleRowJdbcPersonAttributeDao impl = new SingleRowJdbcPersonAttributeDao(testDataSource, "SELECT netid, name, email FROM user_table WHERE {0}");
         
@@ -375,6 +557,50 @@ public class SingleRowJdbcPersonAttributeDaoTest
         assertEquals(expectedColumnsToAttributes, impl.getResultAttributeMapping());
     }
 
+    public void testScanPeople() {
+        SingleRowJdbcPersonAttributeDao impl = new SingleRowJdbcPersonAttributeDao(testDataSource, "SELECT netid, name, email, shirt_color FROM user_table WHERE {0}");
+        impl.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+        impl.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        impl.setUnmappedUsernameAttribute("netid");
+        impl.setFetchSize(1);
+        
+        Map<String, Object> columnsToAttributes = new HashMap<String, Object>();
+        columnsToAttributes.put("netid", "uid");
+        columnsToAttributes.put("name", "firstName");
+        columnsToAttributes.put("shirt_color", "dressShirtColor");
+        impl.setResultAttributeMapping(columnsToAttributes);
+        
+        assertEquals("SELECT netid, name, email, shirt_color FROM user_table WHERE 1=1", impl.getScanQuery());
+        
+        final Map<String, IPersonAttributes> people = new TreeMap<String, IPersonAttributes>();
+        final IPersonAttributesCallbackHandler callbackHandler = new IPersonAttributesCallbackHandler() {
+            public void processPerson(IPersonAttributes person) {
+                assertNull(people.put(person.getName(), person));
+            }
+        };
+        
+        impl.scanPeople(callbackHandler);
+        assertEquals(Util.genList("atest", "awp9", "edalquist", "susan"), new ArrayList<String>(people.keySet()));
+        for (final IPersonAttributes person : people.values()) {
+            assertEquals(impl.getPerson(person.getName()).getAttributes(), person.getAttributes());
+        }
+        assertEquals(Util.list("Andrew"), people.get("awp9").getAttributeValues("firstName"));
+        assertEquals(Util.list("blue"), people.get("awp9").getAttributeValues("dressShirtColor"));
+        
+        people.clear();
+        impl.setScanQuery("SELECT netid, name FROM user_table WHERE shirt_color = 'blue'");
+        impl.scanPeople(callbackHandler);
+        assertEquals(Util.genList("awp9", "edalquist"), new ArrayList<String>(people.keySet()));
+        
+        try {
+            impl.scanPeople(null);
+            fail("IllegalArgumentException expected for null callbackHandler");
+        }
+        catch (IllegalArgumentException iae) {
+            //expected
+        }
+    }
+
     @Override
     protected AbstractDefaultAttributePersonAttributeDao getAbstractDefaultQueryPersonAttributeDao() {
         final String queryAttr = "shirt";
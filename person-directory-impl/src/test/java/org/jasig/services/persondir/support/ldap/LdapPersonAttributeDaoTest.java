@@ -19,13 +19,17 @@
 
 package org.jasig.services.persondir.support.ldap;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.IPersonAttributesCallbackHandler;
 import org.jasig.services.persondir.util.Util;
 import org.springframework.beans.factory.BeanCreationException;
 import org.springframework.core.io.ClassPathResource;
@@ -158,6 +162,41 @@ public class LdapPersonAttributeDaoTest extends AbstractDirContextTest {
         }
     }
 
+    /**
+     * Test scanning every person one page at a time.
+     */
+    public void testScanPeople() throws Exception {
+        LdapPersonAttributeDao impl = new LdapPersonAttributeDao();
+        
+        Map<String, Object> ldapAttribsToPortalAttribs = new HashMap<String, Object>();
+        ldapAttribsToPortalAttribs.put("uid", "uid");
+        ldapAttribsToPortalAttribs.put("mail", "email");
+        
+        impl.setResultAttributeMapping(ldapAttribsToPortalAttribs);
+        impl.setContextSource(this.getContextSource());
+        impl.setUnmappedUsernameAttribute("uid");
+        impl.setScanFilter("(objectclass=person)");
+        impl.setPageSize(1);
+        
+        impl.afterPropertiesSet();
+        
+        final Map<String, IPersonAttributes> people = new TreeMap<String, IPersonAttributes>();
+        try {
+            impl.scanPeople(new IPersonAttributesCallbackHandler() {
+                public void processPerson(IPersonAttributes person) {
+                    assertNull(people.put(person.getName(), person));
+                }
+            });
+            
+            assertEquals(Util.genList("edalquist", "jjohnson"), new ArrayList<String>(people.keySet()));
+            assertEquals(Util.list("eric.dalquist@example.com"), people.get("edalquist").getAttributeValues("email"));
+            assertEquals(Util.list("jim.johnson@example.com"), people.get("jjohnson").getAttributeValues("email"));
+        }
+        catch (DataAccessResourceFailureException darfe) {
+            //OK, No net connection
+        }
+    }
+
     public void testInvalidAttrMap() throws Exception {
         LdapPersonAttributeDao impl = new LdapPersonAttributeDao();
         
@@ -0,0 +1,181 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.merger;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.NamedPersonImpl;
+import org.jasig.services.persondir.util.Util;
+
+/**
+ * @version $Revision$
+ */
+public class MergeAccumulatorTest extends TestCase {
+    
+    public void testNoResults() {
+        final MergeAccumulator accumulator = new MergeAccumulator(new MultivaluedAttributeMerger());
+        
+        accumulator.merge(null);
+        
+        assertFalse(accumulator.hasResults());
+        assertNull(accumulator.toPeople());
+    }
+    
+    public void testEmptyResults() {
+        final MergeAccumulator accumulator = new MergeAccumulator(new MultivaluedAttributeMerger());
+        
+        accumulator.merge(new LinkedHashSet<IPersonAttributes>());
+        
+        assertTrue(accumulator.hasResults());
+        assertEquals(0, accumulator.toPeople().size());
+    }
+    
+    public void testSingleResultUnchanged() {
+        final MergeAccumulator accumulator = new MergeAccumulator(new MultivaluedAttributeMerger());
+        
+        final IPersonAttributes edalquist = this.createPerson("edalquist", "mail", "edalquist@example.edu");
+        accumulator.merge(this.createPeople(edalquist));
+        
+        final Set<IPersonAttributes> people = accumulator.toPeople();
+        assertEquals(1, people.size());
+        assertSame(edalquist, people.iterator().next());
+    }
+    
+    public void testMultivaluedMerge() {
+        final MergeAccumulator accumulator = new MergeAccumulator(new MultivaluedAttributeMerger());
+        
+        final IPersonAttributes edalquist1 = this.createPerson("edalquist", "mail", "edalquist@example.edu");
+        final IPersonAttributes edalquist2 = this.createPerson("edalquist", "mail", "eric@example.edu");
+        final IPersonAttributes edalquist3 = this.createPerson("edalquist", "phone", "555-1234");
+        final IPersonAttributes awp9 = this.createPerson("awp9", "mail", "awp9@example.edu");
+        
+        accumulator.merge(this.createPeople(edalquist1));
+        accumulator.merge(this.createPeople(awp9, edalquist2));
+        accumulator.merge(this.createPeople(edalquist3));
+        
+        final Set<IPersonAttributes> people = accumulator.toPeople();
+        assertEquals(2, people.size());
+        
+        final IPersonAttributes edalquist = this.getPerson(people, "edalquist");
+        assertEquals(Util.list("edalquist@example.edu", "eric@example.edu"), edalquist.getAttributeValues("mail"));
+        assertEquals(Util.list("555-1234"), edalquist.getAttributeValues("phone"));
+        
+        assertSame(awp9, this.getPerson(people, "awp9"));
+        
+        //The merged people were not modified
+        assertEquals(Util.list("edalquist@example.edu"), edalquist1.getAttributeValues("mail"));
+        assertEquals(Util.list("eric@example.edu"), edalquist2.getAttributeValues("mail"));
+        assertNull(edalquist1.getAttributeValues("phone"));
+    }
+    
+    public void testFrozenPeopleUnchangedByLaterMerge() {
+        final MergeAccumulator accumulator = new MergeAccumulator(new MultivaluedAttributeMerger());
+        
+        accumulator.merge(this.createPeople(this.createPerson("edalquist", "mail", "edalquist@example.edu")));
+        accumulator.merge(this.createPeople(this.createPerson("edalquist", "mail", "eric@example.edu")));
+        
+        final Set<IPersonAttributes> firstPeople = accumulator.toPeople();
+        assertSame(firstPeople, accumulator.toPeople());
+        
+        accumulator.merge(this.createPeople(this.createPerson("edalquist", "mail", "dalquist@example.edu")));
+        
+        final Set<IPersonAttributes> secondPeople = accumulator.toPeople();
+        assertNotSame(firstPeople, secondPeople);
+        
+        assertEquals(Util.list("edalquist@example.edu", "eric@example.edu"), this.getPerson(firstPeople, "edalquist").getAttributeValues("mail"));
+        assertEquals(Util.list("edalquist@example.edu", "eric@example.edu", "dalquist@example.edu"), this.getPerson(secondPeople, "edalquist").getAttributeValues("mail"));
+        
+        try {
+            firstPeople.clear();
+            fail("toPeople should return an unmodifiable Set");
+        }
+        catch (UnsupportedOperationException uoe) {
+            //expected
+        }
+    }
+    
+    public void testReplacingMerge() {
+        final MergeAccumulator accumulator = new MergeAccumulator(new ReplacingAttributeAdder());
+        
+        accumulator.merge(this.createPeople(this.createPerson("edalquist", "mail", "edalquist@example.edu")));
+        accumulator.merge(this.createPeople(this.createPerson("edalquist", "mail", "eric@example.edu")));
+        
+        final IPersonAttributes edalquist = this.getPerson(accumulator.toPeople(), "edalquist");
+        assertEquals(Util.list("eric@example.edu"), edalquist.getAttributeValues("mail"));
+    }
+    
+    public void testNonAdditiveMerger() {
+        final MergeAccumulator accumulator = new MergeAccumulator(new IAttributeMerger() {
+            public Set<IPersonAttributes> mergeResults(Set<IPersonAttributes> toModify, Set<IPersonAttributes> toConsider) {
+                toModify.addAll(toConsider);
+                return toModify;
+            }
+            
+            public Map<String, List<Object>> mergeAttributes(Map<String, List<Object>> toModify, Map<String, List<Object>> toConsider) {
+                throw new UnsupportedOperationException();
+            }
+            
+            public Set<String> mergePossibleUserAttributeNames(Set<String> toModify, Set<String> toConsider) {
+                throw new UnsupportedOperationException();
+            }
+            
+            public Set<String> mergeAvailableQueryAttributes(Set<String> toModify, Set<String> toConsider) {
+                throw new UnsupportedOperationException();
+            }
+        });
+        
+        final Set<IPersonAttributes> firstResults = this.createPeople(this.createPerson("edalquist", "mail", "edalquist@example.edu"));
+        accumulator.merge(firstResults);
+        accumulator.merge(this.createPeople(this.createPerson("awp9", "mail", "awp9@example.edu")));
+        
+        assertEquals(2, accumulator.toPeople().size());
+        assertEquals(1, firstResults.size());
+    }
+    
+    private IPersonAttributes createPerson(String name, String attribute, Object value) {
+        final Map<String, List<Object>> attributes = new HashMap<String, List<Object>>();
+        attributes.put(attribute, Util.list(value));
+        return new NamedPersonImpl(name, attributes);
+    }
+    
+    private Set<IPersonAttributes> createPeople(IPersonAttributes... people) {
+        final Set<IPersonAttributes> peopleSet = new LinkedHashSet<IPersonAttributes>();
+        for (final IPersonAttributes person : people) {
+            peopleSet.add(person);
+        }
+        return peopleSet;
+    }
+    
+    private IPersonAttributes getPerson(Set<IPersonAttributes> people, String name) {
+        for (final IPersonAttributes person : people) {
+            if (name.equals(person.getName())) {
+                return person;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.util;
+
+import java.util.Map;
+
+import org.apache.commons.collections.map.CaseInsensitiveMap;
+import org.apache.commons.collections.map.ListOrderedMap;
+
+/**
+ * Compares construction and lookup cost of {@link LinkedCaseInsensitiveMap} against the
+ * <code>ListOrderedMap.decorate(new CaseInsensitiveMap())</code> stack it replaced. Not run as part of the build,
+ * run the main method with the test classpath:
+ * <pre>
+ * java -cp target/classes:target/test-classes:commons-collections.jar org.jasig.services.persondir.util.LinkedCaseInsensitiveMapBenchmark
+ * </pre>
+ * 
+ * @version $Revision$
+ */
+public class LinkedCaseInsensitiveMapBenchmark {
+    private static final int ATTRIBUTES = 20;
+    private static final int MAPS = 10000;
+    private static final int ROUNDS = 50;
+    
+    private interface MapFactory {
+        Map<String, Object> createMap(int size);
+    }
+    
+    public static void main(String[] args) {
+        final String[] names = new String[ATTRIBUTES];
+        final String[] lookupNames = new String[ATTRIBUTES];
+        for (int index = 0; index < ATTRIBUTES; index++) {
+            names[index] = "attributeName" + index;
+            lookupNames[index] = names[index].toUpperCase();
+        }
+        
+        final MapFactory decoratorFactory = new MapFactory() {
+            @SuppressWarnings("unchecked")
+            public Map<String, Object> createMap(int size) {
+                return ListOrderedMap.decorate(new CaseInsensitiveMap(size));
+            }
+            
+            @Override
+            public String toString() {
+                return "ListOrderedMap(CaseInsensitiveMap)";
+            }
+        };
+        final MapFactory linkedFactory = new MapFactory() {
+            public Map<String, Object> createMap(int size) {
+                return new LinkedCaseInsensitiveMap<Object>(size);
+            }
+            
+            @Override
+            public String toString() {
+                return "LinkedCaseInsensitiveMap";
+            }
+        };
+        
+        //The first rounds warm up the JIT, only the last round is reported
+        for (int round = 1; round <= ROUNDS; round++) {
+            final boolean report = round == ROUNDS;
+            run(decoratorFactory, names, names, report);
+            run(linkedFactory, names, names, report);
+            run(decoratorFactory, names, lookupNames, report);
+            run(linkedFactory, names, lookupNames, report);
+        }
+    }
+    
+    private static void run(MapFactory factory, String[] names, String[] lookupNames, boolean report) {
+        @SuppressWarnings("unchecked")
+        final Map<String, Object>[] maps = (Map<String, Object>[]) new Map<?, ?>[MAPS];
+        
+        final long buildStart = System.nanoTime();
+        for (int mapIndex = 0; mapIndex < MAPS; mapIndex++) {
+            final Map<String, Object> map = factory.createMap(names.length);
+            for (int index = 0; index < names.length; index++) {
+                map.put(names[index], index);
+            }
+            maps[mapIndex] = map;
+        }
+        final long buildTime = System.nanoTime() - buildStart;
+        
+        long found = 0;
+        final long lookupStart = System.nanoTime();
+        for (final Map<String, Object> map : maps) {
+            for (final String lookupName : lookupNames) {
+                if (map.get(lookupName) != null) {
+                    found++;
+                }
+            }
+        }
+        final long lookupTime = System.nanoTime() - lookupStart;
+        
+        if (report) {
+            final long operations = (long)MAPS * names.length;
+            System.out.println(factory + (names == lookupNames ? " same case" : " different case") +
+                    ": put " + (buildTime / operations) + "ns, get " + (lookupTime / operations) + "ns (found " + found + ")");
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$
+ */
+public class LinkedCaseInsensitiveMapTest extends TestCase {
+    
+    public void testCaseInsensitiveLookup() {
+        final Map<String, Object> map = new LinkedCaseInsensitiveMap<Object>();
+        map.put("givenName", "Eric");
+        
+        assertEquals("Eric", map.get("givenName"));
+        assertEquals("Eric", map.get("GIVENNAME"));
+        assertEquals("Eric", map.get("givenname"));
+        assertTrue(map.containsKey("GivenName"));
+        assertFalse(map.containsKey("givenNames"));
+        assertNull(map.get(new Object()));
+        
+        //Replacing a value keeps the case the key was first added with
+        assertEquals("Eric", map.put("GIVENNAME", "Erik"));
+        assertEquals(1, map.size());
+        assertEquals("givenName", map.keySet().iterator().next());
+        assertEquals("Erik", map.get("givenName"));
+        
+        assertEquals("Erik", map.remove("GivenName"));
+        assertTrue(map.isEmpty());
+        assertNull(map.get("givenName"));
+    }
+    
+    public void testInsertionOrder() {
+        final Map<String, Object> map = new LinkedCaseInsensitiveMap<Object>();
+        final List<String> keys = new ArrayList<String>();
+        for (int index = 0; index < 100; index++) {
+            final String key = "attribute" + (99 - index);
+            keys.add(key);
+            map.put(key, index);
+        }
+        
+        assertEquals(100, map.size());
+        assertEquals(keys, new ArrayList<String>(map.keySet()));
+        
+        map.remove("ATTRIBUTE50");
+        keys.remove("attribute50");
+        map.put("attribute99", "replaced");
+        map.put("Attribute50", "added");
+        keys.add("Attribute50");
+        assertEquals(keys, new ArrayList<String>(map.keySet()));
+        assertEquals("replaced", map.values().iterator().next());
+    }
+    
+    public void testNullKeysAndValues() {
+        final Map<String, Object> map = new LinkedCaseInsensitiveMap<Object>();
+        map.put(null, "nullKey");
+        map.put("nullValue", null);
+        
+        assertEquals("nullKey", map.get(null));
+        assertTrue(map.containsKey("NULLVALUE"));
+        assertNull(map.get("nullValue"));
+        assertTrue(map.containsValue(null));
+        assertEquals("nullKey", map.remove(null));
+        assertFalse(map.containsKey(null));
+    }
+    
+    public void testMapContract() {
+        final Map<String, Object> expected = new LinkedHashMap<String, Object>();
+        expected.put("uid", "edalquist");
+        expected.put("mail", "edalquist@example.edu");
+        
+        final Map<String, Object> map = new LinkedCaseInsensitiveMap<Object>(expected);
+        assertEquals(expected, map);
+        assertEquals(map, expected);
+        assertEquals(expected.hashCode(), map.hashCode());
+        assertEquals(expected.toString(), map.toString());
+        assertEquals(expected.entrySet(), map.entrySet());
+        
+        final Map<String, Object> copy = new HashMap<String, Object>(map);
+        assertEquals(expected, copy);
+    }
+    
+    public void testIteratorRemove() {
+        final Map<String, Object> map = new LinkedCaseInsensitiveMap<Object>();
+        map.put("a", 1);
+        map.put("b", 2);
+        map.put("c", 3);
+        
+        for (final Iterator<String> keyItr = map.keySet().iterator(); keyItr.hasNext(); ) {
+            if ("b".equals(keyItr.next())) {
+                keyItr.remove();
+            }
+        }
+        assertEquals(2, map.size());
+        assertFalse(map.containsKey("B"));
+        
+        final Iterator<String> keyItr = map.keySet().iterator();
+        keyItr.next();
+        map.put("d", 4);
+        try {
+            keyItr.next();
+            fail("Modification during iteration should be detected");
+        }
+        catch (ConcurrentModificationException cme) {
+            //expected
+        }
+        
+        map.clear();
+        assertTrue(map.isEmpty());
+        map.put("A", 1);
+        assertEquals(1, map.get("a"));
+    }
+    
+    @SuppressWarnings("unchecked")
+    public void testSerialization() throws Exception {
+        final Map<String, Object> map = new LinkedCaseInsensitiveMap<Object>();
+        map.put("uid", "edalquist");
+        map.put("Mail", "edalquist@example.edu");
+        
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(map);
+        out.close();
+        
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        final Map<String, Object> readMap = (Map<String, Object>)in.readObject();
+        
+        assertEquals(map, readMap);
+        assertEquals(new ArrayList<String>(map.keySet()), new ArrayList<String>(readMap.keySet()));
+        assertEquals("edalquist@example.edu", readMap.get("MAIL"));
+    }
+}